@@ -7,6 +7,7 @@ import com.github.jknack.handlebars.Handlebars;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Binder;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
@@ -28,6 +29,7 @@ import com.hubspot.baragon.agent.handlebars.ToNginxVarHelper;
 import com.hubspot.baragon.agent.healthcheck.ConfigChecker;
 import com.hubspot.baragon.agent.healthcheck.InternalStateChecker;
 import com.hubspot.baragon.agent.healthcheck.LoadBalancerHealthcheck;
+import com.hubspot.baragon.agent.healthcheck.WatchedServiceStateView;
 import com.hubspot.baragon.agent.healthcheck.ZooKeeperHealthcheck;
 import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
 import com.hubspot.baragon.agent.lbs.LbConfigGenerator;
@@ -38,7 +40,11 @@ import com.hubspot.baragon.agent.managed.BaragonAgentGraphiteReporterManaged;
 import com.hubspot.baragon.agent.managed.BootstrapManaged;
 import com.hubspot.baragon.agent.managed.LifecycleHelper;
 import com.hubspot.baragon.agent.managers.AgentRequestManager;
+import com.hubspot.baragon.agent.managers.BatchCachePurger;
+import com.hubspot.baragon.agent.managers.BatchProfiler;
+import com.hubspot.baragon.agent.managers.StateSnapshotManager;
 import com.hubspot.baragon.agent.models.FilePathFormatType;
+import com.hubspot.baragon.agent.models.InternalStateCache;
 import com.hubspot.baragon.agent.models.LbConfigTemplate;
 import com.hubspot.baragon.agent.resources.BargonAgentResourcesModule;
 import com.hubspot.baragon.agent.workers.AgentHeartbeatWorker;
@@ -63,9 +69,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
@@ -92,6 +101,11 @@ public class BaragonAgentServiceModule
   public static final String LOCAL_STATE_ERROR_MESSAGE =
     "baragon.agent.local.state.error.message";
   public static final String INTERNAL_STATE_CACHE = "baragon.agent.internal.state.cache";
+  public static final String AGENT_BATCH_EXECUTOR = "baragon.agent.batch.executor";
+  public static final String AGENT_PURGE_CACHE_EXECUTOR =
+    "baragon.agent.purge.cache.executor";
+  public static final String AGENT_RECONCILE_EXECUTOR =
+    "baragon.agent.reconcile.executor";
 
   private static final Pattern FORMAT_PATTERN = Pattern.compile(
     "[^%]%([+-]?\\d*.?\\d*)?[sdf]"
@@ -118,6 +132,9 @@ public class BaragonAgentServiceModule
 
     // Manager
     binder.bind(AgentRequestManager.class).in(Scopes.SINGLETON);
+    binder.bind(BatchCachePurger.class).in(Scopes.SINGLETON);
+    binder.bind(BatchProfiler.class).in(Scopes.SINGLETON);
+    binder.bind(StateSnapshotManager.class).in(Scopes.SINGLETON);
 
     binder.bind(ResyncListener.class).in(Scopes.SINGLETON);
     binder.bind(LocalLbAdapter.class).in(Scopes.SINGLETON);
@@ -126,6 +143,7 @@ public class BaragonAgentServiceModule
     binder.bind(FilesystemConfigHelper.class).in(Scopes.SINGLETON);
     binder.bind(AgentHeartbeatWorker.class).in(Scopes.SINGLETON);
     binder.bind(InternalStateChecker.class).in(Scopes.SINGLETON);
+    binder.bind(WatchedServiceStateView.class).in(Scopes.SINGLETON);
     binder.bind(DirectoryChangesListener.class).in(Scopes.SINGLETON);
 
     final ObjectMapper objectMapper = new ObjectMapper();
@@ -376,6 +394,48 @@ public class BaragonAgentServiceModule
     return Executors.newScheduledThreadPool(4);
   }
 
+  @Provides
+  @Singleton
+  @Named(AGENT_RECONCILE_EXECUTOR)
+  public ScheduledExecutorService providesReconcileExecutor() {
+    return Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder()
+        .setNameFormat("snapshot-reconcile-%d")
+        .setDaemon(true)
+        .build()
+    );
+  }
+
+  @Provides
+  @Singleton
+  @Named(AGENT_BATCH_EXECUTOR)
+  public ExecutorService providesBatchExecutor(BaragonAgentConfiguration configuration) {
+    return Executors.newFixedThreadPool(
+      configuration.getBatchProcessingThreads(),
+      new ThreadFactoryBuilder()
+        .setNameFormat("batch-processing-%d")
+        .setDaemon(true)
+        .build()
+    );
+  }
+
+  @Provides
+  @Singleton
+  @Named(AGENT_PURGE_CACHE_EXECUTOR)
+  public ExecutorService providesPurgeCacheExecutor(
+    BaragonAgentConfiguration configuration
+  ) {
+    return new ThreadPoolExecutor(
+      configuration.getPurgeCacheThreads(),
+      configuration.getPurgeCacheThreads(),
+      0L,
+      TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(configuration.getPurgeCacheQueueSize()),
+      new ThreadFactoryBuilder().setNameFormat("purge-cache-%d").setDaemon(true).build(),
+      new ThreadPoolExecutor.CallerRunsPolicy()
+    );
+  }
+
   @Provides
   @Singleton
   @Named(BARAGON_AGENT_HTTP_CLIENT)
@@ -437,6 +497,6 @@ public class BaragonAgentServiceModule
   @Singleton
   @Named(INTERNAL_STATE_CACHE)
   public Map<String, BasicServiceContext> provideStateCache() {
-    return new ConcurrentHashMap<>();
+    return new InternalStateCache();
   }
 }
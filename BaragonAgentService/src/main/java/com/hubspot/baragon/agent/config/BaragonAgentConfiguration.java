@@ -15,6 +15,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import javax.validation.Valid;
+import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import org.hibernate.validator.constraints.NotEmpty;
@@ -65,6 +66,13 @@ public class BaragonAgentConfiguration extends Configuration {
   @JsonProperty("heartbeatIntervalSeconds")
   private int heartbeatIntervalSeconds = 15;
 
+  @JsonProperty("lastSeenIntervalSeconds")
+  @Min(1)
+  private int lastSeenIntervalSeconds = 300;
+
+  @JsonProperty("writeLastSeenToMetadata")
+  private boolean writeLastSeenToMetadata = true;
+
   @JsonProperty("httpClient")
   @NotNull
   @Valid
@@ -100,9 +108,17 @@ public class BaragonAgentConfiguration extends Configuration {
   @JsonProperty("configCheckIntervalSecs")
   private int configCheckIntervalSecs = 60;
 
+  @JsonProperty("configCheckMaxIntervalSecs")
+  @Min(0)
+  private int configCheckMaxIntervalSecs = 900;
+
   @JsonProperty("stateCheckIntervalSecs")
   private int stateCheckIntervalSecs = 600;
 
+  @JsonProperty("stateCheckGracePeriodSecs")
+  @Min(0)
+  private int stateCheckGracePeriodSecs = 120;
+
   @JsonProperty("saveFailedConfigs")
   private boolean saveFailedConfigs = false;
 
@@ -142,9 +158,57 @@ public class BaragonAgentConfiguration extends Configuration {
   @JsonProperty("watchedDirectories")
   private List<WatchedDirectoryConfig> watchedDirectories = new ArrayList<>();
 
+  @JsonProperty("watchedDirectoryMinDebounceMs")
+  @Min(0)
+  private long watchedDirectoryMinDebounceMs = 1000;
+
+  @JsonProperty("watchedDirectoryMaxDebounceMs")
+  @Min(0)
+  private long watchedDirectoryMaxDebounceMs = 10000;
+
   @JsonProperty("purgeCacheUriFormat")
   private String purgeCacheUriFormat = "http://127.0.0.1:8082/purge/%s*";
 
+  @JsonProperty("batchProcessingThreads")
+  @Min(1)
+  private int batchProcessingThreads = 8;
+
+  @JsonProperty("purgeCacheThreads")
+  @Min(1)
+  private int purgeCacheThreads = 4;
+
+  @JsonProperty("purgeCacheQueueSize")
+  @Min(1)
+  private int purgeCacheQueueSize = 100;
+
+  @JsonProperty("purgeCacheMaxAttempts")
+  @Min(1)
+  private int purgeCacheMaxAttempts = 3;
+
+  @JsonProperty("purgeCacheRetryBaseMs")
+  @Min(0)
+  private long purgeCacheRetryBaseMs = 500;
+
+  @JsonProperty("purgeCacheTimeoutMs")
+  @Min(0)
+  private long purgeCacheTimeoutMs = 10000;
+
+  @JsonProperty("stateSnapshotFile")
+  private Optional<String> stateSnapshotFile = Optional.absent();
+
+  @JsonProperty("stateSnapshotIntervalSeconds")
+  @Min(1)
+  private int stateSnapshotIntervalSeconds = 30;
+
+  @JsonProperty("batchProfilingSampleRate")
+  @Min(0)
+  @Max(1)
+  private double batchProfilingSampleRate = 0;
+
+  @JsonProperty("batchProfilingBufferSize")
+  @Min(1)
+  private int batchProfilingBufferSize = 50;
+
   public HttpClientConfiguration getHttpClientConfiguration() {
     return httpClientConfiguration;
   }
@@ -321,6 +385,14 @@ public class BaragonAgentConfiguration extends Configuration {
     this.stateCheckIntervalSecs = stateCheckIntervalSecs;
   }
 
+  public int getStateCheckGracePeriodSecs() {
+    return stateCheckGracePeriodSecs;
+  }
+
+  public void setStateCheckGracePeriodSecs(int stateCheckGracePeriodSecs) {
+    this.stateCheckGracePeriodSecs = stateCheckGracePeriodSecs;
+  }
+
   public boolean isSaveFailedConfigs() {
     return saveFailedConfigs;
   }
@@ -433,6 +505,22 @@ public class BaragonAgentConfiguration extends Configuration {
     this.watchedDirectories = watchedDirectories;
   }
 
+  public long getWatchedDirectoryMinDebounceMs() {
+    return watchedDirectoryMinDebounceMs;
+  }
+
+  public void setWatchedDirectoryMinDebounceMs(long watchedDirectoryMinDebounceMs) {
+    this.watchedDirectoryMinDebounceMs = watchedDirectoryMinDebounceMs;
+  }
+
+  public long getWatchedDirectoryMaxDebounceMs() {
+    return watchedDirectoryMaxDebounceMs;
+  }
+
+  public void setWatchedDirectoryMaxDebounceMs(long watchedDirectoryMaxDebounceMs) {
+    this.watchedDirectoryMaxDebounceMs = watchedDirectoryMaxDebounceMs;
+  }
+
   public String getPurgeCacheUriFormat() {
     return purgeCacheUriFormat;
   }
@@ -440,4 +528,108 @@ public class BaragonAgentConfiguration extends Configuration {
   public void setPurgeCacheUriFormat(String purgeCacheUriFormat) {
     this.purgeCacheUriFormat = purgeCacheUriFormat;
   }
+
+  public int getBatchProcessingThreads() {
+    return batchProcessingThreads;
+  }
+
+  public void setBatchProcessingThreads(int batchProcessingThreads) {
+    this.batchProcessingThreads = batchProcessingThreads;
+  }
+
+  public int getPurgeCacheThreads() {
+    return purgeCacheThreads;
+  }
+
+  public void setPurgeCacheThreads(int purgeCacheThreads) {
+    this.purgeCacheThreads = purgeCacheThreads;
+  }
+
+  public int getPurgeCacheQueueSize() {
+    return purgeCacheQueueSize;
+  }
+
+  public void setPurgeCacheQueueSize(int purgeCacheQueueSize) {
+    this.purgeCacheQueueSize = purgeCacheQueueSize;
+  }
+
+  public int getPurgeCacheMaxAttempts() {
+    return purgeCacheMaxAttempts;
+  }
+
+  public void setPurgeCacheMaxAttempts(int purgeCacheMaxAttempts) {
+    this.purgeCacheMaxAttempts = purgeCacheMaxAttempts;
+  }
+
+  public long getPurgeCacheRetryBaseMs() {
+    return purgeCacheRetryBaseMs;
+  }
+
+  public void setPurgeCacheRetryBaseMs(long purgeCacheRetryBaseMs) {
+    this.purgeCacheRetryBaseMs = purgeCacheRetryBaseMs;
+  }
+
+  public long getPurgeCacheTimeoutMs() {
+    return purgeCacheTimeoutMs;
+  }
+
+  public void setPurgeCacheTimeoutMs(long purgeCacheTimeoutMs) {
+    this.purgeCacheTimeoutMs = purgeCacheTimeoutMs;
+  }
+
+  public Optional<String> getStateSnapshotFile() {
+    return stateSnapshotFile;
+  }
+
+  public void setStateSnapshotFile(Optional<String> stateSnapshotFile) {
+    this.stateSnapshotFile = stateSnapshotFile;
+  }
+
+  public int getStateSnapshotIntervalSeconds() {
+    return stateSnapshotIntervalSeconds;
+  }
+
+  public void setStateSnapshotIntervalSeconds(int stateSnapshotIntervalSeconds) {
+    this.stateSnapshotIntervalSeconds = stateSnapshotIntervalSeconds;
+  }
+
+  public double getBatchProfilingSampleRate() {
+    return batchProfilingSampleRate;
+  }
+
+  public void setBatchProfilingSampleRate(double batchProfilingSampleRate) {
+    this.batchProfilingSampleRate = batchProfilingSampleRate;
+  }
+
+  public int getBatchProfilingBufferSize() {
+    return batchProfilingBufferSize;
+  }
+
+  public void setBatchProfilingBufferSize(int batchProfilingBufferSize) {
+    this.batchProfilingBufferSize = batchProfilingBufferSize;
+  }
+
+  public int getLastSeenIntervalSeconds() {
+    return lastSeenIntervalSeconds;
+  }
+
+  public void setLastSeenIntervalSeconds(int lastSeenIntervalSeconds) {
+    this.lastSeenIntervalSeconds = lastSeenIntervalSeconds;
+  }
+
+  public boolean isWriteLastSeenToMetadata() {
+    return writeLastSeenToMetadata;
+  }
+
+  public void setWriteLastSeenToMetadata(boolean writeLastSeenToMetadata) {
+    this.writeLastSeenToMetadata = writeLastSeenToMetadata;
+  }
+
+  public int getConfigCheckMaxIntervalSecs() {
+    return configCheckMaxIntervalSecs;
+  }
+
+  public void setConfigCheckMaxIntervalSecs(int configCheckMaxIntervalSecs) {
+    this.configCheckMaxIntervalSecs = configCheckMaxIntervalSecs;
+  }
 }
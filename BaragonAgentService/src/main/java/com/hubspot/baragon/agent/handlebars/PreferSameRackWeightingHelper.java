@@ -8,9 +8,15 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class PreferSameRackWeightingHelper {
+  private static final String RACK_WEIGHTS_DATA_KEY =
+    "preferSameRackWeighting.rackWeights";
+
   private final BaragonAgentConfiguration configuration;
   private final BaragonAgentMetadata agentMetadata;
 
@@ -51,25 +57,55 @@ public class PreferSameRackWeightingHelper {
     UpstreamInfo currentUpstream,
     Options options
   ) {
-    final RackMethodsHelper rackHelper = new RackMethodsHelper();
-    final List<String> allRacks = rackHelper.generateAllRacks(upstreams);
-    if (allRacks.size() == 0) {
+    final RackWeights rackWeights = getRackWeights(upstreams, options);
+    if (rackWeights.totalRacks == 0) {
       return "";
     }
-    final BigDecimal totalPendingLoad = rackHelper.getTotalPendingLoad(allRacks);
-    final BigDecimal capacity = rackHelper.calculateCapacity(allRacks);
-    final BigDecimal multiplier = rackHelper.calculateMultiplier(allRacks);
-    return preferSameRackWeightingOperation(
-      upstreams,
-      currentUpstream,
-      allRacks,
-      capacity,
-      multiplier,
-      totalPendingLoad,
-      null
+    if (
+      !agentMetadata.getEc2().getAvailabilityZone().isPresent() ||
+      !currentUpstream.getRackId().isPresent()
+    ) {
+      return ""; // If the required data isn't present for some reason, send even traffic everywhere (i.e. everything has a weight of 1)
+    }
+    return rackWeights.weightsByRack.computeIfAbsent(
+      currentUpstream.getRackId().get(),
+      testingRack ->
+        computeWeight(
+          agentMetadata.getEc2().getAvailabilityZone().get(),
+          testingRack,
+          rackWeights.rackCounts.getOrDefault(
+            agentMetadata.getEc2().getAvailabilityZone().get(),
+            0
+          ),
+          rackWeights.rackCounts.getOrDefault(testingRack, 0),
+          rackWeights.capacity,
+          rackWeights.multiplier,
+          rackWeights.totalPendingLoad
+        )
     );
   }
 
+  /**
+   * The rack distribution only depends on the upstreams, so compute it once and share it with every
+   * invocation in the same render via the handlebars context data
+   */
+  private RackWeights getRackWeights(
+    Collection<UpstreamInfo> upstreams,
+    Options options
+  ) {
+    if (options == null) {
+      return new RackWeights(upstreams);
+    }
+    Map<Collection<UpstreamInfo>, RackWeights> rackWeightsByUpstreams = options.data(
+      RACK_WEIGHTS_DATA_KEY
+    );
+    if (rackWeightsByUpstreams == null) {
+      rackWeightsByUpstreams = new IdentityHashMap<>();
+      options.data(RACK_WEIGHTS_DATA_KEY, rackWeightsByUpstreams);
+    }
+    return rackWeightsByUpstreams.computeIfAbsent(upstreams, RackWeights::new);
+  }
+
   /**
    *
    * @param upstreams
@@ -93,59 +129,95 @@ public class PreferSameRackWeightingHelper {
       agentMetadata.getEc2().getAvailabilityZone().isPresent() &&
       currentUpstream.getRackId().isPresent()
     ) {
-      final RackMethodsHelper rackHelper = new RackMethodsHelper();
-
       final String currentRack = agentMetadata.getEc2().getAvailabilityZone().get();
       final String testingRack = currentUpstream.getRackId().get();
-      final BigDecimal countOfCurrentRack = new BigDecimal(
-        Collections.frequency(allRacks, currentRack)
+      return computeWeight(
+        currentRack,
+        testingRack,
+        Collections.frequency(allRacks, currentRack),
+        Collections.frequency(allRacks, testingRack), // assume this is always in upstream
+        capacity,
+        multiplier,
+        totalPendingLoad
       );
-      final BigDecimal countOfTestingRack = new BigDecimal(
-        (Collections.frequency(allRacks, testingRack))
-      ); // assume this is always in upstream
+    }
+    return ""; // If the required data isn't present for some reason, send even traffic everywhere (i.e. everything has a weight of 1)
+  }
+
+  private String computeWeight(
+    String currentRack,
+    String testingRack,
+    int currentRackCount,
+    int testingRackCount,
+    BigDecimal capacity,
+    BigDecimal multiplier,
+    BigDecimal totalPendingLoad
+  ) {
+    final RackMethodsHelper rackHelper = new RackMethodsHelper();
 
-      if (countOfCurrentRack.intValue() == 0) { // distribute equally to all testing racks if currentRack is not in upstreams
+    final BigDecimal countOfCurrentRack = new BigDecimal(currentRackCount);
+    final BigDecimal countOfTestingRack = new BigDecimal(testingRackCount);
+
+    if (countOfCurrentRack.intValue() == 0) { // distribute equally to all testing racks if currentRack is not in upstreams
+      return "";
+    }
+
+    final BigDecimal load = rackHelper.getReciprocal(countOfCurrentRack);
+
+    if (currentRack.equals(testingRack)) {
+      if (load.compareTo(capacity) == -1) { // load is less than capacity
         return "";
       }
+      final BigDecimal weight = capacity.multiply(multiplier);
+      return getWeight(weight);
+    }
 
-      final BigDecimal load = rackHelper.getReciprocal(countOfCurrentRack);
+    final BigDecimal pendingLoadInCurrentRack = load.subtract(capacity);
+    if (pendingLoadInCurrentRack.compareTo(BigDecimal.ZERO) < 1) { // pendingLoadInCurrentRack <= 0
+      return configuration.getZeroWeightString();
+    }
 
-      if (currentRack.equals(testingRack)) {
-        if (load.compareTo(capacity) == -1) { // load is less than capacity
-          return "";
-        }
-        final BigDecimal weight = capacity.multiply(multiplier);
-        return getWeight(weight);
-      }
+    final BigDecimal loadInTestingRackFromItself = rackHelper.getReciprocal(
+      countOfTestingRack
+    );
+    final BigDecimal extraCapacityInTestingRack = capacity.subtract(
+      loadInTestingRackFromItself
+    );
+    if (extraCapacityInTestingRack.compareTo(BigDecimal.ZERO) < 1) { //extraCapacityInTestingRack <= 0
+      return configuration.getZeroWeightString();
+    }
 
-      final BigDecimal pendingLoadInCurrentRack = load.subtract(capacity);
-      if (pendingLoadInCurrentRack.compareTo(BigDecimal.ZERO) < 1) { // pendingLoadInCurrentRack <= 0
-        return configuration.getZeroWeightString();
-      }
+    final BigDecimal pendingLoadFromCurrentRackToTestingRack =
+      (
+        extraCapacityInTestingRack.divide(totalPendingLoad, 10, BigDecimal.ROUND_HALF_UP)
+      ).multiply(pendingLoadInCurrentRack);
+    final BigDecimal weight = pendingLoadFromCurrentRackToTestingRack.multiply(
+      multiplier
+    );
+    return getWeight(weight);
+  }
 
-      final BigDecimal loadInTestingRackFromItself = rackHelper.getReciprocal(
-        countOfTestingRack
-      );
-      final BigDecimal extraCapacityInTestingRack = capacity.subtract(
-        loadInTestingRackFromItself
-      );
-      if (extraCapacityInTestingRack.compareTo(BigDecimal.ZERO) < 1) { //extraCapacityInTestingRack <= 0
-        return configuration.getZeroWeightString();
-      }
+  private static class RackWeights {
+    private final Map<String, Integer> rackCounts;
+    private final int totalRacks;
+    private final BigDecimal capacity;
+    private final BigDecimal multiplier;
+    private final BigDecimal totalPendingLoad;
+    private final Map<String, String> weightsByRack = new HashMap<>();
 
-      final BigDecimal pendingLoadFromCurrentRackToTestingRack =
-        (
-          extraCapacityInTestingRack.divide(
-            totalPendingLoad,
-            10,
-            BigDecimal.ROUND_HALF_UP
-          )
-        ).multiply(pendingLoadInCurrentRack);
-      final BigDecimal weight = pendingLoadFromCurrentRackToTestingRack.multiply(
-        multiplier
-      );
-      return getWeight(weight);
+    private RackWeights(Collection<UpstreamInfo> upstreams) {
+      final RackMethodsHelper rackHelper = new RackMethodsHelper();
+      this.rackCounts = rackHelper.countRacks(upstreams);
+      this.totalRacks = rackCounts.values().stream().mapToInt(Integer::intValue).sum();
+      if (totalRacks == 0) {
+        this.capacity = BigDecimal.ZERO;
+        this.multiplier = BigDecimal.ZERO;
+        this.totalPendingLoad = BigDecimal.ZERO;
+      } else {
+        this.capacity = rackHelper.calculateCapacity(rackCounts, totalRacks);
+        this.multiplier = rackHelper.calculateMultiplier(rackCounts, totalRacks);
+        this.totalPendingLoad = rackHelper.getTotalPendingLoad(rackCounts, capacity);
+      }
     }
-    return ""; // If the required data isn't present for some reason, send even traffic everywhere (i.e. everything has a weight of 1)
   }
 }
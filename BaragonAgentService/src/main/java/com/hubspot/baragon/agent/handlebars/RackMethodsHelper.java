@@ -5,8 +5,10 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 public class RackMethodsHelper {
 
@@ -58,6 +60,54 @@ public class RackMethodsHelper {
     return pendingLoad;
   }
 
+  /**
+   * @return the number of upstreams in each rack
+   */
+  public Map<String, Integer> countRacks(Collection<UpstreamInfo> upstreams) {
+    Map<String, Integer> rackCounts = new HashMap<>();
+    for (UpstreamInfo upstreamInfo : upstreams) {
+      if (upstreamInfo.getRackId().isPresent()) {
+        rackCounts.merge(upstreamInfo.getRackId().get(), 1, Integer::sum);
+      }
+    }
+    return rackCounts;
+  }
+
+  /**
+   * @param rackCounts
+   * @param totalRacks
+   * @return the capacity that each upstream should handle, equivalent to calculateCapacity(allRacks)
+   */
+  public BigDecimal calculateCapacity(Map<String, Integer> rackCounts, int totalRacks) {
+    return new BigDecimal(rackCounts.size())
+    .divide(new BigDecimal(totalRacks), 10, BigDecimal.ROUND_HALF_UP);
+  }
+
+  public BigDecimal calculateMultiplier(Map<String, Integer> rackCounts, int totalRacks) {
+    return new BigDecimal(rackCounts.size()).multiply(new BigDecimal(totalRacks));
+  }
+
+  /**
+   * @param rackCounts
+   * @param capacity
+   * @return the total pending load, equivalent to getTotalPendingLoad(allRacks) but summed once per distinct rack
+   */
+  public BigDecimal getTotalPendingLoad(
+    Map<String, Integer> rackCounts,
+    BigDecimal capacity
+  ) {
+    BigDecimal pendingLoad = BigDecimal.ZERO;
+    for (int count : rackCounts.values()) {
+      final BigDecimal myPendingLoad = capacity.subtract(
+        getReciprocal(new BigDecimal(count))
+      );
+      if (myPendingLoad.compareTo(BigDecimal.ZERO) == 1) { // pending load is greater than 0
+        pendingLoad = pendingLoad.add(myPendingLoad.multiply(new BigDecimal(count)));
+      }
+    }
+    return pendingLoad;
+  }
+
   public BigDecimal getReciprocal(BigDecimal number) {
     return (new BigDecimal(1)).divide(number, 10, BigDecimal.ROUND_HALF_UP);
   }
@@ -3,6 +3,8 @@ package com.hubspot.baragon.agent.handlebars;
 import com.github.jknack.handlebars.Helper;
 import com.github.jknack.handlebars.Options;
 import com.google.common.base.Optional;
+import com.hubspot.baragon.agent.managers.BatchProfiler;
+import com.hubspot.baragon.agent.models.BatchPhase;
 import com.hubspot.baragon.models.UpstreamInfo;
 import com.hubspot.baragon.utils.UpstreamResolver;
 import org.slf4j.Logger;
@@ -24,14 +26,18 @@ public class ResolveHostnameHelper implements Helper<Object> {
     if (upstream instanceof String) {
       String address = ((String) upstream);
       LOG.trace("Trying to resolve a String upstream of {}", address);
+      long start = BatchProfiler.start();
       String resolved = resolver.resolveUpstreamDNS(address).or(address);
+      BatchProfiler.record(BatchPhase.RESOLVE_HOSTNAME, start);
       LOG.trace("Resolved {} to {}", address, resolved);
       return resolved;
     } else if (upstream instanceof UpstreamInfo) {
       UpstreamInfo upstreamInfo = ((UpstreamInfo) upstream);
+      long start = BatchProfiler.start();
       final Optional<String> maybeResolvedUpstream = resolver.resolveUpstreamDNS(
         upstreamInfo.getUpstream()
       );
+      BatchProfiler.record(BatchPhase.RESOLVE_HOSTNAME, start);
       LOG.trace(
         "Trying to resolve an UpstreamInfo upstream of {} with upstreamInfo.getResolvedUpstream() = {}, resolver.resolveUpstreamDNS(upstreamInfo.getUpstream()) = {}, upstreamInfo.getUpstream() = {}",
         upstreamInfo,
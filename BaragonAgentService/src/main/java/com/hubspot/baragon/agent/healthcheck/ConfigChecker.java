@@ -1,35 +1,149 @@
 package com.hubspot.baragon.agent.healthcheck;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Optional;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.agent.BaragonAgentServiceModule;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.config.WatchedDirectoryConfig;
 import com.hubspot.baragon.agent.lbs.LocalLbAdapter;
 import com.hubspot.baragon.exceptions.InvalidConfigException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Periodically runs the load balancer's config check. The check is skipped while nothing under the
+ * config root or the watched directory destinations has changed since the last check passed, going
+ * by each file's path, size, modification time and inode, but it still runs at least every
+ * configCheckMaxIntervalSecs.
+ */
 public class ConfigChecker implements Runnable {
+  private static final Logger LOG = LoggerFactory.getLogger(ConfigChecker.class);
+
   private final LocalLbAdapter adapter;
   private final AtomicReference<Optional<String>> errorMessage;
+  private final List<Path> configRoots;
+  private final long maxIntervalMillis;
+  private final Counter executedChecks;
+  private final Counter skippedChecks;
+
+  private Optional<String> verifiedFingerprint = Optional.absent();
+  private long verifiedAt = 0;
 
   @Inject
   public ConfigChecker(
     LocalLbAdapter adapter,
+    BaragonAgentConfiguration configuration,
+    MetricRegistry metricRegistry,
     @Named(
       BaragonAgentServiceModule.CONFIG_ERROR_MESSAGE
     ) AtomicReference<Optional<String>> errorMessage
   ) {
     this.adapter = adapter;
     this.errorMessage = errorMessage;
+    this.configRoots = new ArrayList<>();
+    this.configRoots.add(
+        Paths.get(configuration.getLoadBalancerConfiguration().getRootPath())
+      );
+    for (WatchedDirectoryConfig watchedDirectory : configuration.getWatchedDirectories()) {
+      this.configRoots.add(watchedDirectory.getDestinationAsPath());
+    }
+    this.maxIntervalMillis =
+      TimeUnit.SECONDS.toMillis(configuration.getConfigCheckMaxIntervalSecs());
+    this.executedChecks =
+      metricRegistry.counter(MetricRegistry.name(ConfigChecker.class, "executed"));
+    this.skippedChecks =
+      metricRegistry.counter(MetricRegistry.name(ConfigChecker.class, "skipped"));
   }
 
   @Override
   public void run() {
+    check(System.currentTimeMillis());
+  }
+
+  synchronized void check(long now) {
+    // Taken before the check runs, so anything written while it runs forces another one
+    Optional<String> fingerprint = fingerprint();
+    if (
+      fingerprint.isPresent() &&
+      fingerprint.equals(verifiedFingerprint) &&
+      now - verifiedAt < maxIntervalMillis
+    ) {
+      skippedChecks.inc();
+      LOG.debug("Config tree unchanged since last passing check, skipping it");
+      return;
+    }
+
+    executedChecks.inc();
     try {
       adapter.checkConfigs();
       errorMessage.set(Optional.<String>absent());
+      verifiedFingerprint = fingerprint;
+      verifiedAt = now;
     } catch (InvalidConfigException e) {
       errorMessage.set(Optional.of(e.getMessage()));
+      verifiedFingerprint = Optional.absent();
+    }
+  }
+
+  private Optional<String> fingerprint() {
+    try {
+      TreeSet<String> entries = new TreeSet<>();
+      for (Path root : configRoots) {
+        if (!Files.isDirectory(root)) {
+          entries.add(root + "|missing");
+          continue;
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+          files.forEach(
+            path -> {
+              try {
+                BasicFileAttributes attributes = Files.readAttributes(
+                  path,
+                  BasicFileAttributes.class
+                );
+                entries.add(
+                  String.format(
+                    "%s|%d|%d|%s",
+                    path,
+                    attributes.size(),
+                    attributes.lastModifiedTime().toMillis(),
+                    Objects.toString(attributes.fileKey(), "")
+                  )
+                );
+              } catch (IOException e) {
+                // Deleted while walking, the next check will see the tree without it
+                entries.add(path + "|gone");
+              }
+            }
+          );
+        }
+      }
+      Hasher hasher = Hashing.murmur3_128().newHasher();
+      for (String entry : entries) {
+        hasher.putString(entry, StandardCharsets.UTF_8).putByte((byte) 0);
+      }
+      return Optional.of(hasher.hash().toString());
+    } catch (Exception e) {
+      LOG.warn("Could not fingerprint config tree, running the full check", e);
+      return Optional.absent();
     }
   }
 }
@@ -4,38 +4,49 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.flipkart.zjsonpatch.JsonDiff;
 import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.agent.BaragonAgentServiceModule;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
 import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.agent.healthcheck.WatchedServiceStateView.ServiceNodeVersion;
+import com.hubspot.baragon.agent.healthcheck.WatchedServiceStateView.WatchedServiceState;
 import com.hubspot.baragon.agent.lbs.BootstrapFileChecker;
 import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
 import com.hubspot.baragon.data.BaragonRequestDatastore;
-import com.hubspot.baragon.data.BaragonStateDatastore;
 import com.hubspot.baragon.exceptions.LockTimeoutException;
 import com.hubspot.baragon.models.BaragonConfigFile;
-import com.hubspot.baragon.models.BaragonService;
 import com.hubspot.baragon.models.BaragonServiceState;
 import com.hubspot.baragon.models.BasicServiceContext;
+import com.hubspot.baragon.models.QueuedRequestId;
 import com.hubspot.baragon.models.ServiceContext;
-import com.hubspot.baragon.models.UpstreamInfo;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Compares the agent's internal state cache against ZooKeeper and re-applies services that have
+ * drifted. Service node versions come from a watch-maintained view, so a service is only read from
+ * ZooKeeper when it changed there or in the cache since it was last found to match. A change
+ * reported by a watch also triggers a targeted check of that service after the grace period,
+ * rather than waiting for the next full pass.
+ */
 @Singleton
 public class InternalStateChecker implements Runnable {
   private static final Logger LOG = LoggerFactory.getLogger(InternalStateChecker.class);
 
-  private final BaragonStateDatastore stateDatastore;
   private final BaragonRequestDatastore requestDatastore;
   private final LoadBalancerConfiguration loadBalancerConfiguration;
   private final FilesystemConfigHelper configHelper;
@@ -43,21 +54,30 @@ public class InternalStateChecker implements Runnable {
   private final Set<String> stateErrors;
   private final ObjectMapper objectMapper;
   private final ReentrantLock agentLock;
+  private final WatchedServiceStateView stateView;
+  private final ScheduledExecutorService executorService;
+  private final long gracePeriodMillis;
+  private final Map<String, VerifiedService> verifiedServices = new HashMap<>();
+  private final Map<String, String> errorsByService = new HashMap<>();
+  private final Set<String> scheduledChecks = ConcurrentHashMap.newKeySet();
 
   @Inject
   public InternalStateChecker(
-    BaragonStateDatastore stateDatastore,
     BaragonRequestDatastore requestDatastore,
     LoadBalancerConfiguration loadBalancerConfiguration,
+    BaragonAgentConfiguration configuration,
     ObjectMapper objectMapper,
     FilesystemConfigHelper configHelper,
+    WatchedServiceStateView stateView,
     @Named(BaragonAgentServiceModule.AGENT_LOCK) ReentrantLock agentLock,
     @Named(
       BaragonAgentServiceModule.INTERNAL_STATE_CACHE
     ) Map<String, BasicServiceContext> internalStateCache,
-    @Named(BaragonAgentServiceModule.LOCAL_STATE_ERROR_MESSAGE) Set<String> stateErrors
+    @Named(BaragonAgentServiceModule.LOCAL_STATE_ERROR_MESSAGE) Set<String> stateErrors,
+    @Named(
+      BaragonAgentServiceModule.AGENT_SCHEDULED_EXECUTOR
+    ) ScheduledExecutorService executorService
   ) {
-    this.stateDatastore = stateDatastore;
     this.requestDatastore = requestDatastore;
     this.loadBalancerConfiguration = loadBalancerConfiguration;
     this.configHelper = configHelper;
@@ -65,116 +85,183 @@ public class InternalStateChecker implements Runnable {
     this.agentLock = agentLock;
     this.internalStateCache = internalStateCache;
     this.stateErrors = stateErrors;
+    this.stateView = stateView;
+    this.executorService = executorService;
+    this.gracePeriodMillis =
+      TimeUnit.SECONDS.toMillis(configuration.getStateCheckGracePeriodSecs());
+    stateView.addChangeListener(this::scheduleCheck);
   }
 
   @Override
-  public void run() {
-    Set<String> invalidServiceMessages = new HashSet<>();
+  public synchronized void run() {
     long now = System.currentTimeMillis();
-    new HashMap<>(internalStateCache)
-    .forEach(
-        (serviceId, context) -> {
-          Optional<BaragonService> maybeService = stateDatastore.getService(serviceId);
-          if (!maybeService.isPresent()) {
-            invalidServiceMessages.add(
-              String.format(
-                "%s no longer exists in state datastore, but exists in agent",
-                serviceId
-              )
-            );
-            return;
-          }
-          if (
-            !maybeService
-              .get()
-              .getLoadBalancerGroups()
-              .contains(loadBalancerConfiguration.getName())
-          ) {
-            invalidServiceMessages.add(
-              String.format(
-                "%s is no longer deployed to group %s",
-                serviceId,
-                loadBalancerConfiguration.getName()
-              )
-            );
-            return;
-          }
-          Collection<UpstreamInfo> existingUpstreams = stateDatastore.getUpstreams(
-            serviceId
-          );
-          BasicServiceContext datastoreContext = new BasicServiceContext(
-            maybeService.get(),
-            existingUpstreams
-          );
-          if (
-            !datastoreContext.equals(context) &&
-            now - context.getTimestamp() > TimeUnit.MINUTES.toMillis(2)
-          ) {
-            if (
-              requestDatastore
-                .getQueuedRequestIds()
-                .stream()
-                .noneMatch(q -> q.getServiceId().equals(serviceId))
-            ) {
-              Optional<BaragonService> maybeUpdatedService = stateDatastore.getService(
-                serviceId
-              );
-              if (!maybeUpdatedService.isPresent()) {
-                LOG.warn(
-                  "Service data no longer present, skipping auto-fix for {}",
-                  serviceId
-                );
-                invalidServiceMessages.add(getDiffMessage(context, datastoreContext));
-                return;
-              }
-              Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>> maybeCheck = new BootstrapFileChecker(
-                configHelper,
-                new BaragonServiceState(
-                  maybeUpdatedService.get(),
-                  stateDatastore.getUpstreams(serviceId)
-                ),
-                now
-              )
-              .call();
-              if (maybeCheck.isPresent()) {
-                try {
-                  if (!agentLock.tryLock(10, TimeUnit.MILLISECONDS)) {
-                    LockTimeoutException lte = new LockTimeoutException(
-                      "Timed out waiting to acquire lock",
-                      agentLock
-                    );
-                    LOG.warn(
-                      "Failed to acquire lock for service config apply ({})",
-                      serviceId,
-                      lte
-                    );
-                    throw lte;
-                  }
-                  try {
-                    configHelper.bootstrapApply(
-                      maybeCheck.get().getKey(),
-                      maybeCheck.get().getValue()
-                    );
-                    BasicServiceContext newContext = new BasicServiceContext(
-                      maybeCheck.get().getKey().getService(),
-                      maybeCheck.get().getKey().getUpstreams()
-                    );
-                    internalStateCache.put(serviceId, newContext);
-                  } finally {
-                    agentLock.unlock();
-                  }
-                } catch (Exception e) {
-                  invalidServiceMessages.add(getDiffMessage(context, datastoreContext));
-                  LOG.error("Failed to auto-fix configs for {}", serviceId, e);
-                }
-              }
-            }
-          }
-        }
+    Supplier<Set<String>> queuedServiceIds = queuedServiceIdsSupplier();
+    Map<String, BasicServiceContext> contexts = new HashMap<>(internalStateCache);
+
+    verifiedServices.keySet().retainAll(contexts.keySet());
+    errorsByService.keySet().retainAll(contexts.keySet());
+    stateView.retainAll(contexts.keySet());
+    contexts.forEach(
+      (serviceId, context) -> checkService(serviceId, context, now, queuedServiceIds)
+    );
+    publishErrors();
+  }
+
+  private void scheduleCheck(String serviceId) {
+    if (internalStateCache.containsKey(serviceId) && scheduledChecks.add(serviceId)) {
+      executorService.schedule(
+        () -> {
+          scheduledChecks.remove(serviceId);
+          checkSingleService(serviceId);
+        },
+        gracePeriodMillis,
+        TimeUnit.MILLISECONDS
       );
+    }
+  }
+
+  private synchronized void checkSingleService(String serviceId) {
+    try {
+      BasicServiceContext context = internalStateCache.get(serviceId);
+      if (context == null) {
+        verifiedServices.remove(serviceId);
+        errorsByService.remove(serviceId);
+        stateView.forget(serviceId);
+      } else {
+        checkService(
+          serviceId,
+          context,
+          System.currentTimeMillis(),
+          queuedServiceIdsSupplier()
+        );
+      }
+      publishErrors();
+    } catch (Exception e) {
+      LOG.warn("Could not check state of {}", serviceId, e);
+    }
+  }
+
+  private Supplier<Set<String>> queuedServiceIdsSupplier() {
+    // Read the queue at most once per pass, and only if some service actually differs
+    return Suppliers.memoize(
+      () ->
+        requestDatastore
+          .getQueuedRequestIds()
+          .stream()
+          .map(QueuedRequestId::getServiceId)
+          .collect(Collectors.toSet())
+    );
+  }
+
+  private void publishErrors() {
     stateErrors.clear();
-    if (!invalidServiceMessages.isEmpty()) {
-      stateErrors.addAll(invalidServiceMessages);
+    stateErrors.addAll(errorsByService.values());
+  }
+
+  private void checkService(
+    String serviceId,
+    BasicServiceContext context,
+    long now,
+    Supplier<Set<String>> queuedServiceIds
+  ) {
+    VerifiedService verified = verifiedServices.get(serviceId);
+    Optional<ServiceNodeVersion> knownVersion = stateView.getVersion(serviceId);
+    if (
+      verified != null &&
+      verified.context == context &&
+      knownVersion.isPresent() &&
+      verified.version.equals(knownVersion.get())
+    ) {
+      // Neither the cache entry nor the ZooKeeper node changed since they last matched
+      return;
+    }
+
+    verifiedServices.remove(serviceId);
+    errorsByService.remove(serviceId);
+
+    WatchedServiceState watched = stateView.read(serviceId);
+    if (!watched.getState().isPresent()) {
+      errorsByService.put(
+        serviceId,
+        String.format(
+          "%s no longer exists in state datastore, but exists in agent",
+          serviceId
+        )
+      );
+      return;
+    }
+    BaragonServiceState serviceState = watched.getState().get();
+    if (
+      !serviceState
+        .getService()
+        .getLoadBalancerGroups()
+        .contains(loadBalancerConfiguration.getName())
+    ) {
+      errorsByService.put(
+        serviceId,
+        String.format(
+          "%s is no longer deployed to group %s",
+          serviceId,
+          loadBalancerConfiguration.getName()
+        )
+      );
+      return;
+    }
+
+    BasicServiceContext datastoreContext = new BasicServiceContext(
+      serviceState.getService(),
+      serviceState.getUpstreams()
+    );
+    if (datastoreContext.equals(context)) {
+      verifiedServices.put(serviceId, new VerifiedService(context, watched.getVersion()));
+      return;
+    }
+
+    long age = now - context.getTimestamp();
+    if (age <= gracePeriodMillis) {
+      // Probably a request still in flight, look again once the grace period is up
+      scheduleCheck(serviceId);
+      return;
+    }
+    if (queuedServiceIds.get().contains(serviceId)) {
+      return;
+    }
+
+    Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>> maybeCheck = new BootstrapFileChecker(
+      configHelper,
+      serviceState,
+      now
+    )
+    .call();
+    try {
+      if (!agentLock.tryLock(10, TimeUnit.MILLISECONDS)) {
+        LockTimeoutException lte = new LockTimeoutException(
+          "Timed out waiting to acquire lock",
+          agentLock
+        );
+        LOG.warn("Failed to acquire lock for service config apply ({})", serviceId, lte);
+        throw lte;
+      }
+      try {
+        if (maybeCheck.isPresent()) {
+          configHelper.bootstrapApply(
+            maybeCheck.get().getKey(),
+            maybeCheck.get().getValue()
+          );
+        }
+        // If the configs on disk already match, only the cache was out of date
+        internalStateCache.put(serviceId, datastoreContext);
+        verifiedServices.put(
+          serviceId,
+          new VerifiedService(internalStateCache.get(serviceId), watched.getVersion())
+        );
+        LOG.info("Auto-fixed state for {}", serviceId);
+      } finally {
+        agentLock.unlock();
+      }
+    } catch (Exception e) {
+      errorsByService.put(serviceId, getDiffMessage(context, datastoreContext));
+      LOG.error("Failed to auto-fix configs for {}", serviceId, e);
     }
   }
 
@@ -201,4 +288,14 @@ public class InternalStateChecker implements Runnable {
       );
     }
   }
+
+  private static class VerifiedService {
+    private final BasicServiceContext context;
+    private final ServiceNodeVersion version;
+
+    private VerifiedService(BasicServiceContext context, ServiceNodeVersion version) {
+      this.context = context;
+      this.version = version;
+    }
+  }
 }
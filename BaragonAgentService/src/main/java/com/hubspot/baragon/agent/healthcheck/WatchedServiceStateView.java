@@ -0,0 +1,193 @@
+package com.hubspot.baragon.agent.healthcheck;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.models.BaragonServiceState;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Tracks the ZooKeeper node versions of services this agent has read. Every read leaves a watch on
+ * the service node, and the version stays known until that watch fires, so unchanged services can be
+ * recognized without going back to ZooKeeper.
+ */
+@Singleton
+public class WatchedServiceStateView {
+  private final BaragonStateDatastore stateDatastore;
+  private final Map<String, Watcher> watchers = new ConcurrentHashMap<>();
+  private final Map<String, Long> generations = new ConcurrentHashMap<>();
+  private final Map<String, KnownVersion> versions = new ConcurrentHashMap<>();
+  private final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+
+  @Inject
+  public WatchedServiceStateView(BaragonStateDatastore stateDatastore) {
+    this.stateDatastore = stateDatastore;
+  }
+
+  /**
+   * Called with the service id whenever a watched service node changes
+   */
+  public void addChangeListener(Consumer<String> listener) {
+    changeListeners.add(listener);
+  }
+
+  /**
+   * The version of the service node as of the last read, if it has not changed since
+   */
+  public Optional<ServiceNodeVersion> getVersion(String serviceId) {
+    KnownVersion known = versions.get(serviceId);
+    if (known == null || known.generation != generation(serviceId)) {
+      return Optional.absent();
+    }
+    return Optional.of(known.version);
+  }
+
+  public WatchedServiceState read(String serviceId) {
+    long generation = generation(serviceId);
+    Stat stat = new Stat();
+    Optional<BaragonServiceState> maybeState = stateDatastore.getServiceStateAndWatch(
+      serviceId,
+      watchers.computeIfAbsent(serviceId, this::newWatcher),
+      stat
+    );
+    ServiceNodeVersion version = maybeState.isPresent()
+      ? new ServiceNodeVersion(stat.getVersion(), stat.getCversion())
+      : ServiceNodeVersion.MISSING;
+    // If the watch fired while we were reading, leave the version unknown so the next check reads again
+    versions.put(serviceId, new KnownVersion(generation, version));
+    return new WatchedServiceState(maybeState, version);
+  }
+
+  /**
+   * Stop tracking a service the agent no longer has. A watch still left on its node is ignored when
+   * it fires
+   */
+  public void forget(String serviceId) {
+    watchers.remove(serviceId);
+    generations.remove(serviceId);
+    versions.remove(serviceId);
+  }
+
+  /**
+   * Forget every tracked service that is not in serviceIds
+   */
+  public void retainAll(Set<String> serviceIds) {
+    for (String serviceId : watchers.keySet()) {
+      if (!serviceIds.contains(serviceId)) {
+        forget(serviceId);
+      }
+    }
+  }
+
+  private long generation(String serviceId) {
+    return generations.getOrDefault(serviceId, 0L);
+  }
+
+  private Watcher newWatcher(String serviceId) {
+    return new Watcher() {
+
+      @Override
+      public void process(WatchedEvent event) {
+        if (watchers.get(serviceId) != this) {
+          // The service was forgotten since this watch was left
+          return;
+        }
+        generations.merge(serviceId, 1L, Long::sum);
+        versions.remove(serviceId);
+        // Connection state changes reach every watcher, those aren't changes to this service
+        if (event.getType() != EventType.None) {
+          changeListeners.forEach(listener -> listener.accept(serviceId));
+        }
+      }
+    };
+  }
+
+  public static class ServiceNodeVersion {
+    public static final ServiceNodeVersion MISSING = new ServiceNodeVersion(-1, -1);
+
+    private final int dataVersion;
+    private final int childrenVersion;
+
+    public ServiceNodeVersion(int dataVersion, int childrenVersion) {
+      this.dataVersion = dataVersion;
+      this.childrenVersion = childrenVersion;
+    }
+
+    public int getDataVersion() {
+      return dataVersion;
+    }
+
+    public int getChildrenVersion() {
+      return childrenVersion;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      ServiceNodeVersion that = (ServiceNodeVersion) o;
+      return dataVersion == that.dataVersion && childrenVersion == that.childrenVersion;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(dataVersion, childrenVersion);
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects
+        .toStringHelper(this)
+        .add("dataVersion", dataVersion)
+        .add("childrenVersion", childrenVersion)
+        .toString();
+    }
+  }
+
+  public static class WatchedServiceState {
+    private final Optional<BaragonServiceState> state;
+    private final ServiceNodeVersion version;
+
+    public WatchedServiceState(
+      Optional<BaragonServiceState> state,
+      ServiceNodeVersion version
+    ) {
+      this.state = state;
+      this.version = version;
+    }
+
+    public Optional<BaragonServiceState> getState() {
+      return state;
+    }
+
+    public ServiceNodeVersion getVersion() {
+      return version;
+    }
+  }
+
+  private static class KnownVersion {
+    private final long generation;
+    private final ServiceNodeVersion version;
+
+    private KnownVersion(long generation, ServiceNodeVersion version) {
+      this.generation = generation;
+      this.version = version;
+    }
+  }
+}
@@ -10,6 +10,8 @@ import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.agent.BaragonAgentServiceModule;
 import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.managers.BatchProfiler;
+import com.hubspot.baragon.agent.models.BatchPhase;
 import com.hubspot.baragon.exceptions.InvalidConfigException;
 import com.hubspot.baragon.exceptions.LbAdapterExecuteException;
 import com.hubspot.baragon.exceptions.LockTimeoutException;
@@ -230,6 +232,29 @@ public class FilesystemConfigHelper {
     Optional<Integer> batchItemNumber
   )
     throws InvalidConfigException, LbAdapterExecuteException, IOException, MissingTemplateException, InterruptedException, LockTimeoutException {
+    apply(
+      context,
+      configGenerator.generateConfigsForProject(context),
+      maybeOldService,
+      revertOnFailure,
+      noReload,
+      noValidate,
+      delayReload,
+      batchItemNumber
+    );
+  }
+
+  public void apply(
+    ServiceContext context,
+    Collection<BaragonConfigFile> newConfigs,
+    Optional<BaragonService> maybeOldService,
+    boolean revertOnFailure,
+    boolean noReload,
+    boolean noValidate,
+    boolean delayReload,
+    Optional<Integer> batchItemNumber
+  )
+    throws InvalidConfigException, LbAdapterExecuteException, IOException, InterruptedException, LockTimeoutException {
     final BaragonService service = context.getService();
     final BaragonService oldService = maybeOldService.or(service);
 
@@ -241,11 +266,10 @@ public class FilesystemConfigHelper {
     final boolean oldServiceExists = configsExist(oldService);
     final boolean previousConfigsExist = configsExist(service);
 
-    Collection<BaragonConfigFile> newConfigs = configGenerator.generateConfigsForProject(
-      context
-    );
-
-    if (!agentLock.tryLock(agentLockTimeoutMs, TimeUnit.MILLISECONDS)) {
+    long lockStart = BatchProfiler.start();
+    boolean acquired = agentLock.tryLock(agentLockTimeoutMs, TimeUnit.MILLISECONDS);
+    BatchProfiler.record(BatchPhase.LOCK_WAIT, lockStart);
+    if (!acquired) {
       LockTimeoutException lte = new LockTimeoutException(
         "Timed out waiting to acquire lock",
         agentLock
@@ -261,7 +285,10 @@ public class FilesystemConfigHelper {
     LOG.debug("({}) Acquired agent lock, applying configs", service.getServiceId());
 
     try {
-      if (configsMatch(newConfigs, readConfigs(oldService))) {
+      long matchStart = BatchProfiler.start();
+      boolean configsMatch = configsMatch(newConfigs, readConfigs(oldService));
+      BatchProfiler.record(BatchPhase.CONFIGS_MATCH, matchStart);
+      if (configsMatch) {
         LOG.info("({}) Configs are unchanged, skipping apply", service.getServiceId());
         if (
           !noReload &&
@@ -290,7 +317,9 @@ public class FilesystemConfigHelper {
       // Write & check the configs
       if (context.isPresent()) {
         LOG.debug("({}) Writing new configs", service.getServiceId());
+        long writeStart = BatchProfiler.start();
         writeConfigs(newConfigs);
+        BatchProfiler.record(BatchPhase.WRITE, writeStart);
         //If the new service id for this base path is different, remove the configs for the old service id
         if (
           oldServiceExists && !oldService.getServiceId().equals(service.getServiceId())
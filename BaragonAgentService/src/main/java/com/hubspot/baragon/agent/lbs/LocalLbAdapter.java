@@ -8,6 +8,8 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.agent.managers.BatchProfiler;
+import com.hubspot.baragon.agent.models.BatchPhase;
 import com.hubspot.baragon.exceptions.InvalidConfigException;
 import com.hubspot.baragon.exceptions.LbAdapterExecuteException;
 import com.hubspot.baragon.exceptions.WorkerLimitReachedException;
@@ -132,6 +134,7 @@ public class LocalLbAdapter {
 
   @Timed
   public void checkConfigs() throws InvalidConfigException {
+    final long profileStart = BatchProfiler.start();
     try {
       final long start = System.currentTimeMillis();
       final int exitCode = executeWithTimeout(
@@ -148,6 +151,8 @@ public class LocalLbAdapter {
       throw new InvalidConfigException(e.getOutput());
     } catch (IOException e) {
       throw new InvalidConfigException(e.getMessage());
+    } finally {
+      BatchProfiler.record(BatchPhase.CHECK, profileStart);
     }
   }
 
@@ -162,10 +167,12 @@ public class LocalLbAdapter {
       }
     }
     final long start = System.currentTimeMillis();
+    final long profileStart = BatchProfiler.start();
     final int exitCode = executeWithTimeout(
       CommandLine.parse(loadBalancerConfiguration.getReloadConfigCommand()),
       loadBalancerConfiguration.getCommandTimeoutMs()
     );
+    BatchProfiler.record(BatchPhase.RELOAD, profileStart);
 
     metricRegistry
       .timer(LocalLbAdapter.class.getName() + ".reloadConfigs")
@@ -1,6 +1,8 @@
 package com.hubspot.baragon.agent.listeners;
 
+import com.google.common.base.MoreObjects;
 import com.google.common.base.Optional;
+import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -22,15 +24,13 @@ import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
@@ -49,9 +49,11 @@ public class DirectoryChangesListener {
   private final FilesystemConfigHelper filesystemConfigHelper;
   private final ReentrantLock agentLock;
   private final ExecutorService executorService;
+  private final ScheduledExecutorService syncExecutor;
   private final AtomicReference<String> fileCopyErrorMessage;
-  private final Timer timer;
-  private final Set<WatchedDirectoryConfig> pendingUpdates;
+  private final Map<WatchedDirectoryConfig, Long> pendingSince;
+  private final Map<WatchedDirectoryConfig, Long> lastChangeAt;
+  private final Map<WatchedDirectoryConfig, Map<String, SourceFile>> syncedFiles;
 
   private Future<?> future;
 
@@ -65,12 +67,20 @@ public class DirectoryChangesListener {
     this.filesystemConfigHelper = filesystemConfigHelper;
     this.agentLock = agentLock;
     this.fileCopyErrorMessage = new AtomicReference<>(null);
-    this.timer = new Timer();
-    this.pendingUpdates = new HashSet<>();
+    this.pendingSince = new HashMap<>();
+    this.lastChangeAt = new HashMap<>();
+    this.syncedFiles = new ConcurrentHashMap<>();
     this.executorService =
       Executors.newSingleThreadExecutor(
         new ThreadFactoryBuilder().setNameFormat("directory-watcher-%d").build()
       );
+    this.syncExecutor =
+      Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder()
+          .setNameFormat("directory-sync-%d")
+          .setDaemon(true)
+          .build()
+      );
   }
 
   public void start() throws Exception {
@@ -90,16 +100,60 @@ public class DirectoryChangesListener {
     if (future != null) {
       future.cancel(true);
     }
-    timer.cancel();
+    syncExecutor.shutdownNow();
     executorService.shutdown();
   }
 
-  private synchronized boolean addPending(WatchedDirectoryConfig config) {
-    return pendingUpdates.add(config);
+  /**
+   * Debounce changes to a directory. A sync runs once the directory has been quiet for the
+   * minimum debounce, so a single edit is picked up quickly while a burst of edits is coalesced,
+   * but never waits longer than the maximum debounce after the first change
+   */
+  private void onChange(WatchedDirectoryConfig config) {
+    long now = System.currentTimeMillis();
+    boolean schedule;
+    synchronized (this) {
+      lastChangeAt.put(config, now);
+      schedule = pendingSince.putIfAbsent(config, now) == null;
+    }
+    if (schedule) {
+      syncExecutor.schedule(
+        () -> syncWhenQuiet(config),
+        configuration.getWatchedDirectoryMinDebounceMs(),
+        TimeUnit.MILLISECONDS
+      );
+    }
   }
 
-  private synchronized void removePending(WatchedDirectoryConfig config) {
-    pendingUpdates.remove(config);
+  private void syncWhenQuiet(WatchedDirectoryConfig config) {
+    long now = System.currentTimeMillis();
+    long delay = -1;
+    synchronized (this) {
+      long quietFor = now - lastChangeAt.get(config);
+      long pendingFor = now - pendingSince.get(config);
+      if (
+        quietFor < configuration.getWatchedDirectoryMinDebounceMs() &&
+        pendingFor < configuration.getWatchedDirectoryMaxDebounceMs()
+      ) {
+        delay =
+          Math.min(
+            configuration.getWatchedDirectoryMinDebounceMs() - quietFor,
+            configuration.getWatchedDirectoryMaxDebounceMs() - pendingFor
+          );
+      } else {
+        // Changes from here on need another sync
+        pendingSince.remove(config);
+      }
+    }
+    if (delay >= 0) {
+      syncExecutor.schedule(() -> syncWhenQuiet(config), delay, TimeUnit.MILLISECONDS);
+      return;
+    }
+    try {
+      handleFileChangeForDirectory(config);
+    } catch (Exception e) {
+      LOG.error("Could not run file update for {}", config, e);
+    }
   }
 
   @SuppressFBWarnings("RCN_REDUNDANT_NULLCHECK_WOULD_HAVE_BEEN_A_NPE") // Bug in spotbugs for try-with-resources
@@ -126,35 +180,17 @@ public class DirectoryChangesListener {
         }
         while (!Thread.interrupted()) {
           WatchKey key = watchService.take();
+          WatchedDirectoryConfig config = watchKeyToDirectory.get(key);
           for (WatchEvent<?> event : key.pollEvents()) {
             if (event.kind().equals(StandardWatchEventKinds.OVERFLOW)) {
-              LOG.warn("Overflow event received, stopping file watch");
-              return;
-            }
-            WatchedDirectoryConfig config = watchKeyToDirectory.get(key);
-            if (addPending(config)) {
-              timer.schedule(
-                new TimerTask() {
-
-                  @Override
-                  public void run() {
-                    try {
-                      handleFileChangeForDirectory(config);
-                    } catch (Exception e) {
-                      LOG.error("Could not run file update for {}", config, e);
-                    }
-                  }
-                },
-                10000
-              ); // Small bit of delay to debounce in case multiple updates were made at once
+              // Events were lost, the checksum scan in the next sync will find whatever changed
+              LOG.warn("Overflow event received for {}, rescanning", config);
             }
+            onChange(config);
           }
           boolean valid = key.reset();
           if (!valid) {
-            LOG.warn(
-              "Key for {} is not accessible, stopping watch",
-              watchKeyToDirectory.get(key)
-            );
+            LOG.warn("Key for {} is not accessible, stopping watch", config);
           }
         }
       } catch (InterruptedException ie) {
@@ -174,81 +210,156 @@ public class DirectoryChangesListener {
     }
   }
 
-  public void handleFileChangeForDirectory(WatchedDirectoryConfig config)
+  /**
+   * Bring the destination in line with the source directory, copying only files whose contents
+   * changed and removing files no longer in the source. Files are compared by checksum, which is
+   * only recomputed for source files whose size or modification time changed since the last sync
+   */
+  public DirectorySyncResult handleFileChangeForDirectory(WatchedDirectoryConfig config)
     throws Exception {
-    try {
-      if (!agentLock.tryLock(45, TimeUnit.SECONDS)) {
-        LOG.warn("Failed to acquire lock for reload");
-        throw new LockTimeoutException(
-          "Timed out waiting to acquire lock for reload",
-          agentLock
-        );
+    Map<String, SourceFile> previous = syncedFiles.get(config);
+    Map<String, SourceFile> current = scanSource(config, previous);
+
+    List<SourceFile> toCopy = new ArrayList<>();
+    for (Map.Entry<String, SourceFile> entry : current.entrySet()) {
+      SourceFile sourceFile = entry.getValue();
+      if (previous == null) {
+        // Nothing synced yet in this process, compare against what is already in the destination
+        Path destination = destinationFor(config, entry.getKey());
+        if (
+          !Files.exists(destination) ||
+          Files.size(destination) != sourceFile.size ||
+          !checksum(destination).equals(sourceFile.checksum)
+        ) {
+          toCopy.add(sourceFile);
+        }
+      } else if (
+        !previous.containsKey(entry.getKey()) ||
+        !previous.get(entry.getKey()).checksum.equals(sourceFile.checksum)
+      ) {
+        toCopy.add(sourceFile);
+      }
+    }
+
+    List<Path> toDelete = new ArrayList<>();
+    for (Path path : getFilesInDirectory(config.getDestinationAsPath())) {
+      String name = path.getFileName().toString();
+      if (
+        !current.containsKey(name) &&
+        !filesystemConfigHelper.isBackupFile(name) &&
+        !name.endsWith(FilesystemConfigHelper.FAILED_CONFIG_SUFFIX)
+      ) {
+        toDelete.add(path);
       }
-      List<Path> backedUpFiles = new ArrayList<>();
-      List<Path> newCopiedFiles = new ArrayList<>();
+    }
+
+    if (toCopy.isEmpty() && toDelete.isEmpty()) {
+      LOG.debug(
+        "No changes to sync from {} to {}",
+        config.getSource(),
+        config.getDestination()
+      );
+      syncedFiles.put(config, current);
+      fileCopyErrorMessage.set(null);
+      return new DirectorySyncResult(0, 0, 0, 0);
+    }
+
+    if (!agentLock.tryLock(45, TimeUnit.SECONDS)) {
+      LOG.warn("Failed to acquire lock for reload");
+      throw new LockTimeoutException(
+        "Timed out waiting to acquire lock for reload",
+        agentLock
+      );
+    }
+    long lockStart = System.currentTimeMillis();
+    List<Path> backedUpFiles = new ArrayList<>();
+    List<Path> newCopiedFiles = new ArrayList<>();
+    long bytesCopied = 0;
+    try {
       try {
-        List<Path> destinationFiles = getFilesInDirectory(config.getDestinationAsPath());
-        for (Path path : destinationFiles) {
-          LOG.info("Backing up {}", path);
+        for (Path path : toDelete) {
+          LOG.info("Removing {}, no longer present in {}", path, config.getSource());
           filesystemConfigHelper.backupFile(path.toAbsolutePath().toString());
           backedUpFiles.add(path);
         }
-        LOG.info(
-          "Backed up {} files in {}",
-          destinationFiles.size(),
-          config.getDestination()
-        );
-        LOG.info(
-          "Files in destination dir are now {}",
-          getFilesInDirectory(config.getDestinationAsPath())
-        );
-        try {
-          LOG.info(
-            "Copying files from {} to {}",
-            config.getSource(),
-            config.getDestination()
-          );
-          List<Path> toCopy = getFilesInDirectory(config.getSourceAsPath());
-          for (Path from : toCopy) {
-            Path to = config
-              .getDestinationAsPath()
-              .resolve(from.getFileName().toString());
-            LOG.info("Copying {} to {}", from, to);
-            Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
-            newCopiedFiles.add(to);
-          }
-          LOG.info("Copied {} files to {}", toCopy.size(), config.getDestination());
-          LOG.info(
-            "Files in destination dir are now {}",
-            getFilesInDirectory(config.getDestinationAsPath())
-          );
-          filesystemConfigHelper.checkAndReloadUnlocked();
-          LOG.info("File copy succeeded for {}", config);
-          fileCopyErrorMessage.set(null);
-        } catch (Exception e) {
-          fileCopyErrorMessage.set(e.getMessage());
-          for (Path path : newCopiedFiles) {
-            if (Files.exists(path)) {
-              LOG.info("Deleting possibly invalid file {}", path);
-              Files.delete(path);
-            }
+        for (SourceFile sourceFile : toCopy) {
+          Path to = destinationFor(config, sourceFile.path.getFileName().toString());
+          if (Files.exists(to)) {
+            filesystemConfigHelper.backupFile(to.toAbsolutePath().toString());
+            backedUpFiles.add(to);
           }
-          for (Path path : backedUpFiles) {
-            LOG.info("Restoring file {}", path);
-            filesystemConfigHelper.restoreFile(path.toString());
+          LOG.info("Copying {} to {}", sourceFile.path, to);
+          Files.copy(sourceFile.path, to, StandardCopyOption.REPLACE_EXISTING);
+          newCopiedFiles.add(to);
+          bytesCopied += sourceFile.size;
+        }
+        filesystemConfigHelper.checkAndReloadUnlocked();
+        syncedFiles.put(config, current);
+        fileCopyErrorMessage.set(null);
+      } catch (Exception e) {
+        fileCopyErrorMessage.set(e.getMessage());
+        for (Path path : newCopiedFiles) {
+          if (Files.exists(path)) {
+            LOG.info("Deleting possibly invalid file {}", path);
+            Files.delete(path);
           }
-          LOG.info(
-            "Files in destination dir are now {}",
-            getFilesInDirectory(config.getDestinationAsPath())
-          );
-          throw e;
         }
-      } finally {
-        agentLock.unlock();
+        for (Path path : backedUpFiles) {
+          LOG.info("Restoring file {}", path);
+          filesystemConfigHelper.restoreFile(path.toString());
+        }
+        // Whatever is on disk now, make the next sync compare against the destination again
+        syncedFiles.remove(config);
+        throw e;
       }
     } finally {
-      removePending(config);
+      agentLock.unlock();
     }
+
+    DirectorySyncResult result = new DirectorySyncResult(
+      toCopy.size(),
+      toDelete.size(),
+      bytesCopied,
+      System.currentTimeMillis() - lockStart
+    );
+    LOG.info("File sync succeeded for {}: {}", config, result);
+    return result;
+  }
+
+  private Map<String, SourceFile> scanSource(
+    WatchedDirectoryConfig config,
+    Map<String, SourceFile> previous
+  )
+    throws IOException {
+    Map<String, SourceFile> scanned = new HashMap<>();
+    for (Path path : getFilesInDirectory(config.getSourceAsPath())) {
+      String name = path.getFileName().toString();
+      long size = Files.size(path);
+      long lastModified = Files.getLastModifiedTime(path).toMillis();
+      SourceFile known = previous == null ? null : previous.get(name);
+      if (
+        known != null &&
+        known.path.equals(path) &&
+        known.size == size &&
+        known.lastModified == lastModified
+      ) {
+        scanned.put(name, known);
+      } else {
+        scanned.put(name, new SourceFile(path, size, lastModified, checksum(path)));
+      }
+    }
+    return scanned;
+  }
+
+  private static Path destinationFor(WatchedDirectoryConfig config, String fileName) {
+    return config.getDestinationAsPath().resolve(fileName);
+  }
+
+  private static String checksum(Path path) throws IOException {
+    return com
+      .google.common.io.Files.asByteSource(path.toFile())
+      .hash(Hashing.murmur3_128())
+      .toString();
   }
 
   @SuppressFBWarnings("RCN_REDUNDANT_NULLCHECK_WOULD_HAVE_BEEN_A_NPE") // Bug in spotbugs for try-with-resources
@@ -261,4 +372,64 @@ public class DirectoryChangesListener {
   public Optional<String> getErrorMessage() {
     return Optional.fromNullable(fileCopyErrorMessage.get());
   }
+
+  private static class SourceFile {
+    private final Path path;
+    private final long size;
+    private final long lastModified;
+    private final String checksum;
+
+    private SourceFile(Path path, long size, long lastModified, String checksum) {
+      this.path = path;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.checksum = checksum;
+    }
+  }
+
+  public static class DirectorySyncResult {
+    private final int filesCopied;
+    private final int filesRemoved;
+    private final long bytesCopied;
+    private final long lockHeldMillis;
+
+    public DirectorySyncResult(
+      int filesCopied,
+      int filesRemoved,
+      long bytesCopied,
+      long lockHeldMillis
+    ) {
+      this.filesCopied = filesCopied;
+      this.filesRemoved = filesRemoved;
+      this.bytesCopied = bytesCopied;
+      this.lockHeldMillis = lockHeldMillis;
+    }
+
+    public int getFilesCopied() {
+      return filesCopied;
+    }
+
+    public int getFilesRemoved() {
+      return filesRemoved;
+    }
+
+    public long getBytesCopied() {
+      return bytesCopied;
+    }
+
+    public long getLockHeldMillis() {
+      return lockHeldMillis;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects
+        .toStringHelper(this)
+        .add("filesCopied", filesCopied)
+        .add("filesRemoved", filesRemoved)
+        .add("bytesCopied", bytesCopied)
+        .add("lockHeldMillis", lockHeldMillis)
+        .toString();
+    }
+  }
 }
@@ -9,12 +9,10 @@ import com.hubspot.baragon.agent.healthcheck.InternalStateChecker;
 import com.hubspot.baragon.agent.lbs.LocalLbAdapter;
 import com.hubspot.baragon.agent.listeners.DirectoryChangesListener;
 import com.hubspot.baragon.agent.listeners.ResyncListener;
+import com.hubspot.baragon.agent.managers.StateSnapshotManager;
 import com.hubspot.baragon.agent.workers.AgentHeartbeatWorker;
-import com.hubspot.baragon.data.BaragonKnownAgentsDatastore;
 import com.hubspot.baragon.data.BaragonLoadBalancerDatastore;
-import com.hubspot.baragon.models.BaragonAgentMetadata;
 import com.hubspot.baragon.models.BaragonAgentState;
-import com.hubspot.baragon.models.BaragonKnownAgentMetadata;
 import io.dropwizard.lifecycle.Managed;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -31,8 +29,6 @@ public class BootstrapManaged implements Managed {
   private final BaragonAgentConfiguration configuration;
   private final BaragonLoadBalancerDatastore loadBalancerDatastore;
   private final LeaderLatch leaderLatch;
-  private final BaragonKnownAgentsDatastore knownAgentsDatastore;
-  private final BaragonAgentMetadata baragonAgentMetadata;
   private final ScheduledExecutorService executorService;
   private final AgentHeartbeatWorker agentHeartbeatWorker;
   private final LifecycleHelper lifecycleHelper;
@@ -43,18 +39,18 @@ public class BootstrapManaged implements Managed {
   private final DirectoryChangesListener directoryChangesListener;
   private final LocalLbAdapter lbAdapter;
   private final AtomicReference<BaragonAgentState> agentState;
+  private final StateSnapshotManager stateSnapshotManager;
 
   private ScheduledFuture<?> requestWorkerFuture = null;
   private ScheduledFuture<?> configCheckerFuture = null;
   private ScheduledFuture<?> stateCheckerFuture = null;
+  private ScheduledFuture<?> stateSnapshotFuture = null;
 
   @Inject
   public BootstrapManaged(
-    BaragonKnownAgentsDatastore knownAgentsDatastore,
     BaragonLoadBalancerDatastore loadBalancerDatastore,
     BaragonAgentConfiguration configuration,
     AgentHeartbeatWorker agentHeartbeatWorker,
-    BaragonAgentMetadata baragonAgentMetadata,
     LifecycleHelper lifecycleHelper,
     CuratorFramework curatorFramework,
     ResyncListener resyncListener,
@@ -63,6 +59,7 @@ public class BootstrapManaged implements Managed {
     InternalStateChecker internalStateChecker,
     DirectoryChangesListener directoryChangesListener,
     LocalLbAdapter lbAdapter,
+    StateSnapshotManager stateSnapshotManager,
     @Named(
       BaragonAgentServiceModule.AGENT_SCHEDULED_EXECUTOR
     ) ScheduledExecutorService executorService,
@@ -72,9 +69,7 @@ public class BootstrapManaged implements Managed {
     this.leaderLatch = leaderLatch;
     this.curatorFramework = curatorFramework;
     this.resyncListener = resyncListener;
-    this.knownAgentsDatastore = knownAgentsDatastore;
     this.loadBalancerDatastore = loadBalancerDatastore;
-    this.baragonAgentMetadata = baragonAgentMetadata;
     this.executorService = executorService;
     this.agentHeartbeatWorker = agentHeartbeatWorker;
     this.lifecycleHelper = lifecycleHelper;
@@ -83,6 +78,7 @@ public class BootstrapManaged implements Managed {
     this.directoryChangesListener = directoryChangesListener;
     this.lbAdapter = lbAdapter;
     this.agentState = agentState;
+    this.stateSnapshotManager = stateSnapshotManager;
   }
 
   @Override
@@ -91,7 +87,7 @@ public class BootstrapManaged implements Managed {
     directoryChangesListener.start();
 
     LOG.info("Applying current configs...");
-    lifecycleHelper.applyCurrentConfigs();
+    lifecycleHelper.applyStartupConfigs();
 
     if (configuration.isVisibleToBaragonService()) {
       LOG.info("Starting leader latch...");
@@ -112,13 +108,7 @@ public class BootstrapManaged implements Managed {
       );
 
       LOG.info("Adding to known-agents...");
-      knownAgentsDatastore.addKnownAgent(
-        configuration.getLoadBalancerConfiguration().getName(),
-        BaragonKnownAgentMetadata.fromAgentMetadata(
-          baragonAgentMetadata,
-          System.currentTimeMillis()
-        )
-      );
+      agentHeartbeatWorker.register();
 
       LOG.info("Starting agent heartbeat...");
       requestWorkerFuture =
@@ -153,6 +143,17 @@ public class BootstrapManaged implements Managed {
         );
     }
 
+    if (stateSnapshotManager.isEnabled()) {
+      LOG.info("Starting state snapshot writer");
+      stateSnapshotFuture =
+        executorService.scheduleAtFixedRate(
+          stateSnapshotManager::writeSnapshotIfChanged,
+          configuration.getStateSnapshotIntervalSeconds(),
+          configuration.getStateSnapshotIntervalSeconds(),
+          TimeUnit.SECONDS
+        );
+    }
+
     lifecycleHelper.writeStateFileIfConfigured();
 
     if (configuration.getLoadBalancerConfiguration().getLogRotateCommand().isPresent()) {
@@ -179,6 +180,10 @@ public class BootstrapManaged implements Managed {
     if (stateCheckerFuture != null) {
       stateCheckerFuture.cancel(true);
     }
+    if (stateSnapshotFuture != null) {
+      stateSnapshotFuture.cancel(true);
+    }
+    agentHeartbeatWorker.stop();
     directoryChangesListener.stop();
   }
 }
@@ -9,6 +9,7 @@ import com.github.rholder.retry.WaitStrategies;
 import com.google.common.base.Optional;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
+import com.google.common.net.HttpHeaders;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.agent.BaragonAgentServiceModule;
@@ -16,6 +17,8 @@ import com.hubspot.baragon.agent.ServerProvider;
 import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
 import com.hubspot.baragon.agent.lbs.BootstrapFileChecker;
 import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
+import com.hubspot.baragon.agent.managers.StateSnapshotManager;
+import com.hubspot.baragon.agent.models.AgentStateSnapshot;
 import com.hubspot.baragon.data.BaragonAuthDatastore;
 import com.hubspot.baragon.data.BaragonStateDatastore;
 import com.hubspot.baragon.data.BaragonWorkerDatastore;
@@ -43,8 +46,12 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -54,6 +61,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.curator.framework.recipes.leader.LeaderLatch;
 import org.eclipse.jetty.server.Server;
@@ -66,6 +75,9 @@ public class LifecycleHelper {
 
   private static final String SERVICE_CHECKIN_URL_FORMAT = "%s/checkin/%s/%s";
   private static final String GLOBAL_STATE_FORMAT = "%s/state";
+  private static final long SNAPSHOT_RECONCILE_RETRY_SECONDS = 30;
+  private static final long SNAPSHOT_RECONCILE_MAX_RETRY_SECONDS = 600;
+  static final int SNAPSHOT_RECONCILE_MAX_ATTEMPTS = 8;
 
   private final BaragonAuthDatastore authDatastore;
   private final BaragonWorkerDatastore workerDatastore;
@@ -77,11 +89,16 @@ public class LifecycleHelper {
   private final AtomicReference<BaragonAgentState> agentState;
   private final NingHttpClient httpClient;
   private final ScheduledExecutorService executorService;
+  // Reconciling a snapshot can take a while, so it must not hold up the heartbeat and checkers
+  private final ScheduledExecutorService reconcileExecutor;
   private final LeaderLatch leaderLatch;
   private final ReentrantLock agentLock;
   private final long agentLockTimeoutMs;
   private final Map<String, BasicServiceContext> internalStateCache;
+  private final StateSnapshotManager stateSnapshotManager;
   private final AtomicInteger bootstrapStateNodeVersion = new AtomicInteger(0);
+  // ETag of the last global state this agent fully applied, if any
+  private final AtomicReference<String> appliedStateEtag = new AtomicReference<>();
 
   @Inject
   public LifecycleHelper(
@@ -97,12 +114,16 @@ public class LifecycleHelper {
     @Named(
       BaragonAgentServiceModule.AGENT_SCHEDULED_EXECUTOR
     ) ScheduledExecutorService executorService,
+    @Named(
+      BaragonAgentServiceModule.AGENT_RECONCILE_EXECUTOR
+    ) ScheduledExecutorService reconcileExecutor,
     @Named(BaragonAgentServiceModule.AGENT_LEADER_LATCH) LeaderLatch leaderLatch,
     @Named(BaragonAgentServiceModule.AGENT_LOCK) ReentrantLock agentLock,
     @Named(BaragonAgentServiceModule.AGENT_LOCK_TIMEOUT_MS) long agentLockTimeoutMs,
     @Named(
       BaragonAgentServiceModule.INTERNAL_STATE_CACHE
-    ) Map<String, BasicServiceContext> internalStateCache
+    ) Map<String, BasicServiceContext> internalStateCache,
+    StateSnapshotManager stateSnapshotManager
   ) {
     this.workerDatastore = workerDatastore;
     this.authDatastore = authDatastore;
@@ -114,10 +135,12 @@ public class LifecycleHelper {
     this.agentState = agentState;
     this.httpClient = httpClient;
     this.executorService = executorService;
+    this.reconcileExecutor = reconcileExecutor;
     this.leaderLatch = leaderLatch;
     this.agentLock = agentLock;
     this.agentLockTimeoutMs = agentLockTimeoutMs;
     this.internalStateCache = internalStateCache;
+    this.stateSnapshotManager = stateSnapshotManager;
   }
 
   public void notifyService(String action) throws Exception {
@@ -245,6 +268,171 @@ public class LifecycleHelper {
     return (!stateFile.exists() || stateFile.delete());
   }
 
+  /**
+   * Come up from the local state snapshot when it is still valid and the configs on disk pass
+   * the load balancer's config check, otherwise fall back to rendering and applying the full
+   * state from BaragonService
+   */
+  public void applyStartupConfigs() throws AgentServiceNotifyException {
+    Optional<AgentStateSnapshot> maybeSnapshot = stateSnapshotManager.loadValidSnapshot();
+    if (!maybeSnapshot.isPresent()) {
+      applyCurrentConfigs();
+      return;
+    }
+    try {
+      // The same check the full apply runs once it has written the configs
+      configHelper.bootstrapApplyCheck(Collections.emptyList());
+    } catch (Exception e) {
+      LOG.warn(
+        "Configs from the state snapshot failed the config check, applying the full state",
+        e
+      );
+      applyCurrentConfigs();
+      return;
+    }
+
+    AgentStateSnapshot snapshot = maybeSnapshot.get();
+    stateSnapshotManager.restore(snapshot);
+    if (snapshot.getStateVersion().isPresent()) {
+      bootstrapStateNodeVersion.set(snapshot.getStateVersion().get());
+    }
+    LOG.info(
+      "Started from state snapshot with {} services, reconciling with BaragonService in the background",
+      snapshot.getServices().size()
+    );
+    reconcileExecutor.submit(() -> reconcileWithSnapshot(snapshot, 1));
+  }
+
+  private void reconcileWithSnapshot(AgentStateSnapshot snapshot, int attempt) {
+    try {
+      Optional<Integer> maybeVersion = stateDatastore.getStateVersion();
+      if (maybeVersion.isPresent() && maybeVersion.equals(snapshot.getStateVersion())) {
+        LOG.info(
+          "State version {} unchanged since the snapshot, nothing to reconcile",
+          maybeVersion.get()
+        );
+        // BaragonService uses the state version as the ETag for the global state
+        appliedStateEtag.set(Integer.toString(maybeVersion.get()));
+        return;
+      }
+
+      final Stopwatch stopwatch = Stopwatch.createStarted();
+      final long now = System.currentTimeMillis();
+      Pair<String, Collection<BaragonServiceState>> globalState = getGlobalStateWithRetry(
+          Optional.absent()
+        )
+        .get();
+      Collection<BaragonServiceState> serviceStates = globalState
+        .getValue()
+        .stream()
+        .filter(this::isOnThisLoadBalancer)
+        .collect(Collectors.toList());
+
+      if (!agentLock.tryLock(agentLockTimeoutMs, TimeUnit.MILLISECONDS)) {
+        throw new LockTimeoutException(
+          "Could not acquire lock to reconcile snapshot",
+          agentLock
+        );
+      }
+      try {
+        // Anything applied after we fetched the global state is newer than it, leave it alone
+        Map<String, BaragonServiceState> fetched = new HashMap<>();
+        List<BaragonServiceState> changed = new ArrayList<>();
+        for (BaragonServiceState serviceState : serviceStates) {
+          String serviceId = serviceState.getService().getServiceId();
+          fetched.put(serviceId, serviceState);
+          BasicServiceContext cached = internalStateCache.get(serviceId);
+          if (cached == null) {
+            changed.add(serviceState);
+          } else if (
+            isOlderThan(cached, now) &&
+            !cached.equals(
+              new BasicServiceContext(
+                serviceState.getService(),
+                serviceState.getUpstreams()
+              )
+            )
+          ) {
+            changed.add(serviceState);
+          }
+        }
+
+        Set<String> removed = new HashSet<>();
+        for (Map.Entry<String, BasicServiceContext> entry : new HashMap<>(
+          internalStateCache
+        )
+        .entrySet()) {
+          if (
+            !fetched.containsKey(entry.getKey()) && isOlderThan(entry.getValue(), now)
+          ) {
+            configHelper.remove(entry.getValue().getService());
+            internalStateCache.remove(entry.getKey());
+            removed.add(entry.getKey());
+          }
+        }
+
+        appliedStateEtag.set(globalState.getKey());
+        int written = writeAndCheckServiceStates(changed, now).size();
+        if (written > 0 || !removed.isEmpty()) {
+          configHelper.reloadConfigs();
+        }
+        changed.forEach(
+          serviceState ->
+            internalStateCache.put(
+              serviceState.getService().getServiceId(),
+              new BasicServiceContext(
+                serviceState.getService(),
+                serviceState.getUpstreams()
+              )
+            )
+        );
+        if (maybeVersion.isPresent()) {
+          bootstrapStateNodeVersion.set(maybeVersion.get());
+        }
+        LOG.info(
+          "Reconciled state snapshot in {}ms, updated {} and removed {} services",
+          stopwatch.elapsed(TimeUnit.MILLISECONDS),
+          changed.size(),
+          removed.size()
+        );
+      } finally {
+        agentLock.unlock();
+      }
+    } catch (Exception e) {
+      if (attempt >= SNAPSHOT_RECONCILE_MAX_ATTEMPTS) {
+        LOG.error(
+          "Could not reconcile state snapshot after {} attempts, giving up",
+          attempt,
+          e
+        );
+        return;
+      }
+      long delaySeconds = reconcileRetryDelaySeconds(attempt);
+      LOG.warn(
+        "Could not reconcile state snapshot (attempt {}), retrying in {}s",
+        attempt,
+        delaySeconds,
+        e
+      );
+      reconcileExecutor.schedule(
+        () -> reconcileWithSnapshot(snapshot, attempt + 1),
+        delaySeconds,
+        TimeUnit.SECONDS
+      );
+    }
+  }
+
+  static long reconcileRetryDelaySeconds(int attempt) {
+    return Math.min(
+      SNAPSHOT_RECONCILE_RETRY_SECONDS << Math.min(attempt - 1, 10),
+      SNAPSHOT_RECONCILE_MAX_RETRY_SECONDS
+    );
+  }
+
+  /**
+   * Fetch the global state from BaragonService and apply it. If the state has not changed since
+   * it was last applied here, BaragonService answers 304 and nothing is rendered
+   */
   public void applyCurrentConfigs() throws AgentServiceNotifyException {
     LOG.info("Getting current state of the world from Baragon Service...");
 
@@ -253,66 +441,40 @@ public class LifecycleHelper {
 
     final Collection<String> services = stateDatastore.getServices();
     if (services.size() > 0) {
-      ExecutorService executorService = Executors.newFixedThreadPool(services.size());
-      List<Callable<Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>>>> todo = new ArrayList<>(
-        services.size()
-      );
-
       Optional<Integer> maybeVersion = stateDatastore.getStateVersion();
       if (maybeVersion.isPresent()) {
         bootstrapStateNodeVersion.set(maybeVersion.get());
       }
 
-      for (BaragonServiceState serviceState : getGlobalStateWithRetry()) {
-        if (
-          (serviceState.getService().getLoadBalancerGroups() != null) &&
-          (
-            serviceState
-              .getService()
-              .getLoadBalancerGroups()
-              .contains(configuration.getLoadBalancerConfiguration().getName())
-          )
-        ) {
-          todo.add(new BootstrapFileChecker(configHelper, serviceState, now));
-        }
+      Optional<String> previousEtag = Optional.fromNullable(appliedStateEtag.get());
+      Optional<Pair<String, Collection<BaragonServiceState>>> maybeGlobalState = getGlobalStateWithRetry(
+        previousEtag
+      );
+      if (!maybeGlobalState.isPresent()) {
+        LOG.info(
+          "State {} unchanged since it was last applied, nothing to apply ({}ms)",
+          previousEtag.get(),
+          stopwatch.elapsed(TimeUnit.MILLISECONDS)
+        );
+        return;
       }
 
-      LOG.info("Going to apply {} services...", todo.size());
+      Collection<BaragonServiceState> serviceStates = maybeGlobalState
+        .get()
+        .getValue()
+        .stream()
+        .filter(this::isOnThisLoadBalancer)
+        .collect(Collectors.toList());
 
-      try {
-        List<Pair<ServiceContext, Collection<BaragonConfigFile>>> toApply = new ArrayList<>();
-        List<Future<Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>>>> applied = executorService.invokeAll(
-          todo
-        );
-        for (Future<Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>>> serviceFuture : applied) {
-          Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>> maybeToApply = serviceFuture.get();
-          if (maybeToApply.isPresent()) {
-            toApply.add(maybeToApply.get());
-          }
-        }
+      LOG.info("Going to apply {} services...", serviceStates.size());
 
-        toApply.forEach(
-          item -> {
-            try {
-              configHelper.bootstrapApplyWrite(item.getKey(), item.getValue());
-            } catch (Exception e) {
-              LOG.error(
-                "Caught exception while applying write {} during bootstrap",
-                item.getKey().getService().getServiceId(),
-                e
-              );
-            }
-          }
+      // Cleared again if writing any of the configs fails, so the next apply fetches everything
+      appliedStateEtag.set(maybeGlobalState.get().getKey());
+      try {
+        List<Pair<ServiceContext, Collection<BaragonConfigFile>>> toApply = writeAndCheckServiceStates(
+          serviceStates,
+          now
         );
-
-        try {
-          configHelper.bootstrapApplyCheck(toApply);
-        } catch (Exception e) {
-          for (Pair<ServiceContext, Collection<BaragonConfigFile>> item : toApply) {
-            configHelper.bootstrapApply(item.getKey(), item.getValue());
-          }
-        }
-
         configHelper.reloadConfigs();
         toApply.forEach(
           item ->
@@ -325,6 +487,7 @@ public class LifecycleHelper {
             )
         );
       } catch (Exception e) {
+        appliedStateEtag.set(null);
         LOG.error("Caught exception while applying and parsing configs", e);
         if (configuration.isExitOnStartupError()) {
           Throwables.propagate(e);
@@ -333,7 +496,7 @@ public class LifecycleHelper {
 
       LOG.info(
         "Applied {} services in {}ms",
-        todo.size(),
+        serviceStates.size(),
         stopwatch.elapsed(TimeUnit.MILLISECONDS)
       );
     } else {
@@ -341,9 +504,91 @@ public class LifecycleHelper {
     }
   }
 
-  private Collection<BaragonServiceState> getGlobalStateWithRetry() {
-    Retryer<Collection<BaragonServiceState>> retryer = RetryerBuilder
-      .<Collection<BaragonServiceState>>newBuilder()
+  private boolean isOnThisLoadBalancer(BaragonServiceState serviceState) {
+    return (
+      (serviceState.getService().getLoadBalancerGroups() != null) &&
+      (
+        serviceState
+          .getService()
+          .getLoadBalancerGroups()
+          .contains(configuration.getLoadBalancerConfiguration().getName())
+      )
+    );
+  }
+
+  private static boolean isOlderThan(BasicServiceContext context, long timestamp) {
+    return context.getTimestamp() == null || context.getTimestamp() < timestamp;
+  }
+
+  /**
+   * Render, write and check configs for the given services, returning those whose configs
+   * differed from what was on disk. Callers are responsible for reloading afterwards
+   */
+  private List<Pair<ServiceContext, Collection<BaragonConfigFile>>> writeAndCheckServiceStates(
+    Collection<BaragonServiceState> serviceStates,
+    long now
+  )
+    throws Exception {
+    if (serviceStates.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Callable<Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>>>> todo = new ArrayList<>(
+      serviceStates.size()
+    );
+    for (BaragonServiceState serviceState : serviceStates) {
+      todo.add(new BootstrapFileChecker(configHelper, serviceState, now));
+    }
+
+    ExecutorService executorService = Executors.newFixedThreadPool(todo.size());
+    List<Pair<ServiceContext, Collection<BaragonConfigFile>>> toApply = new ArrayList<>();
+    try {
+      List<Future<Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>>>> applied = executorService.invokeAll(
+        todo
+      );
+      for (Future<Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>>> serviceFuture : applied) {
+        Optional<Pair<ServiceContext, Collection<BaragonConfigFile>>> maybeToApply = serviceFuture.get();
+        if (maybeToApply.isPresent()) {
+          toApply.add(maybeToApply.get());
+        }
+      }
+    } finally {
+      executorService.shutdown();
+    }
+
+    toApply.forEach(
+      item -> {
+        try {
+          configHelper.bootstrapApplyWrite(item.getKey(), item.getValue());
+        } catch (Exception e) {
+          appliedStateEtag.set(null);
+          LOG.error(
+            "Caught exception while applying write {} during bootstrap",
+            item.getKey().getService().getServiceId(),
+            e
+          );
+        }
+      }
+    );
+
+    try {
+      configHelper.bootstrapApplyCheck(toApply);
+    } catch (Exception e) {
+      for (Pair<ServiceContext, Collection<BaragonConfigFile>> item : toApply) {
+        configHelper.bootstrapApply(item.getKey(), item.getValue());
+      }
+    }
+
+    return toApply;
+  }
+
+  /**
+   * Returns the global state along with its ETag, or absent if it still matches ifNoneMatch
+   */
+  private Optional<Pair<String, Collection<BaragonServiceState>>> getGlobalStateWithRetry(
+    Optional<String> ifNoneMatch
+  ) {
+    Retryer<Optional<Pair<String, Collection<BaragonServiceState>>>> retryer = RetryerBuilder
+      .<Optional<Pair<String, Collection<BaragonServiceState>>>>newBuilder()
       .retryIfException()
       .withStopStrategy(
         StopStrategies.stopAfterAttempt(configuration.getMaxGetGloablStateAttempts())
@@ -352,20 +597,26 @@ public class LifecycleHelper {
       .build();
 
     try {
-      return retryer.call(this::getGlobalState);
+      return retryer.call(() -> getGlobalState(ifNoneMatch));
     } catch (Exception e) {
       LOG.error("Could not get global state from Baragon Service");
       throw Throwables.propagate(e);
     }
   }
 
-  private Collection<BaragonServiceState> getGlobalState()
+  private Optional<Pair<String, Collection<BaragonServiceState>>> getGlobalState(
+    Optional<String> ifNoneMatch
+  )
     throws AgentServiceNotifyException {
     Collection<String> baseUris = workerDatastore.getBaseUris();
     HttpRequest.Builder requestBuilder = HttpRequest
       .newBuilder()
       .setUrl(String.format(GLOBAL_STATE_FORMAT, baseUris.iterator().next()))
-      .setMethod(Method.GET);
+      .setMethod(Method.GET)
+      .addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+    if (ifNoneMatch.isPresent()) {
+      requestBuilder.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch.get());
+    }
 
     Map<String, BaragonAuthKey> authKeys = authDatastore.getAuthKeyMap();
     if (!authKeys.isEmpty()) {
@@ -387,12 +638,22 @@ public class LifecycleHelper {
         )
       );
     }
-    return response.getAs(new TypeReference<Collection<BaragonServiceState>>() {});
+    if (response.getStatusCode() == 304) {
+      return Optional.absent();
+    }
+    return Optional.of(
+      new ImmutablePair<>(
+        response.getHeaders().getFirst(HttpHeaders.ETAG),
+        response.getAs(new TypeReference<Collection<BaragonServiceState>>() {})
+      )
+    );
   }
 
   public void shutdown() throws Exception {
     leaderLatch.close();
+    stateSnapshotManager.writeSnapshotIfChanged();
     executorService.shutdown();
+    reconcileExecutor.shutdownNow();
     if (configuration.getRemoveFileOnShutdown().isPresent()) {
       removeFile(configuration.getRemoveFileOnShutdown().get());
     }
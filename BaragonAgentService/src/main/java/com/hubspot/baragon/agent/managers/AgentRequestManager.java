@@ -2,7 +2,11 @@ package com.hubspot.baragon.agent.managers;
 
 import static com.hubspot.baragon.agent.BaragonAgentServiceModule.BARAGON_AGENT_HTTP_CLIENT;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.hash.Hashing;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -12,6 +16,9 @@ import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
 import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
 import com.hubspot.baragon.agent.config.TestingConfiguration;
 import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
+import com.hubspot.baragon.agent.lbs.LbConfigGenerator;
+import com.hubspot.baragon.agent.models.BatchPhase;
+import com.hubspot.baragon.agent.models.BatchProfile;
 import com.hubspot.baragon.data.BaragonRequestDatastore;
 import com.hubspot.baragon.data.BaragonStateDatastore;
 import com.hubspot.baragon.exceptions.LockTimeoutException;
@@ -35,19 +42,33 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import javax.ws.rs.core.Response;
+import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 @Singleton
 public class AgentRequestManager {
   private static final Logger LOG = LoggerFactory.getLogger(AgentRequestManager.class);
+  private static final long BATCH_ID_RETENTION_MINUTES = 10;
+  private static final long MAX_BATCH_IDS = 1000;
+
   private final FilesystemConfigHelper configHelper;
   private final BaragonStateDatastore stateDatastore;
   private final BaragonRequestDatastore requestDatastore;
@@ -60,6 +81,16 @@ public class AgentRequestManager {
   private final long agentLockTimeoutMs;
   private final Map<String, BasicServiceContext> internalStateCache;
   private final NingHttpClient httpClient;
+  private final LbConfigGenerator configGenerator;
+  private final ExecutorService batchExecutor;
+  private final BatchProfiler batchProfiler;
+  private final BatchCachePurger batchCachePurger;
+  //          <BatchId, Responses>
+  private final Cache<String, CompletableFuture<List<AgentBatchResponseItem>>> batchesById = CacheBuilder
+    .newBuilder()
+    .expireAfterWrite(BATCH_ID_RETENTION_MINUTES, TimeUnit.MINUTES)
+    .maximumSize(MAX_BATCH_IDS)
+    .build();
 
   @Inject
   public AgentRequestManager(
@@ -78,7 +109,11 @@ public class AgentRequestManager {
     @Named(
       BaragonAgentServiceModule.INTERNAL_STATE_CACHE
     ) Map<String, BasicServiceContext> internalStateCache,
-    @Named(BARAGON_AGENT_HTTP_CLIENT) NingHttpClient httpClient
+    @Named(BARAGON_AGENT_HTTP_CLIENT) NingHttpClient httpClient,
+    LbConfigGenerator configGenerator,
+    @Named(BaragonAgentServiceModule.AGENT_BATCH_EXECUTOR) ExecutorService batchExecutor,
+    BatchProfiler batchProfiler,
+    BatchCachePurger batchCachePurger
   ) {
     this.stateDatastore = stateDatastore;
     this.configHelper = configHelper;
@@ -92,89 +127,327 @@ public class AgentRequestManager {
     this.agentLockTimeoutMs = agentLockTimeoutMs;
     this.internalStateCache = internalStateCache;
     this.httpClient = httpClient;
+    this.configGenerator = configGenerator;
+    this.batchExecutor = batchExecutor;
+    this.batchProfiler = batchProfiler;
+    this.batchCachePurger = batchCachePurger;
+  }
+
+  /**
+   * BaragonService can send the same batch twice, when it hedges a slow request or retries one
+   * whose response was lost. Applying the copy could put back upstreams a newer batch has since
+   * changed, so a batch id seen before gets the responses of the first copy instead.
+   */
+  public List<AgentBatchResponseItem> processRequests(
+    List<BaragonRequestBatchItem> batch,
+    Optional<String> batchId
+  )
+    throws InterruptedException {
+    if (!batchId.isPresent()) {
+      return processRequests(batch);
+    }
+    CompletableFuture<List<AgentBatchResponseItem>> processed = new CompletableFuture<>();
+    CompletableFuture<List<AgentBatchResponseItem>> existing = batchesById
+      .asMap()
+      .putIfAbsent(batchId.get(), processed);
+    if (existing != null) {
+      LOG.info("Already received batch {}, returning its responses", batchId.get());
+      try {
+        return existing.get();
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+    }
+    try {
+      List<AgentBatchResponseItem> responses = processRequests(batch);
+      processed.complete(responses);
+      return responses;
+    } catch (Throwable t) {
+      processed.completeExceptionally(t);
+      throw t;
+    }
   }
 
   public List<AgentBatchResponseItem> processRequests(
     List<BaragonRequestBatchItem> batch
   )
     throws InterruptedException {
-    Map<String, Optional<BaragonRequest>> requests = new HashMap<>();
-    Map<String, Optional<BaragonService>> services = new HashMap<>();
+    long startNanos = System.nanoTime();
+    Optional<BatchProfile> maybeProfile = batchProfiler.maybeStartBatch(
+      batch
+        .stream()
+        .map(BaragonRequestBatchItem::getRequestId)
+        .collect(Collectors.toList())
+    );
+    try (BatchProfiler.Scope scope = BatchProfiler.enter(maybeProfile, null)) {
+      return processBatch(batch, maybeProfile);
+    } finally {
+      if (maybeProfile.isPresent()) {
+        batchProfiler.finishBatch(maybeProfile.get(), startNanos);
+      }
+    }
+  }
+
+  private List<AgentBatchResponseItem> processBatch(
+    List<BaragonRequestBatchItem> batch,
+    Optional<BatchProfile> maybeProfile
+  )
+    throws InterruptedException {
+    // Fetch every request in the batch, then the existing service and upstreams for each service they touch, in parallel
+    long phaseStart = BatchProfiler.start();
+    Map<String, Optional<BaragonRequest>> requests = fetchInParallel(
+      batch
+        .stream()
+        .map(BaragonRequestBatchItem::getRequestId)
+        .collect(Collectors.toCollection(LinkedHashSet::new)),
+      requestDatastore::getRequest
+    );
+    BatchProfiler.record(BatchPhase.FETCH_REQUESTS, phaseStart);
 
-    // Grab the existing upstreams at the start of this batch, and have apply() and revert() calls modify the list in-memory as we work through batch items
-    Map<String, Long> numRequestsByService = batch
+    Set<String> serviceIds = requests
+      .values()
       .stream()
-      .map(
-        requestItem -> {
-          final Optional<BaragonRequest> maybeRequest = requestDatastore.getRequest(
-            requestItem.getRequestId()
-          );
+      .filter(Optional::isPresent)
+      .map(r -> r.get().getLoadBalancerService().getServiceId())
+      .collect(Collectors.toCollection(LinkedHashSet::new));
 
-          requests.put(requestItem.getRequestId(), maybeRequest);
+    phaseStart = BatchProfiler.start();
+    Map<String, Optional<BaragonService>> services = fetchInParallel(
+      serviceIds,
+      stateDatastore::getService
+    );
+    BatchProfiler.record(BatchPhase.FETCH_SERVICES, phaseStart);
 
-          if (maybeRequest.isPresent()) {
-            services.computeIfAbsent(
-              maybeRequest.get().getLoadBalancerService().getServiceId(),
-              r -> getOldService(maybeRequest.get())
-            );
-          }
-          return maybeRequest;
+    // Grab the existing upstreams at the start of this batch, and have apply() and revert() calls modify the list in-memory as we work through batch items
+    phaseStart = BatchProfiler.start();
+    Map<String, Collection<UpstreamInfo>> existingUpstreamsForThisBatch = fetchInParallel(
+      serviceIds,
+      serviceId -> {
+        try {
+          return stateDatastore.getUpstreams(serviceId);
+        } catch (Exception e) {
+          LOG.warn("Unable to get upstream information for service {}", serviceId, e);
+          throw new RuntimeException(
+            "Unable to get upstream information for service {}",
+            e
+          );
         }
-      )
-      .filter(Optional::isPresent)
-      .map(Optional::get)
-      .collect(
-        Collectors.groupingBy(
-          r -> r.getLoadBalancerService().getServiceId(),
-          Collectors.counting()
+      }
+    );
+    BatchProfiler.record(BatchPhase.FETCH_UPSTREAMS, phaseStart);
+
+    LOG.debug(
+      "Requests in this batch by service: {}",
+      requests
+        .values()
+        .stream()
+        .filter(Optional::isPresent)
+        .collect(
+          Collectors.groupingBy(
+            r -> r.get().getLoadBalancerService().getServiceId(),
+            Collectors.counting()
+          )
         )
-      );
-
-    LOG.debug("Requests in this batch by service: {}", numRequestsByService);
+    );
 
-    Map<String, Collection<UpstreamInfo>> existingUpstreamsForThisBatch = services
-      .keySet()
-      .stream()
-      .collect(
-        Collectors.toMap(
-          Function.identity(),
-          serviceId -> {
-            try {
-              return stateDatastore.getUpstreams(serviceId);
-            } catch (Exception e) {
-              LOG.warn("Unable to get upstream information for service {}", serviceId, e);
-              throw new RuntimeException(
-                "Unable to get upstream information for service {}",
-                e
-              );
-            }
-          }
-        )
-      );
+    Map<Integer, PreparedUpdate> preparedUpdates = prepareUpdates(
+      batch,
+      requests,
+      services,
+      existingUpstreamsForThisBatch
+    );
 
+    // Cache purges run in the background while the rest of the batch applies
+    BatchCachePurger.Batch purges = batchCachePurger.newBatch(this::purgeCache);
     List<AgentBatchResponseItem> responses = new ArrayList<>(batch.size());
     int i = 0;
     for (BaragonRequestBatchItem item : batch) {
       boolean isLast = i == batch.size() - 1;
-      responses.add(
-        getResponseItem(
-          processRequest(
-            item.getRequestId(),
-            existingUpstreamsForThisBatch,
-            services,
-            requests,
-            actionForBatchItem(item),
-            !isLast,
-            Optional.of(i)
-          ),
-          item
+      Optional<BaragonRequest> maybeRequest = requests.get(item.getRequestId());
+      try (
+        BatchProfiler.Scope scope = BatchProfiler.enter(
+          maybeProfile,
+          maybeRequest != null && maybeRequest.isPresent()
+            ? maybeRequest.get().getLoadBalancerService().getServiceId()
+            : null
         )
-      );
+      ) {
+        responses.add(
+          getResponseItem(
+            processRequest(
+              item.getRequestId(),
+              existingUpstreamsForThisBatch,
+              services,
+              requests,
+              actionForBatchItem(item),
+              !isLast,
+              Optional.of(i),
+              Optional.fromNullable(preparedUpdates.get(i)),
+              Optional.of(purges)
+            ),
+            item
+          )
+        );
+      }
       i++;
     }
+    if (!purges.isEmpty()) {
+      purges.addPurgeResults(responses);
+    }
     return responses;
   }
 
+  private <K, V> Map<K, V> fetchInParallel(Collection<K> keys, Function<K, V> fetcher)
+    throws InterruptedException {
+    Map<K, Future<V>> futures = new LinkedHashMap<>();
+    for (K key : keys) {
+      futures.put(key, batchExecutor.submit(() -> fetcher.apply(key)));
+    }
+    Map<K, V> results = new HashMap<>();
+    for (Map.Entry<K, Future<V>> entry : futures.entrySet()) {
+      try {
+        results.put(entry.getKey(), entry.getValue().get());
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Render configs for the apply/revert items in a batch ahead of time. Items for the same service are
+   * prepared in batch order, since each one builds on the upstreams left by the previous one, while
+   * independent services are rendered in parallel. Writing, checking and reloading still happen in order.
+   */
+  private Map<Integer, PreparedUpdate> prepareUpdates(
+    List<BaragonRequestBatchItem> batch,
+    Map<String, Optional<BaragonRequest>> requests,
+    Map<String, Optional<BaragonService>> services,
+    Map<String, Collection<UpstreamInfo>> existingUpstreams
+  )
+    throws InterruptedException {
+    Map<String, List<Integer>> itemsByService = new LinkedHashMap<>();
+    for (int i = 0; i < batch.size(); i++) {
+      Optional<BaragonRequest> maybeRequest = requests.get(batch.get(i).getRequestId());
+      if (maybeRequest != null && maybeRequest.isPresent()) {
+        itemsByService
+          .computeIfAbsent(
+            maybeRequest.get().getLoadBalancerService().getServiceId(),
+            k -> new ArrayList<>()
+          )
+          .add(i);
+      }
+    }
+
+    Map<Integer, PreparedUpdate> prepared = new ConcurrentHashMap<>();
+    Optional<BatchProfile> maybeProfile = BatchProfiler.currentProfile();
+    List<Future<?>> futures = new ArrayList<>(itemsByService.size());
+    for (Map.Entry<String, List<Integer>> entry : itemsByService.entrySet()) {
+      Collection<UpstreamInfo> serviceUpstreams = existingUpstreams.computeIfAbsent(
+        entry.getKey(),
+        key -> new ArrayList<>()
+      );
+      futures.add(
+        batchExecutor.submit(
+          () -> {
+            try (
+              BatchProfiler.Scope scope = BatchProfiler.enter(
+                maybeProfile,
+                entry.getKey()
+              )
+            ) {
+              prepareServiceUpdates(
+                entry.getValue(),
+                batch,
+                requests,
+                services.get(entry.getKey()),
+                serviceUpstreams,
+                prepared
+              );
+            }
+          }
+        )
+      );
+    }
+
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+    }
+    return prepared;
+  }
+
+  private void prepareServiceUpdates(
+    List<Integer> itemNumbers,
+    List<BaragonRequestBatchItem> batch,
+    Map<String, Optional<BaragonRequest>> requests,
+    Optional<BaragonService> maybeOldService,
+    Collection<UpstreamInfo> serviceUpstreams,
+    Map<Integer, PreparedUpdate> prepared
+  ) {
+    for (int i : itemNumbers) {
+      BaragonRequestBatchItem item = batch.get(i);
+      BaragonRequest request = requests.get(item.getRequestId()).get();
+      try {
+        Optional<ServiceContext> maybeContext = getContextForAction(
+          actionForBatchItem(item).get(),
+          request,
+          maybeOldService,
+          serviceUpstreams
+        );
+        if (maybeContext.isPresent()) {
+          prepared.put(i, render(maybeContext.get()));
+        }
+      } catch (Exception e) {
+        // Leave this and later items for the service to be prepared in order while applying
+        LOG.warn(
+          "Could not prepare {}, will retry when applying",
+          item.getRequestId(),
+          e
+        );
+        return;
+      }
+    }
+  }
+
+  private Optional<ServiceContext> getContextForAction(
+    RequestAction action,
+    BaragonRequest request,
+    Optional<BaragonService> maybeOldService,
+    Collection<UpstreamInfo> existingUpstreams
+  )
+    throws Exception {
+    switch (action) {
+      case DELETE:
+      case RELOAD:
+      case GET_RENDERED_CONFIG:
+      case PURGE_CACHE:
+        return Optional.absent();
+      case REVERT:
+        return Optional.of(getRevertContext(request, maybeOldService, existingUpstreams));
+      default:
+        return Optional.of(getApplyContext(request, existingUpstreams));
+    }
+  }
+
+  private PreparedUpdate render(ServiceContext context) {
+    long start = BatchProfiler.start();
+    try {
+      return new PreparedUpdate(
+        context,
+        configGenerator.generateConfigsForProject(context),
+        null
+      );
+    } catch (Exception e) {
+      return new PreparedUpdate(context, null, e);
+    } finally {
+      BatchProfiler.record(BatchPhase.RENDER, start);
+    }
+  }
+
   private AgentBatchResponseItem getResponseItem(
     Response httpResponse,
     BaragonRequestBatchItem item
@@ -215,6 +488,30 @@ public class AgentRequestManager {
     Optional<Integer> batchItemNumber
   )
     throws InterruptedException {
+    return processRequest(
+      requestId,
+      existingUpstreams,
+      services,
+      requests,
+      maybeAction,
+      delayReload,
+      batchItemNumber,
+      Optional.absent(),
+      Optional.absent()
+    );
+  }
+
+  private Response processRequest(
+    String requestId,
+    Map<String, Collection<UpstreamInfo>> existingUpstreams,
+    Map<String, Optional<BaragonService>> services,
+    Map<String, Optional<BaragonRequest>> requests,
+    Optional<RequestAction> maybeAction,
+    boolean delayReload,
+    Optional<Integer> batchItemNumber,
+    Optional<PreparedUpdate> maybePrepared,
+    Optional<BatchCachePurger.Batch> maybePurges
+  ) {
     if (requests.get(requestId) == null || !requests.get(requestId).isPresent()) {
       return Response
         .status(Response.Status.NOT_FOUND)
@@ -233,7 +530,9 @@ public class AgentRequestManager {
       services.get(request.getLoadBalancerService().getServiceId()),
       existingUpstreams,
       delayReload,
-      batchItemNumber
+      batchItemNumber,
+      maybePrepared,
+      maybePurges
     );
   }
 
@@ -245,6 +544,30 @@ public class AgentRequestManager {
     Map<String, Collection<UpstreamInfo>> existingUpstreams,
     boolean delayReload,
     Optional<Integer> batchItemNumber
+  ) {
+    return processRequest(
+      requestId,
+      action,
+      request,
+      maybeOldService,
+      existingUpstreams,
+      delayReload,
+      batchItemNumber,
+      Optional.absent(),
+      Optional.absent()
+    );
+  }
+
+  private Response processRequest(
+    String requestId,
+    RequestAction action,
+    BaragonRequest request,
+    Optional<BaragonService> maybeOldService,
+    Map<String, Collection<UpstreamInfo>> existingUpstreams,
+    boolean delayReload,
+    Optional<Integer> batchItemNumber,
+    Optional<PreparedUpdate> maybePrepared,
+    Optional<BatchCachePurger.Batch> maybePurges
   ) {
     long start = System.currentTimeMillis();
     try {
@@ -267,7 +590,8 @@ public class AgentRequestManager {
             maybeOldService,
             existingUpstreams.computeIfAbsent(serviceId, key -> new ArrayList<>()),
             delayReload,
-            batchItemNumber
+            batchItemNumber,
+            maybePrepared
           );
         default:
           serviceId = request.getLoadBalancerService().getServiceId();
@@ -276,12 +600,20 @@ public class AgentRequestManager {
             maybeOldService,
             existingUpstreams.computeIfAbsent(serviceId, key -> new ArrayList<>()),
             delayReload,
-            batchItemNumber
+            batchItemNumber,
+            maybePrepared
           );
           if (request.isPurgeCache()) {
-            purgeCache(
-              maybeOldService.or(request.getLoadBalancerService()).getServiceId()
-            );
+            String purgeServiceId = maybeOldService
+              .or(request.getLoadBalancerService())
+              .getServiceId();
+            if (!maybePurges.isPresent()) {
+              purgeCache(purgeServiceId);
+            } else if (
+              response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL
+            ) {
+              maybePurges.get().purgeAfterApply(requestId, purgeServiceId);
+            }
           }
           return response;
       }
@@ -419,13 +751,18 @@ public class AgentRequestManager {
     Optional<BaragonService> maybeOldService,
     Collection<UpstreamInfo> existingUpstreams,
     boolean delayReload,
-    Optional<Integer> batchItemNumber
+    Optional<Integer> batchItemNumber,
+    Optional<PreparedUpdate> maybePrepared
   )
     throws Exception {
-    final ServiceContext update = getApplyContext(request, existingUpstreams);
+    final PreparedUpdate prepared = maybePrepared.isPresent()
+      ? maybePrepared.get()
+      : render(getApplyContext(request, existingUpstreams));
+    final ServiceContext update = prepared.getContext();
     triggerTesting();
     configHelper.apply(
       update,
+      prepared.getConfigs(),
       maybeOldService,
       true,
       request.isNoReload(),
@@ -450,28 +787,15 @@ public class AgentRequestManager {
     Optional<BaragonService> maybeOldService,
     Collection<UpstreamInfo> existingUpstreams,
     boolean delayReload,
-    Optional<Integer> batchItemNumber
+    Optional<Integer> batchItemNumber,
+    Optional<PreparedUpdate> maybePrepared
   )
     throws Exception {
-    final ServiceContext update;
+    final PreparedUpdate prepared = maybePrepared.isPresent()
+      ? maybePrepared.get()
+      : render(getRevertContext(request, maybeOldService, existingUpstreams));
+    final ServiceContext update = prepared.getContext();
     boolean movedOffLbGroup = movedOffLoadBalancer(maybeOldService);
-    if (movedOffLbGroup) {
-      update =
-        new ServiceContext(
-          request.getLoadBalancerService(),
-          Collections.<UpstreamInfo>emptyList(),
-          System.currentTimeMillis(),
-          false
-        );
-    } else {
-      update =
-        new ServiceContext(
-          maybeOldService.get(),
-          existingUpstreams,
-          System.currentTimeMillis(),
-          true
-        );
-    }
 
     triggerTesting();
 
@@ -479,6 +803,7 @@ public class AgentRequestManager {
     try {
       configHelper.apply(
         update,
+        prepared.getConfigs(),
         Optional.<BaragonService>absent(),
         false,
         request.isNoReload(),
@@ -507,6 +832,28 @@ public class AgentRequestManager {
     return Response.ok().build();
   }
 
+  private ServiceContext getRevertContext(
+    BaragonRequest request,
+    Optional<BaragonService> maybeOldService,
+    Collection<UpstreamInfo> existingUpstreams
+  ) {
+    if (movedOffLoadBalancer(maybeOldService)) {
+      return new ServiceContext(
+        request.getLoadBalancerService(),
+        Collections.<UpstreamInfo>emptyList(),
+        System.currentTimeMillis(),
+        false
+      );
+    } else {
+      return new ServiceContext(
+        maybeOldService.get(),
+        new ArrayList<>(existingUpstreams),
+        System.currentTimeMillis(),
+        true
+      );
+    }
+  }
+
   private ServiceContext getApplyContext(
     BaragonRequest request,
     Collection<UpstreamInfo> existingUpstreams
@@ -527,26 +874,11 @@ public class AgentRequestManager {
         true
       );
     } else {
-      List<UpstreamInfo> upstreams = new ArrayList<>(request.getAddUpstreams());
-      for (UpstreamInfo existingUpstream : existingUpstreams) {
-        boolean present = false;
-        boolean toRemove = false;
-        for (UpstreamInfo currentUpstream : upstreams) {
-          if (UpstreamInfo.upstreamAndGroupMatches(currentUpstream, existingUpstream)) {
-            present = true;
-            break;
-          }
-        }
-        for (UpstreamInfo upstreamToRemove : request.getRemoveUpstreams()) {
-          if (UpstreamInfo.upstreamAndGroupMatches(upstreamToRemove, existingUpstream)) {
-            toRemove = true;
-            break;
-          }
-        }
-        if (!present && !toRemove) {
-          upstreams.add(existingUpstream);
-        }
-      }
+      List<UpstreamInfo> upstreams = mergeUpstreams(
+        existingUpstreams,
+        request.getAddUpstreams(),
+        request.getRemoveUpstreams()
+      );
 
       existingUpstreams.clear();
       existingUpstreams.addAll(upstreams);
@@ -560,6 +892,42 @@ public class AgentRequestManager {
     }
   }
 
+  /**
+   * @return the upstreams to add, followed by each existing upstream whose upstream and group match
+   * neither an upstream being added, one being removed, nor an existing upstream already kept
+   */
+  @VisibleForTesting
+  static List<UpstreamInfo> mergeUpstreams(
+    Collection<UpstreamInfo> existingUpstreams,
+    Collection<UpstreamInfo> addUpstreams,
+    Collection<UpstreamInfo> removeUpstreams
+  ) {
+    Set<Pair<String, String>> seen = new HashSet<>(
+      addUpstreams.size() + removeUpstreams.size() + existingUpstreams.size()
+    );
+    for (UpstreamInfo upstream : addUpstreams) {
+      seen.add(upstreamAndGroupKey(upstream));
+    }
+    for (UpstreamInfo upstream : removeUpstreams) {
+      seen.add(upstreamAndGroupKey(upstream));
+    }
+
+    List<UpstreamInfo> upstreams = new ArrayList<>(
+      addUpstreams.size() + existingUpstreams.size()
+    );
+    upstreams.addAll(addUpstreams);
+    for (UpstreamInfo existingUpstream : existingUpstreams) {
+      if (seen.add(upstreamAndGroupKey(existingUpstream))) {
+        upstreams.add(existingUpstream);
+      }
+    }
+    return upstreams;
+  }
+
+  private static Pair<String, String> upstreamAndGroupKey(UpstreamInfo upstream) {
+    return Pair.of(upstream.getUpstream(), upstream.getGroup());
+  }
+
   private boolean movedOffLoadBalancer(Optional<BaragonService> maybeOldService) {
     return (
       !maybeOldService.isPresent() ||
@@ -589,10 +957,6 @@ public class AgentRequestManager {
     );
   }
 
-  private Optional<BaragonService> getOldService(BaragonRequest request) {
-    return stateDatastore.getService(request.getLoadBalancerService().getServiceId());
-  }
-
   private void triggerTesting() throws Exception {
     if (
       maybeTestingConfiguration.isPresent() &&
@@ -610,4 +974,33 @@ public class AgentRequestManager {
       }
     }
   }
+
+  private static class PreparedUpdate {
+    private final ServiceContext context;
+    private final Collection<BaragonConfigFile> configs;
+    private final Exception renderException;
+
+    private PreparedUpdate(
+      ServiceContext context,
+      Collection<BaragonConfigFile> configs,
+      Exception renderException
+    ) {
+      this.context = context;
+      this.configs = configs;
+      this.renderException = renderException;
+    }
+
+    ServiceContext getContext() {
+      return context;
+    }
+
+    Collection<BaragonConfigFile> getConfigs() throws MissingTemplateException {
+      if (renderException instanceof MissingTemplateException) {
+        throw (MissingTemplateException) renderException;
+      } else if (renderException != null) {
+        throw Throwables.propagate(renderException);
+      }
+      return configs;
+    }
+  }
 }
@@ -0,0 +1,194 @@
+package com.hubspot.baragon.agent.managers;
+
+import com.google.common.base.Optional;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.hubspot.baragon.agent.BaragonAgentServiceModule;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.models.AgentBatchResponseItem;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import javax.ws.rs.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Purges the caches of services applied in a request batch without holding up the applies behind
+ * them. A service's purge is queued on the purge executor as soon as a request for it has applied.
+ * Later requests for the service share that purge while it is still queued. Once it has started,
+ * they queue another, since it may have purged before their apply. Once the batch is done it waits
+ * up to purgeCacheTimeoutMs for the purges, so each request's response still says how its purge
+ * went.
+ */
+@Singleton
+public class BatchCachePurger {
+  private static final Logger LOG = LoggerFactory.getLogger(BatchCachePurger.class);
+
+  private final BaragonAgentConfiguration configuration;
+  private final ExecutorService purgeExecutor;
+
+  @Inject
+  public BatchCachePurger(
+    BaragonAgentConfiguration configuration,
+    @Named(
+      BaragonAgentServiceModule.AGENT_PURGE_CACHE_EXECUTOR
+    ) ExecutorService purgeExecutor
+  ) {
+    this.configuration = configuration;
+    this.purgeExecutor = purgeExecutor;
+  }
+
+  public Batch newBatch(Function<String, Response> purgeCache) {
+    return new Batch(purgeCache);
+  }
+
+  private Response purgeWithRetries(
+    Function<String, Response> purgeCache,
+    String serviceId
+  )
+    throws InterruptedException {
+    int attempt = 1;
+    while (true) {
+      Response response = purgeCache.apply(serviceId);
+      if (isSuccess(response) || attempt >= configuration.getPurgeCacheMaxAttempts()) {
+        return response;
+      }
+      long backoffMs =
+        configuration.getPurgeCacheRetryBaseMs() * (1L << Math.min(attempt - 1, 16));
+      LOG.warn(
+        "Cache purge for {} returned {}, retrying in {}ms",
+        serviceId,
+        response.getStatus(),
+        backoffMs
+      );
+      Thread.sleep(backoffMs);
+      attempt++;
+    }
+  }
+
+  private static boolean isSuccess(Response response) {
+    return response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL;
+  }
+
+  /**
+   * Tracks the purges for one batch. Only used from the thread processing that batch.
+   */
+  public class Batch {
+    private final Function<String, Response> purgeCache;
+    //               <ServiceId, Purge>
+    private final Map<String, Purge> latestPurges = new HashMap<>();
+    //               <RequestId, Purge>
+    private final Map<String, Purge> purgesByRequest = new HashMap<>();
+
+    private Batch(Function<String, Response> purgeCache) {
+      this.purgeCache = purgeCache;
+    }
+
+    public void purgeAfterApply(String requestId, String serviceId) {
+      Purge purge = latestPurges.get(serviceId);
+      if (purge == null || purge.started) {
+        purge = new Purge(serviceId);
+        latestPurges.put(serviceId, purge);
+      }
+      purgesByRequest.put(requestId, purge);
+    }
+
+    public boolean isEmpty() {
+      return purgesByRequest.isEmpty();
+    }
+
+    /**
+     * Adds the outcome of each request's purge to its response message. The status code is left
+     * alone, since a failed purge does not undo the apply.
+     */
+    public void addPurgeResults(List<AgentBatchResponseItem> responses)
+      throws InterruptedException {
+      long deadline = System.currentTimeMillis() + configuration.getPurgeCacheTimeoutMs();
+      Map<Purge, String> results = new HashMap<>();
+      for (Purge purge : purgesByRequest.values()) {
+        if (!results.containsKey(purge)) {
+          results.put(purge, awaitResult(purge.serviceId, purge.result, deadline));
+        }
+      }
+
+      for (int i = 0; i < responses.size(); i++) {
+        AgentBatchResponseItem response = responses.get(i);
+        Purge purge = purgesByRequest.get(response.getRequestId());
+        if (purge == null) {
+          continue;
+        }
+        responses.set(
+          i,
+          new AgentBatchResponseItem(
+            response.getRequestId(),
+            response.getStatusCode(),
+            Optional.of(
+              response.getMessage().isPresent()
+                ? String.format("%s; %s", response.getMessage().get(), results.get(purge))
+                : results.get(purge)
+            ),
+            response.getRequestType()
+          )
+        );
+      }
+    }
+
+    private String awaitResult(String serviceId, Future<Response> purge, long deadline)
+      throws InterruptedException {
+      try {
+        Response response = purge.get(
+          Math.max(0, deadline - System.currentTimeMillis()),
+          TimeUnit.MILLISECONDS
+        );
+        if (isSuccess(response)) {
+          return String.format("Purged cache for %s", serviceId);
+        }
+        return String.format(
+          "Cache purge for %s failed after %d attempt(s) with %d: %s",
+          serviceId,
+          configuration.getPurgeCacheMaxAttempts(),
+          response.getStatus(),
+          response.getEntity()
+        );
+      } catch (TimeoutException e) {
+        return String.format(
+          "Cache purge for %s still running after %dms",
+          serviceId,
+          configuration.getPurgeCacheTimeoutMs()
+        );
+      } catch (ExecutionException e) {
+        LOG.error("Cache purge for {} failed", serviceId, e.getCause());
+        return String.format(
+          "Cache purge for %s failed: %s",
+          serviceId,
+          e.getCause().getMessage()
+        );
+      }
+    }
+
+    private class Purge {
+      private final String serviceId;
+      private final Future<Response> result;
+      private volatile boolean started = false;
+
+      private Purge(String serviceId) {
+        this.serviceId = serviceId;
+        this.result =
+          purgeExecutor.submit(
+            () -> {
+              started = true;
+              return purgeWithRetries(purgeCache, serviceId);
+            }
+          );
+      }
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package com.hubspot.baragon.agent.managers;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.models.BatchPhase;
+import com.hubspot.baragon.agent.models.BatchProfile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples request batches and records how long each phase of processing them took. The profile
+ * being recorded is tracked per thread so code deep in the apply path (helpers, the lb adapter)
+ * can time itself without having it passed through. When a batch is not sampled, timing calls
+ * cost a thread local lookup.
+ */
+@Singleton
+public class BatchProfiler {
+  private static final ThreadLocal<ActiveScope> CURRENT = new ThreadLocal<>();
+  private static final Scope NO_OP_SCOPE = () -> {};
+
+  private final double sampleRate;
+  private final int bufferSize;
+  private final MetricRegistry metricRegistry;
+  private final Deque<BatchProfile> recentProfiles = new ArrayDeque<>();
+
+  @Inject
+  public BatchProfiler(
+    BaragonAgentConfiguration configuration,
+    MetricRegistry metricRegistry
+  ) {
+    this.sampleRate = configuration.getBatchProfilingSampleRate();
+    this.bufferSize = configuration.getBatchProfilingBufferSize();
+    this.metricRegistry = metricRegistry;
+  }
+
+  public Optional<BatchProfile> maybeStartBatch(List<String> requestIds) {
+    if (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+      return Optional.absent();
+    }
+    return Optional.of(new BatchProfile(System.currentTimeMillis(), requestIds));
+  }
+
+  public void finishBatch(BatchProfile profile, long startNanos) {
+    profile.record(
+      null,
+      BatchPhase.TOTAL,
+      TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos)
+    );
+    for (Map.Entry<BatchPhase, Long> entry : profile.getPhaseMicros().entrySet()) {
+      metricRegistry
+        .histogram(
+          MetricRegistry.name(BatchProfiler.class, "phase", entry.getKey().name())
+        )
+        .update(entry.getValue());
+    }
+    synchronized (recentProfiles) {
+      recentProfiles.addFirst(profile);
+      while (recentProfiles.size() > bufferSize) {
+        recentProfiles.removeLast();
+      }
+    }
+  }
+
+  /**
+   * Most recent sampled batches first
+   */
+  public List<BatchProfile> getRecentProfiles() {
+    synchronized (recentProfiles) {
+      return new ArrayList<>(recentProfiles);
+    }
+  }
+
+  /**
+   * Attribute timings on this thread to the given profile and service until the scope is closed.
+   * A null serviceId records batch-wide timings.
+   */
+  public static Scope enter(Optional<BatchProfile> maybeProfile, String serviceId) {
+    if (!maybeProfile.isPresent()) {
+      return NO_OP_SCOPE;
+    }
+    ActiveScope previous = CURRENT.get();
+    CURRENT.set(new ActiveScope(maybeProfile.get(), serviceId));
+    return () -> {
+      if (previous == null) {
+        CURRENT.remove();
+      } else {
+        CURRENT.set(previous);
+      }
+    };
+  }
+
+  public static Optional<BatchProfile> currentProfile() {
+    ActiveScope scope = CURRENT.get();
+    return scope == null ? Optional.absent() : Optional.of(scope.profile);
+  }
+
+  /**
+   * Start timing a phase, returns 0 when nothing on this thread is being profiled
+   */
+  public static long start() {
+    return CURRENT.get() == null ? 0 : System.nanoTime();
+  }
+
+  public static void record(BatchPhase phase, long startNanos) {
+    if (startNanos == 0) {
+      return;
+    }
+    ActiveScope scope = CURRENT.get();
+    if (scope != null) {
+      scope.profile.record(
+        scope.serviceId,
+        phase,
+        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos)
+      );
+    }
+  }
+
+  public interface Scope extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private static class ActiveScope {
+    private final BatchProfile profile;
+    private final String serviceId;
+
+    private ActiveScope(BatchProfile profile, String serviceId) {
+      this.profile = profile;
+      this.serviceId = serviceId;
+    }
+  }
+}
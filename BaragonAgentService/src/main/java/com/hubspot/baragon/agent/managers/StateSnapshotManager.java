@@ -0,0 +1,271 @@
+package com.hubspot.baragon.agent.managers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Optional;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.hubspot.baragon.agent.BaragonAgentServiceModule;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.lbs.LbConfigGenerator;
+import com.hubspot.baragon.agent.models.AgentStateSnapshot;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.BasicServiceContext;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the agent's applied state, along with checksums of the config files it manages, so a
+ * restarted agent can come up from local disk instead of re-rendering every service.
+ */
+@Singleton
+public class StateSnapshotManager {
+  private static final Logger LOG = LoggerFactory.getLogger(StateSnapshotManager.class);
+
+  private static final String CHECKSUM_FIELD = "checksum";
+  private static final String SNAPSHOT_FIELD = "snapshot";
+
+  private final BaragonAgentConfiguration configuration;
+  private final BaragonAgentMetadata agentMetadata;
+  private final BaragonStateDatastore stateDatastore;
+  private final LbConfigGenerator configGenerator;
+  private final ObjectMapper objectMapper;
+  private final ReentrantLock agentLock;
+  private final long agentLockTimeoutMs;
+  private final Map<String, BasicServiceContext> internalStateCache;
+
+  private Map<String, BasicServiceContext> lastWritten = new HashMap<>();
+
+  @Inject
+  public StateSnapshotManager(
+    BaragonAgentConfiguration configuration,
+    BaragonAgentMetadata agentMetadata,
+    BaragonStateDatastore stateDatastore,
+    LbConfigGenerator configGenerator,
+    ObjectMapper objectMapper,
+    @Named(BaragonAgentServiceModule.AGENT_LOCK) ReentrantLock agentLock,
+    @Named(BaragonAgentServiceModule.AGENT_LOCK_TIMEOUT_MS) long agentLockTimeoutMs,
+    @Named(
+      BaragonAgentServiceModule.INTERNAL_STATE_CACHE
+    ) Map<String, BasicServiceContext> internalStateCache
+  ) {
+    this.configuration = configuration;
+    this.agentMetadata = agentMetadata;
+    this.stateDatastore = stateDatastore;
+    this.configGenerator = configGenerator;
+    this.objectMapper = objectMapper;
+    this.agentLock = agentLock;
+    this.agentLockTimeoutMs = agentLockTimeoutMs;
+    this.internalStateCache = internalStateCache;
+  }
+
+  public boolean isEnabled() {
+    return configuration.getStateSnapshotFile().isPresent();
+  }
+
+  /**
+   * Load the snapshot if it is intact, was written by an agent with the same templates and load
+   * balancer settings, and every config file it covers is still on disk with the same contents
+   */
+  public Optional<AgentStateSnapshot> loadValidSnapshot() {
+    if (!isEnabled()) {
+      return Optional.absent();
+    }
+    File snapshotFile = new File(configuration.getStateSnapshotFile().get());
+    if (!snapshotFile.exists()) {
+      LOG.info("No state snapshot found at {}", snapshotFile);
+      return Optional.absent();
+    }
+
+    try {
+      JsonNode root = objectMapper.readTree(snapshotFile);
+      JsonNode snapshotNode = root.get(SNAPSHOT_FIELD);
+      JsonNode checksumNode = root.get(CHECKSUM_FIELD);
+      if (snapshotNode == null || checksumNode == null) {
+        LOG.warn("State snapshot {} is incomplete, ignoring it", snapshotFile);
+        return Optional.absent();
+      }
+      if (!checksumNode.asText().equals(checksum(snapshotNode))) {
+        LOG.warn("State snapshot {} failed its checksum, ignoring it", snapshotFile);
+        return Optional.absent();
+      }
+
+      AgentStateSnapshot snapshot = objectMapper.treeToValue(
+        snapshotNode,
+        AgentStateSnapshot.class
+      );
+      if (snapshot.getFormatVersion() != AgentStateSnapshot.CURRENT_FORMAT_VERSION) {
+        LOG.warn(
+          "State snapshot format {} is not supported, ignoring it",
+          snapshot.getFormatVersion()
+        );
+        return Optional.absent();
+      }
+      if (!configFingerprint().equals(snapshot.getConfigFingerprint())) {
+        LOG.info(
+          "Templates or load balancer configuration changed since the state snapshot"
+        );
+        return Optional.absent();
+      }
+      if (
+        !snapshot.getFileChecksums().equals(checksumConfigFiles(snapshot.getServices()))
+      ) {
+        LOG.info("Config files on disk no longer match the state snapshot");
+        return Optional.absent();
+      }
+
+      LOG.info("Loaded valid state snapshot {}", snapshot);
+      return Optional.of(snapshot);
+    } catch (Exception e) {
+      LOG.warn("Could not read state snapshot {}, ignoring it", snapshotFile, e);
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Fill the internal state cache from a snapshot. What was restored is already on disk, so it
+   * does not count as a change to write out again
+   */
+  public synchronized void restore(AgentStateSnapshot snapshot) {
+    lastWritten = new HashMap<>();
+    for (BasicServiceContext context : snapshot.getServices()) {
+      String serviceId = context.getService().getServiceId();
+      internalStateCache.put(serviceId, context);
+      // The cache may store its own copy of the context, compare against that
+      lastWritten.put(serviceId, internalStateCache.get(serviceId));
+    }
+  }
+
+  /**
+   * Write a new snapshot if the internal state cache has changed since the last one. Cache
+   * entries are replaced rather than mutated on every apply, so comparing references is enough
+   */
+  public synchronized void writeSnapshotIfChanged() {
+    if (!isEnabled() || !hasChangedSinceLastWrite()) {
+      return;
+    }
+    try {
+      if (!agentLock.tryLock(agentLockTimeoutMs, TimeUnit.MILLISECONDS)) {
+        LOG.debug("Agent is busy applying configs, will write state snapshot later");
+        return;
+      }
+      Map<String, BasicServiceContext> current;
+      AgentStateSnapshot snapshot;
+      try {
+        // Read the version first so a concurrent state change can only make the snapshot look older
+        Optional<Integer> stateVersion = stateDatastore.getStateVersion();
+        current = new HashMap<>(internalStateCache);
+        snapshot =
+          new AgentStateSnapshot(
+            AgentStateSnapshot.CURRENT_FORMAT_VERSION,
+            stateVersion,
+            System.currentTimeMillis(),
+            configFingerprint(),
+            current.values(),
+            checksumConfigFiles(current.values())
+          );
+      } finally {
+        agentLock.unlock();
+      }
+      write(snapshot);
+      lastWritten = current;
+      LOG.debug("Wrote state snapshot {}", snapshot);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      LOG.warn("Could not write state snapshot", e);
+    }
+  }
+
+  private boolean hasChangedSinceLastWrite() {
+    if (internalStateCache.size() != lastWritten.size()) {
+      return true;
+    }
+    for (Map.Entry<String, BasicServiceContext> entry : internalStateCache.entrySet()) {
+      if (lastWritten.get(entry.getKey()) != entry.getValue()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void write(AgentStateSnapshot snapshot) throws IOException {
+    Path target = Paths.get(configuration.getStateSnapshotFile().get());
+    Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+
+    JsonNode snapshotNode = objectMapper.valueToTree(snapshot);
+    ObjectNode root = objectMapper.createObjectNode();
+    root.put(CHECKSUM_FIELD, checksum(snapshotNode));
+    root.set(SNAPSHOT_FIELD, snapshotNode);
+
+    Files.write(tmp, objectMapper.writeValueAsBytes(root));
+    try {
+      Files.move(
+        tmp,
+        target,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE
+      );
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private String checksum(JsonNode snapshotNode) throws IOException {
+    return Hashing
+      .sha256()
+      .hashBytes(objectMapper.writeValueAsBytes(snapshotNode))
+      .toString();
+  }
+
+  private Map<String, String> checksumConfigFiles(Iterable<BasicServiceContext> services)
+    throws IOException {
+    Map<String, String> checksums = new TreeMap<>();
+    for (BasicServiceContext context : services) {
+      for (String path : configGenerator.getConfigPathsForProject(context.getService())) {
+        File file = new File(path);
+        if (file.exists()) {
+          checksums.put(
+            path,
+            Hashing.sha256().hashBytes(Files.readAllBytes(file.toPath())).toString()
+          );
+        }
+      }
+    }
+    return checksums;
+  }
+
+  /**
+   * Anything other than service state that changes what gets rendered
+   */
+  private String configFingerprint() throws IOException {
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putBytes(objectMapper.writeValueAsBytes(configuration.getTemplates()));
+    hasher.putBytes(
+      objectMapper.writeValueAsBytes(configuration.getLoadBalancerConfiguration())
+    );
+    hasher.putString(
+      objectMapper.writeValueAsString(agentMetadata),
+      StandardCharsets.UTF_8
+    );
+    return hasher.hash().toString();
+  }
+}
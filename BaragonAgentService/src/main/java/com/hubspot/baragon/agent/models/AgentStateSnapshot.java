@@ -0,0 +1,77 @@
+package com.hubspot.baragon.agent.models;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Optional;
+import com.hubspot.baragon.models.BasicServiceContext;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class AgentStateSnapshot {
+  public static final int CURRENT_FORMAT_VERSION = 1;
+
+  private final int formatVersion;
+  private final Optional<Integer> stateVersion;
+  private final long createdAt;
+  private final String configFingerprint;
+  private final Collection<BasicServiceContext> services;
+  private final Map<String, String> fileChecksums;
+
+  @JsonCreator
+  public AgentStateSnapshot(
+    @JsonProperty("formatVersion") int formatVersion,
+    @JsonProperty("stateVersion") Optional<Integer> stateVersion,
+    @JsonProperty("createdAt") long createdAt,
+    @JsonProperty("configFingerprint") String configFingerprint,
+    @JsonProperty("services") Collection<BasicServiceContext> services,
+    @JsonProperty("fileChecksums") Map<String, String> fileChecksums
+  ) {
+    this.formatVersion = formatVersion;
+    this.stateVersion = MoreObjects.firstNonNull(stateVersion, Optional.absent());
+    this.createdAt = createdAt;
+    this.configFingerprint = configFingerprint;
+    this.services = MoreObjects.firstNonNull(services, Collections.emptyList());
+    this.fileChecksums = MoreObjects.firstNonNull(fileChecksums, Collections.emptyMap());
+  }
+
+  public int getFormatVersion() {
+    return formatVersion;
+  }
+
+  public Optional<Integer> getStateVersion() {
+    return stateVersion;
+  }
+
+  public long getCreatedAt() {
+    return createdAt;
+  }
+
+  public String getConfigFingerprint() {
+    return configFingerprint;
+  }
+
+  public Collection<BasicServiceContext> getServices() {
+    return services;
+  }
+
+  public Map<String, String> getFileChecksums() {
+    return fileChecksums;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects
+      .toStringHelper(this)
+      .add("formatVersion", formatVersion)
+      .add("stateVersion", stateVersion)
+      .add("createdAt", createdAt)
+      .add("configFingerprint", configFingerprint)
+      .add("services", services.size())
+      .add("fileChecksums", fileChecksums.size())
+      .toString();
+  }
+}
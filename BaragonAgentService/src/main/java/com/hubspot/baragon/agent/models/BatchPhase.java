@@ -0,0 +1,15 @@
+package com.hubspot.baragon.agent.models;
+
+public enum BatchPhase {
+  FETCH_REQUESTS,
+  FETCH_SERVICES,
+  FETCH_UPSTREAMS,
+  RENDER,
+  RESOLVE_HOSTNAME,
+  LOCK_WAIT,
+  CONFIGS_MATCH,
+  WRITE,
+  CHECK,
+  RELOAD,
+  TOTAL
+}
@@ -0,0 +1,76 @@
+package com.hubspot.baragon.agent.models;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.google.common.base.MoreObjects;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings for one sampled request batch, in microseconds. Batch-wide phases such as the ZooKeeper
+ * fetches only appear in the phase totals, everything else is also broken down per service.
+ * RESOLVE_HOSTNAME time is a subset of RENDER time.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BatchProfile {
+  private final long startedAt;
+  private final List<String> requestIds;
+  private final ConcurrentMap<BatchPhase, LongAdder> phaseMicros = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, ConcurrentMap<BatchPhase, LongAdder>> servicePhaseMicros = new ConcurrentHashMap<>();
+
+  public BatchProfile(long startedAt, List<String> requestIds) {
+    this.startedAt = startedAt;
+    this.requestIds = Collections.unmodifiableList(requestIds);
+  }
+
+  public void record(String serviceId, BatchPhase phase, long micros) {
+    phaseMicros.computeIfAbsent(phase, p -> new LongAdder()).add(micros);
+    if (serviceId != null) {
+      servicePhaseMicros
+        .computeIfAbsent(serviceId, s -> new ConcurrentHashMap<>())
+        .computeIfAbsent(phase, p -> new LongAdder())
+        .add(micros);
+    }
+  }
+
+  public long getStartedAt() {
+    return startedAt;
+  }
+
+  public List<String> getRequestIds() {
+    return requestIds;
+  }
+
+  public Map<BatchPhase, Long> getPhaseMicros() {
+    return toTotals(phaseMicros);
+  }
+
+  public Map<String, Map<BatchPhase, Long>> getServicePhaseMicros() {
+    Map<String, Map<BatchPhase, Long>> totals = new TreeMap<>();
+    servicePhaseMicros.forEach(
+      (serviceId, phases) -> totals.put(serviceId, toTotals(phases))
+    );
+    return totals;
+  }
+
+  private static Map<BatchPhase, Long> toTotals(Map<BatchPhase, LongAdder> phases) {
+    Map<BatchPhase, Long> totals = new EnumMap<>(BatchPhase.class);
+    phases.forEach((phase, adder) -> totals.put(phase, adder.sum()));
+    return totals;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects
+      .toStringHelper(this)
+      .add("startedAt", startedAt)
+      .add("requestIds", requestIds)
+      .add("phaseMicros", getPhaseMicros())
+      .toString();
+  }
+}
@@ -0,0 +1,164 @@
+package com.hubspot.baragon.agent.models;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ForwardingConcurrentMap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BasicServiceContext;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The agent's record of what it has applied, by service id. Every context stored here is
+ * compacted first:
+ * - upstreams are rebuilt into an exactly sized immutable list, with the strings that repeat
+ *   across upstreams and services (request ids, racks, groups) interned
+ * - an unchanged service definition is shared with the entry it replaces, and the small sets and
+ *   names that most services have in common are interned
+ *
+ * Values are still plain {@link BasicServiceContext}s that are equal to what was put, but they are
+ * not the same instances, so read an entry back if its identity matters.
+ */
+public class InternalStateCache
+  extends ForwardingConcurrentMap<String, BasicServiceContext> {
+  private final ConcurrentMap<String, BasicServiceContext> delegate = new ConcurrentHashMap<>();
+  private final Interner<String> strings = Interners.newWeakInterner();
+  private final Interner<List<String>> stringLists = Interners.newWeakInterner();
+  private final Interner<Set<String>> stringSets = Interners.newWeakInterner();
+  private final Interner<Optional<String>> optionalStrings = Interners.newWeakInterner();
+
+  @Override
+  protected ConcurrentMap<String, BasicServiceContext> delegate() {
+    return delegate;
+  }
+
+  @Override
+  public BasicServiceContext put(String serviceId, BasicServiceContext context) {
+    return delegate.put(serviceId, compact(context, delegate.get(serviceId)));
+  }
+
+  @Override
+  public BasicServiceContext putIfAbsent(String serviceId, BasicServiceContext context) {
+    return delegate.putIfAbsent(serviceId, compact(context, null));
+  }
+
+  @Override
+  public boolean replace(
+    String serviceId,
+    BasicServiceContext oldContext,
+    BasicServiceContext newContext
+  ) {
+    return delegate.replace(serviceId, oldContext, compact(newContext, oldContext));
+  }
+
+  @Override
+  public BasicServiceContext replace(String serviceId, BasicServiceContext context) {
+    return delegate.replace(serviceId, compact(context, delegate.get(serviceId)));
+  }
+
+  @Override
+  public void putAll(Map<? extends String, ? extends BasicServiceContext> contexts) {
+    contexts.forEach(this::put);
+  }
+
+  private BasicServiceContext compact(
+    BasicServiceContext context,
+    BasicServiceContext previous
+  ) {
+    BaragonService service = previous != null &&
+      previous.getService().equals(context.getService())
+      ? previous.getService()
+      : compact(context.getService());
+    return new BasicServiceContext(
+      service,
+      compact(context.getUpstreams()),
+      context.getTimestamp()
+    );
+  }
+
+  private BaragonService compact(BaragonService service) {
+    return new BaragonService(
+      service.getServiceId(),
+      internCollection(service.getOwners()),
+      service.getServiceBasePath(),
+      service.getAdditionalPaths(),
+      internSet(service.getLoadBalancerGroups()),
+      service.getOptions(),
+      internOptional(service.getTemplateName()),
+      internSet(service.getDomains()),
+      internOptional(service.getEdgeCacheDNS()),
+      service.getEdgeCacheDomains(),
+      service.isPreResolveUpstreamDNS()
+    );
+  }
+
+  private List<UpstreamInfo> compact(Collection<UpstreamInfo> upstreams) {
+    ImmutableList.Builder<UpstreamInfo> compacted = ImmutableList.builderWithExpectedSize(
+      upstreams.size()
+    );
+    for (UpstreamInfo upstream : upstreams) {
+      compacted.add(
+        new UpstreamInfo(
+          upstream.getUpstream(),
+          internValue(upstream.getRequestId()),
+          internValue(upstream.getRackId()),
+          upstream.getOriginalPath(),
+          Optional.of(strings.intern(upstream.getGroup())),
+          upstream.getResolvedUpstream()
+        )
+      );
+    }
+    return compacted.build();
+  }
+
+  /**
+   * Lists stay lists and sets stay sets, so the compacted service is still equal to the original
+   */
+  private Collection<String> internCollection(Collection<String> values) {
+    if (values == null || values instanceof Set) {
+      return internSet((Set<String>) values);
+    }
+    ImmutableList.Builder<String> interned = ImmutableList.builderWithExpectedSize(
+      values.size()
+    );
+    for (String value : values) {
+      interned.add(strings.intern(value));
+    }
+    return stringLists.intern(interned.build());
+  }
+
+  private Set<String> internSet(Set<String> values) {
+    if (values == null) {
+      return null;
+    }
+    ImmutableSet.Builder<String> interned = ImmutableSet.builderWithExpectedSize(
+      values.size()
+    );
+    for (String value : values) {
+      interned.add(strings.intern(value));
+    }
+    return stringSets.intern(interned.build());
+  }
+
+  private Optional<String> internOptional(Optional<String> value) {
+    if (value == null || !value.isPresent()) {
+      return value;
+    }
+    return optionalStrings.intern(internValue(value));
+  }
+
+  /**
+   * UpstreamInfo keeps the value rather than the Optional, so only the string needs interning
+   */
+  private Optional<String> internValue(Optional<String> value) {
+    return value.isPresent() ? Optional.of(strings.intern(value.get())) : value;
+  }
+}
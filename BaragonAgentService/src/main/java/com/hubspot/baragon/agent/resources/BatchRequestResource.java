@@ -1,14 +1,19 @@
 package com.hubspot.baragon.agent.resources;
 
+import com.google.common.base.Optional;
 import com.google.inject.Inject;
 import com.hubspot.baragon.agent.managers.AgentRequestManager;
+import com.hubspot.baragon.agent.managers.BatchProfiler;
+import com.hubspot.baragon.agent.models.BatchProfile;
 import com.hubspot.baragon.models.AgentBatchResponseItem;
 import com.hubspot.baragon.models.BaragonRequestBatchItem;
 import java.util.List;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,16 +23,30 @@ import org.slf4j.LoggerFactory;
 public class BatchRequestResource {
   private static final Logger LOG = LoggerFactory.getLogger(BatchRequestResource.class);
   private final AgentRequestManager agentRequestManager;
+  private final BatchProfiler batchProfiler;
 
   @Inject
-  public BatchRequestResource(AgentRequestManager agentRequestManager) {
+  public BatchRequestResource(
+    AgentRequestManager agentRequestManager,
+    BatchProfiler batchProfiler
+  ) {
     this.agentRequestManager = agentRequestManager;
+    this.batchProfiler = batchProfiler;
   }
 
   @POST
   @Consumes(MediaType.APPLICATION_JSON)
-  public List<AgentBatchResponseItem> apply(List<BaragonRequestBatchItem> batch)
+  public List<AgentBatchResponseItem> apply(
+    @QueryParam("batchId") String batchId,
+    List<BaragonRequestBatchItem> batch
+  )
     throws InterruptedException {
-    return agentRequestManager.processRequests(batch);
+    return agentRequestManager.processRequests(batch, Optional.fromNullable(batchId));
+  }
+
+  @GET
+  @Path("/profiles")
+  public List<BatchProfile> getRecentProfiles() {
+    return batchProfiler.getRecentProfiles();
   }
 }
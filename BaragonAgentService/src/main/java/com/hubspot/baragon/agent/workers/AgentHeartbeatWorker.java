@@ -1,32 +1,105 @@
 package com.hubspot.baragon.agent.workers;
 
 import com.google.inject.Inject;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
 import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
 import com.hubspot.baragon.data.BaragonKnownAgentsDatastore;
 import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.BaragonKnownAgentMetadata;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.curator.framework.recipes.nodes.PersistentNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Liveness is the agent's ephemeral node, which lives as long as its ZooKeeper session. Known-agents
+ * metadata is only written at registration if it changed, and the last-seen timestamp, which is
+ * only needed once the agent is gone, is written every lastSeenIntervalSeconds. That goes to its own
+ * small node, or while writeLastSeenToMetadata is on, into the metadata that BaragonService versions
+ * without live-agent nodes still read
+ */
 public class AgentHeartbeatWorker implements Runnable {
+  private static final Logger LOG = LoggerFactory.getLogger(AgentHeartbeatWorker.class);
+
   private final BaragonKnownAgentsDatastore knownAgentsDatastore;
   private final BaragonAgentMetadata baragonAgentMetadata;
   private final LoadBalancerConfiguration loadBalancerConfiguration;
+  private final long lastSeenIntervalMillis;
+  private final boolean writeLastSeenToMetadata;
+
+  private PersistentNode livenessNode;
+  private long nextLastSeenWriteAt = 0;
 
   @Inject
   public AgentHeartbeatWorker(
     BaragonKnownAgentsDatastore knownAgentsDatastore,
     BaragonAgentMetadata baragonAgentMetadata,
-    LoadBalancerConfiguration loadBalancerConfiguration
+    LoadBalancerConfiguration loadBalancerConfiguration,
+    BaragonAgentConfiguration configuration
   ) {
     this.knownAgentsDatastore = knownAgentsDatastore;
     this.baragonAgentMetadata = baragonAgentMetadata;
     this.loadBalancerConfiguration = loadBalancerConfiguration;
+    this.lastSeenIntervalMillis =
+      TimeUnit.SECONDS.toMillis(configuration.getLastSeenIntervalSeconds());
+    this.writeLastSeenToMetadata = configuration.isWriteLastSeenToMetadata();
   }
 
-  @Override
-  public void run() {
-    knownAgentsDatastore.updateKnownAgentLastSeenAt(
+  public synchronized void register() {
+    boolean written = knownAgentsDatastore.addKnownAgentIfChanged(
       loadBalancerConfiguration.getName(),
-      baragonAgentMetadata.getAgentId(),
-      System.currentTimeMillis()
+      BaragonKnownAgentMetadata.fromAgentMetadata(
+        baragonAgentMetadata,
+        System.currentTimeMillis()
+      )
     );
+    if (!written) {
+      LOG.info("Known-agents metadata is unchanged, not rewriting it");
+    }
+
+    if (livenessNode == null) {
+      livenessNode =
+        knownAgentsDatastore.createLivenessNode(
+          loadBalancerConfiguration.getName(),
+          baragonAgentMetadata.getAgentId()
+        );
+      livenessNode.start();
+    }
+  }
+
+  @Override
+  public void run() {
+    heartbeat(System.currentTimeMillis());
+  }
+
+  synchronized void heartbeat(long now) {
+    if (now < nextLastSeenWriteAt) {
+      return;
+    }
+    if (writeLastSeenToMetadata) {
+      knownAgentsDatastore.addKnownAgent(
+        loadBalancerConfiguration.getName(),
+        BaragonKnownAgentMetadata.fromAgentMetadata(baragonAgentMetadata, now)
+      );
+    } else {
+      knownAgentsDatastore.updateKnownAgentLastSeenAt(
+        loadBalancerConfiguration.getName(),
+        baragonAgentMetadata.getAgentId(),
+        now
+      );
+    }
+    nextLastSeenWriteAt = now + lastSeenIntervalMillis;
+  }
+
+  public synchronized void stop() {
+    if (livenessNode != null) {
+      try {
+        livenessNode.close();
+      } catch (IOException e) {
+        LOG.warn("Could not remove liveness node", e);
+      }
+      livenessNode = null;
+    }
   }
 }
@@ -1,16 +1,24 @@
 package com.hubspot.baragon.agent;
 
+import com.github.jknack.handlebars.Context;
+import com.github.jknack.handlebars.Handlebars;
+import com.github.jknack.handlebars.Template;
 import com.google.common.base.Optional;
 import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
 import com.hubspot.baragon.agent.handlebars.PreferSameRackWeightingHelper;
+import com.hubspot.baragon.agent.handlebars.RackMethodsHelper;
 import com.hubspot.baragon.models.BaragonAgentEc2Metadata;
 import com.hubspot.baragon.models.BaragonAgentMetadata;
 import com.hubspot.baragon.models.UpstreamInfo;
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.stream.Collectors;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -540,4 +548,72 @@ public class PreferSameRackWeightingBalancedTest {
       results
     );
   }
+
+  @Test
+  public void testRenderingLargeServiceMatchesPerUpstreamWeighting() throws Exception {
+    final List<String> racks = Arrays.asList(
+      "us-east-1a",
+      "us-east-1b",
+      "us-east-1c",
+      "us-east-1d",
+      "us-east-1e"
+    );
+    final Random random = new Random(10000);
+    final List<UpstreamInfo> upstreams = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      upstreams.add(
+        new UpstreamInfo(
+          String.format("testhost%d:8080", i),
+          Optional.absent(),
+          Optional.of(racks.get(random.nextInt(random.nextBoolean() ? 2 : racks.size())))
+        )
+      );
+    }
+    final BaragonAgentMetadata agentMetadata = generateBaragonAgentMetadata("us-east-1e");
+    final PreferSameRackWeightingHelper helper = new PreferSameRackWeightingHelper(
+      CONFIGURATION,
+      agentMetadata
+    );
+
+    // Weights computed with the original list based rack math, once per distinct rack
+    final RackMethodsHelper rackHelper = new RackMethodsHelper();
+    final List<String> allRacks = rackHelper.generateAllRacks(upstreams);
+    final BigDecimal capacity = rackHelper.calculateCapacity(allRacks);
+    final BigDecimal multiplier = rackHelper.calculateMultiplier(allRacks);
+    final BigDecimal totalPendingLoad = rackHelper.getTotalPendingLoad(allRacks);
+    final Map<String, String> expectedByRack = new HashMap<>();
+    for (String rack : racks) {
+      expectedByRack.put(
+        rack,
+        helper
+          .preferSameRackWeightingOperation(
+            upstreams,
+            new UpstreamInfo("testhost:8080", Optional.absent(), Optional.of(rack)),
+            allRacks,
+            capacity,
+            multiplier,
+            totalPendingLoad,
+            null
+          )
+          .toString()
+      );
+    }
+    final StringBuilder expected = new StringBuilder();
+    for (UpstreamInfo upstream : upstreams) {
+      expected.append(expectedByRack.get(upstream.getRackId().get())).append('\n');
+    }
+
+    final Handlebars handlebars = new Handlebars();
+    handlebars.registerHelpers(helper);
+    final Template template = handlebars.compileInline(
+      "{{#each upstreams}}{{preferSameRackWeighting ../upstreams this}}\n{{/each}}"
+    );
+
+    final String rendered = template.apply(
+      Context.newBuilder(Collections.singletonMap("upstreams", upstreams)).build()
+    );
+
+    Assertions.assertTrue(expected.toString().contains("weight="));
+    Assertions.assertEquals(expected.toString(), rendered);
+  }
 }
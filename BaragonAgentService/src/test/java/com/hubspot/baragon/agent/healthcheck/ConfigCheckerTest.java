@@ -0,0 +1,142 @@
+package com.hubspot.baragon.agent.healthcheck;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.agent.lbs.LocalLbAdapter;
+import com.hubspot.baragon.exceptions.InvalidConfigException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ConfigCheckerTest {
+  private static final long MAX_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(900);
+
+  private final MetricRegistry metricRegistry = new MetricRegistry();
+  private final AtomicReference<Optional<String>> errorMessage = new AtomicReference<>(
+    Optional.absent()
+  );
+
+  private Path root;
+  private StubLbAdapter adapter;
+  private ConfigChecker checker;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    root = Files.createTempDirectory("baragon-config-check");
+    Files.createDirectory(root.resolve("proxy"));
+    for (int i = 0; i < 100; i++) {
+      write(root.resolve(String.format("proxy/service-%d.conf", i)), "location / {}\n");
+    }
+
+    LoadBalancerConfiguration loadBalancerConfiguration = new LoadBalancerConfiguration();
+    loadBalancerConfiguration.setName("test");
+    loadBalancerConfiguration.setRootPath(root.toString());
+    BaragonAgentConfiguration configuration = new BaragonAgentConfiguration();
+    configuration.setLoadBalancerConfiguration(loadBalancerConfiguration);
+
+    adapter = new StubLbAdapter(loadBalancerConfiguration, metricRegistry);
+    checker = new ConfigChecker(adapter, configuration, metricRegistry, errorMessage);
+  }
+
+  @AfterEach
+  public void cleanup() throws IOException {
+    try (Stream<Path> walk = Files.walk(root)) {
+      walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Test
+  public void itSkipsTheCheckWhileTheConfigTreeIsUnchanged() throws IOException {
+    checker.check(0);
+    checker.check(60000);
+    checker.check(120000);
+    Assertions.assertEquals(1, adapter.checks);
+
+    write(root.resolve("proxy/service-7.conf"), "location /changed {}\n");
+    checker.check(180000);
+    Assertions.assertEquals(2, adapter.checks);
+
+    Files.delete(root.resolve("proxy/service-8.conf"));
+    checker.check(240000);
+    Assertions.assertEquals(3, adapter.checks);
+
+    checker.check(300000);
+    Assertions.assertEquals(3, adapter.checks);
+    Assertions.assertEquals(3, executed());
+    Assertions.assertEquals(3, skipped());
+  }
+
+  @Test
+  public void itStillChecksAfterTheMaxInterval() {
+    checker.check(0);
+    checker.check(MAX_INTERVAL_MILLIS - 1);
+    Assertions.assertEquals(1, adapter.checks);
+
+    checker.check(MAX_INTERVAL_MILLIS);
+    Assertions.assertEquals(2, adapter.checks);
+  }
+
+  @Test
+  public void itKeepsCheckingWhileTheCheckFails() {
+    adapter.failure = Optional.of("nginx: [emerg] unexpected \"}\"");
+    checker.check(0);
+    checker.check(60000);
+    Assertions.assertEquals(2, adapter.checks);
+    Assertions.assertEquals(adapter.failure, errorMessage.get());
+
+    adapter.failure = Optional.absent();
+    checker.check(120000);
+    checker.check(180000);
+    Assertions.assertEquals(3, adapter.checks);
+    Assertions.assertFalse(errorMessage.get().isPresent());
+    Assertions.assertEquals(3, executed());
+    Assertions.assertEquals(1, skipped());
+  }
+
+  private long executed() {
+    return metricRegistry
+      .counter(MetricRegistry.name(ConfigChecker.class, "executed"))
+      .getCount();
+  }
+
+  private long skipped() {
+    return metricRegistry
+      .counter(MetricRegistry.name(ConfigChecker.class, "skipped"))
+      .getCount();
+  }
+
+  private static void write(Path path, String contents) throws IOException {
+    Files.write(path, contents.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static class StubLbAdapter extends LocalLbAdapter {
+    private int checks = 0;
+    private Optional<String> failure = Optional.absent();
+
+    private StubLbAdapter(
+      LoadBalancerConfiguration loadBalancerConfiguration,
+      MetricRegistry metricRegistry
+    ) {
+      super(loadBalancerConfiguration, metricRegistry);
+    }
+
+    @Override
+    public void checkConfigs() throws InvalidConfigException {
+      checks++;
+      if (failure.isPresent()) {
+        throw new InvalidConfigException(failure.get());
+      }
+    }
+  }
+}
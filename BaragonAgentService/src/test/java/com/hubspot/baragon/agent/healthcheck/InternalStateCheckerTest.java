@@ -0,0 +1,306 @@
+package com.hubspot.baragon.agent.healthcheck;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.guava.GuavaModule;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.google.common.base.Optional;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
+import com.hubspot.baragon.agent.lbs.LbConfigGenerator;
+import com.hubspot.baragon.agent.lbs.LocalLbAdapter;
+import com.hubspot.baragon.agent.models.InternalStateCache;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.data.BaragonRequestDatastore;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.BasicServiceContext;
+import com.hubspot.baragon.models.QueuedRequestId;
+import com.hubspot.baragon.models.UpstreamInfo;
+import com.hubspot.baragon.utils.ZkParallelFetcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class InternalStateCheckerTest {
+  private static final int SERVICE_COUNT = 200;
+  private static final String GROUP = "test";
+
+  private final ObjectMapper objectMapper = new ObjectMapper()
+    .registerModule(new GuavaModule())
+    .registerModule(new Jdk8Module());
+  private final AtomicInteger serviceReads = new AtomicInteger();
+  private final AtomicInteger queueReads = new AtomicInteger();
+  private final Map<String, BasicServiceContext> internalStateCache = new InternalStateCache();
+  private final Set<String> stateErrors = ConcurrentHashMap.newKeySet();
+
+  private TestingServer server;
+  private CuratorFramework curator;
+  private ScheduledExecutorService executorService;
+  private WatchedServiceStateView stateView;
+  private InternalStateChecker checker;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    server = new TestingServer();
+    curator =
+      CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(100));
+    curator.start();
+    executorService = Executors.newSingleThreadScheduledExecutor();
+
+    ZooKeeperConfiguration zooKeeperConfiguration = new ZooKeeperConfiguration();
+    zooKeeperConfiguration.setQuorum(server.getConnectString());
+    BaragonStateDatastore stateDatastore = new BaragonStateDatastore(
+      curator,
+      objectMapper,
+      new ZkParallelFetcher(curator),
+      zooKeeperConfiguration
+    ) {
+
+      @Override
+      public Optional<BaragonServiceState> getServiceStateAndWatch(
+        String serviceId,
+        Watcher watcher,
+        Stat stat
+      ) {
+        serviceReads.incrementAndGet();
+        return super.getServiceStateAndWatch(serviceId, watcher, stat);
+      }
+    };
+    BaragonRequestDatastore requestDatastore = new BaragonRequestDatastore(
+      curator,
+      objectMapper,
+      zooKeeperConfiguration
+    ) {
+
+      @Override
+      public List<QueuedRequestId> getQueuedRequestIds() {
+        queueReads.incrementAndGet();
+        return super.getQueuedRequestIds();
+      }
+    };
+
+    LoadBalancerConfiguration loadBalancerConfiguration = new LoadBalancerConfiguration();
+    loadBalancerConfiguration.setName(GROUP);
+    BaragonAgentConfiguration configuration = new BaragonAgentConfiguration();
+    configuration.setLoadBalancerConfiguration(loadBalancerConfiguration);
+    ReentrantLock agentLock = new ReentrantLock();
+    FilesystemConfigHelper configHelper = new FilesystemConfigHelper(
+      new LbConfigGenerator(loadBalancerConfiguration, null, Collections.emptyMap()),
+      new LocalLbAdapter(loadBalancerConfiguration, new MetricRegistry()),
+      configuration,
+      agentLock,
+      5000
+    );
+
+    stateView = new WatchedServiceStateView(stateDatastore);
+    checker =
+      new InternalStateChecker(
+        requestDatastore,
+        loadBalancerConfiguration,
+        configuration,
+        objectMapper,
+        configHelper,
+        stateView,
+        agentLock,
+        internalStateCache,
+        stateErrors,
+        executorService
+      );
+
+    List<BasicServiceContext> contexts = new ArrayList<>(SERVICE_COUNT);
+    for (int i = 0; i < SERVICE_COUNT; i++) {
+      contexts.add(context(String.format("service-%d", i), 2, 0L));
+    }
+    curator.create().forPath("/state");
+    CuratorTransaction transaction = curator.inTransaction();
+    for (BasicServiceContext context : contexts) {
+      transaction = create(transaction, context);
+    }
+    ((CuratorTransactionFinal) transaction).commit();
+    contexts.forEach(
+      context -> internalStateCache.put(context.getService().getServiceId(), context)
+    );
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    executorService.shutdownNow();
+    curator.close();
+    server.close();
+  }
+
+  @Test
+  public void itOnlyReadsServicesThatChanged() throws Exception {
+    int coldOps = runPass();
+    Assertions.assertEquals(2 * SERVICE_COUNT, coldOps);
+    Assertions.assertTrue(stateErrors.isEmpty());
+
+    int unchangedOps = runPass();
+    Assertions.assertEquals(0, unchangedOps);
+
+    // The agent applies a request for a few services, ZooKeeper and the cache both move on
+    List<String> changed = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      String serviceId = String.format("service-%d", i * 17);
+      BasicServiceContext updated = context(serviceId, 3, 0L);
+      curator
+        .create()
+        .forPath(
+          String.format("/state/%s/%s", serviceId, upstream(serviceId, 2).toPath())
+        );
+      internalStateCache.put(serviceId, updated);
+      changed.add(serviceId);
+    }
+    awaitWatches(changed);
+
+    int changedOps = runPass();
+    Assertions.assertEquals(2 * changed.size(), changedOps);
+    Assertions.assertTrue(stateErrors.isEmpty());
+    Assertions.assertEquals(0, queueReads.get());
+  }
+
+  @Test
+  public void itReportsServicesRemovedFromTheDatastore() throws Exception {
+    runPass();
+    curator.delete().deletingChildrenIfNeeded().forPath("/state/service-3");
+    awaitWatches(Collections.singletonList("service-3"));
+
+    Assertions.assertEquals(2, runPass());
+    Assertions.assertEquals(
+      Collections.singleton(
+        "service-3 no longer exists in state datastore, but exists in agent"
+      ),
+      stateErrors
+    );
+
+    internalStateCache.remove("service-3");
+    Assertions.assertEquals(0, runPass());
+    Assertions.assertTrue(stateErrors.isEmpty());
+    Assertions.assertFalse(stateView.getVersion("service-3").isPresent());
+  }
+
+  @Test
+  public void itFixesAServiceThatDriftedFromTheDatastore() throws Exception {
+    runPass();
+    // ZooKeeper gained an upstream that the agent never applied
+    curator
+      .create()
+      .forPath(String.format("/state/service-5/%s", upstream("service-5", 2).toPath()));
+    awaitWatches(Collections.singletonList("service-5"));
+
+    Assertions.assertEquals(2, runPass());
+    Assertions.assertTrue(stateErrors.isEmpty());
+    Assertions.assertEquals(1, queueReads.get());
+    Assertions.assertEquals(3, internalStateCache.get("service-5").getUpstreams().size());
+
+    // The fixed service now matches, so the next pass has nothing to fix
+    runPass();
+    Assertions.assertTrue(stateErrors.isEmpty());
+    Assertions.assertEquals(1, queueReads.get());
+  }
+
+  @Test
+  public void itLeavesRecentlyChangedServicesAloneDuringTheGracePeriod()
+    throws Exception {
+    runPass();
+    // The agent applied a request whose upstream has not reached ZooKeeper yet
+    internalStateCache.put(
+      "service-5",
+      context("service-5", 3, System.currentTimeMillis())
+    );
+
+    Assertions.assertEquals(2, runPass());
+    Assertions.assertTrue(stateErrors.isEmpty());
+    Assertions.assertEquals(0, queueReads.get());
+    Assertions.assertEquals(3, internalStateCache.get("service-5").getUpstreams().size());
+  }
+
+  private int runPass() {
+    int before = serviceReads.get();
+    checker.run();
+    return 2 * (serviceReads.get() - before);
+  }
+
+  private void awaitWatches(List<String> serviceIds) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (serviceIds.stream().anyMatch(id -> stateView.getVersion(id).isPresent())) {
+      Assertions.assertTrue(
+        System.currentTimeMillis() < deadline,
+        "Watches did not fire in time"
+      );
+      Thread.sleep(10);
+    }
+  }
+
+  private CuratorTransactionFinal create(
+    CuratorTransaction transaction,
+    BasicServiceContext context
+  )
+    throws Exception {
+    String servicePath = String.format("/state/%s", context.getService().getServiceId());
+    CuratorTransactionFinal result = transaction
+      .create()
+      .forPath(servicePath, objectMapper.writeValueAsBytes(context.getService()))
+      .and();
+    for (UpstreamInfo upstream : context.getUpstreams()) {
+      result =
+        result
+          .create()
+          .forPath(String.format("%s/%s", servicePath, upstream.toPath()))
+          .and();
+    }
+    return result;
+  }
+
+  private static BasicServiceContext context(
+    String serviceId,
+    int upstreamCount,
+    long timestamp
+  ) {
+    List<UpstreamInfo> upstreams = new ArrayList<>();
+    for (int i = 0; i < upstreamCount; i++) {
+      upstreams.add(upstream(serviceId, i));
+    }
+    return new BasicServiceContext(
+      new BaragonService(
+        serviceId,
+        Collections.emptyList(),
+        "/" + serviceId,
+        Collections.singleton(GROUP),
+        Collections.emptyMap()
+      ),
+      upstreams,
+      timestamp
+    );
+  }
+
+  private static UpstreamInfo upstream(String serviceId, int index) {
+    return new UpstreamInfo(
+      String.format("%s-host%d:8080", serviceId, index),
+      Optional.of("request"),
+      Optional.absent()
+    );
+  }
+}
@@ -0,0 +1,123 @@
+package com.hubspot.baragon.agent.listeners;
+
+import com.codahale.metrics.MetricRegistry;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.agent.config.WatchedDirectoryConfig;
+import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
+import com.hubspot.baragon.agent.lbs.LbConfigGenerator;
+import com.hubspot.baragon.agent.lbs.LocalLbAdapter;
+import com.hubspot.baragon.agent.listeners.DirectoryChangesListener.DirectorySyncResult;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DirectoryChangesListenerTest {
+  private static final int FILE_COUNT = 200;
+
+  private Path root;
+  private Path source;
+  private Path destination;
+  private WatchedDirectoryConfig config;
+  private DirectoryChangesListener listener;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    root = Files.createTempDirectory("baragon-watched");
+    source = Files.createDirectory(root.resolve("source"));
+    destination = Files.createDirectory(root.resolve("destination"));
+
+    config = new WatchedDirectoryConfig();
+    config.setSource(source.toString());
+    config.setDestination(destination.toString());
+
+    LoadBalancerConfiguration loadBalancerConfiguration = new LoadBalancerConfiguration();
+    loadBalancerConfiguration.setName("test");
+    loadBalancerConfiguration.setRootPath(root.toString());
+    loadBalancerConfiguration.setCheckConfigCommand("true");
+    loadBalancerConfiguration.setReloadConfigCommand("true");
+
+    BaragonAgentConfiguration configuration = new BaragonAgentConfiguration();
+    configuration.setLoadBalancerConfiguration(loadBalancerConfiguration);
+    configuration.setWatchedDirectories(Collections.singletonList(config));
+
+    ReentrantLock agentLock = new ReentrantLock();
+    FilesystemConfigHelper configHelper = new FilesystemConfigHelper(
+      new LbConfigGenerator(loadBalancerConfiguration, null, Collections.emptyMap()),
+      new LocalLbAdapter(loadBalancerConfiguration, new MetricRegistry()),
+      configuration,
+      agentLock,
+      5000
+    );
+    listener = new DirectoryChangesListener(configuration, configHelper, agentLock);
+
+    for (int i = 0; i < FILE_COUNT; i++) {
+      write(source.resolve(String.format("file-%d.conf", i)), "server " + i + ";\n");
+    }
+  }
+
+  @AfterEach
+  public void cleanup() throws IOException {
+    listener.stop();
+    try (Stream<Path> walk = Files.walk(root)) {
+      walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Test
+  public void itOnlyCopiesTheChangedFile() throws Exception {
+    DirectorySyncResult initial = listener.handleFileChangeForDirectory(config);
+    Assertions.assertEquals(FILE_COUNT, initial.getFilesCopied());
+
+    String updated = "server updated;\n";
+    write(source.resolve("file-42.conf"), updated);
+    DirectorySyncResult result = listener.handleFileChangeForDirectory(config);
+
+    Assertions.assertEquals(1, result.getFilesCopied());
+    Assertions.assertEquals(0, result.getFilesRemoved());
+    Assertions.assertEquals(updated.length(), result.getBytesCopied());
+    Assertions.assertEquals(updated, read(destination.resolve("file-42.conf")));
+
+    Assertions.assertEquals(
+      0,
+      listener.handleFileChangeForDirectory(config).getFilesCopied()
+    );
+  }
+
+  @Test
+  public void itRemovesDeletedFilesAndSkipsMatchingDestinationFiles() throws Exception {
+    for (int i = 0; i < FILE_COUNT; i++) {
+      String name = String.format("file-%d.conf", i);
+      Files.copy(source.resolve(name), destination.resolve(name));
+    }
+    write(destination.resolve("stale.conf"), "stale");
+
+    DirectorySyncResult initial = listener.handleFileChangeForDirectory(config);
+    Assertions.assertEquals(0, initial.getFilesCopied());
+    Assertions.assertEquals(1, initial.getFilesRemoved());
+    Assertions.assertFalse(Files.exists(destination.resolve("stale.conf")));
+
+    Files.delete(source.resolve("file-7.conf"));
+    DirectorySyncResult result = listener.handleFileChangeForDirectory(config);
+    Assertions.assertEquals(0, result.getFilesCopied());
+    Assertions.assertEquals(1, result.getFilesRemoved());
+    Assertions.assertFalse(Files.exists(destination.resolve("file-7.conf")));
+  }
+
+  private static void write(Path path, String contents) throws IOException {
+    Files.write(path, contents.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String read(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+  }
+}
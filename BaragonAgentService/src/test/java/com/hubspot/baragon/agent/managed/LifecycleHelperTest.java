@@ -0,0 +1,499 @@
+package com.hubspot.baragon.agent.managed;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.guava.GuavaModule;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.google.common.base.Optional;
+import com.google.common.net.HttpHeaders;
+import com.hubspot.baragon.agent.ServerProvider;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
+import com.hubspot.baragon.agent.managers.StateSnapshotManager;
+import com.hubspot.baragon.agent.models.AgentStateSnapshot;
+import com.hubspot.baragon.data.BaragonAuthDatastore;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.data.BaragonWorkerDatastore;
+import com.hubspot.baragon.models.BaragonAgentState;
+import com.hubspot.baragon.models.BaragonAuthKey;
+import com.hubspot.baragon.models.BaragonConfigFile;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BaragonServiceState;
+import com.hubspot.baragon.models.BasicServiceContext;
+import com.hubspot.baragon.models.ServiceContext;
+import com.hubspot.baragon.models.UpstreamInfo;
+import com.hubspot.horizon.HttpConfig;
+import com.hubspot.horizon.ning.NingHttpClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class LifecycleHelperTest {
+  private static final int SERVICE_COUNT = 200;
+  private static final int SERVICES_ON_AGENT = 20;
+  private static final int REAPPLIES = 3;
+  private static final String GROUP = "test";
+
+  private final ObjectMapper objectMapper = new ObjectMapper()
+    .registerModule(new GuavaModule())
+    .registerModule(new Jdk8Module());
+  private final AtomicInteger stateVersion = new AtomicInteger(3);
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicInteger fullResponses = new AtomicInteger();
+  private final AtomicInteger notModifiedResponses = new AtomicInteger();
+  private final AtomicInteger rendered = new AtomicInteger();
+  private final AtomicInteger reloads = new AtomicInteger();
+  private final AtomicInteger removed = new AtomicInteger();
+  private final AtomicInteger configChecks = new AtomicInteger();
+  private final Map<String, BasicServiceContext> internalStateCache = new ConcurrentHashMap<>();
+
+  private volatile Optional<AgentStateSnapshot> snapshot = Optional.absent();
+
+  private volatile boolean honourIfNoneMatch = true;
+  private volatile boolean configsValid = true;
+  private byte[] uncompressedState;
+  private byte[] gzippedState;
+  private HttpServer service;
+  private NingHttpClient httpClient;
+  private ScheduledExecutorService executorService;
+  private ScheduledExecutorService reconcileExecutor;
+  private LifecycleHelper lifecycleHelper;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    List<BaragonServiceState> state = new ArrayList<>(SERVICE_COUNT);
+    for (int i = 0; i < SERVICE_COUNT; i++) {
+      state.add(serviceState(i));
+    }
+    uncompressedState = objectMapper.writeValueAsBytes(state);
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+      out.write(uncompressedState);
+    }
+    gzippedState = gzipped.toByteArray();
+
+    // Answers like BaragonService's StateResource
+    service = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    service.createContext("/baragon/v2/state", this::handleState);
+    service.start();
+    String baseUri = String.format(
+      "http://127.0.0.1:%d/baragon/v2",
+      service.getAddress().getPort()
+    );
+
+    LoadBalancerConfiguration loadBalancerConfiguration = new LoadBalancerConfiguration();
+    loadBalancerConfiguration.setName(GROUP);
+    BaragonAgentConfiguration configuration = new BaragonAgentConfiguration();
+    configuration.setLoadBalancerConfiguration(loadBalancerConfiguration);
+    ReentrantLock agentLock = new ReentrantLock();
+
+    BaragonWorkerDatastore workerDatastore = new BaragonWorkerDatastore(
+      null,
+      null,
+      null
+    ) {
+
+      @Override
+      public Collection<String> getBaseUris() {
+        return Collections.singletonList(baseUri);
+      }
+    };
+    BaragonAuthDatastore authDatastore = new BaragonAuthDatastore(null, null, null) {
+
+      @Override
+      public Map<String, BaragonAuthKey> getAuthKeyMap() {
+        return Collections.emptyMap();
+      }
+    };
+    BaragonStateDatastore stateDatastore = new BaragonStateDatastore(
+      null,
+      null,
+      null,
+      null
+    ) {
+
+      @Override
+      public Collection<String> getServices() {
+        return Collections.singletonList("service-0");
+      }
+
+      @Override
+      public Optional<Integer> getStateVersion() {
+        return Optional.of(stateVersion.get());
+      }
+    };
+    // Every service's configs already match what is on disk, as they do when re-applying an unchanged state
+    FilesystemConfigHelper configHelper = new FilesystemConfigHelper(
+      null,
+      null,
+      configuration,
+      agentLock,
+      5000
+    ) {
+
+      @Override
+      public Optional<Collection<BaragonConfigFile>> configsToApply(
+        ServiceContext context
+      ) {
+        rendered.incrementAndGet();
+        return Optional.absent();
+      }
+
+      @Override
+      public void bootstrapApplyCheck(
+        List<Pair<ServiceContext, Collection<BaragonConfigFile>>> toApply
+      ) {
+        configChecks.incrementAndGet();
+        if (!configsValid) {
+          throw new IllegalStateException("nginx: configuration file test failed");
+        }
+      }
+
+      @Override
+      public void reloadConfigs() {
+        reloads.incrementAndGet();
+      }
+
+      @Override
+      public void remove(BaragonService service) {
+        removed.incrementAndGet();
+      }
+    };
+    StateSnapshotManager stateSnapshotManager = new StateSnapshotManager(
+      configuration,
+      null,
+      null,
+      null,
+      null,
+      agentLock,
+      5000,
+      internalStateCache
+    ) {
+
+      @Override
+      public Optional<AgentStateSnapshot> loadValidSnapshot() {
+        return snapshot;
+      }
+    };
+
+    httpClient =
+      new NingHttpClient(HttpConfig.newBuilder().setObjectMapper(objectMapper).build());
+    executorService = Executors.newSingleThreadScheduledExecutor();
+    reconcileExecutor = Executors.newSingleThreadScheduledExecutor();
+    lifecycleHelper =
+      new LifecycleHelper(
+        workerDatastore,
+        authDatastore,
+        configuration,
+        null,
+        configHelper,
+        stateDatastore,
+        new ServerProvider(),
+        new AtomicReference<>(BaragonAgentState.ACCEPTING),
+        httpClient,
+        executorService,
+        reconcileExecutor,
+        null,
+        agentLock,
+        5000,
+        internalStateCache,
+        stateSnapshotManager
+      );
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    executorService.shutdownNow();
+    reconcileExecutor.shutdownNow();
+    httpClient.close();
+    service.stop(0);
+  }
+
+  @Test
+  public void itSkipsReapplyingAnUnchangedState() throws Exception {
+    // Previous behaviour: every re-apply downloads and renders the whole state
+    honourIfNoneMatch = false;
+    lifecycleHelper.applyCurrentConfigs();
+    Result unconditional = reapply();
+    Assertions.assertEquals(REAPPLIES, unconditional.fullResponses);
+    Assertions.assertEquals(REAPPLIES * SERVICES_ON_AGENT, unconditional.rendered);
+    Assertions.assertEquals((long) REAPPLIES * gzippedState.length, unconditional.bytes);
+
+    honourIfNoneMatch = true;
+    Result conditional = reapply();
+    Assertions.assertEquals(0, conditional.fullResponses);
+    Assertions.assertEquals(REAPPLIES, conditional.notModifiedResponses);
+    Assertions.assertEquals(0, conditional.rendered);
+    Assertions.assertEquals(0, conditional.reloads);
+    Assertions.assertEquals(0, conditional.bytes);
+  }
+
+  @Test
+  public void itAppliesAgainOnceTheStateChanges() throws Exception {
+    lifecycleHelper.applyCurrentConfigs();
+    Assertions.assertEquals(1, fullResponses.get());
+    Assertions.assertEquals(gzippedState.length, bytesSent.get());
+
+    lifecycleHelper.applyCurrentConfigs();
+    Assertions.assertEquals(1, fullResponses.get());
+    Assertions.assertEquals(1, notModifiedResponses.get());
+    Assertions.assertEquals(SERVICES_ON_AGENT, rendered.get());
+
+    stateVersion.incrementAndGet();
+    lifecycleHelper.applyCurrentConfigs();
+    Assertions.assertEquals(2, fullResponses.get());
+    Assertions.assertEquals(2 * SERVICES_ON_AGENT, rendered.get());
+
+    lifecycleHelper.applyCurrentConfigs();
+    Assertions.assertEquals(2, fullResponses.get());
+    Assertions.assertEquals(2, notModifiedResponses.get());
+  }
+
+  @Test
+  public void itAppliesTheFullStateWithoutASnapshot() throws Exception {
+    lifecycleHelper.applyStartupConfigs();
+    Assertions.assertEquals(1, fullResponses.get());
+    Assertions.assertEquals(SERVICES_ON_AGENT, rendered.get());
+  }
+
+  @Test
+  public void itStartsFromAnUpToDateSnapshotWithoutFetchingTheState() throws Exception {
+    snapshot = Optional.of(snapshot(stateVersion.get(), serviceContext(0)));
+    lifecycleHelper.applyStartupConfigs();
+    awaitBackgroundWork();
+
+    Assertions.assertEquals(0, fullResponses.get());
+    Assertions.assertEquals(0, rendered.get());
+    Assertions.assertEquals(1, configChecks.get());
+    Assertions.assertEquals(
+      Collections.singleton("service-0"),
+      internalStateCache.keySet()
+    );
+  }
+
+  @Test
+  public void itAppliesTheFullStateWhenTheSnapshotConfigsFailTheCheck() throws Exception {
+    snapshot = Optional.of(snapshot(stateVersion.get(), serviceContext(0)));
+    configsValid = false;
+    lifecycleHelper.applyStartupConfigs();
+
+    Assertions.assertEquals(1, fullResponses.get());
+    Assertions.assertEquals(SERVICES_ON_AGENT, rendered.get());
+    Assertions.assertTrue(internalStateCache.isEmpty());
+  }
+
+  @Test
+  public void itReconcilesWhileTheSharedExecutorIsBusy() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    executorService.submit(
+      () -> {
+        release.await();
+        return null;
+      }
+    );
+    try {
+      snapshot = Optional.of(snapshot(stateVersion.get() - 1, serviceContext(0)));
+      lifecycleHelper.applyStartupConfigs();
+      awaitBackgroundWork();
+
+      Assertions.assertEquals(1, fullResponses.get());
+      Assertions.assertEquals(SERVICES_ON_AGENT, internalStateCache.size());
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void itReconcilesAStaleSnapshotInTheBackground() throws Exception {
+    snapshot =
+      Optional.of(
+        snapshot(
+          stateVersion.get() - 1,
+          serviceContext(0),
+          new BasicServiceContext(
+            serviceState(SERVICE_COUNT).getService(),
+            Collections.emptyList(),
+            0L
+          )
+        )
+      );
+    lifecycleHelper.applyStartupConfigs();
+    Assertions.assertTrue(internalStateCache.containsKey("service-0"));
+    awaitBackgroundWork();
+
+    // service-0 is unchanged, every other service on this agent is new and the extra one is gone
+    Assertions.assertEquals(1, fullResponses.get());
+    Assertions.assertEquals(SERVICES_ON_AGENT - 1, rendered.get());
+    Assertions.assertEquals(1, removed.get());
+    Assertions.assertEquals(1, reloads.get());
+    Assertions.assertEquals(SERVICES_ON_AGENT, internalStateCache.size());
+    Assertions.assertFalse(internalStateCache.containsKey("service-" + SERVICE_COUNT));
+
+    // The reconciled state counts as applied
+    lifecycleHelper.applyCurrentConfigs();
+    Assertions.assertEquals(1, fullResponses.get());
+    Assertions.assertEquals(1, notModifiedResponses.get());
+  }
+
+  @Test
+  public void itBacksOffBetweenReconcileAttempts() {
+    List<Long> delays = new ArrayList<>();
+    for (
+      int attempt = 1;
+      attempt < LifecycleHelper.SNAPSHOT_RECONCILE_MAX_ATTEMPTS;
+      attempt++
+    ) {
+      delays.add(LifecycleHelper.reconcileRetryDelaySeconds(attempt));
+    }
+    Assertions.assertEquals(
+      Arrays.asList(30L, 60L, 120L, 240L, 480L, 600L, 600L),
+      delays
+    );
+  }
+
+  private void awaitBackgroundWork() throws Exception {
+    // The executor is single threaded, so this runs after anything submitted before it
+    reconcileExecutor.submit(() -> {}).get(30, TimeUnit.SECONDS);
+  }
+
+  private static AgentStateSnapshot snapshot(
+    int stateVersion,
+    BasicServiceContext... services
+  ) {
+    return new AgentStateSnapshot(
+      AgentStateSnapshot.CURRENT_FORMAT_VERSION,
+      Optional.of(stateVersion),
+      0L,
+      "fingerprint",
+      Arrays.asList(services),
+      Collections.emptyMap()
+    );
+  }
+
+  private static BasicServiceContext serviceContext(int index) {
+    BaragonServiceState serviceState = serviceState(index);
+    return new BasicServiceContext(
+      serviceState.getService(),
+      serviceState.getUpstreams(),
+      0L
+    );
+  }
+
+  private Result reapply() throws Exception {
+    long bytesBefore = bytesSent.get();
+    int fullBefore = fullResponses.get();
+    int notModifiedBefore = notModifiedResponses.get();
+    int renderedBefore = rendered.get();
+    int reloadsBefore = reloads.get();
+    for (int i = 0; i < REAPPLIES; i++) {
+      lifecycleHelper.applyCurrentConfigs();
+    }
+    return new Result(
+      bytesSent.get() - bytesBefore,
+      fullResponses.get() - fullBefore,
+      notModifiedResponses.get() - notModifiedBefore,
+      rendered.get() - renderedBefore,
+      reloads.get() - reloadsBefore
+    );
+  }
+
+  private void handleState(HttpExchange exchange) throws IOException {
+    String version = Integer.toString(stateVersion.get());
+    String ifNoneMatch = exchange.getRequestHeaders().getFirst(HttpHeaders.IF_NONE_MATCH);
+    exchange.getResponseHeaders().add(HttpHeaders.ETAG, version);
+    if (honourIfNoneMatch && version.equals(ifNoneMatch)) {
+      notModifiedResponses.incrementAndGet();
+      exchange.sendResponseHeaders(304, -1);
+      exchange.close();
+      return;
+    }
+
+    String acceptEncoding = exchange
+      .getRequestHeaders()
+      .getFirst(HttpHeaders.ACCEPT_ENCODING);
+    byte[] body;
+    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+      exchange.getResponseHeaders().add(HttpHeaders.CONTENT_ENCODING, "gzip");
+      body = gzippedState;
+    } else {
+      body = uncompressedState;
+    }
+    exchange.getResponseHeaders().add(HttpHeaders.CONTENT_TYPE, "application/json");
+    fullResponses.incrementAndGet();
+    bytesSent.addAndGet(body.length);
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static BaragonServiceState serviceState(int index) {
+    String serviceId = String.format("service-%d", index);
+    List<UpstreamInfo> upstreams = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      upstreams.add(
+        new UpstreamInfo(
+          String.format("%s-host%d:8080", serviceId, i),
+          Optional.of("request"),
+          Optional.absent()
+        )
+      );
+    }
+    return new BaragonServiceState(
+      new BaragonService(
+        serviceId,
+        Collections.singletonList("someone@example.com"),
+        "/" + serviceId,
+        Collections.singleton(index < SERVICES_ON_AGENT ? GROUP : "other"),
+        Collections.emptyMap()
+      ),
+      upstreams
+    );
+  }
+
+  private static class Result {
+    private final long bytes;
+    private final int fullResponses;
+    private final int notModifiedResponses;
+    private final int rendered;
+    private final int reloads;
+
+    private Result(
+      long bytes,
+      int fullResponses,
+      int notModifiedResponses,
+      int rendered,
+      int reloads
+    ) {
+      this.bytes = bytes;
+      this.fullResponses = fullResponses;
+      this.notModifiedResponses = notModifiedResponses;
+      this.rendered = rendered;
+      this.reloads = reloads;
+    }
+  }
+}
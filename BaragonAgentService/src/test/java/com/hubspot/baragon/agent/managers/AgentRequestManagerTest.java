@@ -0,0 +1,280 @@
+package com.hubspot.baragon.agent.managers;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.agent.lbs.FilesystemConfigHelper;
+import com.hubspot.baragon.agent.lbs.LbConfigGenerator;
+import com.hubspot.baragon.data.BaragonRequestDatastore;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.exceptions.MissingTemplateException;
+import com.hubspot.baragon.models.AgentBatchResponseItem;
+import com.hubspot.baragon.models.AgentRequestType;
+import com.hubspot.baragon.models.BaragonAgentState;
+import com.hubspot.baragon.models.BaragonConfigFile;
+import com.hubspot.baragon.models.BaragonRequest;
+import com.hubspot.baragon.models.BaragonRequestBatchItem;
+import com.hubspot.baragon.models.BaragonRequestBuilder;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.ServiceContext;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class AgentRequestManagerTest {
+  private static final String GROUP = "test-group";
+  private static final String BROKEN_SERVICE = "broken";
+
+  private final ExecutorService batchExecutor = Executors.newFixedThreadPool(4);
+  private final Map<String, BaragonRequest> requests = new HashMap<>();
+  private final List<String> applied = Collections.synchronizedList(new ArrayList<>());
+  private AgentRequestManager requestManager;
+
+  @BeforeEach
+  public void setup() {
+    BaragonAgentConfiguration configuration = new BaragonAgentConfiguration();
+    LoadBalancerConfiguration loadBalancerConfiguration = new LoadBalancerConfiguration();
+    loadBalancerConfiguration.setName(GROUP);
+    LbConfigGenerator configGenerator = new RecordingConfigGenerator();
+    requestManager =
+      new AgentRequestManager(
+        new BaragonStateDatastore(null, null, null, null) {
+
+          @Override
+          public Optional<BaragonService> getService(String serviceId) {
+            return Optional.absent();
+          }
+
+          @Override
+          public Collection<UpstreamInfo> getUpstreams(String serviceId) {
+            return new ArrayList<>();
+          }
+        },
+        new BaragonRequestDatastore(null, null, null) {
+
+          @Override
+          public Optional<BaragonRequest> getRequest(String requestId) {
+            return Optional.fromNullable(requests.get(requestId));
+          }
+        },
+        new RecordingConfigHelper(configGenerator, configuration),
+        Optional.absent(),
+        loadBalancerConfiguration,
+        new Random(),
+        new AtomicReference<>(BaragonAgentState.ACCEPTING),
+        configuration,
+        new AtomicReference<>(),
+        1000L,
+        new ConcurrentHashMap<>(),
+        null,
+        configGenerator,
+        batchExecutor,
+        new BatchProfiler(configuration, new MetricRegistry()),
+        new BatchCachePurger(configuration, batchExecutor)
+      );
+  }
+
+  @AfterEach
+  public void teardown() {
+    batchExecutor.shutdownNow();
+  }
+
+  @Test
+  public void itAppliesRenderedItemsInBatchOrder() throws Exception {
+    addRequest("request1", "a", "host1");
+    addRequest("request2", "b", "host2");
+    addRequest("request3", "a", "host3");
+    addRequest("request4", "b", "host4");
+
+    List<AgentBatchResponseItem> responses = requestManager.processRequests(
+      batch("request1", "request2", "request3", "request4")
+    );
+
+    Assertions.assertEquals(
+      Arrays.asList("request1", "request2", "request3", "request4"),
+      responses
+        .stream()
+        .map(AgentBatchResponseItem::getRequestId)
+        .collect(Collectors.toList())
+    );
+    responses.forEach(response -> Assertions.assertEquals(200, response.getStatusCode()));
+    // Later items for a service build on the upstreams left by earlier ones, and only the last item reloads
+    Assertions.assertEquals(
+      Arrays.asList(
+        "a [host1] delayReload=true",
+        "b [host2] delayReload=true",
+        "a [host3, host1] delayReload=true",
+        "b [host4, host2] delayReload=false"
+      ),
+      applied
+    );
+  }
+
+  @Test
+  public void itFailsOnlyTheItemThatCouldNotRender() throws Exception {
+    addRequest("request1", "a", "host1");
+    addRequest("request2", BROKEN_SERVICE, "host2");
+    addRequest("request3", "a", "host3");
+
+    List<AgentBatchResponseItem> responses = requestManager.processRequests(
+      batch("request1", "request2", "missing", "request3")
+    );
+
+    Assertions.assertEquals(
+      Arrays.asList(200, 500, 404, 200),
+      responses
+        .stream()
+        .map(AgentBatchResponseItem::getStatusCode)
+        .collect(Collectors.toList())
+    );
+    Assertions.assertTrue(
+      responses.get(1).getMessage().get().contains("No template for " + BROKEN_SERVICE)
+    );
+    Assertions.assertEquals(
+      Arrays.asList("a [host1] delayReload=true", "a [host3, host1] delayReload=false"),
+      applied
+    );
+  }
+
+  @Test
+  public void itAppliesABatchReceivedTwiceOnce() throws Exception {
+    addRequest("request1", "a", "host1");
+
+    List<AgentBatchResponseItem> first = requestManager.processRequests(
+      batch("request1"),
+      Optional.of("batch-1")
+    );
+    List<AgentBatchResponseItem> copy = requestManager.processRequests(
+      batch("request1"),
+      Optional.of("batch-1")
+    );
+
+    Assertions.assertEquals(first, copy);
+    Assertions.assertEquals(
+      Collections.singletonList("a [host1] delayReload=false"),
+      applied
+    );
+  }
+
+  private void addRequest(String requestId, String serviceId, String upstream) {
+    requests.put(
+      requestId,
+      new BaragonRequestBuilder()
+        .setLoadBalancerRequestId(requestId)
+        .setLoadBalancerService(
+          new BaragonService(
+            serviceId,
+            Collections.emptyList(),
+            "/" + serviceId,
+            Collections.emptyList(),
+            ImmutableSet.of(GROUP),
+            Collections.emptyMap(),
+            Optional.absent(),
+            Collections.emptySet(),
+            Optional.absent()
+          )
+        )
+        .setAddUpstreams(
+          Collections.singletonList(
+            new UpstreamInfo(upstream, Optional.of(requestId), Optional.absent())
+          )
+        )
+        .setRemoveUpstreams(Collections.emptyList())
+        .build()
+    );
+  }
+
+  private static List<BaragonRequestBatchItem> batch(String... requestIds) {
+    return Arrays
+      .stream(requestIds)
+      .map(
+        requestId ->
+          new BaragonRequestBatchItem(
+            requestId,
+            Optional.absent(),
+            AgentRequestType.APPLY
+          )
+      )
+      .collect(Collectors.toList());
+  }
+
+  private static String describe(ServiceContext context) {
+    return String.format(
+      "%s %s",
+      context.getService().getServiceId(),
+      context
+        .getUpstreams()
+        .stream()
+        .map(UpstreamInfo::getUpstream)
+        .collect(Collectors.toList())
+    );
+  }
+
+  private static class RecordingConfigGenerator extends LbConfigGenerator {
+
+    private RecordingConfigGenerator() {
+      super(null, null, null);
+    }
+
+    @Override
+    public Collection<BaragonConfigFile> generateConfigsForProject(
+      ServiceContext context
+    )
+      throws MissingTemplateException {
+      if (context.getService().getServiceId().equals(BROKEN_SERVICE)) {
+        throw new MissingTemplateException("No template for " + BROKEN_SERVICE);
+      }
+      return Collections.singletonList(
+        new BaragonConfigFile(context.getService().getServiceId(), describe(context))
+      );
+    }
+  }
+
+  private class RecordingConfigHelper extends FilesystemConfigHelper {
+
+    private RecordingConfigHelper(
+      LbConfigGenerator configGenerator,
+      BaragonAgentConfiguration configuration
+    ) {
+      super(configGenerator, null, configuration, new ReentrantLock(), 1000L);
+    }
+
+    @Override
+    public void apply(
+      ServiceContext context,
+      Collection<BaragonConfigFile> newConfigs,
+      Optional<BaragonService> maybeOldService,
+      boolean revertOnFailure,
+      boolean noReload,
+      boolean noValidate,
+      boolean delayReload,
+      Optional<Integer> batchItemNumber
+    ) {
+      applied.add(
+        String.format(
+          "%s delayReload=%s",
+          newConfigs.iterator().next().getContent(),
+          delayReload
+        )
+      );
+    }
+  }
+}
@@ -0,0 +1,262 @@
+package com.hubspot.baragon.agent.managers;
+
+import com.google.common.base.Optional;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.models.AgentBatchResponseItem;
+import com.hubspot.baragon.models.AgentRequestType;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import javax.ws.rs.core.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class BatchCachePurgerTest {
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+  private PurgeEndpoint endpoint;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    endpoint = new PurgeEndpoint();
+  }
+
+  @AfterEach
+  public void teardown() {
+    endpoint.stop();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void itDoesNotHoldUpAppliesBehindAPurge() throws Exception {
+    BatchCachePurger purger = new BatchCachePurger(configuration(), executor);
+    List<String> services = Arrays.asList("a", "b", "c");
+
+    // Every purge is stuck until the batch is done applying
+    endpoint.released = new CountDownLatch(1);
+    BatchCachePurger.Batch batch = purger.newBatch(endpoint::purge);
+    List<AgentBatchResponseItem> responses = new ArrayList<>();
+    for (int i = 0; i < services.size(); i++) {
+      batch.purgeAfterApply("request" + i, services.get(i));
+      responses.add(applied("request" + i));
+    }
+    Assertions.assertTrue(endpoint.purged.isEmpty());
+    endpoint.released.countDown();
+    batch.addPurgeResults(responses);
+
+    Assertions.assertEquals(3, endpoint.calls.get());
+    for (int i = 0; i < services.size(); i++) {
+      Assertions.assertEquals(200, responses.get(i).getStatusCode());
+      Assertions.assertEquals(
+        Optional.of("applied; Purged cache for " + services.get(i)),
+        responses.get(i).getMessage()
+      );
+    }
+  }
+
+  @Test
+  public void itSharesQueuedPurgesAndPurgesAgainAfterOneHasStarted() throws Exception {
+    ExecutorService oneAtATime = Executors.newSingleThreadExecutor();
+    try {
+      BatchCachePurger purger = new BatchCachePurger(configuration(), oneAtATime);
+      endpoint.released = new CountDownLatch(1);
+      BatchCachePurger.Batch batch = purger.newBatch(endpoint::purge);
+
+      batch.purgeAfterApply("request1", "a");
+      waitFor(() -> endpoint.calls.get() == 1);
+      // b's purge is still queued behind a's, so request4 shares it. a's purge is already running
+      // and may have missed request3's apply, so a is purged again.
+      batch.purgeAfterApply("request2", "b");
+      batch.purgeAfterApply("request3", "a");
+      batch.purgeAfterApply("request4", "b");
+      endpoint.released.countDown();
+
+      List<AgentBatchResponseItem> responses = new ArrayList<>(
+        Arrays.asList(
+          applied("request1"),
+          applied("request2"),
+          applied("request3"),
+          applied("request4")
+        )
+      );
+      batch.addPurgeResults(responses);
+
+      Assertions.assertEquals(Arrays.asList("a", "b", "a"), endpoint.purged);
+      Assertions.assertEquals(
+        Optional.of("applied; Purged cache for a"),
+        responses.get(2).getMessage()
+      );
+    } finally {
+      oneAtATime.shutdownNow();
+    }
+  }
+
+  @Test
+  public void itRetriesFailedPurgesAndReportsWhatHappened() throws Exception {
+    BaragonAgentConfiguration configuration = configuration();
+    configuration.setPurgeCacheRetryBaseMs(10);
+    BatchCachePurger purger = new BatchCachePurger(configuration, executor);
+    endpoint.failuresBeforeSuccess.put("flaky", new AtomicInteger(2));
+    endpoint.failuresBeforeSuccess.put("broken", new AtomicInteger(Integer.MAX_VALUE));
+
+    BatchCachePurger.Batch batch = purger.newBatch(endpoint::purge);
+    batch.purgeAfterApply("request1", "flaky");
+    batch.purgeAfterApply("request2", "broken");
+    List<AgentBatchResponseItem> responses = new ArrayList<>(
+      Arrays.asList(applied("request1"), applied("request2"), applied("request3"))
+    );
+    batch.addPurgeResults(responses);
+
+    Assertions.assertEquals(6, endpoint.calls.get());
+    Assertions.assertEquals(
+      Optional.of("applied; Purged cache for flaky"),
+      responses.get(0).getMessage()
+    );
+    Assertions.assertEquals(200, responses.get(1).getStatusCode());
+    Assertions.assertEquals(
+      Optional.of(
+        "applied; Cache purge for broken failed after 3 attempt(s) with 503: unavailable"
+      ),
+      responses.get(1).getMessage()
+    );
+    Assertions.assertEquals(Optional.of("applied"), responses.get(2).getMessage());
+  }
+
+  @Test
+  public void itStopsWaitingForPurgesAfterTheTimeout() throws Exception {
+    BaragonAgentConfiguration configuration = configuration();
+    configuration.setPurgeCacheTimeoutMs(50);
+    BatchCachePurger purger = new BatchCachePurger(configuration, executor);
+
+    endpoint.released = new CountDownLatch(1);
+    try {
+      BatchCachePurger.Batch batch = purger.newBatch(endpoint::purge);
+      batch.purgeAfterApply("request1", "slow");
+      List<AgentBatchResponseItem> responses = new ArrayList<>(
+        Arrays.asList(applied("request1"))
+      );
+      batch.addPurgeResults(responses);
+
+      Assertions.assertEquals(
+        Optional.of("applied; Cache purge for slow still running after 50ms"),
+        responses.get(0).getMessage()
+      );
+    } finally {
+      endpoint.released.countDown();
+    }
+  }
+
+  private static BaragonAgentConfiguration configuration() {
+    BaragonAgentConfiguration configuration = new BaragonAgentConfiguration();
+    configuration.setPurgeCacheMaxAttempts(3);
+    configuration.setPurgeCacheTimeoutMs(10000);
+    return configuration;
+  }
+
+  private static AgentBatchResponseItem applied(String requestId) {
+    return new AgentBatchResponseItem(
+      requestId,
+      200,
+      Optional.of("applied"),
+      AgentRequestType.APPLY
+    );
+  }
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!condition.getAsBoolean()) {
+      Assertions.assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(5);
+    }
+  }
+
+  /**
+   * A load balancer purge endpoint that records the services it purged, in order. While released is
+   * held, purges wait for it before answering.
+   */
+  private static class PurgeEndpoint {
+    private final HttpServer server;
+    private final AtomicInteger calls = new AtomicInteger();
+    private final List<String> purged = new CopyOnWriteArrayList<>();
+    private final Map<String, AtomicInteger> failuresBeforeSuccess = new ConcurrentHashMap<>();
+    private volatile CountDownLatch released = new CountDownLatch(0);
+
+    PurgeEndpoint() throws IOException {
+      // Otherwise Nagle's algorithm and delayed acks add 40ms to every response
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.createContext(
+        "/purge/",
+        exchange -> {
+          calls.incrementAndGet();
+          String serviceId = exchange
+            .getRequestURI()
+            .getPath()
+            .substring("/purge/".length());
+          try {
+            released.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          AtomicInteger failures = failuresBeforeSuccess.get(serviceId);
+          boolean fail = failures != null && failures.getAndDecrement() > 0;
+          if (!fail) {
+            purged.add(serviceId);
+          }
+          byte[] body =
+            (fail ? "unavailable" : "purged").getBytes(StandardCharsets.UTF_8);
+          exchange.sendResponseHeaders(fail ? 503 : 200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        }
+      );
+      server.start();
+    }
+
+    Response purge(String serviceId) {
+      try {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+          String.format(
+            "http://127.0.0.1:%d/purge/%s",
+            server.getAddress().getPort(),
+            serviceId
+          )
+        )
+        .openConnection();
+        connection.setRequestMethod("POST");
+        int status = connection.getResponseCode();
+        (
+          status < 400 ? connection.getInputStream() : connection.getErrorStream()
+        ).close();
+        return Response
+          .status(status)
+          .entity(status == 200 ? "purged" : "unavailable")
+          .build();
+      } catch (IOException e) {
+        return Response.serverError().entity(e.getMessage()).build();
+      }
+    }
+
+    void stop() {
+      server.stop(0);
+    }
+  }
+}
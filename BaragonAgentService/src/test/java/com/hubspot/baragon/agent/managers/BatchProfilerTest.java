@@ -0,0 +1,85 @@
+package com.hubspot.baragon.agent.managers;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.models.BatchPhase;
+import com.hubspot.baragon.agent.models.BatchProfile;
+import java.util.Collections;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class BatchProfilerTest {
+
+  private static BatchProfiler profiler(double sampleRate, int bufferSize) {
+    BaragonAgentConfiguration configuration = new BaragonAgentConfiguration();
+    configuration.setBatchProfilingSampleRate(sampleRate);
+    configuration.setBatchProfilingBufferSize(bufferSize);
+    return new BatchProfiler(configuration, new MetricRegistry());
+  }
+
+  @Test
+  public void itRecordsNothingWhenSamplingIsOff() {
+    BatchProfiler profiler = profiler(0, 10);
+    Optional<BatchProfile> maybeProfile = profiler.maybeStartBatch(
+      Collections.singletonList("request")
+    );
+    Assertions.assertFalse(maybeProfile.isPresent());
+
+    try (BatchProfiler.Scope scope = BatchProfiler.enter(maybeProfile, "service")) {
+      Assertions.assertEquals(0, BatchProfiler.start());
+      Assertions.assertFalse(BatchProfiler.currentProfile().isPresent());
+    }
+    Assertions.assertTrue(profiler.getRecentProfiles().isEmpty());
+  }
+
+  @Test
+  public void itRecordsPhasesPerServiceAndKeepsABoundedBuffer() {
+    MetricRegistry registry = new MetricRegistry();
+    BaragonAgentConfiguration configuration = new BaragonAgentConfiguration();
+    configuration.setBatchProfilingSampleRate(1);
+    configuration.setBatchProfilingBufferSize(3);
+    BatchProfiler profiler = new BatchProfiler(configuration, registry);
+
+    for (int i = 0; i < 5; i++) {
+      long start = System.nanoTime();
+      BatchProfile profile = profiler
+        .maybeStartBatch(Collections.singletonList("request" + i))
+        .get();
+      try (
+        BatchProfiler.Scope batchScope = BatchProfiler.enter(Optional.of(profile), null)
+      ) {
+        BatchProfiler.record(BatchPhase.FETCH_REQUESTS, BatchProfiler.start());
+        try (
+          BatchProfiler.Scope serviceScope = BatchProfiler.enter(
+            Optional.of(profile),
+            "service"
+          )
+        ) {
+          BatchProfiler.record(BatchPhase.RENDER, BatchProfiler.start());
+        }
+      }
+      Assertions.assertFalse(BatchProfiler.currentProfile().isPresent());
+      profiler.finishBatch(profile, start);
+    }
+
+    Assertions.assertEquals(3, profiler.getRecentProfiles().size());
+    BatchProfile latest = profiler.getRecentProfiles().get(0);
+    Assertions.assertEquals(
+      Collections.singletonList("request4"),
+      latest.getRequestIds()
+    );
+    Assertions.assertTrue(latest.getPhaseMicros().containsKey(BatchPhase.FETCH_REQUESTS));
+    Assertions.assertTrue(latest.getPhaseMicros().containsKey(BatchPhase.TOTAL));
+    Assertions.assertEquals(
+      Collections.singleton(BatchPhase.RENDER),
+      latest.getServicePhaseMicros().get("service").keySet()
+    );
+    Assertions.assertEquals(
+      5,
+      registry
+        .histogram(MetricRegistry.name(BatchProfiler.class, "phase", "RENDER"))
+        .getCount()
+    );
+  }
+}
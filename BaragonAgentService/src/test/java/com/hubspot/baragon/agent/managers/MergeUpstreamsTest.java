@@ -0,0 +1,114 @@
+package com.hubspot.baragon.agent.managers;
+
+import com.google.common.base.Optional;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class MergeUpstreamsTest {
+
+  /**
+   * The original nested-loop merge, kept here as the reference behaviour
+   */
+  private static List<UpstreamInfo> referenceMerge(
+    Collection<UpstreamInfo> existingUpstreams,
+    Collection<UpstreamInfo> addUpstreams,
+    Collection<UpstreamInfo> removeUpstreams
+  ) {
+    List<UpstreamInfo> upstreams = new ArrayList<>(addUpstreams);
+    for (UpstreamInfo existingUpstream : existingUpstreams) {
+      boolean present = false;
+      boolean toRemove = false;
+      for (UpstreamInfo currentUpstream : upstreams) {
+        if (UpstreamInfo.upstreamAndGroupMatches(currentUpstream, existingUpstream)) {
+          present = true;
+          break;
+        }
+      }
+      for (UpstreamInfo upstreamToRemove : removeUpstreams) {
+        if (UpstreamInfo.upstreamAndGroupMatches(upstreamToRemove, existingUpstream)) {
+          toRemove = true;
+          break;
+        }
+      }
+      if (!present && !toRemove) {
+        upstreams.add(existingUpstream);
+      }
+    }
+    return upstreams;
+  }
+
+  private static List<UpstreamInfo> randomUpstreams(
+    Random random,
+    int count,
+    int hostPool,
+    int groupPool
+  ) {
+    List<UpstreamInfo> upstreams = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      upstreams.add(
+        new UpstreamInfo(
+          String.format("host%d:8080", random.nextInt(hostPool)),
+          Optional.of(String.format("request%d", random.nextInt(1000))),
+          random.nextBoolean()
+            ? Optional.of(String.format("us-east-1%c", 'a' + random.nextInt(4)))
+            : Optional.absent(),
+          random.nextInt(groupPool) == 0
+            ? Optional.absent()
+            : Optional.of(String.format("group%d", random.nextInt(groupPool)))
+        )
+      );
+    }
+    return upstreams;
+  }
+
+  @Test
+  public void itMatchesTheNestedLoopMergeForRandomInputs() {
+    for (long seed = 0; seed < 2000; seed++) {
+      Random random = new Random(seed);
+      int hostPool = 1 + random.nextInt(20);
+      int groupPool = 1 + random.nextInt(3);
+      List<UpstreamInfo> existing = randomUpstreams(
+        random,
+        random.nextInt(30),
+        hostPool,
+        groupPool
+      );
+      List<UpstreamInfo> add = randomUpstreams(
+        random,
+        random.nextInt(10),
+        hostPool,
+        groupPool
+      );
+      List<UpstreamInfo> remove = randomUpstreams(
+        random,
+        random.nextInt(10),
+        hostPool,
+        groupPool
+      );
+
+      Assertions.assertEquals(
+        referenceMerge(existing, add, remove),
+        AgentRequestManager.mergeUpstreams(existing, add, remove),
+        String.format("Merge differs for seed %d", seed)
+      );
+    }
+  }
+
+  @Test
+  public void itMatchesTheNestedLoopMergeForLargeServices() {
+    Random random = new Random(5000);
+    List<UpstreamInfo> existing = randomUpstreams(random, 2000, 3000, 2);
+    List<UpstreamInfo> add = randomUpstreams(random, 1000, 3000, 2);
+    List<UpstreamInfo> remove = randomUpstreams(random, 1000, 3000, 2);
+
+    Assertions.assertEquals(
+      referenceMerge(existing, add, remove),
+      AgentRequestManager.mergeUpstreams(existing, add, remove)
+    );
+  }
+}
@@ -0,0 +1,171 @@
+package com.hubspot.baragon.agent.managers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.datatype.guava.GuavaModule;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.google.common.base.Optional;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.agent.lbs.LbConfigGenerator;
+import com.hubspot.baragon.agent.models.AgentStateSnapshot;
+import com.hubspot.baragon.agent.models.InternalStateCache;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BasicServiceContext;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class StateSnapshotManagerTest {
+  private final ObjectMapper objectMapper = new ObjectMapper()
+    .registerModule(new GuavaModule())
+    .registerModule(new Jdk8Module());
+
+  private Path root;
+  private Path snapshotFile;
+  private BaragonAgentConfiguration configuration;
+
+  @BeforeEach
+  public void setup() throws IOException {
+    root = Files.createTempDirectory("baragon-snapshot");
+    snapshotFile = root.resolve("state-snapshot.json");
+    LoadBalancerConfiguration loadBalancerConfiguration = new LoadBalancerConfiguration();
+    loadBalancerConfiguration.setName("test");
+    configuration = new BaragonAgentConfiguration();
+    configuration.setLoadBalancerConfiguration(loadBalancerConfiguration);
+    configuration.setStateSnapshotFile(Optional.of(snapshotFile.toString()));
+  }
+
+  @AfterEach
+  public void cleanup() throws IOException {
+    try (Stream<Path> walk = Files.walk(root)) {
+      walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Test
+  public void itRestoresASnapshotWithoutWritingItAgain() throws IOException {
+    writeSnapshot("service-1", "service-2");
+    byte[] written = Files.readAllBytes(snapshotFile);
+
+    Map<String, BasicServiceContext> cache = new InternalStateCache();
+    StateSnapshotManager restarted = manager(cache);
+    AgentStateSnapshot snapshot = restarted.loadValidSnapshot().get();
+    restarted.restore(snapshot);
+    Assertions.assertEquals(2, cache.size());
+
+    restarted.writeSnapshotIfChanged();
+    Assertions.assertArrayEquals(written, Files.readAllBytes(snapshotFile));
+
+    cache.put("service-3", context("service-3"));
+    restarted.writeSnapshotIfChanged();
+    Assertions.assertEquals(
+      3,
+      manager(new InternalStateCache()).loadValidSnapshot().get().getServices().size()
+    );
+  }
+
+  @Test
+  public void itIgnoresASnapshotThatFailsItsChecksum() throws IOException {
+    writeSnapshot("service-1");
+    ObjectNode root = (ObjectNode) objectMapper.readTree(snapshotFile.toFile());
+    ((ObjectNode) root.get("snapshot")).put("stateVersion", 42);
+    objectMapper.writeValue(snapshotFile.toFile(), root);
+
+    Assertions.assertFalse(
+      manager(new InternalStateCache()).loadValidSnapshot().isPresent()
+    );
+  }
+
+  @Test
+  public void itIgnoresASnapshotWhenAConfigFileChanged() throws IOException {
+    writeSnapshot("service-1", "service-2");
+    Files.write(configPath("service-2"), "changed".getBytes(StandardCharsets.UTF_8));
+
+    Assertions.assertFalse(
+      manager(new InternalStateCache()).loadValidSnapshot().isPresent()
+    );
+  }
+
+  @Test
+  public void itIgnoresASnapshotWhenTheLoadBalancerConfigurationChanged()
+    throws IOException {
+    writeSnapshot("service-1");
+    configuration.getLoadBalancerConfiguration().setName("other");
+
+    Assertions.assertFalse(
+      manager(new InternalStateCache()).loadValidSnapshot().isPresent()
+    );
+  }
+
+  private void writeSnapshot(String... serviceIds) throws IOException {
+    Map<String, BasicServiceContext> cache = new InternalStateCache();
+    for (String serviceId : serviceIds) {
+      Files.write(configPath(serviceId), serviceId.getBytes(StandardCharsets.UTF_8));
+      cache.put(serviceId, context(serviceId));
+    }
+    manager(cache).writeSnapshotIfChanged();
+    Assertions.assertTrue(Files.exists(snapshotFile));
+  }
+
+  private StateSnapshotManager manager(Map<String, BasicServiceContext> cache) {
+    return new StateSnapshotManager(
+      configuration,
+      null,
+      new BaragonStateDatastore(null, null, null, null) {
+
+        @Override
+        public Optional<Integer> getStateVersion() {
+          return Optional.of(7);
+        }
+      },
+      new LbConfigGenerator(null, null, null) {
+
+        @Override
+        public Set<String> getConfigPathsForProject(BaragonService service) {
+          return Collections.singleton(configPath(service.getServiceId()).toString());
+        }
+      },
+      objectMapper,
+      new ReentrantLock(),
+      1000,
+      cache
+    );
+  }
+
+  private Path configPath(String serviceId) {
+    return root.resolve(serviceId + ".conf");
+  }
+
+  private static BasicServiceContext context(String serviceId) {
+    return new BasicServiceContext(
+      new BaragonService(
+        serviceId,
+        Collections.emptyList(),
+        "/" + serviceId,
+        Collections.singleton("test"),
+        Collections.emptyMap()
+      ),
+      Collections.singletonList(
+        new UpstreamInfo(
+          serviceId + "-host:8080",
+          Optional.of("request"),
+          Optional.absent()
+        )
+      )
+    );
+  }
+}
@@ -0,0 +1,118 @@
+package com.hubspot.baragon.agent.models;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.models.BasicServiceContext;
+import com.hubspot.baragon.models.UpstreamInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class InternalStateCacheTest {
+
+  /**
+   * Built the way the agent builds them from ZooKeeper, so no strings are shared up front
+   */
+  private static BasicServiceContext context(int serviceIndex, int upstreamCount) {
+    String serviceId = String.format("service-%d", serviceIndex);
+    List<UpstreamInfo> upstreams = new ArrayList<>();
+    for (int i = 0; i < upstreamCount; i++) {
+      UpstreamInfo upstream = new UpstreamInfo(
+        String.format("10.%d.%d.%d:%d", serviceIndex % 256, i / 256, i % 256, 31000 + i),
+        Optional.of(String.format("%s-request", serviceId)),
+        Optional.of(String.format("us-east-1%c", 'a' + i % 4)),
+        Optional.of(new String("default"))
+      );
+      upstreams.add(UpstreamInfo.fromString(upstream.toPath()));
+    }
+    return new BasicServiceContext(
+      new BaragonService(
+        serviceId,
+        new ArrayList<>(Arrays.asList(new String("team-a"), new String("team-b"))),
+        "/" + serviceId,
+        Sets.newHashSet(new String("lb-group-1"), new String("lb-group-2")),
+        ImmutableMap.<String, Object>of("nginxExtraConfigs", new ArrayList<>())
+      ),
+      upstreams,
+      1000L
+    );
+  }
+
+  @Test
+  public void itStoresEqualContexts() {
+    Map<String, BasicServiceContext> cache = new InternalStateCache();
+    for (int i = 0; i < 100; i++) {
+      BasicServiceContext context = context(i, 5);
+      cache.put(context.getService().getServiceId(), context);
+
+      BasicServiceContext stored = cache.get(context.getService().getServiceId());
+      Assertions.assertEquals(context, stored);
+      Assertions.assertEquals(context.getService(), stored.getService());
+      Assertions.assertEquals(context.getTimestamp(), stored.getTimestamp());
+    }
+
+    BasicServiceContext first = cache.get("service-1");
+    BasicServiceContext second = cache.get("service-2");
+    Assertions.assertSame(
+      first.getService().getLoadBalancerGroups(),
+      second.getService().getLoadBalancerGroups()
+    );
+    Assertions.assertSame(
+      first.getUpstreams().iterator().next().getGroup(),
+      second.getUpstreams().iterator().next().getGroup()
+    );
+
+    // An upstream-only change keeps the stored service definition
+    BasicServiceContext updated = context(1, 6);
+    cache.put("service-1", updated);
+    Assertions.assertSame(first.getService(), cache.get("service-1").getService());
+    Assertions.assertEquals(updated, cache.get("service-1"));
+  }
+
+  @Test
+  public void itKeepsEveryUpstreamField() {
+    Map<String, BasicServiceContext> cache = new InternalStateCache();
+    BasicServiceContext context = context(7, 5);
+    cache.put("service-7", context);
+
+    Iterator<UpstreamInfo> stored = cache.get("service-7").getUpstreams().iterator();
+    for (UpstreamInfo upstream : context.getUpstreams()) {
+      UpstreamInfo storedUpstream = stored.next();
+      Assertions.assertTrue(upstream.getOriginalPath().isPresent());
+      Assertions.assertEquals(upstream, storedUpstream);
+      Assertions.assertEquals(
+        upstream.getOriginalPath(),
+        storedUpstream.getOriginalPath()
+      );
+    }
+    Assertions.assertFalse(stored.hasNext());
+  }
+
+  @Test
+  public void itSharesStringsThatRepeatAcrossUpstreamsAndServices() {
+    Map<String, BasicServiceContext> cache = new InternalStateCache();
+    cache.put("service-1", context(1, 8));
+    cache.put("service-2", context(2, 8));
+
+    List<UpstreamInfo> first = new ArrayList<>(cache.get("service-1").getUpstreams());
+    List<UpstreamInfo> second = new ArrayList<>(cache.get("service-2").getUpstreams());
+    Assertions.assertSame(
+      first.get(0).getRequestId().get(),
+      first.get(4).getRequestId().get()
+    );
+    Assertions.assertSame(
+      first.get(1).getRackId().get(),
+      second.get(1).getRackId().get()
+    );
+    Assertions.assertSame(
+      cache.get("service-1").getService().getOwners(),
+      cache.get("service-2").getService().getOwners()
+    );
+  }
+}
@@ -0,0 +1,266 @@
+package com.hubspot.baragon.agent.workers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.guava.GuavaModule;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.google.common.base.Optional;
+import com.hubspot.baragon.agent.config.BaragonAgentConfiguration;
+import com.hubspot.baragon.agent.config.LoadBalancerConfiguration;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.data.BaragonKnownAgentsDatastore;
+import com.hubspot.baragon.models.BaragonAgentEc2Metadata;
+import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.BaragonKnownAgentMetadata;
+import com.hubspot.baragon.utils.ZkParallelFetcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.data.Stat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class AgentHeartbeatWorkerTest {
+  private static final int AGENT_COUNT = 20;
+  private static final String GROUP = "test";
+  private static final long TICK_MILLIS = TimeUnit.SECONDS.toMillis(15);
+  private static final long LAST_SEEN_PER_HOUR = 12;
+
+  private final ObjectMapper objectMapper = new ObjectMapper()
+    .registerModule(new GuavaModule())
+    .registerModule(new Jdk8Module());
+
+  private TestingServer server;
+  private CuratorFramework curator;
+  private BaragonKnownAgentsDatastore knownAgentsDatastore;
+  private LoadBalancerConfiguration loadBalancerConfiguration;
+  private BaragonAgentConfiguration configuration;
+  private List<BaragonAgentMetadata> agents;
+  private List<AgentHeartbeatWorker> workers;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    server = new TestingServer();
+    curator =
+      CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(100));
+    curator.start();
+
+    ZooKeeperConfiguration zooKeeperConfiguration = new ZooKeeperConfiguration();
+    zooKeeperConfiguration.setQuorum(server.getConnectString());
+    knownAgentsDatastore =
+      new BaragonKnownAgentsDatastore(
+        curator,
+        objectMapper,
+        new ZkParallelFetcher(curator),
+        zooKeeperConfiguration
+      );
+
+    loadBalancerConfiguration = new LoadBalancerConfiguration();
+    loadBalancerConfiguration.setName(GROUP);
+    configuration = new BaragonAgentConfiguration();
+    configuration.setLoadBalancerConfiguration(loadBalancerConfiguration);
+
+    agents = new ArrayList<>(AGENT_COUNT);
+    workers = new ArrayList<>(AGENT_COUNT);
+    for (int i = 0; i < AGENT_COUNT; i++) {
+      BaragonAgentMetadata agent = new BaragonAgentMetadata(
+        String.format("http://agent-%d:8882/baragon-agent/v2", i),
+        String.format("agent-%d", i),
+        Optional.absent(),
+        new BaragonAgentEc2Metadata(
+          Optional.of(String.format("i-%08d", i)),
+          Optional.of("us-east-1a"),
+          Optional.of("subnet-1"),
+          Optional.of("vpc-1"),
+          Optional.of(String.format("10.0.%d.%d", i / 256, i % 256))
+        ),
+        Optional.absent(),
+        Collections.emptyMap(),
+        true
+      );
+      agents.add(agent);
+    }
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    workers.forEach(AgentHeartbeatWorker::stop);
+    curator.close();
+    server.close();
+  }
+
+  @Test
+  public void itOnlyWritesOnRegistrationAndEveryLastSeenInterval() throws Exception {
+    configuration.setWriteLastSeenToMetadata(false);
+    createWorkers();
+    for (BaragonAgentMetadata agent : agents) {
+      knownAgentsDatastore.addKnownAgent(
+        GROUP,
+        BaragonKnownAgentMetadata.fromAgentMetadata(agent, 0)
+      );
+    }
+    // Parent nodes are created once per group, keep them out of the per-agent counts
+    curator
+      .create()
+      .forPath(
+        String.format(BaragonKnownAgentsDatastore.LIVE_AGENTS_GROUP_HOSTS_FORMAT, GROUP)
+      );
+    curator
+      .create()
+      .forPath(String.format("/load-balancer/%s/known-agents-last-seen", GROUP));
+
+    // Restarted agents with unchanged metadata, heartbeating for an hour
+    long start = currentZxid();
+    workers.forEach(AgentHeartbeatWorker::register);
+    awaitLiveAgents(AGENT_COUNT);
+    for (long now = 1; now < TimeUnit.HOURS.toMillis(1); now += TICK_MILLIS) {
+      for (AgentHeartbeatWorker worker : workers) {
+        worker.heartbeat(now);
+      }
+    }
+
+    // One ephemeral create per agent plus a last-seen write every five minutes
+    Assertions.assertEquals(
+      AGENT_COUNT + LAST_SEEN_PER_HOUR * AGENT_COUNT,
+      writesSince(start)
+    );
+    Assertions.assertEquals(0, storedMetadata("agent-0").getLastSeenAt());
+  }
+
+  @Test
+  public void itKeepsRecordingLastSeenInTheMetadataForOlderServices() throws Exception {
+    createWorkers();
+    workers.forEach(AgentHeartbeatWorker::register);
+    long heartbeatAt = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+    workers.get(0).heartbeat(heartbeatAt);
+
+    Assertions.assertEquals(heartbeatAt, storedMetadata("agent-0").getLastSeenAt());
+    Assertions.assertNull(
+      curator
+        .checkExists()
+        .forPath(String.format("/load-balancer/%s/known-agents-last-seen", GROUP))
+    );
+  }
+
+  @Test
+  public void itReportsLiveAgentsAsSeenNowAndGoneAgentsAtTheirLastTimestamp()
+    throws Exception {
+    configuration.setWriteLastSeenToMetadata(false);
+    createWorkers();
+    workers.forEach(AgentHeartbeatWorker::register);
+    long heartbeatAt = System.currentTimeMillis();
+    workers.forEach(worker -> worker.heartbeat(heartbeatAt));
+    awaitLiveAgents(AGENT_COUNT);
+
+    Stat before = curator
+      .checkExists()
+      .forPath(
+        String.format(
+          BaragonKnownAgentsDatastore.KNOWN_AGENTS_GROUP_HOST_FORMAT,
+          GROUP,
+          "agent-0"
+        )
+      );
+    workers.get(0).stop();
+    workers.get(0).register();
+    Stat after = curator
+      .checkExists()
+      .forPath(
+        String.format(
+          BaragonKnownAgentsDatastore.KNOWN_AGENTS_GROUP_HOST_FORMAT,
+          GROUP,
+          "agent-0"
+        )
+      );
+    Assertions.assertEquals(before.getMzxid(), after.getMzxid());
+
+    workers.get(1).stop();
+    awaitLiveAgents(AGENT_COUNT - 1);
+
+    long now = System.currentTimeMillis();
+    Map<String, BaragonKnownAgentMetadata> known = knownAgentsDatastore
+      .getKnownAgentsMetadata(GROUP)
+      .stream()
+      .collect(
+        Collectors.toMap(BaragonKnownAgentMetadata::getAgentId, Function.identity())
+      );
+    Assertions.assertEquals(AGENT_COUNT, known.size());
+    Assertions.assertTrue(known.get("agent-0").getLastSeenAt() >= now);
+    Assertions.assertEquals(heartbeatAt, known.get("agent-1").getLastSeenAt());
+    Assertions.assertEquals(
+      heartbeatAt,
+      knownAgentsDatastore.getKnownAgentMetadata(GROUP, "agent-1").get().getLastSeenAt()
+    );
+  }
+
+  private void createWorkers() {
+    for (BaragonAgentMetadata agent : agents) {
+      workers.add(
+        new AgentHeartbeatWorker(
+          knownAgentsDatastore,
+          agent,
+          loadBalancerConfiguration,
+          configuration
+        )
+      );
+    }
+  }
+
+  private BaragonKnownAgentMetadata storedMetadata(String agentId) throws Exception {
+    return objectMapper.readValue(
+      curator
+        .getData()
+        .forPath(
+          String.format(
+            BaragonKnownAgentsDatastore.KNOWN_AGENTS_GROUP_HOST_FORMAT,
+            GROUP,
+            agentId
+          )
+        ),
+      BaragonKnownAgentMetadata.class
+    );
+  }
+
+  private void awaitLiveAgents(int count) throws Exception {
+    long deadline = System.currentTimeMillis() + 10000;
+    String path = String.format(
+      BaragonKnownAgentsDatastore.LIVE_AGENTS_GROUP_HOSTS_FORMAT,
+      GROUP
+    );
+    while (
+      curator.checkExists().forPath(path) == null ||
+      curator.getChildren().forPath(path).size() != count
+    ) {
+      Assertions.assertTrue(
+        System.currentTimeMillis() < deadline,
+        "Liveness nodes did not settle in time"
+      );
+      Thread.sleep(10);
+    }
+  }
+
+  private long currentZxid() throws Exception {
+    String marker = curator
+      .create()
+      .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+      .forPath("/zxid-marker-");
+    return curator.checkExists().forPath(marker).getCzxid();
+  }
+
+  /**
+   * Every ZooKeeper write is its own transaction, so the zxid counts them
+   */
+  private long writesSince(long startZxid) throws Exception {
+    return currentZxid() - startZxid - 1;
+  }
+}
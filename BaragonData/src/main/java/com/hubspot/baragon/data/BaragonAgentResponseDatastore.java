@@ -3,6 +3,9 @@ package com.hubspot.baragon.data;
 import com.codahale.metrics.annotation.Timed;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
@@ -12,16 +15,29 @@ import com.hubspot.baragon.models.AgentRequestId;
 import com.hubspot.baragon.models.AgentRequestType;
 import com.hubspot.baragon.models.AgentResponse;
 import com.hubspot.baragon.models.AgentResponseId;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.OpResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @Singleton
 public class BaragonAgentResponseDatastore extends AbstractDataStore {
+  private static final Logger LOG = LoggerFactory.getLogger(
+    BaragonAgentResponseDatastore.class
+  );
+
   public static final String PENDING_REQUEST_FORMAT = "/request/%s/pendingRequests/%s";
 
   public static final String AGENT_REQUESTS_FORMAT = "/request/%s/agent";
@@ -30,7 +46,15 @@ public class BaragonAgentResponseDatastore extends AbstractDataStore {
     AGENT_RESPONSES_FORMAT + "/%s-%s-";
   public static final String AGENT_RESPONSE_FORMAT = AGENT_RESPONSES_FORMAT + "/%s";
 
+  // Keeps each transaction well under ZooKeeper's default 1MB request limit
+  private static final int MAX_TRANSACTION_BYTES = 256 * 1024;
+  private static final int MAX_TRANSACTION_ATTEMPTS = 3;
+
   private final Map<String, AtomicInteger> pendingRequests;
+  private final Cache<String, Boolean> knownAgentRequestPaths = CacheBuilder
+    .newBuilder()
+    .maximumSize(10000)
+    .build();
 
   @Inject
   public BaragonAgentResponseDatastore(
@@ -77,6 +101,248 @@ public class BaragonAgentResponseDatastore extends AbstractDataStore {
     return agentResponse;
   }
 
+  /**
+   * Collects the responses from a single call to one agent, so they can be recorded and their
+   * pending requests cleared together in as few ZooKeeper transactions as possible
+   */
+  public AgentResponseBatch newAgentResponseBatch(String baseUrl, String url) {
+    return new AgentResponseBatch(baseUrl, url);
+  }
+
+  /**
+   * Records the first response from an agent for each request in a multi-op transaction instead of
+   * a create, write and delete per response. The transaction assumes the request is pending and
+   * this is the agent's first response to it. If one of its operations fails, that response is
+   * written with addAgentResponse instead, which also covers retries since their attempt number is
+   * only known once the sequential node has been created, and the rest of the transaction is tried
+   * again.
+   */
+  @Timed
+  public void addAgentResponses(AgentResponseBatch batch) {
+    final long start = System.currentTimeMillis();
+    final Set<String> agentResponsePaths = new HashSet<>();
+    final List<BatchedAgentResponse> individually = new ArrayList<>();
+    final List<SerializedAgentResponse> transactionResponses = new ArrayList<>();
+    int transactionBytes = 0;
+    int written = 0;
+
+    for (BatchedAgentResponse response : batch.responses) {
+      if (!agentResponsePaths.add(agentResponsesPath(response, batch.baseUrl))) {
+        individually.add(response);
+        continue;
+      }
+
+      // The response node's parent is created in the same transaction, so this is attempt 0
+      final byte[] data = serialize(
+        new AgentResponse(
+          batch.url,
+          0,
+          response.statusCode,
+          response.content,
+          response.exception
+        )
+      );
+      transactionResponses.add(new SerializedAgentResponse(response, data));
+      transactionBytes += data.length;
+
+      if (transactionBytes >= MAX_TRANSACTION_BYTES) {
+        written += commit(batch, transactionResponses, individually);
+        transactionResponses.clear();
+        transactionBytes = 0;
+      }
+    }
+    written += commit(batch, transactionResponses, individually);
+
+    for (BatchedAgentResponse response : individually) {
+      addAgentResponse(
+        response.requestId,
+        response.requestType,
+        batch.baseUrl,
+        batch.url,
+        response.statusCode,
+        response.content,
+        response.exception
+      );
+      batch.committedRequestIds.add(response.requestId);
+      setPendingRequestStatus(response.requestId, batch.baseUrl, false);
+    }
+    log(
+      OperationType.WRITE,
+      Optional.of(batch.responses.size()),
+      Optional.<Integer>absent(),
+      start,
+      String.format(
+        "%s (%d in transactions, %d individually)",
+        AGENT_REQUESTS_FORMAT,
+        written,
+        individually.size()
+      )
+    );
+  }
+
+  /**
+   * Commits these responses in one transaction. A response whose operation failed, for example
+   * because the agent already answered that request, is moved to the individually written ones and
+   * the transaction is built again without it, up to MAX_TRANSACTION_ATTEMPTS times.
+   */
+  private int commit(
+    AgentResponseBatch batch,
+    List<SerializedAgentResponse> responses,
+    List<BatchedAgentResponse> individually
+  ) {
+    final List<SerializedAgentResponse> remaining = new ArrayList<>(responses);
+    for (
+      int attempt = 0;
+      attempt < MAX_TRANSACTION_ATTEMPTS && !remaining.isEmpty();
+      attempt++
+    ) {
+      final List<CuratorOp> operations = new ArrayList<>();
+      final List<SerializedAgentResponse> operationOwners = new ArrayList<>();
+      final Set<String> createdAgentRequestPaths = new HashSet<>();
+      try {
+        for (SerializedAgentResponse serialized : remaining) {
+          final BatchedAgentResponse response = serialized.response;
+          final String agentRequestPath = String.format(
+            AGENT_REQUESTS_FORMAT,
+            response.requestId
+          );
+          if (
+            !createdAgentRequestPaths.contains(agentRequestPath) &&
+            !agentRequestPathExists(agentRequestPath)
+          ) {
+            operations.add(
+              curatorFramework.transactionOp().create().forPath(agentRequestPath)
+            );
+            operationOwners.add(serialized);
+            createdAgentRequestPaths.add(agentRequestPath);
+          }
+          operations.add(
+            curatorFramework
+              .transactionOp()
+              .create()
+              .forPath(agentResponsesPath(response, batch.baseUrl))
+          );
+          operations.add(
+            curatorFramework
+              .transactionOp()
+              .create()
+              .withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+              .forPath(
+                String.format(
+                  CREATE_AGENT_RESPONSE_FORMAT,
+                  response.requestId,
+                  response.requestType,
+                  encodeUrl(batch.baseUrl),
+                  response.statusCode.or(0),
+                  response.exception.isPresent()
+                ),
+                serialized.data
+              )
+          );
+          operations.add(
+            curatorFramework
+              .transactionOp()
+              .delete()
+              .forPath(
+                String.format(
+                  PENDING_REQUEST_FORMAT,
+                  response.requestId,
+                  encodeUrl(batch.baseUrl)
+                )
+              )
+          );
+          operationOwners.add(serialized);
+          operationOwners.add(serialized);
+          operationOwners.add(serialized);
+        }
+        curatorFramework.transaction().forOperations(operations);
+      } catch (KeeperException e) {
+        final Optional<Integer> failedOperation = failedOperation(e.getResults());
+        if (!failedOperation.isPresent()) {
+          LOG.warn(
+            "Could not record {} responses from {} in one transaction, writing them individually",
+            remaining.size(),
+            batch.baseUrl,
+            e
+          );
+          break;
+        }
+        final SerializedAgentResponse failed = operationOwners.get(failedOperation.get());
+        knownAgentRequestPaths.invalidate(
+          String.format(AGENT_REQUESTS_FORMAT, failed.response.requestId)
+        );
+        remaining.remove(failed);
+        individually.add(failed.response);
+        continue;
+      } catch (Exception e) {
+        throw Throwables.propagate(e);
+      }
+
+      for (String agentRequestPath : createdAgentRequestPaths) {
+        knownAgentRequestPaths.put(agentRequestPath, Boolean.TRUE);
+      }
+      for (SerializedAgentResponse serialized : remaining) {
+        batch.committedRequestIds.add(serialized.response.requestId);
+        pendingRequests
+          .computeIfAbsent(batch.baseUrl, b -> new AtomicInteger())
+          .getAndDecrement();
+      }
+      return remaining.size();
+    }
+
+    for (SerializedAgentResponse serialized : remaining) {
+      individually.add(serialized.response);
+    }
+    return 0;
+  }
+
+  /**
+   * Every agent that answers a request needs its parent node, so once it is known to exist it is
+   * not read again for the next agent's batch
+   */
+  private boolean agentRequestPathExists(String agentRequestPath) {
+    if (knownAgentRequestPaths.getIfPresent(agentRequestPath) != null) {
+      return true;
+    }
+    if (nodeExists(agentRequestPath)) {
+      knownAgentRequestPaths.put(agentRequestPath, Boolean.TRUE);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * A failed multi reports the error of the operation that failed, every operation before it as
+   * ok and every one after it as a runtime inconsistency
+   */
+  private static Optional<Integer> failedOperation(List<OpResult> results) {
+    if (results == null) {
+      return Optional.absent();
+    }
+    for (int i = 0; i < results.size(); i++) {
+      final OpResult result = results.get(i);
+      if (result instanceof OpResult.ErrorResult) {
+        final int error = ((OpResult.ErrorResult) result).getErr();
+        if (
+          error != KeeperException.Code.OK.intValue() &&
+          error != KeeperException.Code.RUNTIMEINCONSISTENCY.intValue()
+        ) {
+          return Optional.of(i);
+        }
+      }
+    }
+    return Optional.absent();
+  }
+
+  private String agentResponsesPath(BatchedAgentResponse response, String baseUrl) {
+    return String.format(
+      AGENT_RESPONSES_FORMAT,
+      response.requestId,
+      response.requestType,
+      encodeUrl(baseUrl)
+    );
+  }
+
   @Timed
   public Collection<AgentRequestId> getAgentRequestIds(String requestId) {
     final Collection<String> nodes = getChildren(
@@ -223,4 +489,115 @@ public class BaragonAgentResponseDatastore extends AbstractDataStore {
       AgentResponse.class
     );
   }
+
+  public class AgentResponseBatch {
+    private final String baseUrl;
+    private final String url;
+    private final List<BatchedAgentResponse> responses = new ArrayList<>();
+    private final Set<String> committedRequestIds = new HashSet<>();
+
+    private AgentResponseBatch(String baseUrl, String url) {
+      this.baseUrl = baseUrl;
+      this.url = url;
+    }
+
+    /**
+     * Same as addAgentResponse followed by clearing the request's pending status, once committed
+     */
+    public AgentResponseBatch add(
+      String requestId,
+      AgentRequestType requestType,
+      Optional<Integer> statusCode,
+      Optional<String> content,
+      Optional<String> exception
+    ) {
+      responses.add(
+        new BatchedAgentResponse(requestId, requestType, statusCode, content, exception)
+      );
+      return this;
+    }
+
+    public String getBaseUrl() {
+      return baseUrl;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public List<BatchedAgentResponse> getResponses() {
+      return Collections.unmodifiableList(responses);
+    }
+
+    /**
+     * The requests whose responses have been recorded, including those recorded before a failed
+     * commit gave up
+     */
+    public Set<String> getCommittedRequestIds() {
+      return Collections.unmodifiableSet(committedRequestIds);
+    }
+
+    public boolean isEmpty() {
+      return responses.isEmpty();
+    }
+
+    public void commit() {
+      if (!responses.isEmpty()) {
+        addAgentResponses(this);
+        responses.clear();
+      }
+    }
+  }
+
+  public static class BatchedAgentResponse {
+    private final String requestId;
+    private final AgentRequestType requestType;
+    private final Optional<Integer> statusCode;
+    private final Optional<String> content;
+    private final Optional<String> exception;
+
+    private BatchedAgentResponse(
+      String requestId,
+      AgentRequestType requestType,
+      Optional<Integer> statusCode,
+      Optional<String> content,
+      Optional<String> exception
+    ) {
+      this.requestId = requestId;
+      this.requestType = requestType;
+      this.statusCode = statusCode;
+      this.content = content;
+      this.exception = exception;
+    }
+
+    public String getRequestId() {
+      return requestId;
+    }
+
+    public AgentRequestType getRequestType() {
+      return requestType;
+    }
+
+    public Optional<Integer> getStatusCode() {
+      return statusCode;
+    }
+
+    public Optional<String> getContent() {
+      return content;
+    }
+
+    public Optional<String> getException() {
+      return exception;
+    }
+  }
+
+  private static class SerializedAgentResponse {
+    private final BatchedAgentResponse response;
+    private final byte[] data;
+
+    private SerializedAgentResponse(BatchedAgentResponse response, byte[] data) {
+      this.response = response;
+      this.data = data;
+    }
+  }
 }
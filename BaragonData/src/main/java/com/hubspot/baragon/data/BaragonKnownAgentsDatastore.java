@@ -3,35 +3,49 @@ package com.hubspot.baragon.data;
 import com.codahale.metrics.annotation.Timed;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.data.BaragonStateDatastore.BaragonDeserializer;
 import com.hubspot.baragon.models.BaragonKnownAgentMetadata;
+import com.hubspot.baragon.utils.ZkParallelFetcher;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.apache.curator.framework.CuratorFramework;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.apache.curator.framework.recipes.nodes.PersistentNode;
+import org.apache.zookeeper.CreateMode;
 
 @Singleton
 public class BaragonKnownAgentsDatastore extends AbstractDataStore {
-  private static final Logger LOG = LoggerFactory.getLogger(
-    BaragonKnownAgentsDatastore.class
-  );
-
   public static final String KNOWN_AGENTS_GROUP_HOSTS_FORMAT =
     "/load-balancer/%s/known-agents";
   public static final String KNOWN_AGENTS_GROUP_HOST_FORMAT =
     KNOWN_AGENTS_GROUP_HOSTS_FORMAT + "/%s";
+  public static final String LIVE_AGENTS_GROUP_HOSTS_FORMAT =
+    "/load-balancer/%s/live-agents";
+  public static final String LIVE_AGENTS_GROUP_HOST_FORMAT =
+    LIVE_AGENTS_GROUP_HOSTS_FORMAT + "/%s";
+  public static final String KNOWN_AGENTS_LAST_SEEN_FORMAT =
+    "/load-balancer/%s/known-agents-last-seen/%s";
+
+  private final ZkParallelFetcher zkFetcher;
 
   @Inject
   public BaragonKnownAgentsDatastore(
     CuratorFramework curatorFramework,
     ObjectMapper objectMapper,
+    ZkParallelFetcher zkFetcher,
     ZooKeeperConfiguration zooKeeperConfiguration
   ) {
     super(curatorFramework, objectMapper, zooKeeperConfiguration);
+    this.zkFetcher = zkFetcher;
   }
 
   @Timed
@@ -49,14 +63,37 @@ public class BaragonKnownAgentsDatastore extends AbstractDataStore {
     final Collection<BaragonKnownAgentMetadata> metadata = Lists.newArrayListWithCapacity(
       nodes.size()
     );
+    final Set<String> liveAgentIds = getLiveAgentIds(clusterName);
+    final long now = System.currentTimeMillis();
+    final List<String> lastSeenPaths = new ArrayList<>();
 
     for (String node : nodes) {
-      metadata.addAll(
-        readFromZk(
-            String.format(KNOWN_AGENTS_GROUP_HOST_FORMAT, clusterName, node),
-            BaragonKnownAgentMetadata.class
-          )
-          .asSet()
+      Optional<BaragonKnownAgentMetadata> maybeAgent = readFromZk(
+        String.format(KNOWN_AGENTS_GROUP_HOST_FORMAT, clusterName, node),
+        BaragonKnownAgentMetadata.class
+      );
+      if (maybeAgent.isPresent()) {
+        metadata.add(maybeAgent.get());
+        if (!liveAgentIds.contains(maybeAgent.get().getAgentId())) {
+          lastSeenPaths.add(
+            String.format(
+              KNOWN_AGENTS_LAST_SEEN_FORMAT,
+              clusterName,
+              maybeAgent.get().getAgentId()
+            )
+          );
+        }
+      }
+    }
+
+    // Only agents that are gone need their last-seen node, read those all at once
+    final Map<String, Long> lastSeenAts = fetchLastSeenAts(lastSeenPaths);
+    for (BaragonKnownAgentMetadata agent : metadata) {
+      withLastSeenAt(
+        agent,
+        liveAgentIds,
+        Optional.fromNullable(lastSeenAts.get(agent.getAgentId())),
+        now
       );
     }
 
@@ -68,10 +105,32 @@ public class BaragonKnownAgentsDatastore extends AbstractDataStore {
     String clusterName,
     String agentId
   ) {
-    return readFromZk(
+    Optional<BaragonKnownAgentMetadata> maybeAgent = readFromZk(
       String.format(KNOWN_AGENTS_GROUP_HOST_FORMAT, clusterName, agentId),
       BaragonKnownAgentMetadata.class
     );
+    if (!maybeAgent.isPresent()) {
+      return maybeAgent;
+    }
+    Set<String> liveAgentIds = nodeExists(
+        String.format(LIVE_AGENTS_GROUP_HOST_FORMAT, clusterName, agentId)
+      )
+      ? Collections.singleton(agentId)
+      : Collections.emptySet();
+    Optional<Long> lastSeenAt = liveAgentIds.isEmpty()
+      ? readFromZk(
+        String.format(KNOWN_AGENTS_LAST_SEEN_FORMAT, clusterName, agentId),
+        Long.class
+      )
+      : Optional.absent();
+    return Optional.of(
+      withLastSeenAt(
+        maybeAgent.get(),
+        liveAgentIds,
+        lastSeenAt,
+        System.currentTimeMillis()
+      )
+    );
   }
 
   @Timed
@@ -86,29 +145,99 @@ public class BaragonKnownAgentsDatastore extends AbstractDataStore {
     );
   }
 
+  /**
+   * Write the agent's metadata unless an identical copy, ignoring lastSeenAt, is already stored
+   *
+   * @return true if the metadata was written
+   */
+  @Timed
+  public boolean addKnownAgentIfChanged(
+    String clusterName,
+    BaragonKnownAgentMetadata agentMetadata
+  ) {
+    Optional<BaragonKnownAgentMetadata> existing = readFromZk(
+      String.format(
+        KNOWN_AGENTS_GROUP_HOST_FORMAT,
+        clusterName,
+        agentMetadata.getAgentId()
+      ),
+      BaragonKnownAgentMetadata.class
+    );
+    if (
+      existing.isPresent() &&
+      BaragonKnownAgentMetadata
+        .fromAgentMetadata(existing.get(), 0)
+        .equals(BaragonKnownAgentMetadata.fromAgentMetadata(agentMetadata, 0))
+    ) {
+      return false;
+    }
+    addKnownAgent(clusterName, agentMetadata);
+    return true;
+  }
+
   @Timed
   public void removeKnownAgent(String clusterName, String agentId) {
     deleteNode(String.format(KNOWN_AGENTS_GROUP_HOST_FORMAT, clusterName, agentId));
+    deleteNode(String.format(KNOWN_AGENTS_LAST_SEEN_FORMAT, clusterName, agentId));
   }
 
+  /**
+   * Record when the agent was last seen in its own small node, leaving the metadata untouched
+   */
   @Timed
   public void updateKnownAgentLastSeenAt(String clusterName, String agentId, long time) {
-    Optional<BaragonKnownAgentMetadata> maybeAgent = getKnownAgentMetadata(
-      clusterName,
-      agentId
+    writeToZk(String.format(KNOWN_AGENTS_LAST_SEEN_FORMAT, clusterName, agentId), time);
+  }
+
+  /**
+   * An ephemeral node that exists for as long as the agent's ZooKeeper session does. The caller
+   * is responsible for starting and closing it
+   */
+  public PersistentNode createLivenessNode(String clusterName, String agentId) {
+    return new PersistentNode(
+      curatorFramework,
+      CreateMode.EPHEMERAL,
+      false,
+      String.format(LIVE_AGENTS_GROUP_HOST_FORMAT, clusterName, agentId),
+      new byte[0]
+    );
+  }
+
+  private Set<String> getLiveAgentIds(String clusterName) {
+    return new HashSet<>(
+      getChildren(String.format(LIVE_AGENTS_GROUP_HOSTS_FORMAT, clusterName))
     );
-    if (maybeAgent.isPresent()) {
-      maybeAgent.get().setLastSeenAt(time);
-      writeToZk(
-        String.format(
-          KNOWN_AGENTS_GROUP_HOST_FORMAT,
-          clusterName,
-          maybeAgent.get().getAgentId()
-        ),
-        maybeAgent.get()
+  }
+
+  private Map<String, Long> fetchLastSeenAts(Collection<String> paths) {
+    if (paths.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    try {
+      return zkFetcher.fetchDataInParallel(
+        paths,
+        new BaragonDeserializer<>(objectMapper, Long.class)
       );
-    } else {
-      LOG.error("Could not fetch known agent metadata to update lastSeenAt time");
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * A live agent was seen just now. Otherwise use the newest of the timestamp stored with the
+   * metadata, which older agents still update, and the separate last-seen node
+   */
+  private BaragonKnownAgentMetadata withLastSeenAt(
+    BaragonKnownAgentMetadata agent,
+    Set<String> liveAgentIds,
+    Optional<Long> lastSeenAt,
+    long now
+  ) {
+    if (liveAgentIds.contains(agent.getAgentId())) {
+      agent.setLastSeenAt(now);
+    } else if (lastSeenAt.isPresent() && lastSeenAt.get() > agent.getLastSeenAt()) {
+      agent.setLastSeenAt(lastSeenAt.get());
     }
+    return agent;
   }
 }
@@ -28,6 +28,8 @@ import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.api.transaction.CuratorTransaction;
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
 import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -87,6 +89,62 @@ public class BaragonStateDatastore extends AbstractDataStore {
     return upstreams;
   }
 
+  /**
+   * Read a service and its upstreams, leaving the watcher on the service node so it fires once the
+   * service, its upstreams or the node itself change. The node's data and children versions are
+   * stored in stat.
+   */
+  public Optional<BaragonServiceState> getServiceStateAndWatch(
+    String serviceId,
+    Watcher watcher,
+    Stat stat
+  ) {
+    final long start = System.currentTimeMillis();
+    final String servicePath = String.format(SERVICE_FORMAT, serviceId);
+    try {
+      byte[] data = curatorFramework
+        .getData()
+        .storingStatIn(stat)
+        .usingWatcher(watcher)
+        .forPath(servicePath);
+      List<String> upstreamNodes = curatorFramework
+        .getChildren()
+        .storingStatIn(stat)
+        .usingWatcher(watcher)
+        .forPath(servicePath);
+      log(
+        OperationType.READ,
+        Optional.of(upstreamNodes.size()),
+        Optional.of(data.length),
+        start,
+        servicePath
+      );
+      if (data.length == 0) {
+        return Optional.absent();
+      }
+      Collection<UpstreamInfo> upstreams = new ArrayList<>(upstreamNodes.size());
+      for (String node : upstreamNodes) {
+        upstreams.add(UpstreamInfo.fromString(node));
+      }
+      return Optional.of(
+        new BaragonServiceState(
+          deserialize(data, BaragonService.class, servicePath),
+          upstreams
+        )
+      );
+    } catch (KeeperException.NoNodeException nne) {
+      try {
+        // Still want to hear about it if the service is created again
+        curatorFramework.checkExists().usingWatcher(watcher).forPath(servicePath);
+      } catch (Exception e) {
+        throw Throwables.propagate(e);
+      }
+      return Optional.absent();
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
   public void saveService(BaragonService service) {
     String servicePath = String.format(SERVICE_FORMAT, service.getServiceId());
     writeToZk(servicePath, service);
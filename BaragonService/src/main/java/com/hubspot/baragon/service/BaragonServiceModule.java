@@ -38,9 +38,11 @@ import com.hubspot.baragon.service.config.ElbConfiguration;
 import com.hubspot.baragon.service.config.SentryConfiguration;
 import com.hubspot.baragon.service.edgecache.EdgeCache;
 import com.hubspot.baragon.service.edgecache.cloudflare.CloudflareEdgeCache;
+import com.hubspot.baragon.service.edgecache.cloudflare.CloudflarePurgeQueue;
 import com.hubspot.baragon.service.edgecache.cloudflare.client.CloudflareClient;
 import com.hubspot.baragon.service.elb.ApplicationLoadBalancer;
 import com.hubspot.baragon.service.elb.ClassicLoadBalancer;
+import com.hubspot.baragon.service.elb.RateLimitedAwsClient;
 import com.hubspot.baragon.service.exceptions.BaragonExceptionNotifier;
 import com.hubspot.baragon.service.gcloud.GoogleCloudManager;
 import com.hubspot.baragon.service.healthcheck.ZooKeeperHealthcheck;
@@ -52,12 +54,14 @@ import com.hubspot.baragon.service.listeners.RequestWorkerListener;
 import com.hubspot.baragon.service.managed.BaragonExceptionNotifierManaged;
 import com.hubspot.baragon.service.managed.BaragonGraphiteReporterManaged;
 import com.hubspot.baragon.service.managed.BaragonManaged;
+import com.hubspot.baragon.service.managers.AgentConnectionPool;
 import com.hubspot.baragon.service.managers.AgentManager;
 import com.hubspot.baragon.service.managers.ElbManager;
 import com.hubspot.baragon.service.managers.PurgeCacheManager;
 import com.hubspot.baragon.service.managers.RenderedConfigsManager;
 import com.hubspot.baragon.service.managers.RequestManager;
 import com.hubspot.baragon.service.managers.ServiceManager;
+import com.hubspot.baragon.service.managers.StateVersionNotifier;
 import com.hubspot.baragon.service.managers.StatusManager;
 import com.hubspot.baragon.service.resources.BaragonResourcesModule;
 import com.hubspot.baragon.service.worker.BaragonElbSyncWorker;
@@ -134,10 +138,12 @@ public class BaragonServiceModule extends DropwizardAwareModule<BaragonConfigura
     binder.bind(BaragonExceptionNotifierManaged.class).asEagerSingleton();
     binder.bind(BaragonGraphiteReporterManaged.class).asEagerSingleton();
     binder.bind(BaragonManaged.class).asEagerSingleton();
+    binder.bind(StateVersionNotifier.class).asEagerSingleton();
+    binder.bind(AgentConnectionPool.class).asEagerSingleton();
 
     // Managers
     binder.bind(AgentManager.class).in(Scopes.SINGLETON);
-    binder.bind(ElbManager.class).in(Scopes.SINGLETON);
+    binder.bind(ElbManager.class).asEagerSingleton();
     binder.bind(RequestManager.class).in(Scopes.SINGLETON);
     binder.bind(ServiceManager.class).in(Scopes.SINGLETON);
     binder.bind(StatusManager.class).in(Scopes.SINGLETON);
@@ -148,7 +154,8 @@ public class BaragonServiceModule extends DropwizardAwareModule<BaragonConfigura
 
     // Edge Cache
     binder.bind(CloudflareEdgeCache.class);
-    binder.bind(CloudflareClient.class);
+    binder.bind(CloudflareClient.class).asEagerSingleton();
+    binder.bind(CloudflarePurgeQueue.class).asEagerSingleton();
     binder
       .bind(EdgeCache.class)
       .to(
@@ -437,7 +444,11 @@ public class BaragonServiceModule extends DropwizardAwareModule<BaragonConfigura
       elbClient.setEndpoint(configuration.get().getAwsEndpoint().get());
     }
 
-    return elbClient;
+    return RateLimitedAwsClient.wrap(
+      AmazonElasticLoadBalancing.class,
+      elbClient,
+      configuration.or(new ElbConfiguration()).getAwsElbClientRequestsPerSecond()
+    );
   }
 
   @Provides
@@ -539,7 +550,11 @@ public class BaragonServiceModule extends DropwizardAwareModule<BaragonConfigura
       elbClient.setEndpoint(configuration.get().getAwsEndpoint().get());
     }
 
-    return elbClient;
+    return RateLimitedAwsClient.wrap(
+      com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancing.class,
+      elbClient,
+      configuration.or(new ElbConfiguration()).getAwsElbClientRequestsPerSecond()
+    );
   }
 
   @Singleton
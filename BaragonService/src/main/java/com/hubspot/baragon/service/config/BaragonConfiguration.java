@@ -112,6 +112,17 @@ public class BaragonConfiguration extends Configuration {
 
   private int maxConcurrentRequestsPerAgent = 3;
 
+  @JsonProperty("agentConnectionIdleTimeoutMs")
+  @Min(0)
+  private int agentConnectionIdleTimeoutMs = 25000;
+
+  @JsonProperty("agentRequestMinTimeoutMs")
+  @Min(1)
+  private Integer agentRequestMinTimeoutMs = null;
+
+  @JsonProperty("agentBatchHedgingEnabled")
+  private boolean agentBatchHedgingEnabled = false;
+
   public ZooKeeperConfiguration getZooKeeperConfiguration() {
     return zooKeeperConfiguration;
   }
@@ -317,4 +328,28 @@ public class BaragonConfiguration extends Configuration {
   public void setMaxConcurrentRequestsPerAgent(int maxConcurrentRequestsPerAgent) {
     this.maxConcurrentRequestsPerAgent = maxConcurrentRequestsPerAgent;
   }
+
+  public int getAgentConnectionIdleTimeoutMs() {
+    return agentConnectionIdleTimeoutMs;
+  }
+
+  public void setAgentConnectionIdleTimeoutMs(int agentConnectionIdleTimeoutMs) {
+    this.agentConnectionIdleTimeoutMs = agentConnectionIdleTimeoutMs;
+  }
+
+  public Optional<Integer> getAgentRequestMinTimeoutMs() {
+    return Optional.fromNullable(agentRequestMinTimeoutMs);
+  }
+
+  public void setAgentRequestMinTimeoutMs(Integer agentRequestMinTimeoutMs) {
+    this.agentRequestMinTimeoutMs = agentRequestMinTimeoutMs;
+  }
+
+  public boolean isAgentBatchHedgingEnabled() {
+    return agentBatchHedgingEnabled;
+  }
+
+  public void setAgentBatchHedgingEnabled(boolean agentBatchHedgingEnabled) {
+    this.agentBatchHedgingEnabled = agentBatchHedgingEnabled;
+  }
 }
@@ -21,6 +21,27 @@ public class EdgeCacheConfiguration {
   @NotNull
   private Map<String, String> integrationSettings = new HashMap<>();
 
+  @JsonProperty
+  private long cacheRefreshSeconds = 300;
+
+  @JsonProperty
+  private boolean asyncPurgeEnabled = false;
+
+  @JsonProperty
+  private long purgeWindowMillis = 1000;
+
+  @JsonProperty
+  private int maxTagsPerPurge = 30;
+
+  @JsonProperty
+  private double purgeRequestsPerSecond = 4;
+
+  @JsonProperty
+  private int maxPurgeAttempts = 5;
+
+  @JsonProperty
+  private long purgeRetryBaseMillis = 1000;
+
   public boolean isEnabled() {
     return enabled;
   }
@@ -49,4 +70,67 @@ public class EdgeCacheConfiguration {
     this.integrationSettings = integrationSettings;
     return this;
   }
+
+  public long getCacheRefreshSeconds() {
+    return cacheRefreshSeconds;
+  }
+
+  public EdgeCacheConfiguration setCacheRefreshSeconds(long cacheRefreshSeconds) {
+    this.cacheRefreshSeconds = cacheRefreshSeconds;
+    return this;
+  }
+
+  public boolean isAsyncPurgeEnabled() {
+    return asyncPurgeEnabled;
+  }
+
+  public EdgeCacheConfiguration setAsyncPurgeEnabled(boolean asyncPurgeEnabled) {
+    this.asyncPurgeEnabled = asyncPurgeEnabled;
+    return this;
+  }
+
+  public long getPurgeWindowMillis() {
+    return purgeWindowMillis;
+  }
+
+  public EdgeCacheConfiguration setPurgeWindowMillis(long purgeWindowMillis) {
+    this.purgeWindowMillis = purgeWindowMillis;
+    return this;
+  }
+
+  public int getMaxTagsPerPurge() {
+    return maxTagsPerPurge;
+  }
+
+  public EdgeCacheConfiguration setMaxTagsPerPurge(int maxTagsPerPurge) {
+    this.maxTagsPerPurge = maxTagsPerPurge;
+    return this;
+  }
+
+  public double getPurgeRequestsPerSecond() {
+    return purgeRequestsPerSecond;
+  }
+
+  public EdgeCacheConfiguration setPurgeRequestsPerSecond(double purgeRequestsPerSecond) {
+    this.purgeRequestsPerSecond = purgeRequestsPerSecond;
+    return this;
+  }
+
+  public int getMaxPurgeAttempts() {
+    return maxPurgeAttempts;
+  }
+
+  public EdgeCacheConfiguration setMaxPurgeAttempts(int maxPurgeAttempts) {
+    this.maxPurgeAttempts = maxPurgeAttempts;
+    return this;
+  }
+
+  public long getPurgeRetryBaseMillis() {
+    return purgeRetryBaseMillis;
+  }
+
+  public EdgeCacheConfiguration setPurgeRetryBaseMillis(long purgeRetryBaseMillis) {
+    this.purgeRetryBaseMillis = purgeRetryBaseMillis;
+    return this;
+  }
 }
@@ -60,6 +60,30 @@ public class ElbConfiguration {
 
   private long defaultCheckInWaitTimeMs = 5000;
 
+  @JsonProperty("albSyncDescribeThreads")
+  private int albSyncDescribeThreads = 4;
+
+  @JsonProperty("syncThreads")
+  private int syncThreads = 4;
+
+  @JsonProperty("awsElbClientRequestsPerSecond")
+  private double awsElbClientRequestsPerSecond = 0;
+
+  @JsonProperty("asyncCheckInEnabled")
+  private boolean asyncCheckInEnabled = false;
+
+  @JsonProperty("checkInThreads")
+  private int checkInThreads = 32;
+
+  @JsonProperty("checkInQueueSize")
+  private int checkInQueueSize = 256;
+
+  @JsonProperty("instanceHealthCacheMillis")
+  private long instanceHealthCacheMillis = 2000;
+
+  @JsonProperty("unchangedGroupSyncIntervalSeconds")
+  private int unchangedGroupSyncIntervalSeconds = 900;
+
   public boolean isEnabled() {
     return enabled;
   }
@@ -201,4 +225,70 @@ public class ElbConfiguration {
     this.awsElbClientBackoffMaxBackoffMilliseconds =
       awsElbClientBackoffMaxBackoffMilliseconds;
   }
+
+  public int getAlbSyncDescribeThreads() {
+    return albSyncDescribeThreads;
+  }
+
+  public void setAlbSyncDescribeThreads(int albSyncDescribeThreads) {
+    this.albSyncDescribeThreads = albSyncDescribeThreads;
+  }
+
+  public int getSyncThreads() {
+    return syncThreads;
+  }
+
+  public void setSyncThreads(int syncThreads) {
+    this.syncThreads = syncThreads;
+  }
+
+  public double getAwsElbClientRequestsPerSecond() {
+    return awsElbClientRequestsPerSecond;
+  }
+
+  public void setAwsElbClientRequestsPerSecond(double awsElbClientRequestsPerSecond) {
+    this.awsElbClientRequestsPerSecond = awsElbClientRequestsPerSecond;
+  }
+
+  public boolean isAsyncCheckInEnabled() {
+    return asyncCheckInEnabled;
+  }
+
+  public void setAsyncCheckInEnabled(boolean asyncCheckInEnabled) {
+    this.asyncCheckInEnabled = asyncCheckInEnabled;
+  }
+
+  public int getCheckInThreads() {
+    return checkInThreads;
+  }
+
+  public void setCheckInThreads(int checkInThreads) {
+    this.checkInThreads = checkInThreads;
+  }
+
+  public int getCheckInQueueSize() {
+    return checkInQueueSize;
+  }
+
+  public void setCheckInQueueSize(int checkInQueueSize) {
+    this.checkInQueueSize = checkInQueueSize;
+  }
+
+  public long getInstanceHealthCacheMillis() {
+    return instanceHealthCacheMillis;
+  }
+
+  public void setInstanceHealthCacheMillis(long instanceHealthCacheMillis) {
+    this.instanceHealthCacheMillis = instanceHealthCacheMillis;
+  }
+
+  public int getUnchangedGroupSyncIntervalSeconds() {
+    return unchangedGroupSyncIntervalSeconds;
+  }
+
+  public void setUnchangedGroupSyncIntervalSeconds(
+    int unchangedGroupSyncIntervalSeconds
+  ) {
+    this.unchangedGroupSyncIntervalSeconds = unchangedGroupSyncIntervalSeconds;
+  }
 }
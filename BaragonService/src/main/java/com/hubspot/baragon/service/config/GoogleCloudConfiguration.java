@@ -5,6 +5,7 @@ public class GoogleCloudConfiguration {
   private String googleCredentialsFile = null;
   private String googleCredentials = null;
   private long defaultCheckInWaitTimeMs = 10000;
+  private long healthCacheMillis = 2000;
 
   public boolean isEnabled() {
     return enabled;
@@ -37,4 +38,12 @@ public class GoogleCloudConfiguration {
   public void setDefaultCheckInWaitTimeMs(long defaultCheckInWaitTimeMs) {
     this.defaultCheckInWaitTimeMs = defaultCheckInWaitTimeMs;
   }
+
+  public long getHealthCacheMillis() {
+    return healthCacheMillis;
+  }
+
+  public void setHealthCacheMillis(long healthCacheMillis) {
+    this.healthCacheMillis = healthCacheMillis;
+  }
 }
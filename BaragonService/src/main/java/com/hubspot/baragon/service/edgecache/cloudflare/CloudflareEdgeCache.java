@@ -33,19 +33,24 @@ public class CloudflareEdgeCache implements EdgeCache {
   private static final Logger LOG = LoggerFactory.getLogger(CloudflareEdgeCache.class);
 
   private final CloudflareClient cf;
+  private final CloudflarePurgeQueue purgeQueue;
   private final EdgeCacheConfiguration edgeCacheConfiguration;
 
   @Inject
   public CloudflareEdgeCache(
     CloudflareClient cf,
+    CloudflarePurgeQueue purgeQueue,
     EdgeCacheConfiguration edgeCacheConfiguration
   ) {
     this.cf = cf;
+    this.purgeQueue = purgeQueue;
     this.edgeCacheConfiguration = edgeCacheConfiguration;
   }
 
   /**
    * Invalidation will eventually occur when the TTL expires, so it's not a showstopper if this fails.
+   * With asyncPurgeEnabled the purge is only queued here, and counts as successful once queued.
+   * CloudflarePurgeQueue reports a queued purge it has to give up on.
    */
   @Override
   public boolean invalidateIfNecessary(BaragonRequest request) {
@@ -92,15 +97,24 @@ public class CloudflareEdgeCache implements EdgeCache {
             request.getLoadBalancerService().getServiceId()
           );
 
-          LOG.debug(
-            "Sending cache purge request against {} for {} to Cloudflare...",
-            matchingDnsRecord.get().getName(),
-            cacheTag
-          );
+          if (edgeCacheConfiguration.isAsyncPurgeEnabled()) {
+            LOG.debug(
+              "Queueing cache purge request against {} for {}",
+              matchingDnsRecord.get().getName(),
+              cacheTag
+            );
+            purgeQueue.enqueue(zoneId, cacheTag);
+          } else {
+            LOG.debug(
+              "Sending cache purge request against {} for {} to Cloudflare...",
+              matchingDnsRecord.get().getName(),
+              cacheTag
+            );
 
-          allSucceeded =
-            cf.purgeEdgeCache(zoneId, Collections.singletonList(cacheTag)) &&
-            allSucceeded;
+            allSucceeded =
+              cf.purgeEdgeCache(zoneId, Collections.singletonList(cacheTag)) &&
+              allSucceeded;
+          }
         }
       }
       return allSucceeded;
@@ -0,0 +1,188 @@
+package com.hubspot.baragon.service.edgecache.cloudflare;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.hubspot.baragon.service.config.EdgeCacheConfiguration;
+import com.hubspot.baragon.service.edgecache.cloudflare.client.CloudflareClient;
+import com.hubspot.baragon.service.edgecache.cloudflare.client.CloudflareClientException;
+import com.hubspot.baragon.service.exceptions.BaragonExceptionNotifier;
+import io.dropwizard.lifecycle.Managed;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects cache tags to purge per zone and sends them from a background thread, so a wave of deploys
+ * costs a handful of purge calls instead of one per service. Purges are sent at most maxTagsPerPurge
+ * tags at a time, no faster than purgeRequestsPerSecond, and failed purges are retried with backoff.
+ * The request that queued a purge has already been answered, so a purge that is given up on is
+ * counted in the failed meter and sent to the exception notifier.
+ */
+@Singleton
+public class CloudflarePurgeQueue implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(CloudflarePurgeQueue.class);
+
+  private final CloudflareClient cf;
+  private final EdgeCacheConfiguration edgeCacheConfiguration;
+  private final BaragonExceptionNotifier exceptionNotifier;
+  private final Meter failedPurges;
+  private final Optional<RateLimiter> rateLimiter;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+    new ThreadFactoryBuilder()
+      .setNameFormat("cloudflare-purge-%d")
+      .setDaemon(true)
+      .build()
+  );
+
+  //               <ZoneId, CacheTags>
+  private final Map<String, Set<String>> pendingTags = new ConcurrentHashMap<>();
+
+  @Inject
+  public CloudflarePurgeQueue(
+    CloudflareClient cf,
+    EdgeCacheConfiguration edgeCacheConfiguration,
+    BaragonExceptionNotifier exceptionNotifier,
+    MetricRegistry metricRegistry
+  ) {
+    this.cf = cf;
+    this.edgeCacheConfiguration = edgeCacheConfiguration;
+    this.exceptionNotifier = exceptionNotifier;
+    this.failedPurges =
+      metricRegistry.meter(MetricRegistry.name(CloudflarePurgeQueue.class, "failed"));
+    this.rateLimiter =
+      edgeCacheConfiguration.getPurgeRequestsPerSecond() > 0
+        ? Optional.of(
+          RateLimiter.create(edgeCacheConfiguration.getPurgeRequestsPerSecond())
+        )
+        : Optional.empty();
+  }
+
+  @Override
+  public void start() {
+    if (
+      edgeCacheConfiguration.isEnabled() && edgeCacheConfiguration.isAsyncPurgeEnabled()
+    ) {
+      long windowMillis = Math.max(1, edgeCacheConfiguration.getPurgeWindowMillis());
+      executor.scheduleWithFixedDelay(
+        this::flush,
+        windowMillis,
+        windowMillis,
+        TimeUnit.MILLISECONDS
+      );
+    }
+  }
+
+  /**
+   * Purges still waiting are sent once without retries. Anything missed expires with its TTL.
+   */
+  @Override
+  public void stop() {
+    executor.shutdownNow();
+    flush();
+  }
+
+  public void enqueue(String zoneId, String cacheTag) {
+    pendingTags.compute(
+      zoneId,
+      (id, tags) -> {
+        Set<String> zoneTags = tags == null ? new HashSet<>() : tags;
+        zoneTags.add(cacheTag);
+        return zoneTags;
+      }
+    );
+  }
+
+  public int getPendingCount() {
+    return pendingTags.values().stream().mapToInt(Set::size).sum();
+  }
+
+  @VisibleForTesting
+  long getFailedCount() {
+    return failedPurges.getCount();
+  }
+
+  void flush() {
+    for (String zoneId : new ArrayList<>(pendingTags.keySet())) {
+      Set<String> tags = pendingTags.remove(zoneId);
+      if (tags == null) {
+        continue;
+      }
+      for (List<String> batch : Iterables.partition(
+        tags,
+        Math.max(1, edgeCacheConfiguration.getMaxTagsPerPurge())
+      )) {
+        purge(zoneId, batch, 1);
+      }
+    }
+  }
+
+  private void purge(String zoneId, List<String> cacheTags, int attempt) {
+    rateLimiter.ifPresent(RateLimiter::acquire);
+    boolean success;
+    try {
+      success = cf.purgeEdgeCache(zoneId, cacheTags);
+    } catch (CloudflareClientException e) {
+      LOG.warn("Unable to purge {} cache tag(s) in zone {}", cacheTags.size(), zoneId, e);
+      success = false;
+    }
+    if (success) {
+      LOG.debug("Purged {} cache tag(s) in zone {}", cacheTags.size(), zoneId);
+      return;
+    }
+
+    if (attempt >= edgeCacheConfiguration.getMaxPurgeAttempts()) {
+      LOG.error(
+        "Giving up on purging cache tag(s) {} in zone {} after {} attempts",
+        cacheTags,
+        zoneId,
+        attempt
+      );
+      failedPurges.mark();
+      exceptionNotifier.notify(
+        "Giving up on Cloudflare cache purge",
+        ImmutableMap.of(
+          "zoneId",
+          zoneId,
+          "cacheTags",
+          cacheTags.toString(),
+          "attempts",
+          Integer.toString(attempt)
+        )
+      );
+      return;
+    }
+    long backoffMillis =
+      edgeCacheConfiguration.getPurgeRetryBaseMillis() *
+      (1L << Math.min(attempt - 1, 16));
+    try {
+      executor.schedule(
+        () -> purge(zoneId, cacheTags, attempt + 1),
+        backoffMillis,
+        TimeUnit.MILLISECONDS
+      );
+    } catch (RejectedExecutionException e) {
+      LOG.warn(
+        "Not retrying purge of {} cache tag(s) in zone {}, shutting down",
+        cacheTags.size(),
+        zoneId
+      );
+    }
+  }
+}
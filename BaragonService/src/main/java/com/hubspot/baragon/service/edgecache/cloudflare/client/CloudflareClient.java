@@ -3,11 +3,14 @@ package com.hubspot.baragon.service.edgecache.cloudflare.client;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
-import com.google.common.base.Supplier;
-import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
@@ -25,6 +28,7 @@ import com.hubspot.horizon.HttpRequest.Method;
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
 import com.ning.http.client.Response;
+import io.dropwizard.lifecycle.Managed;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -33,14 +37,24 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Zones and each zone's DNS records are listed once and then refreshed in the background every
+ * cacheRefreshSeconds, so purges never wait on a full listing. A zone is listed in the background the
+ * first time it is asked about. Until then, and for names missing from the listing, a single record is
+ * looked up by name instead.
+ */
 @Singleton
-public class CloudflareClient {
+public class CloudflareClient implements Managed {
   private static final Logger LOG = LoggerFactory.getLogger(CloudflareClient.class);
 
   private static final int MAX_ZONES_PER_PAGE = 50;
@@ -48,14 +62,24 @@ public class CloudflareClient {
 
   private final AsyncHttpClient httpClient;
   private final ObjectMapper objectMapper;
+  private final EdgeCacheConfiguration edgeCacheConfiguration;
   private final String apiBase;
   private final String apiEmail;
   private final String apiKey;
-
-  //                                  <ZoneId, CloudflareZone>
-  private final Supplier<Map<String, List<CloudflareZone>>> zoneCache;
+  private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(
+    new ThreadFactoryBuilder()
+      .setNameFormat("cloudflare-cache-refresh-%d")
+      .setDaemon(true)
+      .build()
+  );
+
+  //                                   <ZoneName, CloudflareZone>
+  private final AtomicReference<Map<String, List<CloudflareZone>>> zoneCache = new AtomicReference<>();
   //                        <ZoneId,   <DnsName, CloudflareDnsRecord>>
   private final LoadingCache<String, Map<String, CloudflareDnsRecord>> dnsRecordCache;
+  //                 <ZoneId/DnsName, CloudflareDnsRecord>
+  private final Cache<String, CloudflareDnsRecord> dnsRecordLookups;
+  private final Set<String> loadingZoneIds = ConcurrentHashMap.newKeySet();
 
   @Inject
   public CloudflareClient(
@@ -65,32 +89,19 @@ public class CloudflareClient {
   ) {
     this.httpClient = httpClient;
     this.objectMapper = objectMapper;
+    this.edgeCacheConfiguration = edgeCacheConfiguration;
     Map<String, String> integrationSettings = edgeCacheConfiguration.getIntegrationSettings();
     this.apiBase = integrationSettings.get("apiBase");
     this.apiEmail = integrationSettings.get("apiEmail");
     this.apiKey = integrationSettings.get("apiKey");
 
-    this.zoneCache =
-      Suppliers.memoizeWithExpiration(
-        () -> {
-          try {
-            return retrieveAllZones()
-              .stream()
-              .collect(Collectors.groupingBy(CloudflareZone::getName));
-          } catch (CloudflareClientException e) {
-            LOG.error("Unable to refresh Cloudflare zone cache", e);
-            return new ConcurrentHashMap<>();
-          }
-        },
-        10,
-        TimeUnit.MINUTES
-      );
-
+    long refreshSeconds = Math.max(1, edgeCacheConfiguration.getCacheRefreshSeconds());
     this.dnsRecordCache =
       CacheBuilder
         .newBuilder()
         .maximumSize(10_000)
-        .expireAfterWrite(10, TimeUnit.MINUTES)
+        .refreshAfterWrite(refreshSeconds, TimeUnit.SECONDS)
+        .expireAfterWrite(refreshSeconds * 2, TimeUnit.SECONDS)
         .build(
           new CacheLoader<String, Map<String, CloudflareDnsRecord>>() {
 
@@ -109,8 +120,65 @@ public class CloudflareClient {
                   )
                 );
             }
+
+            @Override
+            public ListenableFuture<Map<String, CloudflareDnsRecord>> reload(
+              String zoneId,
+              Map<String, CloudflareDnsRecord> oldRecords
+            ) {
+              ListenableFutureTask<Map<String, CloudflareDnsRecord>> task = ListenableFutureTask.create(
+                () -> load(zoneId)
+              );
+              refreshExecutor.execute(task);
+              return task;
+            }
           }
         );
+    this.dnsRecordLookups =
+      CacheBuilder
+        .newBuilder()
+        .expireAfterWrite(refreshSeconds, TimeUnit.SECONDS)
+        .build();
+  }
+
+  @Override
+  public void start() {
+    if (edgeCacheConfiguration.isEnabled()) {
+      long refreshSeconds = Math.max(1, edgeCacheConfiguration.getCacheRefreshSeconds());
+      refreshExecutor.scheduleWithFixedDelay(
+        this::refreshCaches,
+        0,
+        refreshSeconds,
+        TimeUnit.SECONDS
+      );
+    }
+  }
+
+  @Override
+  public void stop() {
+    refreshExecutor.shutdownNow();
+  }
+
+  /**
+   * Zones are swapped in whole once listed, and the DNS records of every zone seen so far are reloaded
+   * in the background. Lookups keep being answered from the previous listing until then.
+   */
+  private void refreshCaches() {
+    try {
+      refreshZones();
+    } catch (CloudflareClientException e) {
+      LOG.error("Unable to refresh Cloudflare zone cache", e);
+    }
+    dnsRecordCache.asMap().keySet().forEach(dnsRecordCache::refresh);
+  }
+
+  private Map<String, List<CloudflareZone>> refreshZones()
+    throws CloudflareClientException {
+    Map<String, List<CloudflareZone>> zones = retrieveAllZones()
+      .stream()
+      .collect(Collectors.groupingBy(CloudflareZone::getName));
+    zoneCache.set(zones);
+    return zones;
   }
 
   public boolean purgeEdgeCache(String zoneId, List<String> cacheTags)
@@ -167,6 +235,7 @@ public class CloudflareClient {
       Optional.absent(),
       Optional.absent(),
       Optional.absent(),
+      Optional.absent(),
       Optional.absent()
     );
   }
@@ -178,7 +247,8 @@ public class CloudflareClient {
     Optional<Integer> page,
     Optional<Integer> perPage,
     Optional<String> order,
-    Optional<String> direction
+    Optional<String> direction,
+    Optional<String> name
   )
     throws CloudflareClientException {
     BoundRequestBuilder builder;
@@ -211,6 +281,7 @@ public class CloudflareClient {
       .forEach(p -> builder.addQueryParam("per_page", perPage.get().toString()));
     order.asSet().forEach(o -> builder.addQueryParam("order", order.get()));
     direction.asSet().forEach(d -> builder.addQueryParam("direction", direction.get()));
+    name.asSet().forEach(n -> builder.addQueryParam("name", name.get()));
 
     try {
       return builder.execute().get();
@@ -226,8 +297,26 @@ public class CloudflareClient {
     return response.getStatusCode() >= 200 && response.getStatusCode() < 300;
   }
 
+  /**
+   * @return the zones with this name, or null if there are none or the zones could not be listed
+   *         yet. A failed listing is tried again on the next lookup.
+   */
   public List<CloudflareZone> getZone(String name) throws CloudflareClientException {
-    return zoneCache.get().get(name);
+    Map<String, List<CloudflareZone>> zones = zoneCache.get();
+    if (zones == null) {
+      synchronized (zoneCache) {
+        zones = zoneCache.get();
+        if (zones == null) {
+          try {
+            zones = refreshZones();
+          } catch (CloudflareClientException e) {
+            LOG.error("Unable to refresh Cloudflare zone cache", e);
+            return null;
+          }
+        }
+      }
+    }
+    return zones.get(name);
   }
 
   public List<CloudflareZone> retrieveAllZones() throws CloudflareClientException {
@@ -276,13 +365,75 @@ public class CloudflareClient {
 
   public CloudflareDnsRecord getDnsRecord(String zoneId, String name)
     throws CloudflareClientException {
+    Map<String, CloudflareDnsRecord> dnsRecords = dnsRecordCache.getIfPresent(zoneId);
+    if (dnsRecords == null) {
+      loadDnsRecordsInBackground(zoneId);
+    } else if (dnsRecords.containsKey(name)) {
+      return dnsRecords.get(name);
+    }
+
+    // Only records that were found are kept, so a record added after a miss is seen on the next lookup
+    String key = String.format("%s/%s", zoneId, name);
+    CloudflareDnsRecord dnsRecord = dnsRecordLookups.getIfPresent(key);
+    if (dnsRecord == null) {
+      dnsRecord = retrieveDnsRecord(zoneId, name);
+      if (dnsRecord != null) {
+        dnsRecordLookups.put(key, dnsRecord);
+      }
+    }
+    return dnsRecord;
+  }
+
+  CloudflareDnsRecord getDnsRecordIfListed(String zoneId, String name) {
+    Map<String, CloudflareDnsRecord> dnsRecords = dnsRecordCache.getIfPresent(zoneId);
+    return dnsRecords == null ? null : dnsRecords.get(name);
+  }
+
+  private void loadDnsRecordsInBackground(String zoneId) {
+    if (!loadingZoneIds.add(zoneId)) {
+      return;
+    }
     try {
-      return dnsRecordCache.get(zoneId).get(name);
-    } catch (ExecutionException e) {
-      throw new CloudflareClientException(e.getMessage(), e.getCause());
+      refreshExecutor.execute(
+        () -> {
+          try {
+            dnsRecordCache.get(zoneId);
+          } catch (ExecutionException | UncheckedExecutionException e) {
+            LOG.error("Unable to list Cloudflare DNS records for zone {}", zoneId, e);
+          } finally {
+            loadingZoneIds.remove(zoneId);
+          }
+        }
+      );
+    } catch (RejectedExecutionException e) {
+      loadingZoneIds.remove(zoneId);
     }
   }
 
+  public CloudflareDnsRecord retrieveDnsRecord(String zoneId, String name)
+    throws CloudflareClientException {
+    Response response = request(
+      Method.GET,
+      String.format("zones/%s/dns_records", zoneId),
+      Optional.absent(),
+      Optional.absent(),
+      Optional.absent(),
+      Optional.absent(),
+      Optional.absent(),
+      Optional.of(name)
+    );
+    CloudflareListDnsRecordsResponse cloudflareResponse = parseDnsRecords(response);
+    if (cloudflareResponse.getResult() == null) {
+      return null;
+    }
+    return cloudflareResponse
+      .getResult()
+      .stream()
+      .filter(r -> name.equals(r.getName()))
+      .findFirst()
+      .orElse(null);
+  }
+
   public Set<CloudflareDnsRecord> retrieveDnsRecords(String zoneId)
     throws CloudflareClientException {
     CloudflareListDnsRecordsResponse cloudflareResponse = listDnsRecordsPaged(zoneId, 1);
@@ -311,6 +462,11 @@ public class CloudflareClient {
       page,
       MAX_DNS_RECORDS_PER_PAGE
     );
+    return parseDnsRecords(response);
+  }
+
+  private CloudflareListDnsRecordsResponse parseDnsRecords(Response response)
+    throws CloudflareClientException {
     if (!isSuccess(response)) {
       try {
         CloudflareResponse parsedResponse = objectMapper.readValue(
@@ -354,6 +510,7 @@ public class CloudflareClient {
       Optional.of(page),
       Optional.of(perPage),
       Optional.absent(),
+      Optional.absent(),
       Optional.absent()
     );
   }
@@ -0,0 +1,186 @@
+package com.hubspot.baragon.service.elb;
+
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetDescription;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetGroup;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthDescription;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthStateEnum;
+import com.google.common.base.Optional;
+import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.BaragonGroup;
+import com.hubspot.baragon.models.BaragonKnownAgentMetadata;
+import com.hubspot.baragon.models.RegisterBy;
+import com.hubspot.baragon.models.TrafficSource;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Which agents belong in which target groups, worked out once per sync pass. Registering and
+ * de-registering look agents and targets up here instead of scanning every agent and target of a
+ * target group for each one.
+ */
+class AlbMembershipIndex {
+  //               <BaragonGroup, Agents>
+  private final Map<String, Collection<BaragonAgentMetadata>> agentsByGroup = new HashMap<>();
+  //               <BaragonGroup, <RegisterBy, Agent ids>>
+  private final Map<String, Map<RegisterBy, Set<String>>> agentIdsByGroup = new HashMap<>();
+  //               <Agent id, TargetGroupArns>
+  private final Map<String, Set<String>> expectedArnsById = new HashMap<>();
+  //               <BaragonGroup, <InstanceId, KnownAgent>>
+  private final Map<String, Map<String, BaragonKnownAgentMetadata>> knownAgentsByGroup = new ConcurrentHashMap<>();
+  private final Function<String, Collection<BaragonKnownAgentMetadata>> knownAgentsLoader;
+
+  AlbMembershipIndex(
+    Map<BaragonGroup, Map<TrafficSource, TargetGroup>> targetGroupsByBaragonGroup,
+    Function<BaragonGroup, Collection<BaragonAgentMetadata>> agentsLoader,
+    Function<String, Collection<BaragonKnownAgentMetadata>> knownAgentsLoader
+  ) {
+    this.knownAgentsLoader = knownAgentsLoader;
+    for (Map.Entry<BaragonGroup, Map<TrafficSource, TargetGroup>> entry : targetGroupsByBaragonGroup.entrySet()) {
+      String groupName = entry.getKey().getName();
+      Collection<BaragonAgentMetadata> agents = agentsLoader.apply(entry.getKey());
+      agentsByGroup.put(groupName, agents);
+      Map<RegisterBy, Set<String>> agentIds = new HashMap<>();
+      agentIds.put(RegisterBy.INSTANCE_ID, instanceIds(agents));
+      agentIds.put(RegisterBy.PRIVATE_IP, privateIps(agents));
+      agentIdsByGroup.put(groupName, agentIds);
+
+      for (Map.Entry<TrafficSource, TargetGroup> targetGroup : entry
+        .getValue()
+        .entrySet()) {
+        if (targetGroup.getValue() == null) {
+          continue;
+        }
+        for (String id : agentIds.get(targetGroup.getKey().getRegisterBy())) {
+          expectedArnsById
+            .computeIfAbsent(id, key -> new HashSet<>())
+            .add(targetGroup.getValue().getTargetGroupArn());
+        }
+      }
+    }
+  }
+
+  Collection<BaragonAgentMetadata> getAgents(BaragonGroup baragonGroup) {
+    return agentsByGroup.getOrDefault(baragonGroup.getName(), Collections.emptyList());
+  }
+
+  /**
+   * @return the ids the group's agents are registered by in a target group of the given traffic source
+   */
+  Set<String> getAgentIds(BaragonGroup baragonGroup, TrafficSource trafficSource) {
+    return agentIdsByGroup
+      .getOrDefault(baragonGroup.getName(), Collections.emptyMap())
+      .getOrDefault(trafficSource.getRegisterBy(), Collections.emptySet());
+  }
+
+  /**
+   * @return if any baragon group using the target group has an agent registered by this id
+   */
+  boolean isExpectedIn(String id, TargetGroup targetGroup) {
+    return expectedArnsById
+      .getOrDefault(id, Collections.emptySet())
+      .contains(targetGroup.getTargetGroupArn());
+  }
+
+  Optional<BaragonKnownAgentMetadata> getKnownAgent(
+    BaragonGroup baragonGroup,
+    String instanceId
+  ) {
+    return Optional.fromNullable(
+      knownAgentsByGroup
+        .computeIfAbsent(baragonGroup.getName(), this::loadKnownAgents)
+        .get(instanceId)
+    );
+  }
+
+  private Map<String, BaragonKnownAgentMetadata> loadKnownAgents(String groupName) {
+    Map<String, BaragonKnownAgentMetadata> knownAgents = new HashMap<>();
+    for (BaragonKnownAgentMetadata agent : knownAgentsLoader.apply(groupName)) {
+      if (agent.getEc2().getInstanceId().isPresent()) {
+        knownAgents.putIfAbsent(agent.getEc2().getInstanceId().get(), agent);
+      }
+    }
+    return knownAgents;
+  }
+
+  private static Set<String> instanceIds(Collection<BaragonAgentMetadata> agents) {
+    Set<String> instanceIds = new HashSet<>();
+    for (BaragonAgentMetadata agent : agents) {
+      if (agent.getEc2().getInstanceId().isPresent()) {
+        instanceIds.add(agent.getEc2().getInstanceId().get());
+      }
+    }
+    return instanceIds;
+  }
+
+  private static Set<String> privateIps(Collection<BaragonAgentMetadata> agents) {
+    Set<String> privateIps = new HashSet<>();
+    for (BaragonAgentMetadata agent : agents) {
+      if (agent.getEc2().getPrivateIp().isPresent()) {
+        privateIps.add(agent.getEc2().getPrivateIp().get());
+      }
+    }
+    return privateIps;
+  }
+
+  /**
+   * The targets of one target group as described at the start of the pass, with a running count of
+   * the healthy ones so each de-registration can check it is not removing the last of them
+   */
+  static class Targets {
+    //               <Target id, Health>
+    private final Map<String, TargetHealthDescription> healthById = new LinkedHashMap<>();
+    private int healthyCount = 0;
+
+    Targets(Collection<TargetHealthDescription> targetHealth) {
+      for (TargetHealthDescription health : targetHealth) {
+        if (
+          healthById.put(health.getTarget().getId(), health) == null && isHealthy(health)
+        ) {
+          healthyCount++;
+        }
+      }
+    }
+
+    Set<String> getIds() {
+      return healthById.keySet();
+    }
+
+    boolean contains(String id) {
+      return healthById.containsKey(id);
+    }
+
+    TargetDescription getTarget(String id) {
+      return healthById.get(id).getTarget();
+    }
+
+    boolean isHealthy(String id) {
+      TargetHealthDescription health = healthById.get(id);
+      return health != null && isHealthy(health);
+    }
+
+    int getHealthyCount() {
+      return healthyCount;
+    }
+
+    void remove(String id) {
+      TargetHealthDescription health = healthById.remove(id);
+      if (health != null && isHealthy(health)) {
+        healthyCount--;
+      }
+    }
+
+    private static boolean isHealthy(TargetHealthDescription health) {
+      return health
+        .getTargetHealth()
+        .getState()
+        .equals(TargetHealthStateEnum.Healthy.toString());
+    }
+  }
+}
@@ -45,6 +45,7 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.data.BaragonKnownAgentsDatastore;
@@ -59,6 +60,7 @@ import com.hubspot.baragon.models.TrafficSourceType;
 import com.hubspot.baragon.service.BaragonServiceModule;
 import com.hubspot.baragon.service.config.ElbConfiguration;
 import com.hubspot.baragon.service.exceptions.BaragonExceptionNotifier;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -67,6 +69,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -210,22 +217,18 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
           .withTargetGroupArn(targetGroupArn)
           .withTargets(targetDescription)
       );
-      if (!healthResult.getTargetHealthDescriptions().isEmpty()) {
-        switch (
-          healthResult.getTargetHealthDescriptions().get(0).getTargetHealth().getState()
-        ) {
-          case "initial":
-          case "healthy":
-          case "unhealthy":
-          case "draining":
-            break;
-          case "unused":
-          default:
-            state = TrafficSourceState.DONE;
-        }
-      } else {
-        state = TrafficSourceState.DONE;
-      }
+      state =
+        removedState(
+          healthResult.getTargetHealthDescriptions().isEmpty()
+            ? Optional.absent()
+            : Optional.of(
+              healthResult
+                .getTargetHealthDescriptions()
+                .get(0)
+                .getTargetHealth()
+                .getState()
+            )
+        );
     } catch (Exception e) {
       LOG.error("Error fetching target health", e);
     }
@@ -236,6 +239,22 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
     );
   }
 
+  private static TrafficSourceState removedState(Optional<String> targetState) {
+    if (!targetState.isPresent()) {
+      return TrafficSourceState.DONE;
+    }
+    switch (targetState.get()) {
+      case "initial":
+      case "healthy":
+      case "unhealthy":
+      case "draining":
+        return TrafficSourceState.PENDING;
+      case "unused":
+      default:
+        return TrafficSourceState.DONE;
+    }
+  }
+
   @Override
   public AgentCheckInResponse checkRemovedInstance(
     String id,
@@ -342,47 +361,57 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
     TargetGroup targetGroup,
     String id
   ) {
-    TrafficSourceState state = TrafficSourceState.DONE;
-    Optional<String> exception = Optional.absent();
     try {
       DescribeTargetHealthResult healthResult = elbClient.describeTargetHealth(
         new DescribeTargetHealthRequest()
           .withTargetGroupArn(targetGroup.getTargetGroupArn())
           .withTargets(targetDescription)
       );
-      if (!healthResult.getTargetHealthDescriptions().isEmpty()) {
-        String targetState = healthResult
-          .getTargetHealthDescriptions()
-          .get(0)
-          .getTargetHealth()
-          .getState();
-        switch (targetState) {
-          case "initial":
-            state = TrafficSourceState.PENDING;
-            break;
-          case "healthy":
-            state = TrafficSourceState.DONE;
-            break;
-          case "unhealthy":
-          case "draining":
-          case "unused":
-          default:
-            String message = String.format(
-              "Expected agent to be added but was in state %s",
-              targetState
-            );
-            exception = Optional.of(message);
-            LOG.error(message);
-            state = TrafficSourceState.ERROR;
-        }
-      } else {
-        String message = String.format("Instance %s not found in target group", id);
-        LOG.error(message);
-        exception = Optional.of(message);
-        state = TrafficSourceState.ERROR;
-      }
+      return registeredResponse(
+        id,
+        healthResult.getTargetHealthDescriptions().isEmpty()
+          ? Optional.absent()
+          : Optional.of(
+            healthResult.getTargetHealthDescriptions().get(0).getTargetHealth().getState()
+          )
+      );
     } catch (Exception e) {
       LOG.error("Error fetching target health", e);
+      return new AgentCheckInResponse(TrafficSourceState.DONE, Optional.absent(), 0L);
+    }
+  }
+
+  private AgentCheckInResponse registeredResponse(
+    String id,
+    Optional<String> targetState
+  ) {
+    TrafficSourceState state;
+    Optional<String> exception = Optional.absent();
+    if (targetState.isPresent()) {
+      switch (targetState.get()) {
+        case "initial":
+          state = TrafficSourceState.PENDING;
+          break;
+        case "healthy":
+          state = TrafficSourceState.DONE;
+          break;
+        case "unhealthy":
+        case "draining":
+        case "unused":
+        default:
+          String message = String.format(
+            "Expected agent to be added but was in state %s",
+            targetState.get()
+          );
+          exception = Optional.of(message);
+          LOG.error(message);
+          state = TrafficSourceState.ERROR;
+      }
+    } else {
+      String message = String.format("Instance %s not found in target group", id);
+      LOG.error(message);
+      exception = Optional.of(message);
+      state = TrafficSourceState.ERROR;
     }
     return new AgentCheckInResponse(
       state,
@@ -422,73 +451,282 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
     }
   }
 
+  /**
+   * Describes the health of all the given targets in one call
+   */
   @Override
-  public void syncAll(Collection<BaragonGroup> baragonGroups) {
-    Collection<LoadBalancer> allLoadBalancers = getAllLoadBalancers();
-    Map<BaragonGroup, Map<TrafficSource, TargetGroup>> baragonGroupToTrafficSource = getTrafficSources(
-      baragonGroups
-    );
-    for (Map.Entry<BaragonGroup, Map<TrafficSource, TargetGroup>> entry : baragonGroupToTrafficSource.entrySet()) {
-      BaragonGroup baragonGroup = entry.getKey();
-      Collection<LoadBalancer> elbsForBaragonGroup = getLoadBalancersByBaragonGroup(
-        allLoadBalancers,
-        baragonGroup
+  public Map<String, AgentCheckInResponse> checkRegisteredInstances(
+    TrafficSource trafficSource,
+    Collection<String> ids
+  ) {
+    Optional<TargetGroup> maybeTargetGroup = getTargetGroup(trafficSource.getName());
+    Map<String, AgentCheckInResponse> responses = new HashMap<>();
+    if (maybeTargetGroup.isPresent()) {
+      Map<String, String> targetStates = describeTargetStates(
+        maybeTargetGroup.get(),
+        ids
       );
-      Collection<BaragonAgentMetadata> baragonAgents = getAgentsByBaragonGroup(
-        baragonGroup
+      for (String id : ids) {
+        responses.put(
+          id,
+          registeredResponse(id, Optional.fromNullable(targetStates.get(id)))
+        );
+      }
+    } else {
+      String message = String.format(
+        "Could not find target group %s",
+        trafficSource.getName()
       );
+      LOG.error(message);
+      for (String id : ids) {
+        responses.put(
+          id,
+          new AgentCheckInResponse(TrafficSourceState.ERROR, Optional.of(message), 0L)
+        );
+      }
+    }
+    return responses;
+  }
 
-      Map<TrafficSource, TargetGroup> targetGroups = entry.getValue();
-      for (Entry<TrafficSource, TargetGroup> targetGroupEntry : targetGroups.entrySet()) {
-        try {
-          TargetGroup targetGroup = targetGroupEntry.getValue();
-          TrafficSource trafficSource = targetGroupEntry.getKey();
-          Collection<TargetDescription> targets = targetsInTargetGroup(targetGroup);
+  /**
+   * Describes the health of all the given targets in one call
+   */
+  @Override
+  public Map<String, AgentCheckInResponse> checkRemovedInstances(
+    TrafficSource trafficSource,
+    Collection<String> ids
+  ) {
+    Optional<TargetGroup> maybeTargetGroup = getTargetGroup(trafficSource.getName());
+    Map<String, AgentCheckInResponse> responses = new HashMap<>();
+    if (maybeTargetGroup.isPresent()) {
+      Map<String, String> targetStates = describeTargetStates(
+        maybeTargetGroup.get(),
+        ids
+      );
+      for (String id : ids) {
+        responses.put(
+          id,
+          new AgentCheckInResponse(
+            removedState(Optional.fromNullable(targetStates.get(id))),
+            Optional.absent(),
+            configuration.get().getDefaultCheckInWaitTimeMs()
+          )
+        );
+      }
+    } else {
+      String message = String.format(
+        "Could not find target group %s",
+        trafficSource.getName()
+      );
+      LOG.error(message);
+      for (String id : ids) {
+        responses.put(
+          id,
+          new AgentCheckInResponse(TrafficSourceState.ERROR, Optional.of(message), 0L)
+        );
+      }
+    }
+    return responses;
+  }
 
-          LOG.debug(
-            "Registering new instances for target group {}",
-            trafficSource.getName()
-          );
+  private Map<String, String> describeTargetStates(
+    TargetGroup targetGroup,
+    Collection<String> ids
+  ) {
+    DescribeTargetHealthRequest healthRequest = new DescribeTargetHealthRequest()
+      .withTargetGroupArn(targetGroup.getTargetGroupArn())
+      .withTargets(
+        ids
+          .stream()
+          .map(id -> new TargetDescription().withId(id))
+          .collect(Collectors.toList())
+      );
+    Map<String, String> targetStates = new HashMap<>();
+    for (TargetHealthDescription health : elbClient
+      .describeTargetHealth(healthRequest)
+      .getTargetHealthDescriptions()) {
+      targetStates.put(health.getTarget().getId(), health.getTargetHealth().getState());
+    }
+    return targetStates;
+  }
+
+  @Override
+  public Set<String> syncAll(Collection<BaragonGroup> baragonGroups) {
+    return sync(baragonGroups, baragonGroups);
+  }
+
+  /**
+   * Syncs only groupsToSync, while still counting the agents of every group as expected in the
+   * target groups they use.
+   *
+   * Describes the load balancers, target groups and target health once at the start of the pass,
+   * then works out what to register and de-register in each target group from that snapshot. The
+   * load balancer and target group pages are fetched side by side, and the target health of each
+   * target group is fetched on a small pool while earlier target groups are being synced.
+   *
+   * @return names of the groups that could not be fully synced
+   */
+  public Set<String> sync(
+    Collection<BaragonGroup> baragonGroups,
+    Collection<BaragonGroup> groupsToSync
+  ) {
+    ExecutorService describeExecutor = Executors.newFixedThreadPool(
+      configuration.isPresent()
+        ? Math.max(1, configuration.get().getAlbSyncDescribeThreads())
+        : 1,
+      new ThreadFactoryBuilder()
+        .setNameFormat("alb-sync-describe-%d")
+        .setDaemon(true)
+        .build()
+    );
+    try {
+      return sync(baragonGroups, groupsToSync, describeExecutor);
+    } finally {
+      describeExecutor.shutdownNow();
+    }
+  }
+
+  private Set<String> sync(
+    Collection<BaragonGroup> baragonGroups,
+    Collection<BaragonGroup> groupsToSync,
+    ExecutorService describeExecutor
+  ) {
+    Future<Collection<LoadBalancer>> loadBalancersFuture = describeExecutor.submit(
+      this::getAllLoadBalancers
+    );
+    Map<BaragonGroup, Map<TrafficSource, TargetGroup>> baragonGroupToTrafficSource = getTrafficSources(
+      baragonGroups,
+      getAllTargetGroups()
+    );
+    Map<BaragonGroup, Map<TrafficSource, TargetGroup>> trafficSourcesToSync = new HashMap<>(
+      baragonGroupToTrafficSource
+    );
+    trafficSourcesToSync.keySet().retainAll(new HashSet<>(groupsToSync));
+    Map<String, Future<List<TargetHealthDescription>>> targetHealthByArn = describeTargetHealth(
+      trafficSourcesToSync,
+      describeExecutor
+    );
+    AlbMembershipIndex membership = new AlbMembershipIndex(
+      baragonGroupToTrafficSource,
+      this::getAgentsByBaragonGroup,
+      knownAgentsDatastore::getKnownAgentsMetadata
+    );
+    Collection<LoadBalancer> allLoadBalancers = awaitDescribe(loadBalancersFuture);
+
+    Set<String> failedGroups = ConcurrentHashMap.newKeySet();
+    failedGroups.addAll(
+      syncInParallel(
+        trafficSourcesToSync.entrySet(),
+        entry -> entry.getKey().getName(),
+        entry -> sharedResources(entry.getKey(), entry.getValue()),
+        entry -> {
+          if (
+            !syncGroup(
+              entry.getKey(),
+              entry.getValue(),
+              allLoadBalancers,
+              targetHealthByArn,
+              membership
+            )
+          ) {
+            failedGroups.add(entry.getKey().getName());
+          }
+        }
+      )
+    );
+    return failedGroups;
+  }
+
+  /**
+   * The target groups a group registers with, and the load balancers it may add subnets to
+   */
+  private static Collection<String> sharedResources(
+    BaragonGroup baragonGroup,
+    Map<TrafficSource, TargetGroup> targetGroups
+  ) {
+    Set<String> resources = new HashSet<>();
+    for (TrafficSource trafficSource : baragonGroup.getTrafficSources()) {
+      resources.add(trafficSource.getName());
+    }
+    for (TargetGroup targetGroup : targetGroups.values()) {
+      resources.add(targetGroup.getTargetGroupArn());
+    }
+    return resources;
+  }
+
+  /**
+   * @return false if any of the group's target groups could not be fully synced
+   */
+  private boolean syncGroup(
+    BaragonGroup baragonGroup,
+    Map<TrafficSource, TargetGroup> targetGroups,
+    Collection<LoadBalancer> allLoadBalancers,
+    Map<String, Future<List<TargetHealthDescription>>> targetHealthByArn,
+    AlbMembershipIndex membership
+  ) {
+    Collection<LoadBalancer> elbsForBaragonGroup = getLoadBalancersByBaragonGroup(
+      allLoadBalancers,
+      baragonGroup
+    );
+    Collection<BaragonAgentMetadata> baragonAgents = membership.getAgents(baragonGroup);
+
+    boolean synced = true;
+    for (Entry<TrafficSource, TargetGroup> targetGroupEntry : targetGroups.entrySet()) {
+      try {
+        TargetGroup targetGroup = targetGroupEntry.getValue();
+        TrafficSource trafficSource = targetGroupEntry.getKey();
+        if (targetGroup == null) {
+          LOG.warn("No target group found with name {}", trafficSource.getName());
+          continue;
+        }
+        AlbMembershipIndex.Targets targets = new AlbMembershipIndex.Targets(
+          describedTargetHealth(targetGroup, targetHealthByArn)
+        );
+
+        LOG.debug(
+          "Registering new instances for target group {}",
+          trafficSource.getName()
+        );
+        synced &=
           guaranteeRegistered(
             trafficSource,
             targetGroup,
             targets,
             baragonAgents,
+            membership.getAgentIds(baragonGroup, trafficSource),
             elbsForBaragonGroup
           );
 
-          if (configuration.isPresent() && configuration.get().isDeregisterEnabled()) {
-            LOG.debug(
-              "De-registering old instances for target group {}",
-              trafficSource.getName()
-            );
-            deregisterRemovableTargets(
-              trafficSource,
-              baragonGroup,
-              targetGroup,
-              baragonAgents,
-              targets
-            );
-          }
-        } catch (AmazonClientException exn) {
-          LOG.error("Could not retrieve elb information due to ELB client error", exn);
-          exceptionNotifier.notify(
-            exn,
-            ImmutableMap.of("baragonGroup", baragonGroup.toString())
-          );
-        } catch (Exception exn) {
-          LOG.error("Could not process ELB sync", exn);
-          exceptionNotifier.notify(
-            exn,
-            ImmutableMap.of("groups", baragonGroup.toString())
+        if (configuration.isPresent() && configuration.get().isDeregisterEnabled()) {
+          LOG.debug(
+            "De-registering old instances for target group {}",
+            trafficSource.getName()
           );
+          synced &=
+            deregisterRemovableTargets(baragonGroup, targetGroup, targets, membership);
         }
+      } catch (AmazonClientException exn) {
+        if (isThrottling(exn)) {
+          throw exn;
+        }
+        LOG.error("Could not retrieve elb information due to ELB client error", exn);
+        exceptionNotifier.notify(
+          exn,
+          ImmutableMap.of("baragonGroup", baragonGroup.toString())
+        );
+        synced = false;
+      } catch (Exception exn) {
+        LOG.error("Could not process ELB sync", exn);
+        exceptionNotifier.notify(exn, ImmutableMap.of("groups", baragonGroup.toString()));
+        synced = false;
       }
     }
+    return synced;
   }
 
   private Map<BaragonGroup, Map<TrafficSource, TargetGroup>> getTrafficSources(
-    Collection<BaragonGroup> baragonGroups
+    Collection<BaragonGroup> baragonGroups,
+    Set<TargetGroup> targetGroups
   ) {
     SetMultimap<BaragonGroup, TrafficSource> trafficSources = HashMultimap.create();
     for (BaragonGroup baragonGroup : baragonGroups) {
@@ -502,7 +740,6 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
       trafficSources.putAll(baragonGroup, albSources);
     }
 
-    Set<TargetGroup> targetGroups = getAllTargetGroups();
     Map<String, TargetGroup> namedTargetGroups = targetGroups
       .stream()
       .collect(Collectors.toMap(TargetGroup::getTargetGroupName, Function.identity()));
@@ -523,6 +760,71 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
     return result;
   }
 
+  /**
+   * Starts describing the health of every target group in use, once per target group even when
+   * several baragon groups share it
+   */
+  private Map<String, Future<List<TargetHealthDescription>>> describeTargetHealth(
+    Map<BaragonGroup, Map<TrafficSource, TargetGroup>> baragonGroupToTrafficSource,
+    ExecutorService describeExecutor
+  ) {
+    Map<String, Future<List<TargetHealthDescription>>> targetHealthByArn = new ConcurrentHashMap<>();
+    for (Map<TrafficSource, TargetGroup> targetGroups : baragonGroupToTrafficSource.values()) {
+      for (TargetGroup targetGroup : targetGroups.values()) {
+        if (targetGroup != null) {
+          targetHealthByArn.computeIfAbsent(
+            targetGroup.getTargetGroupArn(),
+            arn ->
+              describeExecutor.submit(
+                () ->
+                  elbClient
+                    .describeTargetHealth(
+                      new DescribeTargetHealthRequest().withTargetGroupArn(arn)
+                    )
+                    .getTargetHealthDescriptions()
+              )
+          );
+        }
+      }
+    }
+    return targetHealthByArn;
+  }
+
+  /**
+   * Target health from the snapshot, described again if the snapshot's describe was throttled so a
+   * group retrying after backing off does not see the same throttling error
+   */
+  private Collection<TargetHealthDescription> describedTargetHealth(
+    TargetGroup targetGroup,
+    Map<String, Future<List<TargetHealthDescription>>> targetHealthByArn
+  ) {
+    Future<List<TargetHealthDescription>> described = targetHealthByArn.get(
+      targetGroup.getTargetGroupArn()
+    );
+    if (described == null) {
+      return getTargetsOn(targetGroup);
+    }
+    try {
+      return awaitDescribe(described);
+    } catch (AmazonClientException e) {
+      if (isThrottling(e)) {
+        targetHealthByArn.remove(targetGroup.getTargetGroupArn(), described);
+      }
+      throw e;
+    }
+  }
+
+  private static <T> T awaitDescribe(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Throwables.propagate(e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
   public Collection<LoadBalancer> getAllLoadBalancers() {
     Collection<LoadBalancer> loadBalancers = new HashSet<>();
     DescribeLoadBalancersRequest loadBalancersRequest = new DescribeLoadBalancersRequest();
@@ -726,13 +1028,16 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
    * was.
    *
    * @param baragonAgents BaragonAgent to register with given load balancer
+   * @param agentIds Ids the agents are registered by in this target group
    * @param loadBalancers Load balancer to register with
+   * @return false if any subnet or target could not be added
    */
-  private void guaranteeRegistered(
+  private boolean guaranteeRegistered(
     TrafficSource trafficSource,
     TargetGroup targetGroup,
-    Collection<TargetDescription> targets,
+    AlbMembershipIndex.Targets targets,
     Collection<BaragonAgentMetadata> baragonAgents,
+    Set<String> agentIds,
     Collection<LoadBalancer> loadBalancers
   ) {
     /*
@@ -746,9 +1051,10 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
       guaranteeSameVPC(targetGroup, baragonAgents, loadBalancers);
     }
 
-    guaranteeAzEnabled(baragonAgents, loadBalancers);
-    guaranteeHasAllTargets(trafficSource, targetGroup, targets, baragonAgents);
+    boolean azEnabled = guaranteeAzEnabled(baragonAgents, loadBalancers);
+    boolean hasAllTargets = guaranteeHasAllTargets(targetGroup, targets, agentIds);
     //guaranteeListenersPresent(targetGroup, loadBalancers);
+    return azEnabled && hasAllTargets;
   }
 
   /**
@@ -756,20 +1062,22 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
    * or which otherwise need to be removed.
    *
    * @param targetGroup TargetGroup to check for old agents
-   * @param agents Known agents, to be used as a reference sheet
+   * @param targets Targets in the target group, as described at the start of the sync
+   * @param membership Agents expected in each target group, to be used as a reference sheet
+   * @return false if any removable target could not be de-registered, or was kept to leave the
+   *         group its minimum healthy agents
    */
-  private void deregisterRemovableTargets(
-    TrafficSource trafficSource,
+  private boolean deregisterRemovableTargets(
     BaragonGroup baragonGroup,
     TargetGroup targetGroup,
-    Collection<BaragonAgentMetadata> agents,
-    Collection<TargetDescription> targets
+    AlbMembershipIndex.Targets targets,
+    AlbMembershipIndex membership
   ) {
-    Collection<TargetDescription> removableTargets = listRemovableTargets(
-      trafficSource,
+    Collection<String> removableTargets = listRemovableTargets(
       baragonGroup,
+      targetGroup,
       targets,
-      agents
+      membership
     );
     LOG.info(
       "removableTargets.size()={}, baragonGroup.minHealthyAgents={}",
@@ -777,80 +1085,73 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
       baragonGroup.getMinHealthyAgents()
     );
 
-    Map<TargetDescription, TargetHealthDescription> targetToHealthDescriptionMap = getTargetToHealthDescriptionMap(
-      targetGroup
-    );
-
-    for (TargetDescription removableTarget : removableTargets) {
-      LOG.info("Processing removableTarget={}", removableTarget);
-      try {
-        // basically, if isRemoveLastHealthyEnabled == false && isPartOfMinHealthyAgents() == true
-        // then we should NOT de-register the target as it is unsafe to do so
-        boolean shouldNotDeRegisterTarget =
-          configuration.isPresent() &&
-          !configuration.get().isRemoveLastHealthyEnabled() &&
-          isPartOfMinHealthyAgents(
-            baragonGroup,
-            removableTarget,
-            targetToHealthDescriptionMap
-          );
-        if (shouldNotDeRegisterTarget) {
-          LOG.info(
-            "Will not de-register target {} because configuration.get().isRemoveLastHealthyEnabled()==false isPartOfMinHealthyAgents=true in {}",
-            removableTarget,
-            targetGroup
-          );
-        } else {
-          LOG.info(
-            "Will run deregisterTargets because configuration.isPresent()={}, !configuration.get().isRemoveLastHealthyEnabled()={}, and isPartOfMinHealthyAgents={}",
-            configuration.isPresent(),
-            !configuration.get().isRemoveLastHealthyEnabled(),
-            isPartOfMinHealthyAgents(
-              baragonGroup,
-              removableTarget,
-              targetToHealthDescriptionMap
-            )
-          );
-          elbClient.deregisterTargets(
-            new DeregisterTargetsRequest()
-              .withTargetGroupArn(targetGroup.getTargetGroupArn())
-              .withTargets(removableTarget)
-          );
-          LOG.info(
-            "De-registered target {} from target group {}",
-            removableTarget,
-            targetGroup
-          );
-          // now if we get this far, remove the TargetGroup from the TargetToHealthDescriptionMap
-          // so that future iterations of this loop see that TargetGroup as removed
-          targetToHealthDescriptionMap.remove(removableTarget);
-        }
-      } catch (AmazonClientException acexn) {
-        LOG.error(
-          "Could not de-register target {} from target group {} due to error",
+    Collection<TargetDescription> targetsToDeregister = new HashSet<>();
+    boolean withheld = false;
+    for (String removableTarget : removableTargets) {
+      LOG.debug("Processing removableTarget={}", removableTarget);
+      // basically, if isRemoveLastHealthyEnabled == false && isPartOfMinHealthyAgents() == true
+      // then we should NOT de-register the target as it is unsafe to do so
+      boolean isPartOfMinHealthyAgents = isPartOfMinHealthyAgents(
+        baragonGroup,
+        removableTarget,
+        targets
+      );
+      boolean shouldNotDeRegisterTarget =
+        configuration.isPresent() &&
+        !configuration.get().isRemoveLastHealthyEnabled() &&
+        isPartOfMinHealthyAgents;
+      if (shouldNotDeRegisterTarget) {
+        LOG.info(
+          "Will not de-register target {} because configuration.get().isRemoveLastHealthyEnabled()==false isPartOfMinHealthyAgents=true in {}",
           removableTarget,
-          targetGroup,
-          acexn
+          targetGroup
         );
-        exceptionNotifier.notify(
-          acexn,
-          ImmutableMap.of("targetGroup", targetGroup.getTargetGroupName())
+        withheld = true;
+      } else {
+        LOG.debug(
+          "Will run deregisterTargets because configuration.isPresent()={}, !configuration.get().isRemoveLastHealthyEnabled()={}, and isPartOfMinHealthyAgents={}",
+          configuration.isPresent(),
+          !configuration.get().isRemoveLastHealthyEnabled(),
+          isPartOfMinHealthyAgents
         );
+        targetsToDeregister.add(targets.getTarget(removableTarget));
+        // remove the target from the described targets so that future iterations
+        // of this loop see it as removed
+        targets.remove(removableTarget);
       }
     }
-  }
 
-  private Map<TargetDescription, TargetHealthDescription> getTargetToHealthDescriptionMap(
-    TargetGroup targetGroup
-  ) {
-    return elbClient
-      .describeTargetHealth(
-        new DescribeTargetHealthRequest()
-        .withTargetGroupArn(targetGroup.getTargetGroupArn())
-      )
-      .getTargetHealthDescriptions()
-      .stream()
-      .collect(Collectors.toMap(TargetHealthDescription::getTarget, Function.identity()));
+    if (targetsToDeregister.isEmpty()) {
+      return !withheld;
+    }
+    try {
+      elbClient.deregisterTargets(
+        new DeregisterTargetsRequest()
+          .withTargetGroupArn(targetGroup.getTargetGroupArn())
+          .withTargets(targetsToDeregister)
+      );
+      LOG.info(
+        "De-registered targets {} from target group {}",
+        targetsToDeregister,
+        targetGroup
+      );
+      return !withheld;
+    } catch (AmazonClientException acexn) {
+      if (isThrottling(acexn)) {
+        throw acexn;
+      }
+      LOG.error(
+        "Could not de-register targets {} from target group {} due to error",
+        targetsToDeregister,
+        targetGroup,
+        acexn
+      );
+      exceptionNotifier.notify(
+        acexn,
+        ImmutableMap.of("targetGroup", targetGroup.getTargetGroupName())
+      );
+      return false;
+    }
   }
 
   /**
@@ -913,59 +1214,51 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
     }
   }
 
-  private void guaranteeAzEnabled(
+  private boolean guaranteeAzEnabled(
     Collection<BaragonAgentMetadata> agents,
     Collection<LoadBalancer> loadBalancers
   ) {
+    boolean enabled = true;
     for (LoadBalancer loadBalancer : loadBalancers) {
       Collection<String> azNames = new HashSet<>();
       for (AvailabilityZone availabilityZone : loadBalancer.getAvailabilityZones()) {
         azNames.add(availabilityZone.getZoneName());
       }
 
+      Set<String> missingSubnetIds = new HashSet<>();
       for (BaragonAgentMetadata agent : agents) {
         if (
           agent.getEc2().getAvailabilityZone().isPresent() &&
           !azNames.contains(agent.getEc2().getAvailabilityZone().get())
         ) {
-          guaranteeHasAllSubnets(agent.getEc2().getSubnetId().asSet(), loadBalancer);
+          missingSubnetIds.addAll(agent.getEc2().getSubnetId().asSet());
         }
       }
+      if (!missingSubnetIds.isEmpty()) {
+        enabled &= guaranteeHasAllSubnets(missingSubnetIds, loadBalancer);
+      }
     }
+    return enabled;
   }
 
   /**
    *
-   * @param target Target to check
-   * @param getTargetToHealthDescriptionMap Map of TargetGroup to TargetHealthDescription to keep track of AWS's view of the world
+   * @param targetId Target to check
+   * @param targets Targets of the target group, with their health as AWS last described it
    * @return if the given target is the last healthy target in the given target group
    */
   private boolean isPartOfMinHealthyAgents(
     BaragonGroup group,
-    TargetDescription target,
-    Map<TargetDescription, TargetHealthDescription> getTargetToHealthDescriptionMap
+    String targetId,
+    AlbMembershipIndex.Targets targets
   ) {
-    boolean instanceIsHealthy = false;
-    int healthyCount = 0;
-
-    for (TargetHealthDescription targetHealthDescription : getTargetToHealthDescriptionMap.values()) {
-      if (
-        targetHealthDescription
-          .getTargetHealth()
-          .getState()
-          .equals(TargetHealthStateEnum.Healthy.toString())
-      ) {
-        healthyCount += 1;
-        if (targetHealthDescription.getTarget().equals(target)) {
-          instanceIsHealthy = true;
-        }
-      }
-    }
-
-    return instanceIsHealthy && healthyCount <= Math.max(1, group.getMinHealthyAgents());
+    return (
+      targets.isHealthy(targetId) &&
+      targets.getHealthyCount() <= Math.max(1, group.getMinHealthyAgents())
+    );
   }
 
-  private void guaranteeHasAllSubnets(
+  private boolean guaranteeHasAllSubnets(
     Collection<String> subnetIds,
     LoadBalancer loadBalancer
   ) {
@@ -984,7 +1277,11 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
         .withLoadBalancerArn(loadBalancer.getLoadBalancerArn())
         .withSubnets(subnetsToAdd);
       elbClient.setSubnets(subnetsRequest);
+      return true;
     } catch (AmazonClientException acexn) {
+      if (isThrottling(acexn)) {
+        throw acexn;
+      }
       LOG.error(
         "Could not attach subnets {} to load balancer {} due to error",
         subnetsToAdd,
@@ -1000,6 +1297,7 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
           subnetsToAdd.toString()
         )
       );
+      return false;
     }
   }
 
@@ -1008,49 +1306,25 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
    * a target in the given target group.
    *
    * @param targetGroup group to register in
-   * @param baragonAgents agents to be registered
+   * @param agentIds ids of the agents to be registered
+   * @return false if the missing targets could not be registered
    */
-  private void guaranteeHasAllTargets(
-    TrafficSource trafficSource,
+  private boolean guaranteeHasAllTargets(
     TargetGroup targetGroup,
-    Collection<TargetDescription> targets,
-    Collection<BaragonAgentMetadata> baragonAgents
+    AlbMembershipIndex.Targets targets,
+    Set<String> agentIds
   ) {
     Collection<TargetDescription> targetDescriptions = new HashSet<>();
-    for (BaragonAgentMetadata agent : baragonAgents) {
-      try {
-        if (
-          (
-            trafficSource.getRegisterBy() == RegisterBy.INSTANCE_ID &&
-            agent.getEc2().getInstanceId().isPresent()
-          ) ||
-          (
-            trafficSource.getRegisterBy() == RegisterBy.PRIVATE_IP &&
-            agent.getEc2().getPrivateIp().isPresent()
-          )
-        ) {
-          String id = trafficSource.getRegisterBy() == RegisterBy.INSTANCE_ID
-            ? agent.getEc2().getInstanceId().get()
-            : agent.getEc2().getPrivateIp().get();
-          if (agentShouldRegisterInTargetGroup(id, targets)) {
-            targetDescriptions.add(new TargetDescription().withId(id));
-            LOG.info("Will register agent {} to target in group {}", agent, targetGroup);
-          } else {
-            LOG.debug("Agent {} is already registered", agent);
-          }
-        }
-      } catch (Exception exn) {
-        LOG.error(
-          "Could not create request to register agent {} due to error",
-          agent,
-          exn
-        );
-        exceptionNotifier.notify(exn, ImmutableMap.of("agent", agent.toString()));
+    for (String id : agentIds) {
+      if (!targets.contains(id)) {
+        targetDescriptions.add(new TargetDescription().withId(id));
+        LOG.debug("Will register agent {} to target in group {}", id, targetGroup);
       }
     }
 
     if (targetDescriptions.isEmpty()) {
       LOG.debug("No new instances to register with target group");
+      return true;
     } else {
       try {
         RegisterTargetsRequest registerTargetsRequest = new RegisterTargetsRequest()
@@ -1062,7 +1336,11 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
           targetDescriptions,
           targetGroup
         );
+        return true;
       } catch (AmazonClientException acexn) {
+        if (isThrottling(acexn)) {
+          throw acexn;
+        }
         LOG.error(
           "Failed to register targets {} onto target group {}",
           targetDescriptions,
@@ -1077,23 +1355,11 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
             targetGroup.toString()
           )
         );
+        return false;
       }
     }
   }
 
-  private boolean agentShouldRegisterInTargetGroup(
-    String id,
-    Collection<TargetDescription> targets
-  ) {
-    boolean shouldRegister = true;
-    for (TargetDescription target : targets) {
-      if (target.getId().equals(id)) {
-        shouldRegister = false;
-      }
-    }
-    return shouldRegister;
-  }
-
   private Collection<String> getSubnetsFromLoadBalancer(LoadBalancer loadBalancer) {
     List<AvailabilityZone> availabilityZones = loadBalancer.getAvailabilityZones();
     Set<String> subnetIds = new HashSet<>();
@@ -1105,65 +1371,26 @@ public class ApplicationLoadBalancer extends ElasticLoadBalancer {
     return subnetIds;
   }
 
-  private Collection<TargetDescription> targetsInTargetGroup(TargetGroup targetGroup) {
-    DescribeTargetHealthRequest targetHealthRequest = new DescribeTargetHealthRequest()
-    .withTargetGroupArn(targetGroup.getTargetGroupArn());
-    List<TargetHealthDescription> targetGroupsResult = elbClient
-      .describeTargetHealth(targetHealthRequest)
-      .getTargetHealthDescriptions();
-
-    Collection<TargetDescription> targetDescriptions = new HashSet<>();
-    for (TargetHealthDescription targetHealthDescription : targetGroupsResult) {
-      targetDescriptions.add(targetHealthDescription.getTarget());
-    }
-
-    return targetDescriptions;
-  }
-
-  private Collection<TargetDescription> listRemovableTargets(
-    TrafficSource trafficSource,
+  private Collection<String> listRemovableTargets(
     BaragonGroup baragonGroup,
-    Collection<TargetDescription> targetsOnGroup,
-    Collection<BaragonAgentMetadata> agentsInBaragonGroup
+    TargetGroup targetGroup,
+    AlbMembershipIndex.Targets targets,
+    AlbMembershipIndex membership
   ) {
-    Collection<String> agentIds = trafficSource.getRegisterBy() == RegisterBy.INSTANCE_ID
-      ? instanceIds(agentsInBaragonGroup)
-      : privateIps(agentsInBaragonGroup);
-
-    Collection<TargetDescription> removableTargets = new HashSet<>();
-    for (TargetDescription targetDescription : targetsOnGroup) {
+    Collection<String> removableTargets = new ArrayList<>();
+    for (String id : targets.getIds()) {
       if (
-        !agentIds.contains(targetDescription.getId()) &&
-        canDeregisterAgent(baragonGroup, targetDescription.getId())
+        !membership.isExpectedIn(id, targetGroup) &&
+        canDeregisterAgent(membership.getKnownAgent(baragonGroup, id))
       ) {
-        LOG.info("Will attempt to deregister target {}", targetDescription.getId());
-        removableTargets.add(targetDescription);
+        LOG.debug("Will attempt to deregister target {}", id);
+        removableTargets.add(id);
       }
     }
 
     return removableTargets;
   }
 
-  private Collection<String> instanceIds(Collection<BaragonAgentMetadata> agents) {
-    Collection<String> instanceIds = new HashSet<>();
-    for (BaragonAgentMetadata agent : agents) {
-      if (agent.getEc2().getInstanceId().isPresent()) {
-        instanceIds.add(agent.getEc2().getInstanceId().get());
-      }
-    }
-    return instanceIds;
-  }
-
-  private Collection<String> privateIps(Collection<BaragonAgentMetadata> agents) {
-    Collection<String> privateIps = new HashSet<>();
-    for (BaragonAgentMetadata agent : agents) {
-      if (agent.getEc2().getPrivateIp().isPresent()) {
-        privateIps.add(agent.getEc2().getPrivateIp().get());
-      }
-    }
-    return privateIps;
-  }
-
   private Collection<BaragonAgentMetadata> getAgentsByBaragonGroup(
     BaragonGroup baragonGroup
   ) {
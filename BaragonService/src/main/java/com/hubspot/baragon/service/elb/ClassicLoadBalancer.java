@@ -14,7 +14,12 @@ import com.amazonaws.services.elasticloadbalancing.model.InstanceState;
 import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
 import com.amazonaws.services.elasticloadbalancing.model.RegisterInstancesWithLoadBalancerRequest;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.data.BaragonKnownAgentsDatastore;
@@ -32,13 +37,23 @@ import com.hubspot.baragon.service.exceptions.BaragonExceptionNotifier;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class ClassicLoadBalancer extends ElasticLoadBalancer {
   private static final Logger LOG = LoggerFactory.getLogger(ClassicLoadBalancer.class);
+  private static final String IN_SERVICE = "InService";
   private final AmazonElasticLoadBalancing elbClient;
+  //                        <ElbName, <InstanceId, State>>
+  private final LoadingCache<String, Map<String, String>> instanceHealthCache;
 
   @Inject
   public ClassicLoadBalancer(
@@ -52,24 +67,56 @@ public class ClassicLoadBalancer extends ElasticLoadBalancer {
   ) {
     super(configuration, exceptionNotifier, loadBalancerDatastore, knownAgentsDatastore);
     this.elbClient = elbClient;
+    this.instanceHealthCache =
+      CacheBuilder
+        .newBuilder()
+        .expireAfterWrite(
+          Math.max(
+            0,
+            configuration.or(new ElbConfiguration()).getInstanceHealthCacheMillis()
+          ),
+          TimeUnit.MILLISECONDS
+        )
+        .build(
+          new CacheLoader<String, Map<String, String>>() {
+
+            @Override
+            public Map<String, String> load(String elbName) {
+              return describeInstanceStates(elbName);
+            }
+          }
+        );
   }
 
   public boolean isInstanceHealthy(String instanceId, String elbName) {
-    DescribeInstanceHealthRequest describeRequest = new DescribeInstanceHealthRequest(
-      elbName
-    );
+    return IN_SERVICE.equals(instanceStates(elbName).get(instanceId));
+  }
+
+  /**
+   * Every instance in the ELB and its state. Callers asking about the same ELB at the same time share
+   * one DescribeInstanceHealth call, and its answer is reused for instanceHealthCacheMillis, or until
+   * Baragon next registers or de-registers something with that ELB.
+   */
+  Map<String, String> instanceStates(String elbName) {
+    if (configuration.or(new ElbConfiguration()).getInstanceHealthCacheMillis() <= 0) {
+      return describeInstanceStates(elbName);
+    }
+    try {
+      return instanceHealthCache.getUnchecked(elbName);
+    } catch (UncheckedExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  private Map<String, String> describeInstanceStates(String elbName) {
     DescribeInstanceHealthResult result = elbClient.describeInstanceHealth(
-      describeRequest
+      new DescribeInstanceHealthRequest(elbName)
     );
-    boolean instanceIsHealthy = false;
+    Map<String, String> instanceStates = new HashMap<>();
     for (InstanceState instanceState : result.getInstanceStates()) {
-      if (instanceState.getState().equals("InService")) {
-        if (instanceState.getInstanceId().equals(instanceId)) {
-          instanceIsHealthy = true;
-        }
-      }
+      instanceStates.put(instanceState.getInstanceId(), instanceState.getState());
     }
-    return instanceIsHealthy;
+    return instanceStates;
   }
 
   public AgentCheckInResponse removeInstance(
@@ -86,6 +133,7 @@ public class ClassicLoadBalancer extends ElasticLoadBalancer {
           Arrays.asList(instance)
         );
         elbClient.deregisterInstancesFromLoadBalancer(request);
+        instanceHealthCache.invalidate(elbName);
         LOG.info(
           "Deregistered instance {} from ELB {}",
           request.getInstances(),
@@ -115,6 +163,7 @@ public class ClassicLoadBalancer extends ElasticLoadBalancer {
             Arrays.asList(instance)
           );
           elbClient.registerInstancesWithLoadBalancer(request);
+          instanceHealthCache.invalidate(elbName);
           LOG.info(
             "Registered instances {} with ELB {}",
             request.getInstances(),
@@ -154,26 +203,57 @@ public class ClassicLoadBalancer extends ElasticLoadBalancer {
     return new AgentCheckInResponse(TrafficSourceState.DONE, Optional.absent(), 0L);
   }
 
-  public void syncAll(Collection<BaragonGroup> groups) {
+  public Map<String, AgentCheckInResponse> checkRegisteredInstances(
+    TrafficSource trafficSource,
+    Collection<String> ids
+  ) {
+    return allDone(ids);
+  }
+
+  public Map<String, AgentCheckInResponse> checkRemovedInstances(
+    TrafficSource trafficSource,
+    Collection<String> ids
+  ) {
+    return allDone(ids);
+  }
+
+  private static Map<String, AgentCheckInResponse> allDone(Collection<String> ids) {
+    Map<String, AgentCheckInResponse> responses = new HashMap<>();
+    for (String id : ids) {
+      responses.put(
+        id,
+        new AgentCheckInResponse(TrafficSourceState.DONE, Optional.absent(), 0L)
+      );
+    }
+    return responses;
+  }
+
+  @Override
+  public Set<String> syncAll(Collection<BaragonGroup> groups) {
     try {
       List<LoadBalancerDescription> elbs = elbClient
         .describeLoadBalancers()
         .getLoadBalancerDescriptions();
 
-      for (BaragonGroup group : groups) {
-        if (!group.getTrafficSources().isEmpty()) {
-          List<LoadBalancerDescription> elbsForGroup = getElbsForGroup(elbs, group);
-          LOG.debug("Registering new instances for group {}...", group.getName());
-          registerNewInstances(elbsForGroup, group);
-          if (configuration.get().isDeregisterEnabled()) {
-            LOG.debug("Deregistering old instances for group {}...", group.getName());
-            deregisterOldInstances(elbsForGroup, group);
+      Set<String> failedGroups = ConcurrentHashMap.newKeySet();
+      failedGroups.addAll(
+        syncInParallel(
+          groups,
+          BaragonGroup::getName,
+          group ->
+            group
+              .getTrafficSources()
+              .stream()
+              .map(TrafficSource::getName)
+              .collect(Collectors.toSet()),
+          group -> {
+            if (!syncGroup(elbs, group)) {
+              failedGroups.add(group.getName());
+            }
           }
-          LOG.debug("ELB sync complete for group: {}", group.getName());
-        } else {
-          LOG.debug("No traffic sources present for group: {}", group.getName());
-        }
-      }
+        )
+      );
+      return failedGroups;
     } catch (AmazonClientException e) {
       LOG.error("Could not retrieve elb information due to amazon client error %s", e);
       exceptionNotifier.notify(
@@ -187,6 +267,28 @@ public class ClassicLoadBalancer extends ElasticLoadBalancer {
         ImmutableMap.of("groups", groups == null ? "" : groups.toString())
       );
     }
+    return groups.stream().map(BaragonGroup::getName).collect(Collectors.toSet());
+  }
+
+  /**
+   * @return false if registering or de-registering any instance failed, or an instance was kept
+   *         as the last healthy one
+   */
+  private boolean syncGroup(List<LoadBalancerDescription> elbs, BaragonGroup group) {
+    boolean synced = true;
+    if (!group.getTrafficSources().isEmpty()) {
+      List<LoadBalancerDescription> elbsForGroup = getElbsForGroup(elbs, group);
+      LOG.debug("Registering new instances for group {}...", group.getName());
+      synced = registerNewInstances(elbsForGroup, group);
+      if (configuration.get().isDeregisterEnabled()) {
+        LOG.debug("Deregistering old instances for group {}...", group.getName());
+        synced &= deregisterOldInstances(elbsForGroup, group);
+      }
+      LOG.debug("ELB sync complete for group: {}", group.getName());
+    } else {
+      LOG.debug("No traffic sources present for group: {}", group.getName());
+    }
+    return synced;
   }
 
   private boolean isVpcOk(BaragonAgentMetadata agent, LoadBalancerDescription elb) {
@@ -304,10 +406,11 @@ public class ClassicLoadBalancer extends ElasticLoadBalancer {
     return elbsForGroup;
   }
 
-  private void registerNewInstances(
+  private boolean registerNewInstances(
     List<LoadBalancerDescription> elbs,
     BaragonGroup group
   ) {
+    boolean registered = true;
     Collection<BaragonAgentMetadata> agents = loadBalancerDatastore.getAgentMetadata(
       group.getName()
     );
@@ -320,12 +423,16 @@ public class ClassicLoadBalancer extends ElasticLoadBalancer {
       for (RegisterInstancesWithLoadBalancerRequest request : requests) {
         try {
           elbClient.registerInstancesWithLoadBalancer(request);
+          instanceHealthCache.invalidate(request.getLoadBalancerName());
           LOG.info(
             "Registered instances {} with ELB {}",
             request.getInstances(),
             request.getLoadBalancerName()
           );
         } catch (AmazonClientException e) {
+          if (isThrottling(e)) {
+            throw e;
+          }
           LOG.error(
             "Could not register {} with elb {} due to error",
             request.getInstances(),
@@ -341,11 +448,13 @@ public class ClassicLoadBalancer extends ElasticLoadBalancer {
               request.getInstances().toString()
             )
           );
+          registered = false;
         }
       }
     } else {
       LOG.debug("No new instances to register for group {}", group.getName());
     }
+    return registered;
   }
 
   private List<RegisterInstancesWithLoadBalancerRequest> registerRequests(
@@ -427,10 +536,11 @@ public class ClassicLoadBalancer extends ElasticLoadBalancer {
     );
   }
 
-  private void deregisterOldInstances(
+  private boolean deregisterOldInstances(
     List<LoadBalancerDescription> elbs,
     BaragonGroup group
   ) {
+    boolean deregistered = true;
     Collection<BaragonAgentMetadata> agents = loadBalancerDatastore.getAgentMetadata(
       group.getName()
     );
@@ -440,18 +550,32 @@ public class ClassicLoadBalancer extends ElasticLoadBalancer {
         agents,
         elbs
       );
+      // Healthy instances in each ELB, looked up once and kept current as instances are removed
+      Map<String, Set<String>> healthyByElb = new HashMap<>();
       for (DeregisterInstancesFromLoadBalancerRequest request : requests) {
         try {
           if (
             configuration.get().isRemoveLastHealthyEnabled() ||
-            !isLastHealthyInstance(request)
+            !isLastHealthyInstance(
+              request,
+              healthyByElb.computeIfAbsent(
+                request.getLoadBalancerName(),
+                this::healthyInstances
+              )
+            )
           ) {
             elbClient.deregisterInstancesFromLoadBalancer(request);
+            instanceHealthCache.invalidate(request.getLoadBalancerName());
+            Set<String> healthy = healthyByElb.get(request.getLoadBalancerName());
+            if (healthy != null) {
+              healthy.remove(request.getInstances().get(0).getInstanceId());
+            }
           } else {
             LOG.info(
               "Will not deregister {} because it is the last healthy instance!",
               request.getInstances()
             );
+            deregistered = false;
           }
           LOG.info(
             "Deregistered instances {} from ELB {}",
@@ -459,6 +583,9 @@ public class ClassicLoadBalancer extends ElasticLoadBalancer {
             request.getLoadBalancerName()
           );
         } catch (AmazonClientException e) {
+          if (isThrottling(e)) {
+            throw e;
+          }
           LOG.error(
             "Could not deregister {} from elb {} due to error {}",
             request.getInstances(),
@@ -474,11 +601,20 @@ public class ClassicLoadBalancer extends ElasticLoadBalancer {
               request.getInstances().toString()
             )
           );
+          deregistered = false;
         }
       }
+    } catch (AmazonClientException e) {
+      if (isThrottling(e)) {
+        throw e;
+      }
+      LOG.error("Will not try to deregister due to error: {}", e);
+      deregistered = false;
     } catch (Exception e) {
       LOG.error("Will not try to deregister due to error: {}", e);
+      deregistered = false;
     }
+    return deregistered;
   }
 
   private List<DeregisterInstancesFromLoadBalancerRequest> deregisterRequests(
@@ -526,30 +662,22 @@ public class ClassicLoadBalancer extends ElasticLoadBalancer {
   }
 
   private boolean isLastHealthyInstance(
-    DeregisterInstancesFromLoadBalancerRequest request
-  )
-    throws AmazonClientException {
-    DescribeInstanceHealthRequest describeRequest = new DescribeInstanceHealthRequest(
-      request.getLoadBalancerName()
-    );
-    DescribeInstanceHealthResult result = elbClient.describeInstanceHealth(
-      describeRequest
-    );
-    boolean instanceIsHealthy = false;
-    int healthyCount = 0;
-    for (InstanceState instanceState : result.getInstanceStates()) {
-      if (instanceState.getState().equals("InService")) {
-        healthyCount++;
-        if (
-          instanceState
-            .getInstanceId()
-            .equals(request.getInstances().get(0).getInstanceId())
-        ) { //Will only ever be one instance per request
-          instanceIsHealthy = true;
-        }
+    DeregisterInstancesFromLoadBalancerRequest request,
+    Set<String> healthyInstances
+  ) {
+    //Will only ever be one instance per request
+    String instanceId = request.getInstances().get(0).getInstanceId();
+    return healthyInstances.size() == 1 && healthyInstances.contains(instanceId);
+  }
+
+  private Set<String> healthyInstances(String elbName) {
+    Set<String> healthyInstances = new HashSet<>();
+    for (Map.Entry<String, String> instanceState : instanceStates(elbName).entrySet()) {
+      if (IN_SERVICE.equals(instanceState.getValue())) {
+        healthyInstances.add(instanceState.getKey());
       }
     }
-    return (instanceIsHealthy && healthyCount == 1);
+    return healthyInstances;
   }
 
   private Optional<LoadBalancerDescription> getElb(String elbName) {
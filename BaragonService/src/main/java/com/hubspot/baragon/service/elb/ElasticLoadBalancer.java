@@ -1,7 +1,11 @@
 package com.hubspot.baragon.service.elb;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.retry.RetryUtils;
 import com.amazonaws.services.elasticloadbalancing.model.Instance;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.hubspot.baragon.data.BaragonKnownAgentsDatastore;
 import com.hubspot.baragon.data.BaragonLoadBalancerDatastore;
 import com.hubspot.baragon.models.AgentCheckInResponse;
@@ -14,9 +18,26 @@ import com.hubspot.baragon.service.exceptions.BaragonExceptionNotifier;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public abstract class ElasticLoadBalancer {
+  private static final Logger LOG = LoggerFactory.getLogger(ElasticLoadBalancer.class);
+
   protected final Optional<ElbConfiguration> configuration;
   protected final BaragonExceptionNotifier exceptionNotifier;
   protected final BaragonLoadBalancerDatastore loadBalancerDatastore;
@@ -63,7 +84,28 @@ public abstract class ElasticLoadBalancer {
     BaragonAgentMetadata agent
   );
 
-  public abstract void syncAll(Collection<BaragonGroup> groups);
+  /**
+   * Status of several agents registering with one traffic source, checked together, keyed by the id
+   * each agent was registered by
+   */
+  public abstract Map<String, AgentCheckInResponse> checkRegisteredInstances(
+    TrafficSource trafficSource,
+    Collection<String> ids
+  );
+
+  /**
+   * Status of several agents being removed from one traffic source, checked together, keyed by the
+   * id each agent was registered by
+   */
+  public abstract Map<String, AgentCheckInResponse> checkRemovedInstances(
+    TrafficSource trafficSource,
+    Collection<String> ids
+  );
+
+  /**
+   * @return names of the groups that could not be fully synced
+   */
+  public abstract Set<String> syncAll(Collection<BaragonGroup> groups);
 
   Optional<BaragonKnownAgentMetadata> knownAgent(BaragonGroup group, String instanceId) {
     Collection<BaragonKnownAgentMetadata> knownAgents = knownAgentsDatastore.getKnownAgentsMetadata(
@@ -91,20 +133,172 @@ public abstract class ElasticLoadBalancer {
   }
 
   boolean canDeregisterAgent(BaragonGroup group, String instanceId) {
-    Optional<BaragonKnownAgentMetadata> agent = knownAgent(group, instanceId);
+    return canDeregisterAgent(knownAgent(group, instanceId));
+  }
+
+  boolean canDeregisterAgent(Optional<BaragonKnownAgentMetadata> agent) {
     if (!agent.isPresent()) {
       return true;
     } else {
-      if (configuration.get().isRemoveKnownAgentEnabled()) {
-        Date lastSeen = new Date(agent.get().getLastSeenAt());
-        Date threshold = new Date(
-          System.currentTimeMillis() -
-          (configuration.get().getRemoveKnownAgentMinutes() * 60000L)
+      return isExpired(agent.get(), configuration.get(), System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * @return true if the known agent was last seen long enough ago for its instance to be
+   *         de-registered
+   */
+  public static boolean isExpired(
+    BaragonKnownAgentMetadata agent,
+    ElbConfiguration configuration,
+    long now
+  ) {
+    if (configuration.isRemoveKnownAgentEnabled()) {
+      Date lastSeen = new Date(agent.getLastSeenAt());
+      Date threshold = new Date(
+        now - (configuration.getRemoveKnownAgentMinutes() * 60000L)
+      );
+      return lastSeen.before(threshold);
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * Syncs groups on a pool of elb.syncThreads threads and waits for all of them, so one slow group
+   * does not hold up the rest. Groups that share a traffic source are synced one after another on
+   * the same thread, so they never change the same target group or load balancer at once. A group
+   * whose sync is throttled backs off and starts over on its own, without slowing down the other
+   * groups.
+   */
+  <T> Set<String> syncInParallel(
+    Collection<T> groups,
+    Function<T, String> groupName,
+    Function<T, Collection<String>> sharedResources,
+    Consumer<T> sync
+  ) {
+    Set<String> failedGroups = ConcurrentHashMap.newKeySet();
+    List<List<T>> partitions = partitionBySharedResources(groups, sharedResources);
+    ElbConfiguration config = configuration.or(new ElbConfiguration());
+    ExecutorService syncExecutor = Executors.newFixedThreadPool(
+      Math.max(1, Math.min(config.getSyncThreads(), partitions.size())),
+      new ThreadFactoryBuilder()
+        .setNameFormat(getClass().getSimpleName() + "-sync-%d")
+        .setDaemon(true)
+        .build()
+    );
+    try {
+      Map<List<T>, Future<?>> syncs = new LinkedHashMap<>();
+      for (List<T> partition : partitions) {
+        syncs.put(
+          partition,
+          syncExecutor.submit(
+            () -> {
+              for (T group : partition) {
+                String name = groupName.apply(group);
+                try {
+                  syncWithBackoff(group, groupName, sync);
+                } catch (RuntimeException e) {
+                  LOG.error("Could not sync {}", name, e);
+                  exceptionNotifier.notify(e, ImmutableMap.of("group", name));
+                  failedGroups.add(name);
+                }
+              }
+              return null;
+            }
+          )
         );
-        return lastSeen.before(threshold);
-      } else {
-        return false;
       }
+      for (Map.Entry<List<T>, Future<?>> entry : syncs.entrySet()) {
+        try {
+          entry.getValue().get();
+        } catch (ExecutionException e) {
+          LOG.error("Could not finish syncing {} groups", entry.getKey().size(), e);
+          entry.getKey().forEach(group -> failedGroups.add(groupName.apply(group)));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      groups.forEach(group -> failedGroups.add(groupName.apply(group)));
+    } finally {
+      syncExecutor.shutdownNow();
+    }
+    return failedGroups;
+  }
+
+  /**
+   * Splits groups so that any two groups sharing a resource, directly or through other groups, end
+   * up in the same partition
+   */
+  static <T> List<List<T>> partitionBySharedResources(
+    Collection<T> groups,
+    Function<T, Collection<String>> sharedResources
+  ) {
+    List<T> indexed = new ArrayList<>(groups);
+    int[] parent = new int[indexed.size()];
+    Map<String, Integer> firstGroupByResource = new HashMap<>();
+    for (int i = 0; i < indexed.size(); i++) {
+      parent[i] = i;
+      for (String resource : sharedResources.apply(indexed.get(i))) {
+        Integer first = firstGroupByResource.putIfAbsent(resource, i);
+        if (first != null) {
+          parent[root(parent, i)] = root(parent, first);
+        }
+      }
+    }
+    Map<Integer, List<T>> partitions = new LinkedHashMap<>();
+    for (int i = 0; i < indexed.size(); i++) {
+      partitions
+        .computeIfAbsent(root(parent, i), r -> new ArrayList<>())
+        .add(indexed.get(i));
+    }
+    return new ArrayList<>(partitions.values());
+  }
+
+  private static int root(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
     }
+    return i;
+  }
+
+  private <T> void syncWithBackoff(
+    T group,
+    Function<T, String> groupName,
+    Consumer<T> sync
+  )
+    throws InterruptedException {
+    ElbConfiguration config = configuration.or(new ElbConfiguration());
+    for (int attempt = 0;; attempt++) {
+      try {
+        sync.accept(group);
+        return;
+      } catch (AmazonClientException e) {
+        if (!isThrottling(e) || attempt >= config.getAwsElbClientRetries()) {
+          throw e;
+        }
+        long backoffMillis = Math.min(
+          config.getAwsElbClientBackoffMaxBackoffMilliseconds(),
+          (long) config.getAwsElbClientBackoffBaseDelayMilliseconds() << attempt
+        );
+        // Full jitter, so groups throttled together do not all come back together
+        long sleepMillis = ThreadLocalRandom.current().nextLong(backoffMillis + 1);
+        LOG.warn(
+          "Throttled while syncing {}, trying again in {}ms (attempt {})",
+          groupName.apply(group),
+          sleepMillis,
+          attempt + 1
+        );
+        Thread.sleep(sleepMillis);
+      }
+    }
+  }
+
+  /**
+   * Throttling errors are left for syncInParallel to back off on, rather than being reported
+   */
+  static boolean isThrottling(AmazonClientException e) {
+    return RetryUtils.isThrottlingException(e);
   }
 }
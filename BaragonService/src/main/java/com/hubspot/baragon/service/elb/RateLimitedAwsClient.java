@@ -0,0 +1,42 @@
+package com.hubspot.baragon.service.elb;
+
+import com.amazonaws.AmazonWebServiceResult;
+import com.google.common.util.concurrent.RateLimiter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+
+/**
+ * Wraps an AWS client so every API call made through it first takes a permit from one token bucket.
+ * Each client talks to a single account and region, so all syncs sharing the client share its rate.
+ * Calls that do not reach AWS, like setEndpoint, are passed straight through.
+ */
+public class RateLimitedAwsClient {
+
+  private RateLimitedAwsClient() {}
+
+  public static <T> T wrap(Class<T> clientInterface, T client, double requestsPerSecond) {
+    if (requestsPerSecond <= 0) {
+      return client;
+    }
+    return wrap(clientInterface, client, RateLimiter.create(requestsPerSecond));
+  }
+
+  public static <T> T wrap(Class<T> clientInterface, T client, RateLimiter rateLimiter) {
+    return clientInterface.cast(
+      Proxy.newProxyInstance(
+        clientInterface.getClassLoader(),
+        new Class<?>[] { clientInterface },
+        (proxy, method, args) -> {
+          if (AmazonWebServiceResult.class.isAssignableFrom(method.getReturnType())) {
+            rateLimiter.acquire();
+          }
+          try {
+            return method.invoke(client, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        }
+      )
+    );
+  }
+}
@@ -1,10 +1,17 @@
 package com.hubspot.baragon.service.gcloud;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
 import com.google.api.services.compute.Compute;
 import com.google.api.services.compute.model.BackendServiceGroupHealth;
 import com.google.api.services.compute.model.HealthStatus;
 import com.google.api.services.compute.model.ResourceGroupReference;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.models.AgentCheckInResponse;
@@ -14,23 +21,65 @@ import com.hubspot.baragon.models.TrafficSourceState;
 import com.hubspot.baragon.service.BaragonServiceModule;
 import com.hubspot.baragon.service.config.BaragonConfiguration;
 import com.hubspot.baragon.service.config.GoogleCloudConfiguration;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * The health of a backend service covers every agent in its instance group, so one answer is shared by
+ * all the agents checking in behind it. Agents asking at the same time wait on a single getHealth
+ * call, and its answer is reused for healthCacheMillis.
+ */
 public class GoogleCloudManager {
   private static final Logger LOG = LoggerFactory.getLogger(GoogleCloudManager.class);
   private static final String HEALTHY_STATE = "HEALTHY";
 
   private final Compute compute;
   private final GoogleCloudConfiguration googleCloudConfiguration;
+  //                 <HealthKey, BackendServiceGroupHealth>
+  private final Cache<String, Optional<BackendServiceGroupHealth>> healthCache;
+  private final Meter healthLookups;
+  private final Meter healthCalls;
 
   @Inject
   public GoogleCloudManager(
     BaragonConfiguration configuration,
-    @Named(BaragonServiceModule.GOOGLE_CLOUD_COMPUTE_SERVICE) Optional<Compute> compute
+    @Named(BaragonServiceModule.GOOGLE_CLOUD_COMPUTE_SERVICE) Optional<Compute> compute,
+    MetricRegistry metricRegistry
   ) {
     this.compute = compute.orNull();
     this.googleCloudConfiguration = configuration.getGoogleCloudConfiguration();
+    this.healthCache =
+      CacheBuilder
+        .newBuilder()
+        .expireAfterWrite(
+          Math.max(0, googleCloudConfiguration.getHealthCacheMillis()),
+          TimeUnit.MILLISECONDS
+        )
+        .build();
+    this.healthLookups =
+      metricRegistry.meter(
+        MetricRegistry.name(GoogleCloudManager.class, "health", "lookups")
+      );
+    this.healthCalls =
+      metricRegistry.meter(
+        MetricRegistry.name(GoogleCloudManager.class, "health", "calls")
+      );
+    metricRegistry.register(
+      MetricRegistry.name(GoogleCloudManager.class, "health", "hitRatio"),
+      new RatioGauge() {
+
+        @Override
+        protected Ratio getRatio() {
+          return Ratio.of(
+            healthLookups.getOneMinuteRate() - healthCalls.getOneMinuteRate(),
+            healthLookups.getOneMinuteRate()
+          );
+        }
+      }
+    );
   }
 
   public boolean isConfigured() {
@@ -55,27 +104,11 @@ public class GoogleCloudManager {
     try {
       ResourceGroupReference resourceGroupRef = new ResourceGroupReference()
       .setGroup(gcloudMetadata.getResourceGroup());
-      BackendServiceGroupHealth healthResponse;
-      if (gcloudMetadata.getRegion().isPresent()) {
-        Compute.RegionBackendServices.GetHealth healthRequest = compute
-          .regionBackendServices()
-          .getHealth(
-            gcloudMetadata.getProject(),
-            gcloudMetadata.getRegion().get(),
-            gcloudMetadata.getBackendService(),
-            resourceGroupRef
-          );
-        healthResponse = healthRequest.execute();
-      } else {
-        Compute.BackendServices.GetHealth globalHealthRequest = compute
-          .backendServices()
-          .getHealth(
-            gcloudMetadata.getProject(),
-            gcloudMetadata.getBackendService(),
-            resourceGroupRef
-          );
-        healthResponse = globalHealthRequest.execute();
-      }
+      BackendServiceGroupHealth healthResponse = groupHealth(
+          gcloudMetadata,
+          resourceGroupRef
+        )
+        .orNull();
 
       if (healthResponse != null && healthResponse.getHealthStatus() != null) {
         for (HealthStatus healthStatus : healthResponse.getHealthStatus()) {
@@ -139,4 +172,59 @@ public class GoogleCloudManager {
       );
     }
   }
+
+  private Optional<BackendServiceGroupHealth> groupHealth(
+    BaragonAgentGcloudMetadata gcloudMetadata,
+    ResourceGroupReference resourceGroupRef
+  )
+    throws Exception {
+    healthLookups.mark();
+    if (googleCloudConfiguration.getHealthCacheMillis() <= 0) {
+      return fetchGroupHealth(gcloudMetadata, resourceGroupRef);
+    }
+    String healthKey = String.format(
+      "%s/%s/%s/%s",
+      gcloudMetadata.getProject(),
+      gcloudMetadata.getRegion().or("global"),
+      gcloudMetadata.getBackendService(),
+      gcloudMetadata.getResourceGroup()
+    );
+    try {
+      return healthCache.get(
+        healthKey,
+        () -> fetchGroupHealth(gcloudMetadata, resourceGroupRef)
+      );
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), Exception.class);
+      throw e;
+    }
+  }
+
+  private Optional<BackendServiceGroupHealth> fetchGroupHealth(
+    BaragonAgentGcloudMetadata gcloudMetadata,
+    ResourceGroupReference resourceGroupRef
+  )
+    throws IOException {
+    healthCalls.mark();
+    if (gcloudMetadata.getRegion().isPresent()) {
+      Compute.RegionBackendServices.GetHealth healthRequest = compute
+        .regionBackendServices()
+        .getHealth(
+          gcloudMetadata.getProject(),
+          gcloudMetadata.getRegion().get(),
+          gcloudMetadata.getBackendService(),
+          resourceGroupRef
+        );
+      return Optional.fromNullable(healthRequest.execute());
+    } else {
+      Compute.BackendServices.GetHealth globalHealthRequest = compute
+        .backendServices()
+        .getHealth(
+          gcloudMetadata.getProject(),
+          gcloudMetadata.getBackendService(),
+          resourceGroupRef
+        );
+      return Optional.fromNullable(globalHealthRequest.execute());
+    }
+  }
 }
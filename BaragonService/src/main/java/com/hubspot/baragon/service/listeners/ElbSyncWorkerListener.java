@@ -41,6 +41,8 @@ public class ElbSyncWorkerListener extends AbstractLatchListener {
     if (elbWorkerFuture != null) {
       elbWorkerFuture.cancel(false);
     }
+    // Another instance may have been syncing while we were not the leader
+    elbWorker.forgetSyncedGroups();
 
     elbWorkerFuture =
       executorService.scheduleAtFixedRate(
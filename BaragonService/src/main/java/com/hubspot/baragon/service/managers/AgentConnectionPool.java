@@ -0,0 +1,449 @@
+package com.hubspot.baragon.service.managers;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.hubspot.baragon.config.HttpClientConfiguration;
+import com.hubspot.baragon.service.config.BaragonConfiguration;
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.ConnectionPoolPartitioning.PerHostConnectionPoolPartitioning;
+import com.ning.http.client.Request;
+import com.ning.http.client.RequestBuilder;
+import com.ning.http.client.Response;
+import com.ning.http.client.providers.netty.NettyAsyncHttpProviderConfig;
+import com.ning.http.client.providers.netty.channel.pool.ChannelPool;
+import com.ning.http.client.providers.netty.channel.pool.ChannelPoolPartitionSelector;
+import com.ning.http.client.providers.netty.channel.pool.DefaultChannelPool;
+import com.ning.http.client.uri.Uri;
+import io.dropwizard.lifecycle.Managed;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keep-alive connections from BaragonService to its agents, pooled per agent. At most
+ * maxConcurrentRequestsPerAgent requests are in flight to one agent, anything past that waits for
+ * one to finish. Idle connections stay in the pool for agentConnectionIdleTimeoutMs and are reused
+ * across worker ticks, and a connection is opened as soon as an agent checks in rather than on its
+ * first request.
+ */
+@Singleton
+public class AgentConnectionPool implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(AgentConnectionPool.class);
+  private static final String WARM_UP_URI_FORMAT = "%s/status";
+  private static final int WARM_UP_ATTEMPTS = 6;
+  private static final long WARM_UP_RETRY_SECONDS = 5;
+
+  private final AsyncHttpClient httpClient;
+  private final Timer timer;
+  private final ChannelPool channelPool;
+  private final AgentRequestLimits requestLimits;
+  private final int maxConnectionsPerAgent;
+  private final ConcurrentMap<Object, AgentQueue> queues = new ConcurrentHashMap<>();
+  private final Meter openedConnections;
+  private final Meter reusedConnections;
+  private final Meter queuedRequests;
+  private final Meter hedgedRequests;
+
+  @Inject
+  public AgentConnectionPool(
+    HttpClientConfiguration httpClientConfiguration,
+    BaragonConfiguration configuration,
+    AgentRequestLimits requestLimits,
+    MetricRegistry metricRegistry
+  ) {
+    this.requestLimits = requestLimits;
+    this.maxConnectionsPerAgent =
+      Math.max(1, configuration.getMaxConcurrentRequestsPerAgent());
+    this.openedConnections =
+      metricRegistry.meter(MetricRegistry.name(AgentConnectionPool.class, "opened"));
+    this.reusedConnections =
+      metricRegistry.meter(MetricRegistry.name(AgentConnectionPool.class, "reused"));
+    this.queuedRequests =
+      metricRegistry.meter(MetricRegistry.name(AgentConnectionPool.class, "queued"));
+    this.hedgedRequests =
+      metricRegistry.meter(MetricRegistry.name(AgentConnectionPool.class, "hedged"));
+
+    AsyncHttpClientConfig.Builder builder = new AsyncHttpClientConfig.Builder()
+      .setMaxRequestRetry(httpClientConfiguration.getMaxRequestRetry())
+      .setRequestTimeout(httpClientConfiguration.getRequestTimeoutInMs())
+      .setFollowRedirect(true)
+      .setConnectTimeout(httpClientConfiguration.getConnectionTimeoutInMs())
+      .setUserAgent(httpClientConfiguration.getUserAgent())
+      .setAllowPoolingConnections(true)
+      .setAllowPoolingSslConnections(true)
+      // No per-host limit here, the per-agent queue caps requests. A response can complete before
+      // its connection is back in the pool, and a client limit would then reject the next request
+      .setPooledConnectionIdleTimeout(configuration.getAgentConnectionIdleTimeoutMs());
+
+    this.timer =
+      new HashedWheelTimer(
+        new ThreadFactoryBuilder()
+          .setNameFormat("agent-connection-timer-%d")
+          .setDaemon(true)
+          .build()
+      );
+    this.channelPool =
+      new InstrumentedChannelPool(new DefaultChannelPool(builder.build(), timer));
+    NettyAsyncHttpProviderConfig providerConfig = new NettyAsyncHttpProviderConfig();
+    providerConfig.setNettyTimer(timer);
+    providerConfig.setChannelPool(channelPool);
+    builder.setAsyncHttpClientProviderConfig(providerConfig);
+
+    this.httpClient = new AsyncHttpClient(builder.build());
+  }
+
+  public AgentRequestLimits getRequestLimits() {
+    return requestLimits;
+  }
+
+  /**
+   * Sends the request now if the agent has a free connection, otherwise once one of its in-flight
+   * requests completes. The handler is called the same way AsyncHttpClient would call it.
+   */
+  public <T> void execute(
+    String baseAgentUri,
+    Request request,
+    AsyncCompletionHandler<T> handler
+  ) {
+    execute(baseAgentUri, request, handler, () -> {});
+  }
+
+  /**
+   * Like execute, with onSend run as the request leaves the agent's queue, so callers can time the
+   * agent without the wait for a free connection
+   */
+  public <T> void execute(
+    String baseAgentUri,
+    Request request,
+    AsyncCompletionHandler<T> handler,
+    Runnable onSend
+  ) {
+    AgentQueue queue = queues.computeIfAbsent(
+      partitionKey(baseAgentUri),
+      k -> new AgentQueue()
+    );
+    Runnable send = () -> send(queue, request, handler, onSend);
+    synchronized (queue) {
+      if (queue.inFlight >= maxConnectionsPerAgent) {
+        queue.waiting.add(send);
+        queuedRequests.mark();
+        return;
+      }
+      queue.inFlight++;
+    }
+    send.run();
+  }
+
+  /**
+   * Like execute, but if the agent has not answered hedgeDelayMs after the request was sent, the
+   * same request is sent again. The handler gets the first 2xx response, otherwise the last
+   * response, and a failure only if neither attempt got a response. Only use this for requests the
+   * agent can safely receive twice.
+   */
+  public <T> void executeHedged(
+    String baseAgentUri,
+    Request request,
+    AsyncCompletionHandler<T> handler,
+    long hedgeDelayMs,
+    Runnable onSend
+  ) {
+    HedgedRequest<T> hedged = new HedgedRequest<>(handler);
+    execute(
+      baseAgentUri,
+      request,
+      hedged.attempt(),
+      () -> {
+        onSend.run();
+        timer.newTimeout(
+          timeout -> {
+            if (!hedged.isDone()) {
+              hedgedRequests.mark();
+              execute(baseAgentUri, request, hedged.attempt());
+            }
+          },
+          hedgeDelayMs,
+          TimeUnit.MILLISECONDS
+        );
+      }
+    );
+  }
+
+  /**
+   * Opens a connection to a newly checked in agent so its first request does not pay for the
+   * connect. Agents check in before they start serving, so a refused connection is retried for a
+   * short while.
+   */
+  public CompletableFuture<Boolean> warm(String baseAgentUri) {
+    CompletableFuture<Boolean> result = new CompletableFuture<>();
+    warm(baseAgentUri, 1, result);
+    return result;
+  }
+
+  private void warm(String baseAgentUri, int attempt, CompletableFuture<Boolean> result) {
+    Request request = new RequestBuilder("GET")
+      .setUrl(String.format(WARM_UP_URI_FORMAT, baseAgentUri))
+      .build();
+    execute(
+      baseAgentUri,
+      request,
+      new AsyncCompletionHandler<Void>() {
+
+        @Override
+        public Void onCompleted(Response response) {
+          result.complete(true);
+          return null;
+        }
+
+        @Override
+        public void onThrowable(Throwable t) {
+          if (attempt >= WARM_UP_ATTEMPTS) {
+            LOG.info(
+              "Could not open a connection to agent {}: {}",
+              baseAgentUri,
+              t.getMessage()
+            );
+            result.complete(false);
+            return;
+          }
+          timer.newTimeout(
+            timeout -> warm(baseAgentUri, attempt + 1, result),
+            WARM_UP_RETRY_SECONDS,
+            TimeUnit.SECONDS
+          );
+        }
+      }
+    );
+  }
+
+  /**
+   * Closes the idle connections to an agent that is shutting down
+   */
+  public void forget(String baseAgentUri) {
+    Object key = partitionKey(baseAgentUri);
+    channelPool.flushPartition(key);
+    queues.computeIfPresent(
+      key,
+      (k, queue) -> {
+        synchronized (queue) {
+          return queue.inFlight == 0 ? null : queue;
+        }
+      }
+    );
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    httpClient.close();
+    timer.stop();
+  }
+
+  @VisibleForTesting
+  long getOpenedConnections() {
+    return openedConnections.getCount();
+  }
+
+  @VisibleForTesting
+  long getReusedConnections() {
+    return reusedConnections.getCount();
+  }
+
+  private <T> void send(
+    AgentQueue queue,
+    Request request,
+    AsyncCompletionHandler<T> handler,
+    Runnable onSend
+  ) {
+    AtomicBoolean released = new AtomicBoolean(false);
+    Runnable release = () -> {
+      if (released.compareAndSet(false, true)) {
+        release(queue);
+      }
+    };
+    try {
+      onSend.run();
+      httpClient.executeRequest(
+        request,
+        new AsyncCompletionHandler<T>() {
+
+          @Override
+          public T onCompleted(Response response) throws Exception {
+            try {
+              return handler.onCompleted(response);
+            } finally {
+              release.run();
+            }
+          }
+
+          @Override
+          public void onThrowable(Throwable t) {
+            try {
+              handler.onThrowable(t);
+            } finally {
+              release.run();
+            }
+          }
+        }
+      );
+    } catch (RuntimeException e) {
+      release.run();
+      throw e;
+    }
+  }
+
+  private void release(AgentQueue queue) {
+    Runnable next;
+    synchronized (queue) {
+      next = queue.waiting.poll();
+      if (next == null) {
+        queue.inFlight--;
+      }
+    }
+    if (next != null) {
+      try {
+        next.run();
+      } catch (RuntimeException e) {
+        LOG.error("Could not send queued agent request", e);
+      }
+    }
+  }
+
+  /**
+   * The same key AsyncHttpClient pools connections under, one per agent host and port
+   */
+  private static Object partitionKey(String baseAgentUri) {
+    return PerHostConnectionPoolPartitioning.INSTANCE.getPartitionKey(
+      Uri.create(baseAgentUri),
+      null
+    );
+  }
+
+  private static class HedgedRequest<T> {
+    private final AsyncCompletionHandler<T> handler;
+    private final AtomicBoolean done = new AtomicBoolean(false);
+    private final AtomicInteger outstanding = new AtomicInteger(0);
+    private final AtomicReference<Response> unsuccessfulResponse = new AtomicReference<>();
+
+    private HedgedRequest(AsyncCompletionHandler<T> handler) {
+      this.handler = handler;
+    }
+
+    private boolean isDone() {
+      return done.get();
+    }
+
+    private AsyncCompletionHandler<T> attempt() {
+      outstanding.incrementAndGet();
+      return new AsyncCompletionHandler<T>() {
+
+        @Override
+        public T onCompleted(Response response) throws Exception {
+          boolean succeeded =
+            response.getStatusCode() >= 200 && response.getStatusCode() < 300;
+          if (!succeeded) {
+            unsuccessfulResponse.set(response);
+          }
+          int stillOutstanding = outstanding.decrementAndGet();
+          if ((succeeded || stillOutstanding == 0) && done.compareAndSet(false, true)) {
+            return handler.onCompleted(response);
+          }
+          return null;
+        }
+
+        @Override
+        public void onThrowable(Throwable t) {
+          if (outstanding.decrementAndGet() == 0 && done.compareAndSet(false, true)) {
+            // What the agent answered says more than the attempt that got no answer
+            Response response = unsuccessfulResponse.get();
+            if (response == null) {
+              handler.onThrowable(t);
+              return;
+            }
+            try {
+              handler.onCompleted(response);
+            } catch (Exception e) {
+              handler.onThrowable(e);
+            }
+          }
+        }
+      };
+    }
+  }
+
+  private static class AgentQueue {
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int inFlight = 0;
+  }
+
+  /**
+   * AsyncHttpClient polls the pool before every request and opens a new connection when it comes
+   * back empty
+   */
+  private class InstrumentedChannelPool implements ChannelPool {
+    private final ChannelPool delegate;
+
+    private InstrumentedChannelPool(ChannelPool delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean offer(Channel channel, Object partitionKey) {
+      return delegate.offer(channel, partitionKey);
+    }
+
+    @Override
+    public Channel poll(Object partitionKey) {
+      Channel channel = delegate.poll(partitionKey);
+      if (channel == null) {
+        openedConnections.mark();
+      } else {
+        reusedConnections.mark();
+      }
+      return channel;
+    }
+
+    @Override
+    public boolean removeAll(Channel channel) {
+      return delegate.removeAll(channel);
+    }
+
+    @Override
+    public boolean isOpen() {
+      return delegate.isOpen();
+    }
+
+    @Override
+    public void destroy() {
+      delegate.destroy();
+    }
+
+    @Override
+    public void flushPartition(Object partitionKey) {
+      delegate.flushPartition(partitionKey);
+    }
+
+    @Override
+    public void flushPartitions(ChannelPoolPartitionSelector selector) {
+      delegate.flushPartitions(selector);
+    }
+  }
+}
@@ -12,6 +12,7 @@ import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.BaragonDataModule;
 import com.hubspot.baragon.data.BaragonAgentResponseDatastore;
+import com.hubspot.baragon.data.BaragonAgentResponseDatastore.AgentResponseBatch;
 import com.hubspot.baragon.data.BaragonLoadBalancerDatastore;
 import com.hubspot.baragon.data.BaragonStateDatastore;
 import com.hubspot.baragon.models.AgentBatchResponseItem;
@@ -28,11 +29,10 @@ import com.hubspot.baragon.models.InternalRequestStates;
 import com.hubspot.baragon.models.InternalStatesMap;
 import com.hubspot.baragon.models.QueuedRequestWithState;
 import com.hubspot.baragon.models.RequestAction;
-import com.hubspot.baragon.service.BaragonServiceModule;
 import com.hubspot.baragon.service.config.BaragonConfiguration;
 import com.ning.http.client.AsyncCompletionHandler;
-import com.ning.http.client.AsyncHttpClient;
-import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
+import com.ning.http.client.Request;
+import com.ning.http.client.RequestBuilder;
 import com.ning.http.client.Response;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -42,6 +42,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import org.slf4j.Logger;
@@ -55,7 +58,8 @@ public class AgentManager {
   private final BaragonLoadBalancerDatastore loadBalancerDatastore;
   private final BaragonStateDatastore stateDatastore;
   protected final BaragonAgentResponseDatastore agentResponseDatastore;
-  private final AsyncHttpClient asyncHttpClient;
+  private final AgentConnectionPool agentConnectionPool;
+  private final AgentRequestLimits agentRequestLimits;
   private final String baragonAgentRequestUriFormat;
   private final String baragonAgentBatchRequestUriFormat;
   private final Integer baragonAgentMaxAttempts;
@@ -71,9 +75,7 @@ public class AgentManager {
     BaragonAgentResponseDatastore agentResponseDatastore,
     BaragonConfiguration configuration,
     ObjectMapper objectMapper,
-    @Named(
-      BaragonServiceModule.BARAGON_SERVICE_HTTP_CLIENT
-    ) AsyncHttpClient asyncHttpClient,
+    AgentConnectionPool agentConnectionPool,
     @Named(
       BaragonDataModule.BARAGON_AGENT_REQUEST_URI_FORMAT
     ) String baragonAgentRequestUriFormat,
@@ -91,7 +93,8 @@ public class AgentManager {
     this.agentResponseDatastore = agentResponseDatastore;
     this.configuration = configuration;
     this.objectMapper = objectMapper;
-    this.asyncHttpClient = asyncHttpClient;
+    this.agentConnectionPool = agentConnectionPool;
+    this.agentRequestLimits = agentConnectionPool.getRequestLimits();
     this.baragonAgentRequestUriFormat = baragonAgentRequestUriFormat;
     this.baragonAgentBatchRequestUriFormat = baragonAgentBatchRequestUriFormat;
     this.baragonAgentMaxAttempts = baragonAgentMaxAttempts;
@@ -99,45 +102,52 @@ public class AgentManager {
     this.baragonAgentRequestTimeout = baragonAgentRequestTimeout;
   }
 
-  private AsyncHttpClient.BoundRequestBuilder buildAgentRequest(
+  private Request buildAgentRequest(
     String url,
-    AgentRequestType requestType
+    AgentRequestType requestType,
+    int requestTimeoutMs
   ) {
-    final BoundRequestBuilder builder;
+    final RequestBuilder builder;
     switch (requestType) {
       case APPLY:
-        builder = asyncHttpClient.preparePost(url);
+        builder = new RequestBuilder("POST");
         break;
       case REVERT:
       case PURGE_CACHE:
-        builder = asyncHttpClient.preparePost(url);
+        builder = new RequestBuilder("POST");
         break;
       case CANCEL:
-        builder = asyncHttpClient.prepareDelete(url);
+        builder = new RequestBuilder("DELETE");
         break;
       default:
         throw new RuntimeException("Don't know how to send requests for " + requestType);
     }
+    builder.setUrl(url).setRequestTimeout(requestTimeoutMs);
 
     if (baragonAuthKey.isPresent()) {
       builder.addQueryParam("authkey", baragonAuthKey.get());
     }
 
-    return builder;
+    return builder.build();
   }
 
-  private AsyncHttpClient.BoundRequestBuilder buildAgentBatchRequest(
+  private Request buildAgentBatchRequest(
     String url,
-    List<BaragonRequestBatchItem> batch
+    List<BaragonRequestBatchItem> batch,
+    int requestTimeoutMs
   )
     throws JsonProcessingException {
-    final BoundRequestBuilder builder = asyncHttpClient.preparePost(url);
+    final RequestBuilder builder = new RequestBuilder("POST")
+      .setUrl(url)
+      .setRequestTimeout(requestTimeoutMs);
     if (baragonAuthKey.isPresent()) {
       builder.addQueryParam("authkey", baragonAuthKey.get());
     }
+    // Lets the agent recognise a hedged or retried copy of this batch and not apply it again
+    builder.addQueryParam("batchId", UUID.randomUUID().toString());
     builder.addHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
     builder.setBody(objectMapper.writeValueAsBytes(batch));
-    return builder;
+    return builder.build();
   }
 
   public Map<QueuedRequestWithState, InternalRequestStates> sendRequests(
@@ -163,12 +173,15 @@ public class AgentManager {
           int inFlight = agentResponseDatastore.getPendingRequestsCount(
             agentMetadata.getBaseAgentUri()
           );
-          if (inFlight >= configuration.getMaxConcurrentRequestsPerAgent()) {
+          int limit = agentRequestLimits.getConcurrencyLimit(
+            agentMetadata.getBaseAgentUri()
+          );
+          if (inFlight >= limit) {
             LOG.info(
               "Too many concurrent requests for group {} ({} >= {}), waiting for some to complete before attempting request {}",
               group,
               inFlight,
-              configuration.getMaxConcurrentRequestsPerAgent(),
+              limit,
               queuedRequestWithState.getQueuedRequestId().getRequestId()
             );
             okToSendToGroup = false;
@@ -269,133 +282,122 @@ public class AgentManager {
   void sendFilteredBatchRequests(String baseUrl, List<BaragonRequestBatchItem> batch) {
     final String url = String.format(baragonAgentBatchRequestUriFormat, baseUrl);
     final Set<String> handledRequestIds = Sets.newHashSet();
+    final AtomicLong start = new AtomicLong(System.currentTimeMillis());
 
     try {
-      buildAgentBatchRequest(url, batch)
-        .execute(
-          new AsyncCompletionHandler<Void>() {
+      final Request request = buildAgentBatchRequest(
+        url,
+        batch,
+        agentRequestLimits.getTimeoutMs(baseUrl)
+      );
+      final AsyncCompletionHandler<Void> handler = new AsyncCompletionHandler<Void>() {
 
-            @Override
-            public Void onCompleted(Response response) throws Exception {
-              LOG.info(
-                "Got HTTP {} from {} for batch request {}",
-                response.getStatusCode(),
-                baseUrl,
-                batch
+        @Override
+        public Void onCompleted(Response response) throws Exception {
+          LOG.info(
+            "Got HTTP {} from {} for batch request {}",
+            response.getStatusCode(),
+            baseUrl,
+            batch
+          );
+          recordResponse(baseUrl, start.get(), response);
+          if (response.getStatusCode() >= 300) {
+            LOG.error(
+              "Received invalid response from agent (status: {}, response: {})",
+              response.getStatusCode(),
+              response.getResponseBody()
+            );
+            AgentResponseBatch responseBatch = agentResponseDatastore.newAgentResponseBatch(
+              baseUrl,
+              url
+            );
+            for (BaragonRequestBatchItem item : batch) {
+              responseBatch.add(
+                item.getRequestId(),
+                item.getRequestType(),
+                Optional.<Integer>absent(),
+                Optional.<String>absent(),
+                Optional.of(
+                  String.format("Caught exception processing agent response %s", response)
+                )
               );
-              if (response.getStatusCode() >= 300) {
-                LOG.error(
-                  "Received invalid response from agent (status: {}, response: {})",
-                  response.getStatusCode(),
-                  response.getResponseBody()
-                );
-                for (BaragonRequestBatchItem item : batch) {
-                  agentResponseDatastore.addAgentResponse(
-                    item.getRequestId(),
-                    item.getRequestType(),
-                    baseUrl,
-                    url,
-                    Optional.<Integer>absent(),
-                    Optional.<String>absent(),
-                    Optional.of(
-                      String.format(
-                        "Caught exception processing agent response %s",
-                        response
-                      )
-                    )
-                  );
-                  agentResponseDatastore.setPendingRequestStatus(
-                    item.getRequestId(),
-                    baseUrl,
-                    false
-                  );
-                  handledRequestIds.add(item.getRequestId());
-                }
-                return null;
-              }
-              Set<AgentBatchResponseItem> responses = objectMapper.readValue(
-                response.getResponseBody(),
-                new TypeReference<Set<AgentBatchResponseItem>>() {}
+            }
+            commit(responseBatch, handledRequestIds);
+            return null;
+          }
+          Set<AgentBatchResponseItem> responses = objectMapper.readValue(
+            response.getResponseBody(),
+            new TypeReference<Set<AgentBatchResponseItem>>() {}
+          );
+          AgentResponseBatch responseBatch = agentResponseDatastore.newAgentResponseBatch(
+            baseUrl,
+            url
+          );
+          Set<String> respondedRequestIds = Sets.newHashSet();
+          for (AgentBatchResponseItem agentResponse : responses) {
+            LOG.info("agentResponse={}", agentResponse);
+            responseBatch.add(
+              agentResponse.getRequestId(),
+              agentResponse.getRequestType(),
+              Optional.of(agentResponse.getStatusCode()),
+              agentResponse.getMessage(),
+              Optional.<String>absent()
+            );
+            respondedRequestIds.add(agentResponse.getRequestId());
+          }
+          LOG.info("respondedRequestIds={}", respondedRequestIds);
+          for (BaragonRequestBatchItem item : batch) {
+            LOG.info("item={}", item);
+            if (!respondedRequestIds.contains(item.getRequestId())) {
+              LOG.info(
+                "respondedRequestIds doesn't contain item with id={}",
+                item.getRequestId()
               );
-              for (AgentBatchResponseItem agentResponse : responses) {
-                LOG.info("agentResponse={}", agentResponse);
-                agentResponseDatastore.addAgentResponse(
-                  agentResponse.getRequestId(),
-                  agentResponse.getRequestType(),
-                  baseUrl,
-                  url,
-                  Optional.of(agentResponse.getStatusCode()),
-                  agentResponse.getMessage(),
-                  Optional.<String>absent()
-                );
-                agentResponseDatastore.setPendingRequestStatus(
-                  agentResponse.getRequestId(),
-                  baseUrl,
-                  false
-                );
-                handledRequestIds.add(agentResponse.getRequestId());
-              }
-              LOG.info("handledRequestIds={}", handledRequestIds);
-              for (BaragonRequestBatchItem item : batch) {
-                LOG.info("item={}", item);
-                if (!handledRequestIds.contains(item.getRequestId())) {
-                  LOG.info(
-                    "handledRequestIds doesn't contain item with id={}",
+              responseBatch.add(
+                item.getRequestId(),
+                item.getRequestType(),
+                Optional.<Integer>absent(),
+                Optional.<String>absent(),
+                Optional.of(
+                  String.format(
+                    "No response in batch for request %s",
                     item.getRequestId()
-                  );
-                  agentResponseDatastore.addAgentResponse(
-                    item.getRequestId(),
-                    item.getRequestType(),
-                    baseUrl,
-                    url,
-                    Optional.<Integer>absent(),
-                    Optional.<String>absent(),
-                    Optional.of(
-                      String.format(
-                        "No response in batch for request %s",
-                        item.getRequestId()
-                      )
-                    )
-                  );
-                  agentResponseDatastore.setPendingRequestStatus(
-                    item.getRequestId(),
-                    baseUrl,
-                    false
-                  );
-                }
-              }
-              return null;
-            }
-
-            @Override
-            public void onThrowable(Throwable t) {
-              LOG.error(
-                "Got exception when hitting {} with batch request {}",
-                baseUrl,
-                batch,
-                t
+                  )
+                )
               );
-              for (BaragonRequestBatchItem item : batch) {
-                if (!handledRequestIds.contains(item.getRequestId())) {
-                  agentResponseDatastore.addAgentResponse(
-                    item.getRequestId(),
-                    item.getRequestType(),
-                    baseUrl,
-                    url,
-                    Optional.<Integer>absent(),
-                    Optional.<String>absent(),
-                    Optional.of(t.getMessage())
-                  );
-                  agentResponseDatastore.setPendingRequestStatus(
-                    item.getRequestId(),
-                    baseUrl,
-                    false
-                  );
-                }
-              }
             }
           }
+          commit(responseBatch, handledRequestIds);
+          return null;
+        }
+
+        @Override
+        public void onThrowable(Throwable t) {
+          LOG.error(
+            "Got exception when hitting {} with batch request {}",
+            baseUrl,
+            batch,
+            t
+          );
+          recordFailure(baseUrl, start.get(), t);
+          recordBatchFailure(baseUrl, url, batch, handledRequestIds, t.getMessage());
+        }
+      };
+
+      // Time the agent from when the request leaves its queue, not from when it was queued
+      Runnable onSend = () -> start.set(System.currentTimeMillis());
+      Optional<Long> hedgeDelayMs = agentRequestLimits.getHedgeDelayMs(baseUrl);
+      if (hedgeDelayMs.isPresent()) {
+        agentConnectionPool.executeHedged(
+          baseUrl,
+          request,
+          handler,
+          hedgeDelayMs.get(),
+          onSend
         );
+      } else {
+        agentConnectionPool.execute(baseUrl, request, handler, onSend);
+      }
     } catch (Exception e) {
       LOG.info(
         "Got exception {} when hitting {} with batch reqeust {}",
@@ -403,25 +405,45 @@ public class AgentManager {
         baseUrl,
         batch
       );
-      for (BaragonRequestBatchItem item : batch) {
-        if (!handledRequestIds.contains(item.getRequestId())) {
-          agentResponseDatastore.addAgentResponse(
-            item.getRequestId(),
-            item.getRequestType(),
-            baseUrl,
-            url,
-            Optional.<Integer>absent(),
-            Optional.<String>absent(),
-            Optional.of(e.getMessage())
-          );
-          agentResponseDatastore.setPendingRequestStatus(
-            item.getRequestId(),
-            baseUrl,
-            false
-          );
-        }
+      recordBatchFailure(baseUrl, url, batch, handledRequestIds, e.getMessage());
+    }
+  }
+
+  private void recordBatchFailure(
+    String baseUrl,
+    String url,
+    List<BaragonRequestBatchItem> batch,
+    Set<String> handledRequestIds,
+    String message
+  ) {
+    AgentResponseBatch responseBatch = agentResponseDatastore.newAgentResponseBatch(
+      baseUrl,
+      url
+    );
+    for (BaragonRequestBatchItem item : batch) {
+      if (!handledRequestIds.contains(item.getRequestId())) {
+        responseBatch.add(
+          item.getRequestId(),
+          item.getRequestType(),
+          Optional.<Integer>absent(),
+          Optional.<String>absent(),
+          Optional.fromNullable(message)
+        );
       }
     }
+    commit(responseBatch, handledRequestIds);
+  }
+
+  /**
+   * Responses recorded before a commit failed count as handled, so the failure is not recorded for
+   * those requests a second time
+   */
+  private void commit(AgentResponseBatch responseBatch, Set<String> handledRequestIds) {
+    try {
+      responseBatch.commit();
+    } finally {
+      handledRequestIds.addAll(responseBatch.getCommittedRequestIds());
+    }
   }
 
   private boolean shouldSendRequest(
@@ -482,63 +504,68 @@ public class AgentManager {
     agentResponseDatastore.setPendingRequestStatus(requestId, baseUrl, true);
 
     final String url = String.format(baragonAgentRequestUriFormat, baseUrl, requestId);
+    final AtomicLong start = new AtomicLong(System.currentTimeMillis());
 
     try {
-      buildAgentRequest(url, requestType)
-        .execute(
-          new AsyncCompletionHandler<Void>() {
+      agentConnectionPool.execute(
+        baseUrl,
+        buildAgentRequest(url, requestType, agentRequestLimits.getTimeoutMs(baseUrl)),
+        new AsyncCompletionHandler<Void>() {
 
-            @Override
-            public Void onCompleted(Response response) throws Exception {
-              LOG.info(
-                String.format(
-                  "Got HTTP %d from %s for %s",
-                  response.getStatusCode(),
-                  baseUrl,
-                  requestId
-                )
-              );
-              final Optional<String> content = Strings.isNullOrEmpty(
-                  response.getResponseBody()
-                )
-                ? Optional.<String>absent()
-                : Optional.of(response.getResponseBody());
-              agentResponseDatastore.addAgentResponse(
-                requestId,
-                requestType,
+          @Override
+          public Void onCompleted(Response response) throws Exception {
+            LOG.info(
+              String.format(
+                "Got HTTP %d from %s for %s",
+                response.getStatusCode(),
                 baseUrl,
-                url,
-                Optional.of(response.getStatusCode()),
-                content,
-                Optional.<String>absent()
-              );
-              agentResponseDatastore.setPendingRequestStatus(requestId, baseUrl, false);
-              return null;
-            }
+                requestId
+              )
+            );
+            recordResponse(baseUrl, start.get(), response);
+            final Optional<String> content = Strings.isNullOrEmpty(
+                response.getResponseBody()
+              )
+              ? Optional.<String>absent()
+              : Optional.of(response.getResponseBody());
+            agentResponseDatastore.addAgentResponse(
+              requestId,
+              requestType,
+              baseUrl,
+              url,
+              Optional.of(response.getStatusCode()),
+              content,
+              Optional.<String>absent()
+            );
+            agentResponseDatastore.setPendingRequestStatus(requestId, baseUrl, false);
+            return null;
+          }
 
-            @Override
-            public void onThrowable(Throwable t) {
-              LOG.info(
-                String.format(
-                  "Got exception %s when hitting %s for %s",
-                  t,
-                  baseUrl,
-                  requestId
-                )
-              );
-              agentResponseDatastore.addAgentResponse(
-                requestId,
-                requestType,
+          @Override
+          public void onThrowable(Throwable t) {
+            LOG.info(
+              String.format(
+                "Got exception %s when hitting %s for %s",
+                t,
                 baseUrl,
-                url,
-                Optional.<Integer>absent(),
-                Optional.<String>absent(),
-                Optional.of(t.getMessage())
-              );
-              agentResponseDatastore.setPendingRequestStatus(requestId, baseUrl, false);
-            }
+                requestId
+              )
+            );
+            recordFailure(baseUrl, start.get(), t);
+            agentResponseDatastore.addAgentResponse(
+              requestId,
+              requestType,
+              baseUrl,
+              url,
+              Optional.<Integer>absent(),
+              Optional.<String>absent(),
+              Optional.of(t.getMessage())
+            );
+            agentResponseDatastore.setPendingRequestStatus(requestId, baseUrl, false);
           }
-        );
+        },
+        () -> start.set(System.currentTimeMillis())
+      );
     } catch (Exception e) {
       LOG.info(
         String.format("Got exception %s when hitting %s for %s", e, baseUrl, requestId)
@@ -556,6 +583,22 @@ public class AgentManager {
     }
   }
 
+  private void recordResponse(String baseUrl, long start, Response response) {
+    long latencyMs = System.currentTimeMillis() - start;
+    if (response.getStatusCode() >= 500) {
+      agentRequestLimits.onFailure(baseUrl, latencyMs, false);
+    } else {
+      agentRequestLimits.onSuccess(baseUrl, latencyMs);
+    }
+  }
+
+  private void recordFailure(String baseUrl, long start, Throwable t) {
+    // Connection failures say nothing about how loaded the agent is
+    if (t instanceof TimeoutException) {
+      agentRequestLimits.onFailure(baseUrl, System.currentTimeMillis() - start, true);
+    }
+  }
+
   public AgentRequestsStatus getRequestsStatus(
     BaragonRequest request,
     AgentRequestType requestType
@@ -0,0 +1,139 @@
+package com.hubspot.baragon.service.managers;
+
+import com.google.common.base.Optional;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.hubspot.baragon.config.HttpClientConfiguration;
+import com.hubspot.baragon.service.config.BaragonConfiguration;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-agent request limits learned from that agent's recent responses.
+ * - concurrency is AIMD: it grows by one request once every in-flight request has succeeded, up
+ *   to maxConcurrentRequestsPerAgent, and halves (down to one) whenever a request times out or the
+ *   agent returns an error
+ * - the request timeout is a multiple of the p99 response time, between agentRequestMinTimeoutMs and
+ *   the http client's requestTimeoutInMs. The minimum defaults to agentRequestTimeoutMs, so unless
+ *   it is set requests keep the http client's timeout
+ * - a batch is hedged once it has taken longer than the p95 response time, if hedging is enabled
+ *
+ * Until an agent has answered enough requests it gets the configured maximums and no hedging.
+ */
+@Singleton
+public class AgentRequestLimits {
+  private static final Logger LOG = LoggerFactory.getLogger(AgentRequestLimits.class);
+  private static final int WINDOW_SIZE = 100;
+  private static final int MIN_SAMPLES = 10;
+  private static final double TIMEOUT_PERCENTILE = 0.99;
+  private static final double TIMEOUT_MULTIPLIER = 3;
+  private static final double HEDGE_PERCENTILE = 0.95;
+
+  private final int maxConcurrency;
+  private final int minTimeoutMs;
+  private final int maxTimeoutMs;
+  private final boolean hedgingEnabled;
+  private final ConcurrentMap<String, AgentStats> agents = new ConcurrentHashMap<>();
+
+  @Inject
+  public AgentRequestLimits(
+    BaragonConfiguration configuration,
+    HttpClientConfiguration httpClientConfiguration
+  ) {
+    this.maxConcurrency = Math.max(1, configuration.getMaxConcurrentRequestsPerAgent());
+    this.maxTimeoutMs = httpClientConfiguration.getRequestTimeoutInMs();
+    this.minTimeoutMs =
+      (int) Math.min(
+        configuration
+          .getAgentRequestMinTimeoutMs()
+          .or((int) configuration.getAgentRequestTimeoutMs()),
+        maxTimeoutMs
+      );
+    this.hedgingEnabled = configuration.isAgentBatchHedgingEnabled();
+  }
+
+  public int getConcurrencyLimit(String baseUrl) {
+    return (int) stats(baseUrl).getLimit();
+  }
+
+  public int getTimeoutMs(String baseUrl) {
+    Optional<Long> p99 = stats(baseUrl).percentile(TIMEOUT_PERCENTILE);
+    if (!p99.isPresent()) {
+      return maxTimeoutMs;
+    }
+    long timeout = (long) (p99.get() * TIMEOUT_MULTIPLIER);
+    return (int) Math.max(minTimeoutMs, Math.min(maxTimeoutMs, timeout));
+  }
+
+  public Optional<Long> getHedgeDelayMs(String baseUrl) {
+    if (!hedgingEnabled) {
+      return Optional.absent();
+    }
+    return stats(baseUrl).percentile(HEDGE_PERCENTILE);
+  }
+
+  public void onSuccess(String baseUrl, long latencyMs) {
+    stats(baseUrl).onSuccess(latencyMs, maxConcurrency);
+  }
+
+  /**
+   * Timeouts count towards the agent's response times, so a consistently slow agent ends up with a
+   * longer timeout rather than failing every request at the same point
+   */
+  public void onFailure(String baseUrl, long latencyMs, boolean timedOut) {
+    AgentStats agent = stats(baseUrl);
+    if (timedOut) {
+      agent.record(latencyMs);
+    }
+    double limit = agent.decrease();
+    LOG.debug("Lowered concurrency limit for {} to {}", baseUrl, limit);
+  }
+
+  private AgentStats stats(String baseUrl) {
+    return agents.computeIfAbsent(baseUrl, b -> new AgentStats(maxConcurrency));
+  }
+
+  private static class AgentStats {
+    private final long[] samples = new long[WINDOW_SIZE];
+    private int count = 0;
+    private int next = 0;
+    private double limit;
+
+    private AgentStats(int limit) {
+      this.limit = limit;
+    }
+
+    private synchronized double getLimit() {
+      return limit;
+    }
+
+    private synchronized void onSuccess(long latencyMs, int maxConcurrency) {
+      record(latencyMs);
+      limit = Math.min(maxConcurrency, limit + 1 / limit);
+    }
+
+    private synchronized double decrease() {
+      limit = Math.max(1, limit / 2);
+      return limit;
+    }
+
+    private synchronized void record(long latencyMs) {
+      samples[next] = latencyMs;
+      next = (next + 1) % WINDOW_SIZE;
+      count = Math.min(count + 1, WINDOW_SIZE);
+    }
+
+    private synchronized Optional<Long> percentile(double percentile) {
+      if (count < MIN_SAMPLES) {
+        return Optional.absent();
+      }
+      long[] sorted = Arrays.copyOf(samples, count);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile * count) - 1;
+      return Optional.of(sorted[Math.max(0, index)]);
+    }
+  }
+}
@@ -3,6 +3,8 @@ package com.hubspot.baragon.service.managers;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.elasticloadbalancing.model.Instance;
 import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.hubspot.baragon.data.BaragonLoadBalancerDatastore;
@@ -18,19 +20,51 @@ import com.hubspot.baragon.service.elb.ApplicationLoadBalancer;
 import com.hubspot.baragon.service.elb.ClassicLoadBalancer;
 import com.hubspot.baragon.service.elb.ElasticLoadBalancer;
 import com.hubspot.baragon.service.exceptions.NoMatchingElbForVpcException;
+import io.dropwizard.lifecycle.Managed;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * With asyncCheckInEnabled, an agent starting up or shutting down gets an answer as soon as its check
+ * in is recorded. The agent is registered or de-registered on a small pool, and one poller then checks
+ * on every agent still waiting for a traffic source, so the status checks agents keep sending are
+ * answered from memory rather than each holding a request thread through its own AWS calls. Status
+ * checks for a check in this service did not start, for example after a restart, still ask AWS.
+ */
 @Singleton
-public class ElbManager {
+public class ElbManager implements Managed {
   private static final Logger LOG = LoggerFactory.getLogger(ElbManager.class);
+  private static final int ABANDONED_AFTER_MISSED_CHECKS = 10;
 
   private final ApplicationLoadBalancer applicationLoadBalancer;
   private final ClassicLoadBalancer classicLoadBalancer;
 
   private final Optional<ElbConfiguration> configuration;
   private final BaragonLoadBalancerDatastore loadBalancerDatastore;
+  private final ExecutorService checkInExecutor;
+  private final ScheduledExecutorService checkInPoller = Executors.newSingleThreadScheduledExecutor(
+    new ThreadFactoryBuilder()
+      .setNameFormat("elb-check-in-poller-%d")
+      .setDaemon(true)
+      .build()
+  );
+  private final Map<String, CheckIn> checkIns = new ConcurrentHashMap<>();
 
   @Inject
   public ElbManager(
@@ -44,6 +78,41 @@ public class ElbManager {
 
     this.configuration = configuration;
     this.loadBalancerDatastore = loadBalancerDatastore;
+    ElbConfiguration config = configuration.or(new ElbConfiguration());
+    int checkInThreads = Math.max(1, config.getCheckInThreads());
+    // Once the queue is full, check ins run on the request thread, as if async check in were off
+    this.checkInExecutor =
+      new ThreadPoolExecutor(
+        checkInThreads,
+        checkInThreads,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(Math.max(1, config.getCheckInQueueSize())),
+        new ThreadFactoryBuilder()
+          .setNameFormat("elb-check-in-%d")
+          .setDaemon(true)
+          .build(),
+        new ThreadPoolExecutor.CallerRunsPolicy()
+      );
+  }
+
+  @Override
+  public void start() {
+    if (isAsyncCheckInEnabled()) {
+      long intervalMs = configuration.get().getDefaultCheckInWaitTimeMs();
+      checkInPoller.scheduleWithFixedDelay(
+        this::pollCheckIns,
+        intervalMs,
+        intervalMs,
+        TimeUnit.MILLISECONDS
+      );
+    }
+  }
+
+  @Override
+  public void stop() {
+    checkInPoller.shutdownNow();
+    checkInExecutor.shutdownNow();
   }
 
   public boolean isElbConfigured() {
@@ -72,70 +141,19 @@ public class ElbManager {
     boolean isStatusCheck
   )
     throws AmazonClientException {
-    TrafficSourceState state = TrafficSourceState.DONE;
-    long maxWaitTime = 0L;
-    Optional<String> maybeExceptions = Optional.absent();
-    if (isElbEnabledAgent(agent, group, groupName)) {
-      boolean anyCompatible = false;
-      StringBuilder message = new StringBuilder();
-      for (TrafficSource source : group.get().getTrafficSources()) {
-        if (
-          source.getRegisterBy() == RegisterBy.PRIVATE_IP &&
-          !agent.getEc2().getPrivateIp().isPresent()
-        ) {
-          message.append(
-            String.format(
-              "No private ip present to register by for source %s ",
-              source.getName()
-            )
-          );
-          continue;
-        } else if (
-          source.getRegisterBy() == RegisterBy.INSTANCE_ID &&
-          !agent.getEc2().getInstanceId().isPresent()
-        ) {
-          message.append(
-            String.format(
-              "No instance id present to register by for source %s ",
-              source.getName()
-            )
-          );
-          continue;
-        }
-        anyCompatible = true;
-        String id = source.getRegisterBy() == RegisterBy.PRIVATE_IP
-          ? agent.getEc2().getPrivateIp().get()
-          : agent.getEc2().getInstanceId().get();
-        Instance instance = source.getRegisterBy() == RegisterBy.PRIVATE_IP
-          ? null
-          : new Instance(agent.getEc2().getInstanceId().get());
-        AgentCheckInResponse response = isStatusCheck
-          ? getLoadBalancer(source.getType())
-            .checkRemovedInstance(id, source.getName(), agent.getAgentId())
-          : getLoadBalancer(source.getType())
-            .removeInstance(instance, id, source.getName(), agent.getAgentId());
-        if (response.getState().ordinal() > state.ordinal()) {
-          state = response.getState();
-        }
-        if (response.getExceptionMessage().isPresent()) {
-          maybeExceptions =
-            Optional.of(
-              maybeExceptions.or("") + response.getExceptionMessage().get() + "\n"
-            );
-        }
-        if (response.getWaitTime() > maxWaitTime) {
-          maxWaitTime = response.getWaitTime();
-        }
+    if (!isElbEnabledAgent(agent, group, groupName)) {
+      return new AgentCheckInResponse(TrafficSourceState.DONE, Optional.absent(), 0L);
+    }
+    if (isAsyncCheckInEnabled()) {
+      if (!isStatusCheck) {
+        return startCheckIn(agent, group.get(), groupName, false);
       }
-      if (!anyCompatible) {
-        return new AgentCheckInResponse(
-          TrafficSourceState.ERROR,
-          Optional.of(message.toString()),
-          maxWaitTime
-        );
+      Optional<AgentCheckInResponse> tracked = trackedCheckIn(agent, groupName, false);
+      if (tracked.isPresent()) {
+        return tracked.get();
       }
     }
-    return new AgentCheckInResponse(state, maybeExceptions, maxWaitTime);
+    return checkInNow(agent, group.get(), false, isStatusCheck);
   }
 
   public AgentCheckInResponse attemptAddAgent(
@@ -145,73 +163,331 @@ public class ElbManager {
     boolean isStatusCheck
   )
     throws AmazonClientException, NoMatchingElbForVpcException {
-    TrafficSourceState state = TrafficSourceState.DONE;
-    Optional<String> maybeVpcException = Optional.absent();
-    long maxWaitTime = 0L;
-    if (isElbEnabledAgent(agent, group, groupName)) {
-      boolean anyCompatible = false;
-      StringBuilder message = new StringBuilder();
-      for (TrafficSource source : group.get().getTrafficSources()) {
-        if (
-          source.getRegisterBy() == RegisterBy.PRIVATE_IP &&
-          !agent.getEc2().getPrivateIp().isPresent()
-        ) {
-          message.append(
-            String.format(
-              "No private ip present to register by for source %s ",
-              source.getName()
-            )
+    if (!isElbEnabledAgent(agent, group, groupName)) {
+      return new AgentCheckInResponse(TrafficSourceState.DONE, Optional.absent(), 0L);
+    }
+    if (isAsyncCheckInEnabled()) {
+      if (!isStatusCheck) {
+        return startCheckIn(agent, group.get(), groupName, true);
+      }
+      Optional<AgentCheckInResponse> tracked = trackedCheckIn(agent, groupName, true);
+      if (tracked.isPresent()) {
+        return failIfNoElbForVpc(tracked.get());
+      }
+    }
+    return failIfNoElbForVpc(checkInNow(agent, group.get(), true, isStatusCheck));
+  }
+
+  private AgentCheckInResponse checkInNow(
+    BaragonAgentMetadata agent,
+    BaragonGroup group,
+    boolean adding,
+    boolean isStatusCheck
+  ) {
+    StringBuilder message = new StringBuilder();
+    List<CheckInTarget> targets = checkInTargets(agent, group, message);
+    if (targets.isEmpty()) {
+      return new AgentCheckInResponse(
+        TrafficSourceState.ERROR,
+        Optional.of(message.toString()),
+        0L
+      );
+    }
+    List<AgentCheckInResponse> responses = new ArrayList<>();
+    for (CheckInTarget target : targets) {
+      responses.add(checkInTarget(target, agent, adding, isStatusCheck));
+    }
+    return combine(responses);
+  }
+
+  private AgentCheckInResponse startCheckIn(
+    BaragonAgentMetadata agent,
+    BaragonGroup group,
+    String groupName,
+    boolean adding
+  ) {
+    CheckIn checkIn = new CheckIn(
+      adding,
+      new AgentCheckInResponse(
+        TrafficSourceState.PENDING,
+        Optional.absent(),
+        configuration.get().getDefaultCheckInWaitTimeMs()
+      )
+    );
+    checkIn.expiresAt = System.currentTimeMillis() + abandonedAfterMs();
+    checkIns.put(checkInKey(groupName, agent), checkIn);
+    checkInExecutor.execute(
+      () -> {
+        try {
+          StringBuilder message = new StringBuilder();
+          List<CheckInTarget> targets = checkInTargets(agent, group, message);
+          if (targets.isEmpty()) {
+            checkIn.response =
+              new AgentCheckInResponse(
+                TrafficSourceState.ERROR,
+                Optional.of(message.toString()),
+                0L
+              );
+            return;
+          }
+          Map<CheckInTarget, AgentCheckInResponse> responses = new ConcurrentHashMap<>();
+          for (CheckInTarget target : targets) {
+            responses.put(target, checkInTarget(target, agent, adding, false));
+          }
+          checkIn.targets = responses;
+          checkIn.response = combinedResponse(checkIn);
+        } catch (Exception e) {
+          LOG.error(
+            "Could not check in agent {} with its traffic sources",
+            agent.getAgentId(),
+            e
           );
-          continue;
-        } else if (
-          source.getRegisterBy() == RegisterBy.INSTANCE_ID &&
-          !agent.getEc2().getInstanceId().isPresent()
-        ) {
-          message.append(
-            String.format(
-              "No instance id present to register by for source %s ",
-              source.getName()
-            )
+          checkIn.response =
+            new AgentCheckInResponse(
+              TrafficSourceState.ERROR,
+              Optional.fromNullable(e.getMessage()),
+              0L
+            );
+        }
+      }
+    );
+    return checkIn.response;
+  }
+
+  private Optional<AgentCheckInResponse> trackedCheckIn(
+    BaragonAgentMetadata agent,
+    String groupName,
+    boolean adding
+  ) {
+    String key = checkInKey(groupName, agent);
+    CheckIn checkIn = checkIns.get(key);
+    if (checkIn == null || checkIn.adding != adding) {
+      return Optional.absent();
+    }
+    AgentCheckInResponse response = checkIn.response;
+    // A check in that failed before reaching its traffic sources has nothing to poll, so later
+    // status checks go to AWS directly
+    if (
+      response.getState() == TrafficSourceState.DONE ||
+      (response.getState() == TrafficSourceState.ERROR && checkIn.targets == null)
+    ) {
+      checkIns.remove(key, checkIn);
+    } else {
+      checkIn.expiresAt =
+        System.currentTimeMillis() + response.getWaitTime() + abandonedAfterMs();
+    }
+    return Optional.of(response);
+  }
+
+  /**
+   * Checks on every agent still waiting to be added to or removed from a traffic source, with one
+   * call per traffic source however many agents are waiting on it
+   */
+  void pollCheckIns() {
+    try {
+      long now = System.currentTimeMillis();
+      Map<TrafficSource, List<Map.Entry<CheckIn, CheckInTarget>>> registering = new HashMap<>();
+      Map<TrafficSource, List<Map.Entry<CheckIn, CheckInTarget>>> removing = new HashMap<>();
+      Iterator<Map.Entry<String, CheckIn>> iterator = checkIns.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<String, CheckIn> entry = iterator.next();
+        CheckIn checkIn = entry.getValue();
+        if (now > checkIn.expiresAt) {
+          LOG.info(
+            "No longer tracking check in for {}, agent stopped asking",
+            entry.getKey()
           );
+          iterator.remove();
           continue;
         }
-        anyCompatible = true;
-        String id = source.getRegisterBy() == RegisterBy.PRIVATE_IP
-          ? agent.getEc2().getPrivateIp().get()
-          : agent.getEc2().getInstanceId().get();
-        Instance instance = source.getRegisterBy() == RegisterBy.PRIVATE_IP
-          ? null
-          : new Instance(agent.getEc2().getInstanceId().get());
-        AgentCheckInResponse response = isStatusCheck
-          ? getLoadBalancer(source.getType())
-            .checkRegisteredInstance(instance, id, source, agent)
-          : getLoadBalancer(source.getType())
-            .registerInstance(instance, id, source.getName(), agent);
-        if (response.getExceptionMessage().isPresent()) {
-          maybeVpcException =
-            Optional.of(
-              maybeVpcException.or("") + response.getExceptionMessage().get() + "\n"
-            );
+        Map<CheckInTarget, AgentCheckInResponse> targets = checkIn.targets;
+        if (targets == null || checkIn.response.getState() == TrafficSourceState.DONE) {
+          continue;
         }
-        if (response.getState().ordinal() > state.ordinal()) {
-          state = response.getState();
+        for (Map.Entry<CheckInTarget, AgentCheckInResponse> target : targets.entrySet()) {
+          if (target.getValue().getState() != TrafficSourceState.DONE) {
+            (checkIn.adding ? registering : removing).computeIfAbsent(
+                target.getKey().source,
+                s -> new ArrayList<>()
+              )
+              .add(Maps.immutableEntry(checkIn, target.getKey()));
+          }
         }
-        if (response.getWaitTime() > maxWaitTime) {
-          maxWaitTime = response.getWaitTime();
+      }
+      Set<CheckIn> updated = new HashSet<>();
+      checkTrafficSources(registering, true, updated);
+      checkTrafficSources(removing, false, updated);
+      for (CheckIn checkIn : updated) {
+        checkIn.response = combinedResponse(checkIn);
+      }
+    } catch (Exception e) {
+      LOG.error("Could not check on pending agent check ins", e);
+    }
+  }
+
+  private void checkTrafficSources(
+    Map<TrafficSource, List<Map.Entry<CheckIn, CheckInTarget>>> waiting,
+    boolean adding,
+    Set<CheckIn> updated
+  ) {
+    for (Map.Entry<TrafficSource, List<Map.Entry<CheckIn, CheckInTarget>>> entry : waiting.entrySet()) {
+      TrafficSource source = entry.getKey();
+      Set<String> ids = entry
+        .getValue()
+        .stream()
+        .map(w -> w.getValue().id)
+        .collect(Collectors.toSet());
+      Map<String, AgentCheckInResponse> responses;
+      try {
+        responses =
+          adding
+            ? getLoadBalancer(source.getType()).checkRegisteredInstances(source, ids)
+            : getLoadBalancer(source.getType()).checkRemovedInstances(source, ids);
+      } catch (Exception e) {
+        LOG.warn("Could not check on agents waiting for {}", source.getName(), e);
+        continue;
+      }
+      for (Map.Entry<CheckIn, CheckInTarget> waiter : entry.getValue()) {
+        AgentCheckInResponse response = responses.get(waiter.getValue().id);
+        if (response != null) {
+          waiter.getKey().targets.put(waiter.getValue(), response);
+          updated.add(waiter.getKey());
         }
       }
-      if (maybeVpcException.isPresent() && configuration.get().isFailWhenNoElbForVpc()) {
-        throw new NoMatchingElbForVpcException(maybeVpcException.get());
+    }
+  }
+
+  private AgentCheckInResponse combinedResponse(CheckIn checkIn) {
+    return combine(checkIn.targets.values());
+  }
+
+  private AgentCheckInResponse failIfNoElbForVpc(AgentCheckInResponse response)
+    throws NoMatchingElbForVpcException {
+    if (
+      response.getExceptionMessage().isPresent() &&
+      configuration.get().isFailWhenNoElbForVpc()
+    ) {
+      throw new NoMatchingElbForVpcException(response.getExceptionMessage().get());
+    }
+    return response;
+  }
+
+  private static AgentCheckInResponse combine(
+    Collection<AgentCheckInResponse> responses
+  ) {
+    TrafficSourceState state = TrafficSourceState.DONE;
+    Optional<String> maybeExceptions = Optional.absent();
+    long maxWaitTime = 0L;
+    for (AgentCheckInResponse response : responses) {
+      if (response.getState().ordinal() > state.ordinal()) {
+        state = response.getState();
+      }
+      if (response.getExceptionMessage().isPresent()) {
+        maybeExceptions =
+          Optional.of(
+            maybeExceptions.or("") + response.getExceptionMessage().get() + "\n"
+          );
       }
-      if (!anyCompatible) {
-        return new AgentCheckInResponse(
-          TrafficSourceState.ERROR,
-          Optional.of(message.toString()),
-          maxWaitTime
+      if (response.getWaitTime() > maxWaitTime) {
+        maxWaitTime = response.getWaitTime();
+      }
+    }
+    return new AgentCheckInResponse(state, maybeExceptions, maxWaitTime);
+  }
+
+  private AgentCheckInResponse checkInTarget(
+    CheckInTarget target,
+    BaragonAgentMetadata agent,
+    boolean adding,
+    boolean isStatusCheck
+  ) {
+    ElasticLoadBalancer loadBalancer = getLoadBalancer(target.source.getType());
+    if (adding) {
+      return isStatusCheck
+        ? loadBalancer.checkRegisteredInstance(
+          target.instance,
+          target.id,
+          target.source,
+          agent
+        )
+        : loadBalancer.registerInstance(
+          target.instance,
+          target.id,
+          target.source.getName(),
+          agent
+        );
+    } else {
+      return isStatusCheck
+        ? loadBalancer.checkRemovedInstance(
+          target.id,
+          target.source.getName(),
+          agent.getAgentId()
+        )
+        : loadBalancer.removeInstance(
+          target.instance,
+          target.id,
+          target.source.getName(),
+          agent.getAgentId()
+        );
+    }
+  }
+
+  private List<CheckInTarget> checkInTargets(
+    BaragonAgentMetadata agent,
+    BaragonGroup group,
+    StringBuilder message
+  ) {
+    List<CheckInTarget> targets = new ArrayList<>();
+    for (TrafficSource source : group.getTrafficSources()) {
+      if (
+        source.getRegisterBy() == RegisterBy.PRIVATE_IP &&
+        !agent.getEc2().getPrivateIp().isPresent()
+      ) {
+        message.append(
+          String.format(
+            "No private ip present to register by for source %s ",
+            source.getName()
+          )
+        );
+        continue;
+      } else if (
+        source.getRegisterBy() == RegisterBy.INSTANCE_ID &&
+        !agent.getEc2().getInstanceId().isPresent()
+      ) {
+        message.append(
+          String.format(
+            "No instance id present to register by for source %s ",
+            source.getName()
+          )
         );
+        continue;
       }
+      String id = source.getRegisterBy() == RegisterBy.PRIVATE_IP
+        ? agent.getEc2().getPrivateIp().get()
+        : agent.getEc2().getInstanceId().get();
+      Instance instance = source.getRegisterBy() == RegisterBy.PRIVATE_IP
+        ? null
+        : new Instance(agent.getEc2().getInstanceId().get());
+      targets.add(new CheckInTarget(source, id, instance));
     }
-    return new AgentCheckInResponse(state, maybeVpcException, maxWaitTime);
+    return targets;
+  }
+
+  private boolean isAsyncCheckInEnabled() {
+    return isElbConfigured() && configuration.get().isAsyncCheckInEnabled();
+  }
+
+  /**
+   * A check in the agent has not asked about for this long is given up on
+   */
+  private long abandonedAfterMs() {
+    return (
+      ABANDONED_AFTER_MISSED_CHECKS * configuration.get().getDefaultCheckInWaitTimeMs()
+    );
+  }
+
+  private static String checkInKey(String groupName, BaragonAgentMetadata agent) {
+    return String.format("%s/%s", groupName, agent.getAgentId());
   }
 
   public boolean isElbEnabledAgent(
@@ -257,10 +533,19 @@ public class ElbManager {
       .anyMatch(g -> g.getRegisterBy() == registerBy);
   }
 
-  public void syncAll() {
-    Collection<BaragonGroup> groups = loadBalancerDatastore.getLoadBalancerGroups();
-    classicLoadBalancer.syncAll(groups);
-    applicationLoadBalancer.syncAll(groups);
+  /**
+   * Syncs groupsToSync with their traffic sources, counting the agents of all groups as expected
+   * where traffic sources are shared
+   *
+   * @return names of the groups that could not be fully synced
+   */
+  public Set<String> syncGroups(
+    Collection<BaragonGroup> groups,
+    Collection<BaragonGroup> groupsToSync
+  ) {
+    Set<String> failedGroups = new HashSet<>(classicLoadBalancer.syncAll(groupsToSync));
+    failedGroups.addAll(applicationLoadBalancer.sync(groups, groupsToSync));
+    return failedGroups;
   }
 
   private ElasticLoadBalancer getLoadBalancer(TrafficSourceType type) {
@@ -272,4 +557,32 @@ public class ElbManager {
         return classicLoadBalancer;
     }
   }
+
+  private static class CheckInTarget {
+    private final TrafficSource source;
+    private final String id;
+    private final Instance instance;
+
+    private CheckInTarget(TrafficSource source, String id, Instance instance) {
+      this.source = source;
+      this.id = id;
+      this.instance = instance;
+    }
+  }
+
+  /**
+   * One agent being added to or removed from all the traffic sources of its group. targets is only
+   * set once the agent has been registered or de-registered, and from then on is updated by the poller.
+   */
+  private static class CheckIn {
+    private final boolean adding;
+    private volatile Map<CheckInTarget, AgentCheckInResponse> targets;
+    private volatile AgentCheckInResponse response;
+    private volatile long expiresAt;
+
+    private CheckIn(boolean adding, AgentCheckInResponse response) {
+      this.adding = adding;
+      this.response = response;
+    }
+  }
 }
@@ -0,0 +1,132 @@
+package com.hubspot.baragon.service.managers;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+import io.dropwizard.lifecycle.Managed;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntConsumer;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.NodeCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the state version node and wakes anyone waiting for the state to move past a version they
+ * have already seen. Waiters are only callbacks, so any number of them can be parked without
+ * holding a thread each. They are called on the notifier's own thread rather than curator's event
+ * thread, so answering a large number of them does not hold up other watches.
+ */
+@Singleton
+public class StateVersionNotifier implements Managed {
+  private static final Logger LOG = LoggerFactory.getLogger(StateVersionNotifier.class);
+  private static final int NO_VERSION = -1;
+
+  private final NodeCache nodeCache;
+  private final ExecutorService notifyExecutor = Executors.newSingleThreadExecutor(
+    new ThreadFactoryBuilder()
+      .setNameFormat("state-version-notifier-%d")
+      .setDaemon(true)
+      .build()
+  );
+  private final ConcurrentNavigableMap<Integer, Set<IntConsumer>> waiters = new ConcurrentSkipListMap<>();
+  private volatile int version = NO_VERSION;
+
+  @Inject
+  public StateVersionNotifier(CuratorFramework curatorFramework) {
+    this.nodeCache =
+      new NodeCache(curatorFramework, BaragonStateDatastore.LAST_UPDATED_FORMAT);
+  }
+
+  @Override
+  public void start() throws Exception {
+    nodeCache.getListenable().addListener(this::onNodeChanged, notifyExecutor);
+    nodeCache.start(true);
+    version = currentNodeVersion();
+  }
+
+  @Override
+  public void stop() throws Exception {
+    Closeables.close(nodeCache, true);
+    notifyExecutor.shutdown();
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * Calls the waiter once with the new version as soon as the state version is greater than
+   * afterVersion. Returns false without registering if it already is.
+   */
+  public boolean addWaiter(int afterVersion, IntConsumer waiter) {
+    if (version > afterVersion) {
+      return false;
+    }
+    Set<IntConsumer> waiting = waiters.computeIfAbsent(
+      afterVersion,
+      v -> ConcurrentHashMap.newKeySet()
+    );
+    waiting.add(waiter);
+    // The version may have moved on between the check and the add, after those waiters were woken
+    if (version > afterVersion && waiting.remove(waiter)) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the waiter was still registered, false if it has already been (or is being) called
+   */
+  public boolean removeWaiter(int afterVersion, IntConsumer waiter) {
+    Set<IntConsumer> waiting = waiters.get(afterVersion);
+    return waiting != null && waiting.remove(waiter);
+  }
+
+  @VisibleForTesting
+  int getWaiterCount() {
+    return waiters.values().stream().mapToInt(Set::size).sum();
+  }
+
+  private void onNodeChanged() {
+    int newVersion = currentNodeVersion();
+    if (newVersion == version) {
+      return;
+    }
+    version = newVersion;
+    int woken = 0;
+    for (Map.Entry<Integer, Set<IntConsumer>> entry : waiters
+      .headMap(newVersion, false)
+      .entrySet()) {
+      waiters.remove(entry.getKey(), entry.getValue());
+      for (IntConsumer waiter : entry.getValue()) {
+        if (entry.getValue().remove(waiter)) {
+          try {
+            waiter.accept(newVersion);
+            woken++;
+          } catch (RuntimeException e) {
+            LOG.warn("Could not notify state version waiter", e);
+          }
+        }
+      }
+    }
+    LOG.debug("State version is now {}, woke {} waiters", newVersion, woken);
+  }
+
+  private int currentNodeVersion() {
+    ChildData data = nodeCache.getCurrentData();
+    return data == null || data.getStat() == null
+      ? NO_VERSION
+      : data.getStat().getVersion();
+  }
+}
@@ -9,6 +9,7 @@ import com.hubspot.baragon.models.BaragonAgentMetadata;
 import com.hubspot.baragon.models.BaragonGroup;
 import com.hubspot.baragon.models.TrafficSourceState;
 import com.hubspot.baragon.service.gcloud.GoogleCloudManager;
+import com.hubspot.baragon.service.managers.AgentConnectionPool;
 import com.hubspot.baragon.service.managers.ElbManager;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
@@ -30,16 +31,19 @@ public class AgentCheckinResource {
   private final ElbManager elbManager;
   private final GoogleCloudManager googleCloudManager;
   private final BaragonLoadBalancerDatastore loadBalancerDatastore;
+  private final AgentConnectionPool agentConnectionPool;
 
   @Inject
   public AgentCheckinResource(
     ElbManager elbManager,
     GoogleCloudManager googleCloudManager,
-    BaragonLoadBalancerDatastore loadBalancerDatastore
+    BaragonLoadBalancerDatastore loadBalancerDatastore,
+    AgentConnectionPool agentConnectionPool
   ) {
     this.elbManager = elbManager;
     this.googleCloudManager = googleCloudManager;
     this.loadBalancerDatastore = loadBalancerDatastore;
+    this.agentConnectionPool = agentConnectionPool;
   }
 
   @POST
@@ -50,6 +54,7 @@ public class AgentCheckinResource {
     BaragonAgentMetadata agent
   ) {
     LOG.info(String.format("Notified of startup for agent %s", agent.getAgentId()));
+    agentConnectionPool.warm(agent.getBaseAgentUri());
     AgentCheckInResponse response;
     try {
       if (elbManager.isElbConfigured()) {
@@ -86,6 +91,7 @@ public class AgentCheckinResource {
     BaragonAgentMetadata agent
   ) {
     LOG.info(String.format("Notified of shutdown for agent %s", agent.getAgentId()));
+    agentConnectionPool.forget(agent.getBaseAgentUri());
     AgentCheckInResponse response;
     try {
       if (elbManager.isElbConfigured()) {
@@ -15,6 +15,7 @@ public class BaragonResourcesModule extends AbstractModule {
     bind(RequestResource.class);
     bind(ServiceLookupResource.class);
     bind(StateResource.class);
+    bind(StateVersionResource.class);
     bind(StatusResource.class);
     bind(UIResource.class);
     bind(WorkerResource.class);
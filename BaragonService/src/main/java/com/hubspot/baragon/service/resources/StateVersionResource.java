@@ -0,0 +1,77 @@
+package com.hubspot.baragon.service.resources;
+
+import com.google.common.net.HttpHeaders;
+import com.google.inject.Inject;
+import com.hubspot.baragon.auth.NoAuth;
+import com.hubspot.baragon.service.managers.StateVersionNotifier;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Long-poll for state changes. With an after version the request is parked until the state version
+ * moves past it, answering 200 with the new version, or until timeoutMs passes, answering 304. Parked
+ * requests are suspended, so they do not hold a jetty thread while they wait.
+ */
+@Path("/state-version")
+@Produces(MediaType.TEXT_PLAIN)
+public class StateVersionResource {
+  private static final long MAX_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+
+  private final StateVersionNotifier stateVersionNotifier;
+
+  @Inject
+  public StateVersionResource(StateVersionNotifier stateVersionNotifier) {
+    this.stateVersionNotifier = stateVersionNotifier;
+  }
+
+  @GET
+  @NoAuth
+  public void awaitStateVersion(
+    @QueryParam("after") Integer after,
+    @DefaultValue("30000") @QueryParam("timeoutMs") long timeoutMs,
+    @Suspended AsyncResponse asyncResponse
+  ) {
+    if (after == null) {
+      asyncResponse.resume(changed(stateVersionNotifier.getVersion()));
+      return;
+    }
+
+    IntConsumer waiter = version -> asyncResponse.resume(changed(version));
+    asyncResponse.setTimeoutHandler(
+      response -> {
+        if (stateVersionNotifier.removeWaiter(after, waiter)) {
+          response.resume(
+            Response
+              .notModified()
+              .header(HttpHeaders.ETAG, stateVersionNotifier.getVersion())
+              .build()
+          );
+        }
+      }
+    );
+    // Before the waiter is added, since the notifier may resume the response straight after
+    asyncResponse.setTimeout(
+      Math.max(1, Math.min(timeoutMs, MAX_TIMEOUT_MS)),
+      TimeUnit.MILLISECONDS
+    );
+    if (!stateVersionNotifier.addWaiter(after, waiter)) {
+      asyncResponse.resume(changed(stateVersionNotifier.getVersion()));
+    }
+  }
+
+  private static Response changed(int version) {
+    return Response
+      .ok(Integer.toString(version))
+      .header(HttpHeaders.ETAG, version)
+      .build();
+  }
+}
@@ -1,30 +1,71 @@
 package com.hubspot.baragon.service.worker;
 
+import com.google.common.base.Optional;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.hubspot.baragon.BaragonDataModule;
+import com.hubspot.baragon.data.BaragonKnownAgentsDatastore;
+import com.hubspot.baragon.data.BaragonLoadBalancerDatastore;
+import com.hubspot.baragon.models.BaragonAgentEc2Metadata;
+import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.BaragonGroup;
+import com.hubspot.baragon.models.BaragonKnownAgentMetadata;
+import com.hubspot.baragon.models.TrafficSource;
+import com.hubspot.baragon.service.config.ElbConfiguration;
+import com.hubspot.baragon.service.elb.ElasticLoadBalancer;
 import com.hubspot.baragon.service.exceptions.BaragonExceptionNotifier;
 import com.hubspot.baragon.service.managers.ElbManager;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Syncs a group with AWS as soon as its agents or traffic sources differ from its last successful
+ * sync, or one of its known agents has gone long enough without being seen to be de-registered.
+ * Groups that have not changed are only checked against AWS every
+ * unchangedGroupSyncIntervalSeconds, to catch changes made on the AWS side.
+ */
 @Singleton
 public class BaragonElbSyncWorker implements Runnable {
   private static final Logger LOG = LoggerFactory.getLogger(BaragonElbSyncWorker.class);
 
   private final ElbManager elbManager;
+  private final BaragonLoadBalancerDatastore loadBalancerDatastore;
+  private final BaragonKnownAgentsDatastore knownAgentsDatastore;
+  private final Optional<ElbConfiguration> configuration;
   private final BaragonExceptionNotifier exceptionNotifier;
   private final AtomicLong workerLastStartAt;
 
+  //               <GroupName, LastSuccessfulSync>
+  private final Map<String, GroupSync> syncedGroups = new ConcurrentHashMap<>();
+
   @Inject
   public BaragonElbSyncWorker(
     ElbManager elbManager,
+    BaragonLoadBalancerDatastore loadBalancerDatastore,
+    BaragonKnownAgentsDatastore knownAgentsDatastore,
+    Optional<ElbConfiguration> configuration,
     BaragonExceptionNotifier exceptionNotifier,
     @Named(BaragonDataModule.BARAGON_ELB_WORKER_LAST_START) AtomicLong workerLastStartAt
   ) {
     this.elbManager = elbManager;
+    this.loadBalancerDatastore = loadBalancerDatastore;
+    this.knownAgentsDatastore = knownAgentsDatastore;
+    this.configuration = configuration;
     this.exceptionNotifier = exceptionNotifier;
     this.workerLastStartAt = workerLastStartAt;
   }
@@ -32,12 +73,155 @@ public class BaragonElbSyncWorker implements Runnable {
   @Override
   public void run() {
     try {
-      workerLastStartAt.set(System.currentTimeMillis());
-      elbManager.syncAll();
-      LOG.info("Finished ELB Sync");
+      long now = System.currentTimeMillis();
+      workerLastStartAt.set(now);
+      syncChangedGroups(now);
     } catch (Exception e) {
       LOG.error("Encountered error during ELB sync", e);
       exceptionNotifier.notify(e, null);
     }
   }
+
+  /**
+   * The next run syncs every group with AWS
+   */
+  public void forgetSyncedGroups() {
+    syncedGroups.clear();
+  }
+
+  void syncChangedGroups(long now) {
+    ElbConfiguration elbConfiguration = configuration.or(new ElbConfiguration());
+    long unchangedGroupSyncIntervalMillis = TimeUnit.SECONDS.toMillis(
+      elbConfiguration.getUnchangedGroupSyncIntervalSeconds()
+    );
+    Collection<BaragonGroup> groups = loadBalancerDatastore.getLoadBalancerGroups();
+    Map<String, HashCode> fingerprints = new HashMap<>();
+    List<BaragonGroup> groupsToSync = new ArrayList<>();
+    for (BaragonGroup group : groups) {
+      HashCode fingerprint = fingerprint(
+        group,
+        loadBalancerDatastore.getAgentMetadata(group.getName()),
+        unexpiredKnownAgents(group, elbConfiguration, now)
+      );
+      fingerprints.put(group.getName(), fingerprint);
+      GroupSync lastSync = syncedGroups.get(group.getName());
+      if (
+        lastSync == null ||
+        !lastSync.fingerprint.equals(fingerprint) ||
+        now - lastSync.syncedAt >= unchangedGroupSyncIntervalMillis
+      ) {
+        groupsToSync.add(group);
+      }
+    }
+    syncedGroups.keySet().retainAll(fingerprints.keySet());
+
+    if (groupsToSync.isEmpty()) {
+      LOG.debug("No groups changed since their last ELB sync");
+      return;
+    }
+    Set<String> failedGroups = elbManager.syncGroups(groups, groupsToSync);
+    for (BaragonGroup group : groupsToSync) {
+      if (failedGroups.contains(group.getName())) {
+        syncedGroups.remove(group.getName());
+      } else {
+        syncedGroups.put(
+          group.getName(),
+          new GroupSync(fingerprints.get(group.getName()), now)
+        );
+      }
+    }
+    LOG.info(
+      "Finished ELB Sync of {} of {} groups, {} failed",
+      groupsToSync.size(),
+      groups.size(),
+      failedGroups.size()
+    );
+  }
+
+  /**
+   * Known agents whose instances are still kept registered when they stop being active
+   */
+  private Collection<BaragonAgentMetadata> unexpiredKnownAgents(
+    BaragonGroup group,
+    ElbConfiguration elbConfiguration,
+    long now
+  ) {
+    List<BaragonAgentMetadata> unexpired = new ArrayList<>();
+    for (BaragonKnownAgentMetadata agent : knownAgentsDatastore.getKnownAgentsMetadata(
+      group.getName()
+    )) {
+      if (!ElasticLoadBalancer.isExpired(agent, elbConfiguration, now)) {
+        unexpired.add(agent);
+      }
+    }
+    return unexpired;
+  }
+
+  /**
+   * Everything about a group that decides what should be registered with its traffic sources
+   * and what may be de-registered from them
+   */
+  static HashCode fingerprint(
+    BaragonGroup group,
+    Collection<BaragonAgentMetadata> agents,
+    Collection<BaragonAgentMetadata> unexpiredKnownAgents
+  ) {
+    Set<String> trafficSources = new TreeSet<>();
+    for (TrafficSource trafficSource : group.getTrafficSources()) {
+      trafficSources.add(
+        String.join(
+          "|",
+          trafficSource.getName(),
+          trafficSource.getType().name(),
+          trafficSource.getRegisterBy().name()
+        )
+      );
+    }
+    Set<String> agentIds = agentIds(agents);
+    Set<String> knownAgentIds = agentIds(unexpiredKnownAgents);
+
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putInt(group.getMinHealthyAgents());
+    for (String trafficSource : trafficSources) {
+      hasher.putString(trafficSource, StandardCharsets.UTF_8).putChar('\n');
+    }
+    hasher.putChar('\n');
+    for (String agentId : agentIds) {
+      hasher.putString(agentId, StandardCharsets.UTF_8).putChar('\n');
+    }
+    hasher.putChar('\n');
+    for (String agentId : knownAgentIds) {
+      hasher.putString(agentId, StandardCharsets.UTF_8).putChar('\n');
+    }
+    return hasher.hash();
+  }
+
+  private static Set<String> agentIds(Collection<BaragonAgentMetadata> agents) {
+    Set<String> agentIds = new TreeSet<>();
+    for (BaragonAgentMetadata agent : agents) {
+      BaragonAgentEc2Metadata ec2 = agent.getEc2();
+      agentIds.add(
+        String.join(
+          "|",
+          agent.getAgentId(),
+          ec2.getInstanceId().or(""),
+          ec2.getPrivateIp().or(""),
+          ec2.getAvailabilityZone().or(""),
+          ec2.getSubnetId().or(""),
+          ec2.getVpcId().or("")
+        )
+      );
+    }
+    return agentIds;
+  }
+
+  private static class GroupSync {
+    private final HashCode fingerprint;
+    private final long syncedAt;
+
+    private GroupSync(HashCode fingerprint, long syncedAt) {
+      this.fingerprint = fingerprint;
+      this.syncedAt = syncedAt;
+    }
+  }
 }
@@ -0,0 +1,338 @@
+package com.hubspot.baragon.service.edgecache.cloudflare;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.models.BaragonRequest;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.service.config.EdgeCacheConfiguration;
+import com.hubspot.baragon.service.edgecache.cloudflare.client.CloudflareClient;
+import com.hubspot.baragon.service.exceptions.BaragonExceptionNotifier;
+import com.ning.http.client.AsyncHttpClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+public class CloudflarePurgeQueueTest {
+  private static final int PURGES = 60;
+  private static final String ZONE_ID = "zone-1";
+  private static final String ZONE_NAME = "example.com";
+  private static final String EDGE_CACHE_DOMAIN = "www.example.com";
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private FakeCloudflareApi cloudflareApi;
+  private AsyncHttpClient httpClient;
+
+  @BeforeAll
+  public static void setupLogging() {
+    // Per-purge logging would otherwise flood the test output
+    LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+    context
+      .getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)
+      .setLevel(Level.toLevel(System.getProperty("baragon.test.log.level", "WARN")));
+    context
+      .getLogger("com.hubspot")
+      .setLevel(
+        Level.toLevel(
+          System.getProperty("baragon.test.log.level.for.com.hubspot", "WARN")
+        )
+      );
+  }
+
+  @BeforeEach
+  public void setup() throws IOException {
+    cloudflareApi = new FakeCloudflareApi();
+    httpClient = new AsyncHttpClient();
+  }
+
+  @AfterEach
+  public void cleanup() {
+    httpClient.close();
+    cloudflareApi.stop();
+  }
+
+  @Test
+  public void itPurgesOffTheWorkerInFarFewerCalls() throws Exception {
+    EdgeCacheConfiguration blockingConfiguration = configuration();
+    invalidateAll(
+      new CloudflareEdgeCache(
+        client(blockingConfiguration),
+        purgeQueue(blockingConfiguration),
+        blockingConfiguration
+      ),
+      "blocking"
+    );
+    Assertions.assertEquals(PURGES, cloudflareApi.purgeCalls.get());
+    Assertions.assertEquals(PURGES, cloudflareApi.purgedTags.size());
+
+    cloudflareApi.reset();
+    EdgeCacheConfiguration asyncConfiguration = configuration()
+      .setAsyncPurgeEnabled(true)
+      .setPurgeWindowMillis(50);
+    CloudflarePurgeQueue asyncQueue = purgeQueue(asyncConfiguration);
+    invalidateAll(
+      new CloudflareEdgeCache(client(asyncConfiguration), asyncQueue, asyncConfiguration),
+      "async"
+    );
+    // Nothing is purged on the worker, everything waits for the queue
+    Assertions.assertEquals(0, cloudflareApi.purgeCalls.get());
+    Assertions.assertEquals(PURGES, asyncQueue.getPendingCount());
+
+    asyncQueue.start();
+    try {
+      waitFor(() -> cloudflareApi.purgedTags.size() == PURGES);
+    } finally {
+      asyncQueue.stop();
+    }
+    Assertions.assertEquals(2, cloudflareApi.purgeCalls.get());
+    Assertions.assertEquals(30, cloudflareApi.maxTagsPerCall.get());
+    Assertions.assertEquals(0, asyncQueue.getPendingCount());
+  }
+
+  @Test
+  public void itRetriesFailedPurgesWithBackoff() throws Exception {
+    EdgeCacheConfiguration configuration = configuration()
+      .setAsyncPurgeEnabled(true)
+      .setPurgeWindowMillis(50)
+      .setPurgeRetryBaseMillis(50);
+    CloudflarePurgeQueue queue = purgeQueue(configuration);
+    cloudflareApi.failuresLeft.set(3);
+    queue.start();
+    try {
+      for (int i = 0; i < 40; i++) {
+        queue.enqueue(ZONE_ID, cacheTag(i));
+      }
+      waitFor(() -> cloudflareApi.purgedTags.size() == 40);
+    } finally {
+      queue.stop();
+    }
+    // Two batches of at most 30 tags, one of them failing three times before it goes through
+    Assertions.assertEquals(5, cloudflareApi.purgeCalls.get());
+  }
+
+  @Test
+  public void itGivesUpAfterMaxPurgeAttempts() throws Exception {
+    EdgeCacheConfiguration configuration = configuration()
+      .setAsyncPurgeEnabled(true)
+      .setPurgeWindowMillis(50)
+      .setPurgeRetryBaseMillis(20)
+      .setMaxPurgeAttempts(3);
+    CloudflarePurgeQueue queue = purgeQueue(configuration);
+    cloudflareApi.failuresLeft.set(Integer.MAX_VALUE);
+    queue.start();
+    try {
+      queue.enqueue(ZONE_ID, cacheTag(0));
+      waitFor(() -> cloudflareApi.purgeCalls.get() == 3);
+      Thread.sleep(200);
+    } finally {
+      queue.stop();
+    }
+    Assertions.assertEquals(3, cloudflareApi.purgeCalls.get());
+    Assertions.assertTrue(cloudflareApi.purgedTags.isEmpty());
+    Assertions.assertEquals(1, queue.getFailedCount());
+  }
+
+  private void invalidateAll(CloudflareEdgeCache edgeCache, String prefix) {
+    for (int i = 0; i < PURGES; i++) {
+      Assertions.assertTrue(edgeCache.invalidateIfNecessary(request(prefix, i)));
+    }
+  }
+
+  private EdgeCacheConfiguration configuration() {
+    return new EdgeCacheConfiguration()
+      .setEnabled(true)
+      .setIntegrationSettings(
+        ImmutableMap.of(
+          "apiBase",
+          cloudflareApi.apiBase(),
+          "apiEmail",
+          "email@host.net",
+          "apiKey",
+          "some-key",
+          "cacheTagFormat",
+          "cache-tag-for-%s-service"
+        )
+      );
+  }
+
+  private CloudflareClient client(EdgeCacheConfiguration configuration) {
+    return new CloudflareClient(configuration, httpClient, OBJECT_MAPPER);
+  }
+
+  private CloudflarePurgeQueue purgeQueue(EdgeCacheConfiguration configuration) {
+    return new CloudflarePurgeQueue(
+      client(configuration),
+      configuration,
+      new BaragonExceptionNotifier(Optional.absent()),
+      new MetricRegistry()
+    );
+  }
+
+  private static BaragonRequest request(String prefix, int service) {
+    String serviceId = String.format("%s-service-%d", prefix, service);
+    return new BaragonRequest(
+      serviceId + "-request",
+      new BaragonService(
+        serviceId,
+        Collections.emptyList(),
+        "/" + serviceId,
+        Collections.emptyList(),
+        ImmutableSet.of("group"),
+        Collections.emptyMap(),
+        Optional.absent(),
+        Collections.emptySet(),
+        Optional.absent(),
+        ImmutableSet.of(EDGE_CACHE_DOMAIN)
+      ),
+      Collections.emptyList(),
+      Collections.emptyList(),
+      Collections.emptyList(),
+      Optional.absent(),
+      Optional.absent(),
+      false,
+      false,
+      false,
+      false
+    );
+  }
+
+  private static String cacheTag(int i) {
+    return String.format("cache-tag-for-service-%d-service", i);
+  }
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 30000;
+    while (!condition.getAsBoolean()) {
+      Assertions.assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Serves one zone with one proxied DNS record, and counts purge calls and the tags they carry.
+   * Purges fail with a 429 while failuresLeft is above zero.
+   */
+  private static class FakeCloudflareApi {
+    private final HttpServer server;
+    private final AtomicInteger purgeCalls = new AtomicInteger();
+    private final AtomicInteger maxTagsPerCall = new AtomicInteger();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private final Set<String> purgedTags = ConcurrentHashMap.newKeySet();
+
+    private FakeCloudflareApi() throws IOException {
+      // Otherwise Nagle's algorithm and delayed acks add 40ms to every response
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/client/v4/", this::handle);
+      server.setExecutor(Executors.newFixedThreadPool(8));
+      server.start();
+    }
+
+    private String apiBase() {
+      return String.format(
+        "http://127.0.0.1:%d/client/v4/",
+        server.getAddress().getPort()
+      );
+    }
+
+    private void reset() {
+      purgeCalls.set(0);
+      maxTagsPerCall.set(0);
+      failuresLeft.set(0);
+      purgedTags.clear();
+    }
+
+    private void stop() {
+      server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+      String path = exchange.getRequestURI().getPath();
+      if (path.endsWith("/purge_cache")) {
+        purge(exchange);
+      } else if (path.endsWith("/dns_records")) {
+        respond(
+          exchange,
+          200,
+          listResponse(
+            String.format("{\"name\":\"%s\",\"proxied\":true}", EDGE_CACHE_DOMAIN)
+          )
+        );
+      } else {
+        respond(
+          exchange,
+          200,
+          listResponse(
+            String.format("{\"id\":\"%s\",\"name\":\"%s\"}", ZONE_ID, ZONE_NAME)
+          )
+        );
+      }
+    }
+
+    private void purge(HttpExchange exchange) throws IOException {
+      purgeCalls.incrementAndGet();
+      JsonNode body = OBJECT_MAPPER.readTree(exchange.getRequestBody());
+      if (failuresLeft.getAndDecrement() > 0) {
+        respond(
+          exchange,
+          429,
+          "{\"success\":false,\"errors\":[{\"code\":10000,\"message\":\"rate limited\"}],\"messages\":[],\"result\":null}"
+        );
+        return;
+      }
+      List<String> tags = new ArrayList<>();
+      body.get("tags").forEach(tag -> tags.add(tag.asText()));
+      maxTagsPerCall.accumulateAndGet(tags.size(), Math::max);
+      purgedTags.addAll(tags);
+      respond(
+        exchange,
+        200,
+        String.format(
+          "{\"success\":true,\"errors\":[],\"messages\":[],\"result\":{\"id\":\"%s\"}}",
+          ZONE_ID
+        )
+      );
+    }
+
+    private static String listResponse(String result) {
+      return String.format(
+        "{\"success\":true,\"errors\":[],\"messages\":[],\"result_info\":{\"page\":1,\"per_page\":50,\"count\":1,\"total_count\":1,\"total_pages\":1},\"result\":[%s]}",
+        result
+      );
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+      throws IOException {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    }
+  }
+}
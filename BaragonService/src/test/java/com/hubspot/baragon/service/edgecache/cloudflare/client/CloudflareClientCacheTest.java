@@ -0,0 +1,418 @@
+package com.hubspot.baragon.service.edgecache.cloudflare.client;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.models.BaragonRequest;
+import com.hubspot.baragon.models.BaragonService;
+import com.hubspot.baragon.service.config.EdgeCacheConfiguration;
+import com.hubspot.baragon.service.edgecache.cloudflare.CloudflareEdgeCache;
+import com.hubspot.baragon.service.edgecache.cloudflare.CloudflarePurgeQueue;
+import com.hubspot.baragon.service.exceptions.BaragonExceptionNotifier;
+import com.ning.http.client.AsyncHttpClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+public class CloudflareClientCacheTest {
+  private static final int DNS_RECORDS = 5000;
+  private static final int PURGES = 100;
+  private static final int API_LATENCY_MILLIS = 2;
+  private static final String ZONE_ID = "zone-1";
+  private static final String ZONE_NAME = "example.com";
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private FakeCloudflareApi cloudflareApi;
+  private AsyncHttpClient httpClient;
+
+  @BeforeAll
+  public static void setupLogging() {
+    // Per-lookup logging would otherwise flood the test output
+    LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+    context
+      .getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)
+      .setLevel(Level.toLevel(System.getProperty("baragon.test.log.level", "WARN")));
+    context
+      .getLogger("com.hubspot")
+      .setLevel(
+        Level.toLevel(
+          System.getProperty("baragon.test.log.level.for.com.hubspot", "WARN")
+        )
+      );
+  }
+
+  @BeforeEach
+  public void setup() throws IOException {
+    cloudflareApi = new FakeCloudflareApi();
+    httpClient = new AsyncHttpClient();
+  }
+
+  @AfterEach
+  public void cleanup() {
+    httpClient.close();
+    cloudflareApi.stop();
+  }
+
+  @Test
+  public void itNeverListsALargeZoneOnThePurgePath() throws Exception {
+    cloudflareApi.addRecords(DNS_RECORDS);
+    EdgeCacheConfiguration configuration = configuration(300);
+    CloudflareClient client = new CloudflareClient(
+      configuration,
+      httpClient,
+      OBJECT_MAPPER
+    );
+    Assertions.assertEquals(DNS_RECORDS, client.retrieveDnsRecords(ZONE_ID).size());
+    int pagesPerListing = cloudflareApi.pageCalls.getAndSet(0);
+
+    CloudflareEdgeCache edgeCache = new CloudflareEdgeCache(
+      client,
+      new CloudflarePurgeQueue(
+        client,
+        configuration,
+        new BaragonExceptionNotifier(Optional.absent()),
+        new MetricRegistry()
+      ),
+      configuration
+    );
+    Random random = new Random(DNS_RECORDS);
+    // Purges go through while the zone's listing is stuck on its first page
+    cloudflareApi.pagesReleased = new CountDownLatch(1);
+    purge(edgeCache, random);
+    Assertions.assertTrue(cloudflareApi.namedCalls.get() > 0);
+    Assertions.assertTrue(cloudflareApi.pageCalls.get() <= 1);
+
+    cloudflareApi.pagesReleased.countDown();
+    waitFor(() -> cloudflareApi.pageCalls.get() == pagesPerListing);
+    waitFor(() -> client.getDnsRecordIfListed(ZONE_ID, recordName(0)) != null);
+    cloudflareApi.namedCalls.set(0);
+    purge(edgeCache, random);
+
+    Assertions.assertEquals(0, cloudflareApi.namedCalls.get());
+    Assertions.assertEquals(pagesPerListing, cloudflareApi.pageCalls.get());
+  }
+
+  @Test
+  public void itLooksUpMissingNamesWithoutRelistingTheZone() throws Exception {
+    cloudflareApi.addRecords(1000);
+    CloudflareClient client = new CloudflareClient(
+      configuration(300),
+      httpClient,
+      OBJECT_MAPPER
+    );
+    Assertions.assertNotNull(client.getDnsRecord(ZONE_ID, recordName(0)));
+    waitFor(() -> client.getDnsRecordIfListed(ZONE_ID, recordName(0)) != null);
+    int pages = cloudflareApi.pageCalls.get();
+
+    for (int i = 0; i < 3; i++) {
+      Assertions.assertNull(client.getDnsRecord(ZONE_ID, "added.example.com"));
+    }
+    // A miss is not remembered, so the record is found as soon as it exists
+    cloudflareApi.addRecord("added.example.com");
+    for (int i = 0; i < 3; i++) {
+      Assertions.assertNotNull(client.getDnsRecord(ZONE_ID, "added.example.com"));
+    }
+
+    Assertions.assertEquals(pages, cloudflareApi.pageCalls.get());
+    // One for the first name before the zone was listed, one for each miss and one for the find
+    Assertions.assertEquals(5, cloudflareApi.namedCalls.get());
+  }
+
+  @Test
+  public void itAnswersNoZoneWhenTheFirstListingFails() throws Exception {
+    CloudflareClient client = new CloudflareClient(
+      configuration(300),
+      httpClient,
+      OBJECT_MAPPER
+    );
+    cloudflareApi.zonesFailing = true;
+    Assertions.assertNull(client.getZone(ZONE_NAME));
+
+    cloudflareApi.zonesFailing = false;
+    Assertions.assertEquals(1, client.getZone(ZONE_NAME).size());
+    Assertions.assertEquals(2, cloudflareApi.zoneCalls.get());
+  }
+
+  @Test
+  public void itRefreshesListedZonesInTheBackground() throws Exception {
+    cloudflareApi.addRecords(1000);
+    CloudflareClient client = new CloudflareClient(
+      configuration(1),
+      httpClient,
+      OBJECT_MAPPER
+    );
+    client.start();
+    try {
+      Assertions.assertEquals(1, client.getZone(ZONE_NAME).size());
+      client.getDnsRecord(ZONE_ID, recordName(0));
+      waitFor(() -> client.getDnsRecordIfListed(ZONE_ID, recordName(0)) != null);
+
+      cloudflareApi.addRecord("added.example.com");
+      waitFor(() -> client.getDnsRecordIfListed(ZONE_ID, "added.example.com") != null);
+    } finally {
+      client.stop();
+    }
+    Assertions.assertEquals(1, cloudflareApi.namedCalls.get());
+    Assertions.assertTrue(cloudflareApi.zoneCalls.get() >= 2);
+  }
+
+  private void purge(CloudflareEdgeCache edgeCache, Random random) {
+    for (int i = 0; i < PURGES; i++) {
+      Assertions.assertTrue(
+        edgeCache.invalidateIfNecessary(
+          request(i, recordName(random.nextInt(DNS_RECORDS)))
+        )
+      );
+    }
+  }
+
+  private EdgeCacheConfiguration configuration(long cacheRefreshSeconds) {
+    return new EdgeCacheConfiguration()
+      .setEnabled(true)
+      .setAsyncPurgeEnabled(true)
+      .setCacheRefreshSeconds(cacheRefreshSeconds)
+      .setIntegrationSettings(
+        ImmutableMap.of(
+          "apiBase",
+          cloudflareApi.apiBase(),
+          "apiEmail",
+          "email@host.net",
+          "apiKey",
+          "some-key",
+          "cacheTagFormat",
+          "cache-tag-for-%s-service"
+        )
+      );
+  }
+
+  private static BaragonRequest request(int service, String edgeCacheDomain) {
+    String serviceId = String.format("service-%d", service);
+    return new BaragonRequest(
+      serviceId + "-request",
+      new BaragonService(
+        serviceId,
+        Collections.emptyList(),
+        "/" + serviceId,
+        Collections.emptyList(),
+        ImmutableSet.of("group"),
+        Collections.emptyMap(),
+        Optional.absent(),
+        Collections.emptySet(),
+        Optional.absent(),
+        ImmutableSet.of(edgeCacheDomain)
+      ),
+      Collections.emptyList(),
+      Collections.emptyList(),
+      Collections.emptyList(),
+      Optional.absent(),
+      Optional.absent(),
+      false,
+      false,
+      false,
+      false
+    );
+  }
+
+  private static String recordName(int record) {
+    return String.format("record-%d.%s", record, ZONE_NAME);
+  }
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 30000;
+    while (!condition.getAsBoolean()) {
+      Assertions.assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Serves one zone of proxied DNS records, paged like the real API or filtered by name, and counts
+   * zone listings, DNS record pages and single record lookups. Pages wait for pagesReleased when it
+   * is set, and zone listings fail while zonesFailing is set.
+   */
+  private static class FakeCloudflareApi {
+    private final HttpServer server;
+    private final List<String> dnsNames = new CopyOnWriteArrayList<>();
+    private final AtomicInteger zoneCalls = new AtomicInteger();
+    private final AtomicInteger pageCalls = new AtomicInteger();
+    private final AtomicInteger namedCalls = new AtomicInteger();
+    private volatile CountDownLatch pagesReleased = new CountDownLatch(0);
+    private volatile boolean zonesFailing = false;
+
+    private FakeCloudflareApi() throws IOException {
+      // Otherwise Nagle's algorithm and delayed acks add 40ms to every response
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/client/v4/", this::handle);
+      server.setExecutor(Executors.newFixedThreadPool(8));
+      server.start();
+    }
+
+    private String apiBase() {
+      return String.format(
+        "http://127.0.0.1:%d/client/v4/",
+        server.getAddress().getPort()
+      );
+    }
+
+    private void addRecords(int count) {
+      List<String> names = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        names.add(recordName(i));
+      }
+      dnsNames.addAll(names);
+    }
+
+    private void addRecord(String name) {
+      dnsNames.add(name);
+    }
+
+    private void stop() {
+      server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+      sleep();
+      Map<String, String> query = query(exchange);
+      if (exchange.getRequestURI().getPath().endsWith("/dns_records")) {
+        List<String> names;
+        int page = 1;
+        int perPage = 100;
+        if (query.containsKey("name")) {
+          namedCalls.incrementAndGet();
+          names =
+            dnsNames.contains(query.get("name"))
+              ? Collections.singletonList(query.get("name"))
+              : Collections.emptyList();
+        } else {
+          pageCalls.incrementAndGet();
+          await(pagesReleased);
+          page = Integer.parseInt(query.getOrDefault("page", "1"));
+          perPage = Integer.parseInt(query.getOrDefault("per_page", "100"));
+          names =
+            dnsNames.subList(
+              Math.min(dnsNames.size(), (page - 1) * perPage),
+              Math.min(dnsNames.size(), page * perPage)
+            );
+        }
+        respond(
+          exchange,
+          listResponse(
+            page,
+            perPage,
+            query.containsKey("name") ? names.size() : dnsNames.size(),
+            names
+              .stream()
+              .map(name -> String.format("{\"name\":\"%s\",\"proxied\":true}", name))
+              .collect(Collectors.joining(","))
+          )
+        );
+      } else {
+        zoneCalls.incrementAndGet();
+        if (zonesFailing) {
+          respond(
+            exchange,
+            500,
+            "{\"success\":false,\"errors\":[{\"code\":10000,\"message\":\"Internal error\"}]}"
+          );
+          return;
+        }
+        respond(
+          exchange,
+          listResponse(
+            1,
+            50,
+            1,
+            String.format("{\"id\":\"%s\",\"name\":\"%s\"}", ZONE_ID, ZONE_NAME)
+          )
+        );
+      }
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) throws IOException {
+      Map<String, String> query = new HashMap<>();
+      String rawQuery = exchange.getRequestURI().getRawQuery();
+      if (rawQuery != null) {
+        for (String param : rawQuery.split("&")) {
+          String[] keyAndValue = param.split("=", 2);
+          query.put(keyAndValue[0], URLDecoder.decode(keyAndValue[1], "UTF-8"));
+        }
+      }
+      return query;
+    }
+
+    private static String listResponse(
+      int page,
+      int perPage,
+      int totalCount,
+      String result
+    ) {
+      return String.format(
+        "{\"success\":true,\"errors\":[],\"messages\":[],\"result_info\":{\"page\":%d,\"per_page\":%d,\"count\":%d,\"total_count\":%d,\"total_pages\":%d},\"result\":[%s]}",
+        page,
+        perPage,
+        perPage,
+        totalCount,
+        Math.max(1, (totalCount + perPage - 1) / perPage),
+        result
+      );
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+      respond(exchange, 200, body);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body)
+      throws IOException {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    }
+
+    private static void await(CountDownLatch latch) {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private static void sleep() {
+      try {
+        Thread.sleep(API_LATENCY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
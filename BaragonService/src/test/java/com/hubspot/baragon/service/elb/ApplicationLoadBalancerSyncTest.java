@@ -0,0 +1,636 @@
+package com.hubspot.baragon.service.elb;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.elasticloadbalancingv2.AbstractAmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancingv2.AmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancingv2.model.AvailabilityZone;
+import com.amazonaws.services.elasticloadbalancingv2.model.DeregisterTargetsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DeregisterTargetsResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeLoadBalancersRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeLoadBalancersResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetGroupsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetGroupsResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetHealthRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetHealthResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.LoadBalancer;
+import com.amazonaws.services.elasticloadbalancingv2.model.RegisterTargetsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.RegisterTargetsResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.SetSubnetsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.SetSubnetsResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetDescription;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetGroup;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealth;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthDescription;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthStateEnum;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.data.BaragonKnownAgentsDatastore;
+import com.hubspot.baragon.data.BaragonLoadBalancerDatastore;
+import com.hubspot.baragon.models.BaragonAgentEc2Metadata;
+import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.BaragonGroup;
+import com.hubspot.baragon.models.BaragonKnownAgentMetadata;
+import com.hubspot.baragon.models.TrafficSource;
+import com.hubspot.baragon.models.TrafficSourceType;
+import com.hubspot.baragon.service.config.ElbConfiguration;
+import com.hubspot.baragon.service.exceptions.BaragonExceptionNotifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+public class ApplicationLoadBalancerSyncTest {
+  private static final int TARGET_GROUPS = 200;
+  private static final int TARGETS_PER_GROUP = 50;
+  // Agents that have not been registered yet, and old targets with no agent behind them
+  private static final int NEW_AGENTS_PER_GROUP = 10;
+  private static final int STALE_TARGETS_PER_GROUP = 10;
+  // Few enough groups that their describes fit under the fake throttling, but their changes do not
+  private static final int THROTTLED_GROUPS = 4;
+  private static final int AWS_REQUESTS_PER_WINDOW = 2 + THROTTLED_GROUPS;
+  private static final int AWS_THROTTLING_WINDOW_MILLIS = 100;
+  private static final int CLIENT_REQUESTS_PER_SECOND = 30;
+  private static final String ZONE = "us-east-1a";
+  private static final String NEW_ZONE = "us-east-1b";
+  // One fleet of agents behind many target groups
+  private static final int FLEET_AGENTS = 200;
+  private static final int FLEET_TARGET_GROUPS = 50;
+  private static final int FLEET_NEW_AGENTS = 20;
+  private static final int FLEET_STALE_TARGETS = 50;
+
+  private FakeElbClient elbClient;
+  private Map<String, Collection<BaragonAgentMetadata>> agentsByGroup;
+  private Map<String, Collection<BaragonKnownAgentMetadata>> knownAgentsByGroup;
+  private List<BaragonGroup> baragonGroups;
+  private ApplicationLoadBalancer applicationLoadBalancer;
+
+  @BeforeAll
+  public static void setupLogging() {
+    // Per-agent debug logging would otherwise flood the test output
+    LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+    context
+      .getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)
+      .setLevel(Level.toLevel(System.getProperty("baragon.test.log.level", "WARN")));
+    context
+      .getLogger("com.hubspot")
+      .setLevel(
+        Level.toLevel(
+          System.getProperty("baragon.test.log.level.for.com.hubspot", "INFO")
+        )
+      );
+  }
+
+  @BeforeEach
+  public void setup() {
+    setupGroups(TARGET_GROUPS);
+  }
+
+  /**
+   * One baragon group per target group and load balancer, all with the same name
+   */
+  private void setupGroups(int count) {
+    elbClient = new FakeElbClient();
+    agentsByGroup = new HashMap<>();
+    knownAgentsByGroup = new HashMap<>();
+    baragonGroups = new ArrayList<>();
+    for (int g = 0; g < count; g++) {
+      String name = "group-" + g;
+      elbClient.addLoadBalancer(name);
+      List<String> targets = new ArrayList<>();
+      List<BaragonAgentMetadata> agents = new ArrayList<>();
+      for (int a = 0; a < TARGETS_PER_GROUP; a++) {
+        String instanceId = String.format("i-%d-%d", g, a);
+        // One agent per group is in a zone its load balancer does not have a subnet for yet
+        agents.add(agent(instanceId, a == 0 ? NEW_ZONE : ZONE));
+        if (a >= NEW_AGENTS_PER_GROUP) {
+          targets.add(instanceId);
+        }
+      }
+      for (int s = 0; s < STALE_TARGETS_PER_GROUP; s++) {
+        targets.add(String.format("i-%d-stale-%d", g, s));
+      }
+      elbClient.addTargetGroup(name, targets);
+      agentsByGroup.put(name, agents);
+      baragonGroups.add(
+        new BaragonGroup(
+          name,
+          Optional.absent(),
+          ImmutableSet.of(new TrafficSource(name, TrafficSourceType.ALB_TARGET_GROUP)),
+          null,
+          Optional.absent(),
+          null,
+          null,
+          1
+        )
+      );
+    }
+
+    applicationLoadBalancer = newLoadBalancer(syncConfiguration(), elbClient);
+  }
+
+  private ElbConfiguration syncConfiguration() {
+    ElbConfiguration configuration = new ElbConfiguration();
+    configuration.setDeregisterEnabled(true);
+    configuration.setRemoveLastHealthyEnabled(true);
+    configuration.setAwsElbClientBackoffBaseDelayMilliseconds(50);
+    configuration.setAwsElbClientBackoffMaxBackoffMilliseconds(2000);
+    configuration.setAwsElbClientRetries(10);
+    return configuration;
+  }
+
+  private ApplicationLoadBalancer newLoadBalancer(
+    ElbConfiguration configuration,
+    AmazonElasticLoadBalancing client
+  ) {
+    return new ApplicationLoadBalancer(
+      Optional.of(configuration),
+      new BaragonExceptionNotifier(Optional.absent()),
+      new BaragonLoadBalancerDatastore(null, null, null) {
+
+        @Override
+        public Collection<BaragonAgentMetadata> getAgentMetadata(String clusterName) {
+          return agentsByGroup.get(clusterName);
+        }
+      },
+      new BaragonKnownAgentsDatastore(null, null, null, null) {
+
+        @Override
+        public Collection<BaragonKnownAgentMetadata> getKnownAgentsMetadata(
+          String clusterName
+        ) {
+          return knownAgentsByGroup.getOrDefault(clusterName, Collections.emptyList());
+        }
+      },
+      client
+    );
+  }
+
+  @Test
+  public void itSyncsEveryTargetGroupFromOneSnapshot() {
+    applicationLoadBalancer.syncAll(baragonGroups);
+    Map<String, Integer> firstSyncCalls = elbClient.drainCalls();
+
+    for (int g = 0; g < TARGET_GROUPS; g++) {
+      String name = "group-" + g;
+      Assertions.assertEquals(
+        agentsByGroup
+          .get(name)
+          .stream()
+          .map(agent -> agent.getEc2().getInstanceId().get())
+          .collect(Collectors.toSet()),
+        elbClient.targetIds(name)
+      );
+    }
+
+    applicationLoadBalancer.syncAll(baragonGroups);
+    Map<String, Integer> secondSyncCalls = elbClient.drainCalls();
+
+    Assertions.assertEquals(
+      TARGET_GROUPS,
+      (int) firstSyncCalls.get("describeTargetHealth")
+    );
+    Assertions.assertEquals(TARGET_GROUPS, (int) firstSyncCalls.get("registerTargets"));
+    Assertions.assertEquals(TARGET_GROUPS, (int) firstSyncCalls.get("deregisterTargets"));
+    Assertions.assertEquals(TARGET_GROUPS, (int) firstSyncCalls.get("setSubnets"));
+    Assertions.assertEquals(
+      TARGET_GROUPS,
+      (int) secondSyncCalls.get("describeTargetHealth")
+    );
+    Assertions.assertFalse(secondSyncCalls.containsKey("registerTargets"));
+    Assertions.assertFalse(secondSyncCalls.containsKey("deregisterTargets"));
+    Assertions.assertFalse(secondSyncCalls.containsKey("setSubnets"));
+  }
+
+  @Test
+  public void itBacksOffThrottledGroupsAndStaysUnderTheRateLimit() {
+    ElbConfiguration configuration = syncConfiguration();
+    configuration.setSyncThreads(THROTTLED_GROUPS);
+
+    setupGroups(THROTTLED_GROUPS);
+    elbClient.throttleAbove(AWS_REQUESTS_PER_WINDOW, AWS_THROTTLING_WINDOW_MILLIS);
+    Assertions.assertTrue(
+      newLoadBalancer(configuration, elbClient).syncAll(baragonGroups).isEmpty()
+    );
+    assertEveryGroupSynced(THROTTLED_GROUPS);
+    Assertions.assertTrue(elbClient.throttled.get() > 0);
+
+    setupGroups(THROTTLED_GROUPS);
+    elbClient.throttleAbove(AWS_REQUESTS_PER_WINDOW, AWS_THROTTLING_WINDOW_MILLIS);
+    Assertions.assertTrue(
+      newLoadBalancer(
+          configuration,
+          RateLimitedAwsClient.wrap(
+            AmazonElasticLoadBalancing.class,
+            elbClient,
+            CLIENT_REQUESTS_PER_SECOND
+          )
+        )
+        .syncAll(baragonGroups)
+        .isEmpty()
+    );
+    assertEveryGroupSynced(THROTTLED_GROUPS);
+    Assertions.assertEquals(0, elbClient.throttled.get());
+  }
+
+  @Test
+  public void itSyncsGroupsSharingATargetGroupOneAtATime() {
+    ElbConfiguration configuration = syncConfiguration();
+    configuration.setSyncThreads(8);
+    setupGroups(8);
+    elbClient.latencyMillis = 5;
+    // A second group registering the same agents with group-0's target group
+    agentsByGroup.put("group-0-copy", agentsByGroup.get("group-0"));
+    baragonGroups.add(
+      new BaragonGroup(
+        "group-0-copy",
+        Optional.absent(),
+        ImmutableSet.of(new TrafficSource("group-0", TrafficSourceType.ALB_TARGET_GROUP)),
+        null,
+        Optional.absent(),
+        null,
+        null,
+        1
+      )
+    );
+
+    Assertions.assertTrue(
+      newLoadBalancer(configuration, elbClient).syncAll(baragonGroups).isEmpty()
+    );
+
+    assertEveryGroupSynced(8);
+    Assertions.assertEquals(1, elbClient.maxChangesInFlight("group-0"));
+    Assertions.assertTrue(elbClient.maxChangesInFlight.get() > 1);
+  }
+
+  @Test
+  public void itDecidesMembershipWithoutScanningEveryTarget() {
+    ElbConfiguration configuration = syncConfiguration();
+    configuration.setRemoveLastHealthyEnabled(false);
+    configuration.setRemoveKnownAgentEnabled(true);
+    setupFleet();
+
+    Assertions.assertTrue(
+      newLoadBalancer(configuration, elbClient).syncAll(baragonGroups).isEmpty()
+    );
+
+    Map<String, Integer> calls = elbClient.drainCalls();
+    Assertions.assertEquals(FLEET_TARGET_GROUPS, (int) calls.get("registerTargets"));
+    Assertions.assertEquals(FLEET_TARGET_GROUPS, (int) calls.get("deregisterTargets"));
+    for (int t = 0; t < FLEET_TARGET_GROUPS; t++) {
+      Assertions.assertEquals(
+        agentsByGroup
+          .get("fleet")
+          .stream()
+          .map(agent -> agent.getEc2().getInstanceId().get())
+          .collect(Collectors.toSet()),
+        elbClient.targetIds("fleet-" + t)
+      );
+    }
+  }
+
+  /**
+   * One baragon group of FLEET_AGENTS agents behind FLEET_TARGET_GROUPS target groups, each missing
+   * a few agents and holding a few old targets. Every agent is also a known agent, so de-registering
+   * looks each stale target up among them
+   */
+  private void setupFleet() {
+    elbClient = new FakeElbClient();
+    List<BaragonAgentMetadata> agents = new ArrayList<>();
+    List<BaragonKnownAgentMetadata> knownAgents = new ArrayList<>();
+    List<String> targets = new ArrayList<>();
+    for (int a = 0; a < FLEET_AGENTS; a++) {
+      String instanceId = "i-fleet-" + a;
+      BaragonAgentMetadata agent = agent(instanceId, ZONE);
+      agents.add(agent);
+      knownAgents.add(
+        BaragonKnownAgentMetadata.fromAgentMetadata(agent, System.currentTimeMillis())
+      );
+      if (a >= FLEET_NEW_AGENTS) {
+        targets.add(instanceId);
+      }
+    }
+    for (int s = 0; s < FLEET_STALE_TARGETS; s++) {
+      targets.add("i-fleet-stale-" + s);
+    }
+
+    Set<TrafficSource> trafficSources = new HashSet<>();
+    for (int t = 0; t < FLEET_TARGET_GROUPS; t++) {
+      elbClient.addTargetGroup("fleet-" + t, targets);
+      trafficSources.add(
+        new TrafficSource("fleet-" + t, TrafficSourceType.ALB_TARGET_GROUP)
+      );
+    }
+    agentsByGroup = Collections.singletonMap("fleet", agents);
+    knownAgentsByGroup = Collections.singletonMap("fleet", knownAgents);
+    baragonGroups =
+      Collections.singletonList(
+        new BaragonGroup(
+          "fleet",
+          Optional.absent(),
+          trafficSources,
+          null,
+          Optional.absent(),
+          null,
+          null,
+          1
+        )
+      );
+  }
+
+  private void assertEveryGroupSynced(int count) {
+    for (int g = 0; g < count; g++) {
+      Assertions.assertEquals(
+        TARGETS_PER_GROUP,
+        elbClient.targetIds("group-" + g).size()
+      );
+    }
+  }
+
+  private static BaragonAgentMetadata agent(String instanceId, String zone) {
+    return new BaragonAgentMetadata(
+      String.format("http://%s:8882/baragon-agent/v2", instanceId),
+      instanceId,
+      Optional.absent(),
+      new BaragonAgentEc2Metadata(
+        Optional.of(instanceId),
+        Optional.of(zone),
+        Optional.of(subnetFor(zone)),
+        Optional.of("vpc-1"),
+        Optional.absent()
+      ),
+      Optional.absent(),
+      Collections.emptyMap(),
+      true
+    );
+  }
+
+  private static String subnetFor(String zone) {
+    return "subnet-" + zone;
+  }
+
+  /**
+   * Keeps load balancers, target groups and their targets in memory, pages like AWS, and counts calls
+   */
+  private static class FakeElbClient extends AbstractAmazonElasticLoadBalancing {
+    private static final int DEFAULT_PAGE_SIZE = 400;
+
+    private final List<LoadBalancer> loadBalancers = new ArrayList<>();
+    private final List<TargetGroup> targetGroups = new ArrayList<>();
+    private final Map<String, Set<String>> targetsByArn = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final Deque<Long> recentCalls = new ArrayDeque<>();
+    private final AtomicInteger throttled = new AtomicInteger();
+    private final Map<String, AtomicInteger> changesInFlightByArn = new ConcurrentHashMap<>();
+    private final Map<String, Integer> maxChangesInFlightByArn = new ConcurrentHashMap<>();
+    private final AtomicInteger changesInFlight = new AtomicInteger();
+    private final AtomicInteger maxChangesInFlight = new AtomicInteger();
+    private volatile int latencyMillis = 0;
+    private volatile int throttleAbove = 0;
+    private volatile long throttlingWindowNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private void addLoadBalancer(String name) {
+      loadBalancers.add(
+        new LoadBalancer()
+          .withLoadBalancerName(name)
+          .withLoadBalancerArn("arn:lb/" + name)
+          .withVpcId("vpc-1")
+          .withAvailabilityZones(
+            new AvailabilityZone().withZoneName(ZONE).withSubnetId(subnetFor(ZONE))
+          )
+      );
+    }
+
+    private void addTargetGroup(String name, List<String> targets) {
+      String arn = "arn:tg/" + name;
+      targetGroups.add(
+        new TargetGroup()
+          .withTargetGroupName(name)
+          .withTargetGroupArn(arn)
+          .withVpcId("vpc-1")
+      );
+      Set<String> targetIds = ConcurrentHashMap.newKeySet();
+      targetIds.addAll(targets);
+      targetsByArn.put(arn, targetIds);
+    }
+
+    private void throttleAbove(int requests, int windowMillis) {
+      throttleAbove = requests;
+      throttlingWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    private int maxChangesInFlight(String targetGroupName) {
+      return maxChangesInFlightByArn.getOrDefault("arn:tg/" + targetGroupName, 0);
+    }
+
+    /**
+     * Calls that change a target group, counted while they are in flight
+     */
+    private void change(String method, String targetGroupArn, Runnable change) {
+      AtomicInteger inFlight = changesInFlightByArn.computeIfAbsent(
+        targetGroupArn,
+        arn -> new AtomicInteger()
+      );
+      maxChangesInFlightByArn.merge(
+        targetGroupArn,
+        inFlight.incrementAndGet(),
+        Math::max
+      );
+      maxChangesInFlight.accumulateAndGet(changesInFlight.incrementAndGet(), Math::max);
+      try {
+        call(method);
+        change.run();
+      } finally {
+        changesInFlight.decrementAndGet();
+        inFlight.decrementAndGet();
+      }
+    }
+
+    private Set<String> targetIds(String targetGroupName) {
+      return targetsByArn.get("arn:tg/" + targetGroupName);
+    }
+
+    private Map<String, Integer> drainCalls() {
+      Map<String, Integer> drained = new TreeMap<>();
+      calls.forEach((method, count) -> drained.put(method, count.getAndSet(0)));
+      drained.values().removeIf(count -> count == 0);
+      return drained;
+    }
+
+    private void call(String method) {
+      if (throttleAbove > 0) {
+        synchronized (recentCalls) {
+          long now = System.nanoTime();
+          while (
+            !recentCalls.isEmpty() &&
+            now - recentCalls.peekFirst() > throttlingWindowNanos
+          ) {
+            recentCalls.pollFirst();
+          }
+          if (recentCalls.size() >= throttleAbove) {
+            throttled.incrementAndGet();
+            AmazonServiceException exn = new AmazonServiceException("Rate exceeded");
+            exn.setErrorCode("Throttling");
+            exn.setStatusCode(400);
+            throw exn;
+          }
+          recentCalls.addLast(now);
+        }
+      }
+      calls.computeIfAbsent(method, m -> new AtomicInteger()).incrementAndGet();
+      try {
+        Thread.sleep(latencyMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private static int pageStart(String marker) {
+      return Strings.isNullOrEmpty(marker) ? 0 : Integer.parseInt(marker);
+    }
+
+    private static String nextMarker(int end, int size) {
+      return end < size ? Integer.toString(end) : null;
+    }
+
+    @Override
+    public DescribeLoadBalancersResult describeLoadBalancers(
+      DescribeLoadBalancersRequest request
+    ) {
+      call("describeLoadBalancers");
+      int start = pageStart(request.getMarker());
+      int end = Math.min(
+        loadBalancers.size(),
+        start +
+        (request.getPageSize() == null ? DEFAULT_PAGE_SIZE : request.getPageSize())
+      );
+      synchronized (loadBalancers) {
+        return new DescribeLoadBalancersResult()
+          .withLoadBalancers(new ArrayList<>(loadBalancers.subList(start, end)))
+          .withNextMarker(nextMarker(end, loadBalancers.size()));
+      }
+    }
+
+    @Override
+    public DescribeTargetGroupsResult describeTargetGroups(
+      DescribeTargetGroupsRequest request
+    ) {
+      call("describeTargetGroups");
+      if (request.getNames() != null && !request.getNames().isEmpty()) {
+        return new DescribeTargetGroupsResult()
+        .withTargetGroups(
+            targetGroups
+              .stream()
+              .filter(t -> request.getNames().contains(t.getTargetGroupName()))
+              .collect(Collectors.toList())
+          );
+      }
+      int start = pageStart(request.getMarker());
+      int end = Math.min(
+        targetGroups.size(),
+        start +
+        (request.getPageSize() == null ? DEFAULT_PAGE_SIZE : request.getPageSize())
+      );
+      return new DescribeTargetGroupsResult()
+        .withTargetGroups(targetGroups.subList(start, end))
+        .withNextMarker(nextMarker(end, targetGroups.size()));
+    }
+
+    @Override
+    public DescribeTargetHealthResult describeTargetHealth(
+      DescribeTargetHealthRequest request
+    ) {
+      call("describeTargetHealth");
+      Set<String> filter = request.getTargets() == null
+        ? null
+        : request
+          .getTargets()
+          .stream()
+          .map(TargetDescription::getId)
+          .collect(Collectors.toSet());
+      return new DescribeTargetHealthResult()
+      .withTargetHealthDescriptions(
+          targetsByArn
+            .get(request.getTargetGroupArn())
+            .stream()
+            .filter(id -> filter == null || filter.contains(id))
+            .map(
+              id ->
+                new TargetHealthDescription()
+                  .withTarget(new TargetDescription().withId(id))
+                  .withTargetHealth(
+                    new TargetHealth().withState(TargetHealthStateEnum.Healthy)
+                  )
+            )
+            .collect(Collectors.toList())
+        );
+    }
+
+    @Override
+    public RegisterTargetsResult registerTargets(RegisterTargetsRequest request) {
+      change(
+        "registerTargets",
+        request.getTargetGroupArn(),
+        () -> {
+          for (TargetDescription target : request.getTargets()) {
+            targetsByArn.get(request.getTargetGroupArn()).add(target.getId());
+          }
+        }
+      );
+      return new RegisterTargetsResult();
+    }
+
+    @Override
+    public DeregisterTargetsResult deregisterTargets(DeregisterTargetsRequest request) {
+      change(
+        "deregisterTargets",
+        request.getTargetGroupArn(),
+        () -> {
+          for (TargetDescription target : request.getTargets()) {
+            targetsByArn.get(request.getTargetGroupArn()).remove(target.getId());
+          }
+        }
+      );
+      return new DeregisterTargetsResult();
+    }
+
+    @Override
+    public SetSubnetsResult setSubnets(SetSubnetsRequest request) {
+      call("setSubnets");
+      synchronized (loadBalancers) {
+        for (LoadBalancer loadBalancer : loadBalancers) {
+          if (loadBalancer.getLoadBalancerArn().equals(request.getLoadBalancerArn())) {
+            List<AvailabilityZone> zones = new ArrayList<>();
+            for (String subnetId : request.getSubnets()) {
+              zones.add(
+                new AvailabilityZone()
+                  .withSubnetId(subnetId)
+                  .withZoneName(subnetId.substring("subnet-".length()))
+              );
+            }
+            loadBalancer.setAvailabilityZones(zones);
+          }
+        }
+      }
+      return new SetSubnetsResult();
+    }
+  }
+}
@@ -0,0 +1,341 @@
+package com.hubspot.baragon.service.elb;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import com.amazonaws.services.elasticloadbalancing.AbstractAmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancing.model.DeregisterInstancesFromLoadBalancerRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DeregisterInstancesFromLoadBalancerResult;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeInstanceHealthRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeInstanceHealthResult;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersResult;
+import com.amazonaws.services.elasticloadbalancing.model.Instance;
+import com.amazonaws.services.elasticloadbalancing.model.InstanceState;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.data.BaragonKnownAgentsDatastore;
+import com.hubspot.baragon.data.BaragonLoadBalancerDatastore;
+import com.hubspot.baragon.models.BaragonAgentEc2Metadata;
+import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.BaragonGroup;
+import com.hubspot.baragon.models.BaragonKnownAgentMetadata;
+import com.hubspot.baragon.models.TrafficSource;
+import com.hubspot.baragon.models.TrafficSourceType;
+import com.hubspot.baragon.service.config.ElbConfiguration;
+import com.hubspot.baragon.service.exceptions.BaragonExceptionNotifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+public class ClassicLoadBalancerHealthTest {
+  private static final int ELBS = 3;
+  private static final int AGENTS_PER_ELB = 100;
+  private static final int STALE_INSTANCES_PER_ELB = 20;
+  private static final int CALLER_THREADS = 32;
+  private static final int API_LATENCY_MILLIS = 20;
+  private static final String ZONE = "us-east-1a";
+  // An ELB whose instances all belong to agents that are gone
+  private static final String ABANDONED_ELB = "elb-abandoned";
+
+  private FakeElbClient elbClient;
+  private Map<String, Collection<BaragonAgentMetadata>> agentsByGroup;
+  private List<BaragonGroup> baragonGroups;
+
+  @BeforeAll
+  public static void setupLogging() {
+    // Per-instance logging would otherwise flood the test output
+    LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+    context
+      .getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)
+      .setLevel(Level.toLevel(System.getProperty("baragon.test.log.level", "WARN")));
+    context
+      .getLogger("com.hubspot")
+      .setLevel(
+        Level.toLevel(
+          System.getProperty("baragon.test.log.level.for.com.hubspot", "WARN")
+        )
+      );
+  }
+
+  @BeforeEach
+  public void setup() {
+    elbClient = new FakeElbClient();
+    agentsByGroup = new HashMap<>();
+    baragonGroups = new ArrayList<>();
+    for (int e = 0; e < ELBS; e++) {
+      String name = "elb-" + e;
+      List<BaragonAgentMetadata> agents = new ArrayList<>();
+      List<String> instances = new ArrayList<>();
+      for (int a = 0; a < AGENTS_PER_ELB; a++) {
+        String instanceId = String.format("i-%d-%d", e, a);
+        agents.add(agent(instanceId));
+        instances.add(instanceId);
+      }
+      for (int s = 0; s < STALE_INSTANCES_PER_ELB; s++) {
+        instances.add(String.format("i-%d-stale-%d", e, s));
+      }
+      elbClient.addElb(name, instances);
+      agentsByGroup.put(name, agents);
+      baragonGroups.add(group(name));
+    }
+    elbClient.addElb(ABANDONED_ELB, ImmutableSet.of("i-gone-0", "i-gone-1"));
+    agentsByGroup.put(ABANDONED_ELB, Collections.emptyList());
+    baragonGroups.add(group(ABANDONED_ELB));
+  }
+
+  @Test
+  public void itSharesHealthLookupsBetweenCallers() throws Exception {
+    ElbConfiguration uncached = configuration();
+    uncached.setInstanceHealthCacheMillis(0);
+    int uncachedCalls = checkEveryAgent(newLoadBalancer(uncached));
+    int cachedCalls = checkEveryAgent(newLoadBalancer(configuration()));
+
+    Assertions.assertEquals(ELBS * AGENTS_PER_ELB, uncachedCalls);
+    Assertions.assertTrue(cachedCalls <= ELBS * 2);
+  }
+
+  @Test
+  public void itLooksUpHealthOncePerElbWhileDeregistering() {
+    ClassicLoadBalancer loadBalancer = newLoadBalancer(configuration());
+    elbClient.drainCalls();
+
+    loadBalancer.syncAll(baragonGroups);
+
+    Map<String, Integer> calls = elbClient.drainCalls();
+    Assertions.assertEquals(ELBS + 1, calls.get("describeInstanceHealth").intValue());
+    Assertions.assertEquals(
+      ELBS * STALE_INSTANCES_PER_ELB + 1,
+      calls.get("deregisterInstancesFromLoadBalancer").intValue()
+    );
+    for (int e = 0; e < ELBS; e++) {
+      String name = "elb-" + e;
+      Assertions.assertEquals(
+        agentsByGroup
+          .get(name)
+          .stream()
+          .map(agent -> agent.getEc2().getInstanceId().get())
+          .collect(Collectors.toSet()),
+        elbClient.instances(name)
+      );
+    }
+    // The last healthy instance is still protected with one lookup for the whole ELB
+    Assertions.assertEquals(1, elbClient.instances(ABANDONED_ELB).size());
+  }
+
+  @Test
+  public void itLooksAgainAfterChangingAnElb() {
+    ClassicLoadBalancer loadBalancer = newLoadBalancer(configuration());
+    Assertions.assertTrue(loadBalancer.isInstanceHealthy("i-0-0", "elb-0"));
+
+    loadBalancer.removeInstance(new Instance("i-0-0"), "i-0-0", "elb-0", "i-0-0");
+
+    Assertions.assertFalse(loadBalancer.isInstanceHealthy("i-0-0", "elb-0"));
+    Assertions.assertTrue(loadBalancer.isInstanceHealthy("i-0-1", "elb-0"));
+    Assertions.assertEquals(
+      2,
+      elbClient.drainCalls().get("describeInstanceHealth").intValue()
+    );
+  }
+
+  private int checkEveryAgent(ClassicLoadBalancer loadBalancer) throws Exception {
+    elbClient.drainCalls();
+    ExecutorService callers = Executors.newFixedThreadPool(CALLER_THREADS);
+    try {
+      List<Future<Boolean>> healthy = new ArrayList<>();
+      for (Map.Entry<String, Collection<BaragonAgentMetadata>> group : agentsByGroup.entrySet()) {
+        for (BaragonAgentMetadata agent : group.getValue()) {
+          healthy.add(
+            callers.submit(
+              () ->
+                loadBalancer.isInstanceHealthy(
+                  agent.getEc2().getInstanceId().get(),
+                  group.getKey()
+                )
+            )
+          );
+        }
+      }
+      for (Future<Boolean> result : healthy) {
+        Assertions.assertTrue(result.get());
+      }
+    } finally {
+      callers.shutdownNow();
+    }
+    Integer calls = elbClient.drainCalls().get("describeInstanceHealth");
+    return calls == null ? 0 : calls;
+  }
+
+  private static ElbConfiguration configuration() {
+    ElbConfiguration configuration = new ElbConfiguration();
+    configuration.setDeregisterEnabled(true);
+    configuration.setRemoveLastHealthyEnabled(false);
+    return configuration;
+  }
+
+  private ClassicLoadBalancer newLoadBalancer(ElbConfiguration configuration) {
+    return new ClassicLoadBalancer(
+      Optional.of(configuration),
+      new BaragonExceptionNotifier(Optional.absent()),
+      new BaragonLoadBalancerDatastore(null, null, null) {
+
+        @Override
+        public Collection<BaragonAgentMetadata> getAgentMetadata(String clusterName) {
+          return agentsByGroup.get(clusterName);
+        }
+      },
+      new BaragonKnownAgentsDatastore(null, null, null, null) {
+
+        @Override
+        public Collection<BaragonKnownAgentMetadata> getKnownAgentsMetadata(
+          String clusterName
+        ) {
+          return Collections.emptyList();
+        }
+      },
+      elbClient
+    );
+  }
+
+  private static BaragonGroup group(String name) {
+    return new BaragonGroup(
+      name,
+      Optional.absent(),
+      ImmutableSet.of(new TrafficSource(name, TrafficSourceType.CLASSIC)),
+      null,
+      Optional.absent(),
+      null,
+      null,
+      1
+    );
+  }
+
+  private static BaragonAgentMetadata agent(String instanceId) {
+    return new BaragonAgentMetadata(
+      String.format("http://%s:8882/baragon-agent/v2", instanceId),
+      instanceId,
+      Optional.absent(),
+      new BaragonAgentEc2Metadata(
+        Optional.of(instanceId),
+        Optional.of(ZONE),
+        Optional.of("subnet-1"),
+        Optional.of("vpc-1"),
+        Optional.absent()
+      ),
+      Optional.absent(),
+      Collections.emptyMap(),
+      true
+    );
+  }
+
+  /**
+   * Keeps classic ELBs and their instances in memory, all of them InService, and counts calls
+   */
+  private static class FakeElbClient extends AbstractAmazonElasticLoadBalancing {
+    private final Map<String, Set<String>> instancesByElb = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+
+    private void addElb(String name, Collection<String> instances) {
+      Set<String> instanceIds = ConcurrentHashMap.newKeySet();
+      instanceIds.addAll(instances);
+      instancesByElb.put(name, instanceIds);
+    }
+
+    private Set<String> instances(String elbName) {
+      return instancesByElb.get(elbName);
+    }
+
+    private Map<String, Integer> drainCalls() {
+      Map<String, Integer> drained = new HashMap<>();
+      calls.forEach((method, count) -> drained.put(method, count.getAndSet(0)));
+      drained.values().removeIf(count -> count == 0);
+      return drained;
+    }
+
+    private void call(String method) {
+      calls.computeIfAbsent(method, m -> new AtomicInteger()).incrementAndGet();
+      try {
+        Thread.sleep(API_LATENCY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private LoadBalancerDescription describe(String name) {
+      return new LoadBalancerDescription()
+        .withLoadBalancerName(name)
+        .withVPCId("vpc-1")
+        .withAvailabilityZones(ZONE)
+        .withSubnets("subnet-1")
+        .withInstances(
+          instancesByElb
+            .get(name)
+            .stream()
+            .map(Instance::new)
+            .collect(Collectors.toList())
+        );
+    }
+
+    @Override
+    public DescribeLoadBalancersResult describeLoadBalancers(
+      DescribeLoadBalancersRequest request
+    ) {
+      call("describeLoadBalancers");
+      Collection<String> names = request.getLoadBalancerNames() == null ||
+        request.getLoadBalancerNames().isEmpty()
+        ? instancesByElb.keySet()
+        : request.getLoadBalancerNames();
+      return new DescribeLoadBalancersResult()
+      .withLoadBalancerDescriptions(
+          names
+            .stream()
+            .filter(instancesByElb::containsKey)
+            .map(this::describe)
+            .collect(Collectors.toList())
+        );
+    }
+
+    @Override
+    public DescribeInstanceHealthResult describeInstanceHealth(
+      DescribeInstanceHealthRequest request
+    ) {
+      call("describeInstanceHealth");
+      return new DescribeInstanceHealthResult()
+      .withInstanceStates(
+          instancesByElb
+            .get(request.getLoadBalancerName())
+            .stream()
+            .map(id -> new InstanceState().withInstanceId(id).withState("InService"))
+            .collect(Collectors.toList())
+        );
+    }
+
+    @Override
+    public DeregisterInstancesFromLoadBalancerResult deregisterInstancesFromLoadBalancer(
+      DeregisterInstancesFromLoadBalancerRequest request
+    ) {
+      call("deregisterInstancesFromLoadBalancer");
+      for (Instance instance : request.getInstances()) {
+        instancesByElb
+          .get(request.getLoadBalancerName())
+          .remove(instance.getInstanceId());
+      }
+      return new DeregisterInstancesFromLoadBalancerResult();
+    }
+  }
+}
@@ -0,0 +1,333 @@
+package com.hubspot.baragon.service.gcloud;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import com.codahale.metrics.MetricRegistry;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.compute.Compute;
+import com.google.common.base.Optional;
+import com.hubspot.baragon.models.AgentCheckInResponse;
+import com.hubspot.baragon.models.BaragonAgentGcloudMetadata;
+import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.TrafficSourceState;
+import com.hubspot.baragon.service.config.BaragonConfiguration;
+import com.hubspot.baragon.service.config.GoogleCloudConfiguration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+public class GoogleCloudManagerHealthTest {
+  private static final int BACKEND_SERVICES = 3;
+  private static final int AGENTS_PER_BACKEND_SERVICE = 100;
+  private static final int AGENT_THREADS = 32;
+  private static final int API_LATENCY_MILLIS = 20;
+  private static final long POLL_INTERVAL_MILLIS = 100;
+  private static final long ROLLOUT_MILLIS = 1000;
+  private static final String PROJECT = "test-project";
+
+  private FakeComputeTransport transport;
+  private List<BaragonAgentMetadata> agents;
+
+  @BeforeAll
+  public static void setupLogging() {
+    // Per-agent logging would otherwise flood the test output
+    LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+    context
+      .getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)
+      .setLevel(Level.toLevel(System.getProperty("baragon.test.log.level", "WARN")));
+    context
+      .getLogger("com.hubspot")
+      .setLevel(
+        Level.toLevel(
+          System.getProperty("baragon.test.log.level.for.com.hubspot", "WARN")
+        )
+      );
+  }
+
+  @BeforeEach
+  public void setup() {
+    transport = new FakeComputeTransport();
+    agents = new ArrayList<>();
+    for (int s = 0; s < BACKEND_SERVICES; s++) {
+      for (int a = 0; a < AGENTS_PER_BACKEND_SERVICE; a++) {
+        agents.add(agent(backendService(s), instanceName(s, a)));
+      }
+    }
+  }
+
+  @Test
+  public void itSharesHealthLookupsDuringARollout() throws Exception {
+    RolloutResult uncached = rollout(0);
+    RolloutResult cached = rollout(200);
+
+    Assertions.assertTrue(uncached.calls >= agents.size());
+    Assertions.assertTrue(cached.calls * 10 < uncached.calls);
+    Assertions.assertTrue(cached.callsPerSecond() * 10 < uncached.callsPerSecond());
+    Assertions.assertTrue(cached.hitRatio > 0.9);
+  }
+
+  @Test
+  public void itCoalescesConcurrentLookupsOfOneBackendService() throws Exception {
+    for (BaragonAgentMetadata agent : agents) {
+      transport.setHealthyAt(agent, 0L);
+    }
+    GoogleCloudManager manager = manager(60000, new MetricRegistry());
+    List<BaragonAgentMetadata> sameService = agents
+      .stream()
+      .filter(a -> a.getGcloud().get().getBackendService().equals(backendService(0)))
+      .collect(Collectors.toList());
+
+    ExecutorService executor = Executors.newFixedThreadPool(sameService.size());
+    try {
+      CountDownLatch ready = new CountDownLatch(1);
+      List<Future<AgentCheckInResponse>> responses = new ArrayList<>();
+      for (BaragonAgentMetadata agent : sameService) {
+        responses.add(
+          executor.submit(
+            () -> {
+              ready.await();
+              return manager.checkHealthOfAgentOnStartup(agent);
+            }
+          )
+        );
+      }
+      ready.countDown();
+      for (Future<AgentCheckInResponse> response : responses) {
+        Assertions.assertEquals(TrafficSourceState.DONE, response.get().getState());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    Assertions.assertEquals(1, transport.calls.get());
+  }
+
+  @Test
+  public void itDoesNotCacheFailedLookups() {
+    GoogleCloudManager manager = manager(60000, new MetricRegistry());
+    BaragonAgentMetadata agent = agents.get(0);
+    transport.setHealthyAt(agent, 0L);
+
+    transport.failing = true;
+    Assertions.assertEquals(
+      TrafficSourceState.ERROR,
+      manager.checkHealthOfAgentOnStartup(agent).getState()
+    );
+    transport.failing = false;
+    Assertions.assertEquals(
+      TrafficSourceState.DONE,
+      manager.checkHealthOfAgentOnStartup(agent).getState()
+    );
+    Assertions.assertEquals(2, transport.calls.get());
+  }
+
+  /**
+   * Every instance turns healthy at a random point in the rollout, and each agent checks in every
+   * POLL_INTERVAL_MILLIS until it is told it is done
+   */
+  private RolloutResult rollout(long healthCacheMillis) throws Exception {
+    MetricRegistry metricRegistry = new MetricRegistry();
+    GoogleCloudManager manager = manager(healthCacheMillis, metricRegistry);
+    Random random = new Random(healthCacheMillis);
+    long start = System.nanoTime();
+    for (BaragonAgentMetadata agent : agents) {
+      transport.setHealthyAt(
+        agent,
+        start + TimeUnit.MILLISECONDS.toNanos(random.nextInt((int) ROLLOUT_MILLIS))
+      );
+    }
+    transport.calls.set(0);
+
+    ScheduledExecutorService agentThreads = Executors.newScheduledThreadPool(
+      AGENT_THREADS
+    );
+    CountDownLatch healthy = new CountDownLatch(agents.size());
+    try {
+      for (BaragonAgentMetadata agent : agents) {
+        agentThreads.execute(
+          new Runnable() {
+
+            @Override
+            public void run() {
+              if (
+                manager.checkHealthOfAgentOnStartup(agent).getState() ==
+                TrafficSourceState.DONE
+              ) {
+                healthy.countDown();
+              } else {
+                agentThreads.schedule(this, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+              }
+            }
+          }
+        );
+      }
+      Assertions.assertTrue(healthy.await(30, TimeUnit.SECONDS));
+    } finally {
+      agentThreads.shutdownNow();
+    }
+
+    // The hitRatio gauge follows one minute rates, which a rollout this short never ticks
+    long lookups = metricRegistry
+      .meter(MetricRegistry.name(GoogleCloudManager.class, "health", "lookups"))
+      .getCount();
+    return new RolloutResult(
+      transport.calls.get(),
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+      (double) (lookups - transport.calls.get()) / lookups
+    );
+  }
+
+  private GoogleCloudManager manager(
+    long healthCacheMillis,
+    MetricRegistry metricRegistry
+  ) {
+    GoogleCloudConfiguration googleCloudConfiguration = new GoogleCloudConfiguration();
+    googleCloudConfiguration.setEnabled(true);
+    googleCloudConfiguration.setHealthCacheMillis(healthCacheMillis);
+    BaragonConfiguration configuration = new BaragonConfiguration();
+    configuration.setGoogleCloudConfiguration(googleCloudConfiguration);
+    Compute compute = new Compute.Builder(
+      transport,
+      JacksonFactory.getDefaultInstance(),
+      null
+    )
+      .setApplicationName("baragon-test")
+      .build();
+    return new GoogleCloudManager(configuration, Optional.of(compute), metricRegistry);
+  }
+
+  private static String backendService(int service) {
+    return String.format("backend-service-%d", service);
+  }
+
+  private static String instanceName(int service, int agent) {
+    return String.format("agent-%d-%03d", service, agent);
+  }
+
+  private static BaragonAgentMetadata agent(String backendService, String instanceName) {
+    return new BaragonAgentMetadata(
+      String.format("http://%s:8882/baragon-agent/v2", instanceName),
+      instanceName,
+      Optional.absent(),
+      null,
+      Optional.of(
+        new BaragonAgentGcloudMetadata(
+          backendService + "-group",
+          PROJECT,
+          Optional.absent(),
+          backendService,
+          instanceName
+        )
+      ),
+      Collections.emptyMap(),
+      true
+    );
+  }
+
+  private static class RolloutResult {
+    private final int calls;
+    private final long millis;
+    private final double hitRatio;
+
+    private RolloutResult(int calls, long millis, double hitRatio) {
+      this.calls = calls;
+      this.millis = millis;
+      this.hitRatio = hitRatio;
+    }
+
+    private double callsPerSecond() {
+      return calls * 1000.0 / Math.max(1, millis);
+    }
+  }
+
+  /**
+   * Answers backendServices.getHealth for the instances of each backend service, healthy once the
+   * rollout reaches their time, and counts calls
+   */
+  private static class FakeComputeTransport extends MockHttpTransport {
+    //                 <BackendService, <InstanceName, HealthyAtNanos>>
+    private final Map<String, Map<String, Long>> healthyAt = new ConcurrentHashMap<>();
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile boolean failing = false;
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+      return new MockLowLevelHttpRequest(url) {
+
+        @Override
+        public LowLevelHttpResponse execute() {
+          calls.incrementAndGet();
+          sleep();
+          if (failing) {
+            return new MockLowLevelHttpResponse()
+              .setStatusCode(503)
+              .setContentType("application/json")
+              .setContent("{\"error\":{\"code\":503,\"message\":\"unavailable\"}}");
+          }
+          return new MockLowLevelHttpResponse()
+            .setContentType("application/json")
+            .setContent(healthOf(backendServiceIn(url)));
+        }
+      };
+    }
+
+    private void setHealthyAt(BaragonAgentMetadata agent, long nanos) {
+      BaragonAgentGcloudMetadata gcloud = agent.getGcloud().get();
+      healthyAt
+        .computeIfAbsent(gcloud.getBackendService(), k -> new ConcurrentHashMap<>())
+        .put(gcloud.getInstanceName(), nanos);
+    }
+
+    private String healthOf(String backendService) {
+      long now = System.nanoTime();
+      return healthyAt
+        .getOrDefault(backendService, Collections.emptyMap())
+        .entrySet()
+        .stream()
+        .map(
+          e ->
+            String.format(
+              "{\"instance\":\"https://www.googleapis.com/compute/v1/projects/%s/zones/us-east1-b/instances/%s\",\"healthState\":\"%s\"}",
+              PROJECT,
+              e.getKey(),
+              e.getValue() <= now ? "HEALTHY" : "UNHEALTHY"
+            )
+        )
+        .collect(Collectors.joining(",", "{\"healthStatus\":[", "]}"));
+    }
+
+    // .../projects/(project)/global/backendServices/(backend service)/getHealth
+    private static String backendServiceIn(String url) {
+      String path = url.substring(0, url.lastIndexOf("/getHealth"));
+      return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static void sleep() {
+      try {
+        Thread.sleep(API_LATENCY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,227 @@
+package com.hubspot.baragon.service.managers;
+
+import com.codahale.metrics.MetricRegistry;
+import com.hubspot.baragon.config.HttpClientConfiguration;
+import com.hubspot.baragon.service.config.BaragonConfiguration;
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.Request;
+import com.ning.http.client.RequestBuilder;
+import com.ning.http.client.Response;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class AgentConnectionPoolTest {
+  private static final int AGENT_COUNT = 20;
+  private static final int ROUNDS = 3;
+  private static final byte[] BATCH_BODY =
+    "[{\"requestId\":\"test\"}]".getBytes(StandardCharsets.UTF_8);
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  private final AtomicInteger received = new AtomicInteger();
+  private ExecutorService serverExecutor;
+  private List<HttpServer> agents;
+  private List<String> baseUrls;
+  private volatile long handlerDelayMillis = 0;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    serverExecutor = Executors.newFixedThreadPool(32);
+    agents = new ArrayList<>(AGENT_COUNT);
+    baseUrls = new ArrayList<>(AGENT_COUNT);
+    for (int i = 0; i < AGENT_COUNT; i++) {
+      HttpServer agent = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      agent.createContext(
+        "/",
+        exchange -> {
+          received.incrementAndGet();
+          int current = inFlight.incrementAndGet();
+          maxInFlight.accumulateAndGet(current, Math::max);
+          try (InputStream in = exchange.getRequestBody()) {
+            ByteArrayOutputStream ignored = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+              ignored.write(buffer, 0, read);
+            }
+            if (handlerDelayMillis > 0) {
+              Thread.sleep(handlerDelayMillis);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            // Before responding, as the client may send its next request as soon as it has one
+            inFlight.decrementAndGet();
+          }
+          byte[] response = "[]".getBytes(StandardCharsets.UTF_8);
+          exchange.sendResponseHeaders(200, response.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+          }
+        }
+      );
+      agent.setExecutor(serverExecutor);
+      agent.start();
+      agents.add(agent);
+      baseUrls.add(
+        String.format(
+          "http://127.0.0.1:%d/baragon-agent/v2",
+          agent.getAddress().getPort()
+        )
+      );
+    }
+  }
+
+  @AfterEach
+  public void cleanup() {
+    agents.forEach(agent -> agent.stop(0));
+    serverExecutor.shutdownNow();
+  }
+
+  @Test
+  public void itReusesWarmConnectionsAcrossBatches() throws Exception {
+    AgentConnectionPool pool = new AgentConnectionPool(
+      new HttpClientConfiguration(),
+      new BaragonConfiguration(),
+      new AgentRequestLimits(new BaragonConfiguration(), new HttpClientConfiguration()),
+      new MetricRegistry()
+    );
+    try {
+      List<CompletableFuture<Boolean>> warmUps = new ArrayList<>();
+      for (String baseUrl : baseUrls) {
+        warmUps.add(pool.warm(baseUrl));
+      }
+      for (CompletableFuture<Boolean> warmUp : warmUps) {
+        Assertions.assertTrue(warmUp.get(10, TimeUnit.SECONDS));
+      }
+      Assertions.assertEquals(AGENT_COUNT, pool.getOpenedConnections());
+
+      for (int round = 0; round < ROUNDS; round++) {
+        dispatchRound(pool);
+      }
+      Assertions.assertEquals(AGENT_COUNT, pool.getOpenedConnections());
+      Assertions.assertEquals((long) AGENT_COUNT * ROUNDS, pool.getReusedConnections());
+    } finally {
+      pool.stop();
+    }
+  }
+
+  @Test
+  public void itCapsConcurrentRequestsPerAgent() throws Exception {
+    BaragonConfiguration configuration = new BaragonConfiguration();
+    configuration.setMaxConcurrentRequestsPerAgent(3);
+    AgentConnectionPool pool = new AgentConnectionPool(
+      new HttpClientConfiguration(),
+      configuration,
+      new AgentRequestLimits(configuration, new HttpClientConfiguration()),
+      new MetricRegistry()
+    );
+    handlerDelayMillis = 50;
+    try {
+      String baseUrl = baseUrls.get(0);
+      int requests = 20;
+      CountDownLatch done = new CountDownLatch(requests);
+      AtomicInteger succeeded = new AtomicInteger();
+      for (int i = 0; i < requests; i++) {
+        pool.execute(baseUrl, batchRequest(baseUrl), completion(done, succeeded));
+      }
+      Assertions.assertTrue(done.await(30, TimeUnit.SECONDS));
+
+      // Every request went through, never more than three at once, mostly over pooled connections
+      Assertions.assertEquals(requests, succeeded.get());
+      Assertions.assertEquals(3, maxInFlight.get());
+      Assertions.assertTrue(pool.getOpenedConnections() < requests / 2);
+    } finally {
+      pool.stop();
+    }
+  }
+
+  @Test
+  public void itOnlyCountsTheHedgeDelayFromWhenTheRequestIsSent() throws Exception {
+    BaragonConfiguration configuration = new BaragonConfiguration();
+    configuration.setMaxConcurrentRequestsPerAgent(1);
+    AgentConnectionPool pool = new AgentConnectionPool(
+      new HttpClientConfiguration(),
+      configuration,
+      new AgentRequestLimits(configuration, new HttpClientConfiguration()),
+      new MetricRegistry()
+    );
+    handlerDelayMillis = 200;
+    try {
+      String baseUrl = baseUrls.get(0);
+      CountDownLatch done = new CountDownLatch(2);
+      AtomicInteger succeeded = new AtomicInteger();
+      pool.execute(baseUrl, batchRequest(baseUrl), completion(done, succeeded));
+      // Waits 200ms for the first request and takes 200ms itself, longer than the hedge delay
+      // in total but not once it has been sent
+      pool.executeHedged(
+        baseUrl,
+        batchRequest(baseUrl),
+        completion(done, succeeded),
+        300,
+        () -> {}
+      );
+      Assertions.assertTrue(done.await(30, TimeUnit.SECONDS));
+
+      Assertions.assertEquals(2, succeeded.get());
+      Assertions.assertEquals(2, received.get());
+    } finally {
+      pool.stop();
+    }
+  }
+
+  private void dispatchRound(AgentConnectionPool pool) throws Exception {
+    CountDownLatch done = new CountDownLatch(AGENT_COUNT);
+    AtomicInteger succeeded = new AtomicInteger();
+    for (String baseUrl : baseUrls) {
+      pool.execute(baseUrl, batchRequest(baseUrl), completion(done, succeeded));
+    }
+    Assertions.assertTrue(done.await(30, TimeUnit.SECONDS));
+    Assertions.assertEquals(AGENT_COUNT, succeeded.get());
+  }
+
+  private static Request batchRequest(String baseUrl) {
+    return new RequestBuilder("POST")
+      .setUrl(String.format("%s/batch", baseUrl))
+      .setBody(BATCH_BODY)
+      .build();
+  }
+
+  private static AsyncCompletionHandler<Void> completion(
+    CountDownLatch done,
+    AtomicInteger succeeded
+  ) {
+    return new AsyncCompletionHandler<Void>() {
+
+      @Override
+      public Void onCompleted(Response response) {
+        if (response.getStatusCode() == 200) {
+          succeeded.incrementAndGet();
+        }
+        done.countDown();
+        return null;
+      }
+
+      @Override
+      public void onThrowable(Throwable t) {
+        done.countDown();
+      }
+    };
+  }
+}
@@ -0,0 +1,344 @@
+package com.hubspot.baragon.service.managers;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.guava.GuavaModule;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.google.common.base.Optional;
+import com.hubspot.baragon.config.HttpClientConfiguration;
+import com.hubspot.baragon.data.BaragonAgentResponseDatastore;
+import com.hubspot.baragon.models.AgentBatchResponseItem;
+import com.hubspot.baragon.models.AgentRequestType;
+import com.hubspot.baragon.models.AgentResponse;
+import com.hubspot.baragon.models.BaragonRequestBatchItem;
+import com.hubspot.baragon.models.RequestAction;
+import com.hubspot.baragon.service.config.BaragonConfiguration;
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class AgentRequestLimitsTest {
+  private static final String AGENT = "http://agent:8882/baragon-agent/v2";
+
+  private final ObjectMapper objectMapper = new ObjectMapper()
+    .registerModule(new GuavaModule())
+    .registerModule(new Jdk8Module());
+  private final Queue<AgentReply> replies = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger received = new AtomicInteger();
+
+  private ExecutorService serverExecutor;
+  private HttpServer agent;
+  private String baseUrl;
+
+  /**
+   * An agent that answers each request with the next queued reply, after that reply's delay
+   */
+  @BeforeEach
+  public void setup() throws Exception {
+    serverExecutor = Executors.newCachedThreadPool();
+    agent = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    agent.createContext(
+      "/",
+      exchange -> {
+        List<BaragonRequestBatchItem> batch = objectMapper.readValue(
+          exchange.getRequestBody(),
+          new TypeReference<List<BaragonRequestBatchItem>>() {}
+        );
+        received.incrementAndGet();
+        AgentReply reply = replies.poll();
+        try {
+          Thread.sleep(reply.delayMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        byte[] response = objectMapper.writeValueAsBytes(
+          batch
+            .stream()
+            .map(
+              item ->
+                new AgentBatchResponseItem(
+                  item.getRequestId(),
+                  reply.statusCode,
+                  Optional.absent(),
+                  item.getRequestType()
+                )
+            )
+            .collect(Collectors.toList())
+        );
+        exchange.sendResponseHeaders(reply.statusCode, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(response);
+        }
+      }
+    );
+    agent.setExecutor(serverExecutor);
+    agent.start();
+    baseUrl =
+      String.format("http://127.0.0.1:%d/baragon-agent/v2", agent.getAddress().getPort());
+  }
+
+  @AfterEach
+  public void cleanup() {
+    agent.stop(0);
+    serverExecutor.shutdownNow();
+  }
+
+  @Test
+  public void itBacksOffAndRecovers() {
+    BaragonConfiguration configuration = new BaragonConfiguration();
+    configuration.setMaxConcurrentRequestsPerAgent(4);
+    configuration.setAgentRequestMinTimeoutMs(50);
+    HttpClientConfiguration httpClientConfiguration = new HttpClientConfiguration();
+    httpClientConfiguration.setRequestTimeoutInMs(10000);
+    AgentRequestLimits limits = new AgentRequestLimits(
+      configuration,
+      httpClientConfiguration
+    );
+
+    Assertions.assertEquals(4, limits.getConcurrencyLimit(AGENT));
+    Assertions.assertEquals(10000, limits.getTimeoutMs(AGENT));
+    Assertions.assertFalse(limits.getHedgeDelayMs(AGENT).isPresent());
+
+    for (int i = 1; i <= 100; i++) {
+      limits.onSuccess(AGENT, i);
+    }
+    Assertions.assertEquals(297, limits.getTimeoutMs(AGENT));
+
+    limits.onFailure(AGENT, 10000, true);
+    Assertions.assertEquals(2, limits.getConcurrencyLimit(AGENT));
+    limits.onFailure(AGENT, 10000, true);
+    limits.onFailure(AGENT, 10000, true);
+    Assertions.assertEquals(1, limits.getConcurrencyLimit(AGENT));
+    Assertions.assertEquals(10000, limits.getTimeoutMs(AGENT));
+
+    int successes = 0;
+    while (limits.getConcurrencyLimit(AGENT) < 4) {
+      limits.onSuccess(AGENT, 10);
+      successes++;
+    }
+    Assertions.assertEquals(7, successes);
+  }
+
+  @Test
+  public void itKeepsTheHttpClientTimeoutUnlessAMinimumIsSet() {
+    HttpClientConfiguration httpClientConfiguration = new HttpClientConfiguration();
+    httpClientConfiguration.setRequestTimeoutInMs(10000);
+    AgentRequestLimits limits = new AgentRequestLimits(
+      new BaragonConfiguration(),
+      httpClientConfiguration
+    );
+    for (int i = 0; i < 100; i++) {
+      limits.onSuccess(AGENT, 10);
+    }
+    Assertions.assertEquals(10000, limits.getTimeoutMs(AGENT));
+
+    BaragonConfiguration configuration = new BaragonConfiguration();
+    configuration.setAgentRequestMinTimeoutMs(1000);
+    limits = new AgentRequestLimits(configuration, httpClientConfiguration);
+    for (int i = 0; i < 100; i++) {
+      limits.onSuccess(AGENT, 10);
+    }
+    Assertions.assertEquals(1000, limits.getTimeoutMs(AGENT));
+  }
+
+  @Test
+  public void itTimesOutAStalledAgentAtItsLearnedTimeout() throws Exception {
+    BaragonConfiguration configuration = new BaragonConfiguration();
+    configuration.setAgentRequestMinTimeoutMs(100);
+    RecordingResponseDatastore responses = new RecordingResponseDatastore();
+    AgentConnectionPool pool = pool(configuration);
+    try {
+      AgentRequestLimits limits = pool.getRequestLimits();
+      for (int i = 0; i < 20; i++) {
+        limits.onSuccess(baseUrl, 10);
+      }
+      replies.add(new AgentReply(200, 2000));
+
+      long start = System.currentTimeMillis();
+      agentManager(configuration, pool, responses)
+        .sendFilteredBatchRequests(baseUrl, batch("request-1"));
+      List<AgentResponse> recorded = responses.await(1);
+
+      Assertions.assertTrue(System.currentTimeMillis() - start < 1500);
+      Assertions.assertFalse(recorded.get(0).getStatusCode().isPresent());
+      Assertions.assertEquals(1, limits.getConcurrencyLimit(baseUrl));
+    } finally {
+      pool.stop();
+    }
+  }
+
+  @Test
+  public void itOnlyAcceptsASuccessfulHedgedResponse() throws Exception {
+    BaragonConfiguration configuration = new BaragonConfiguration();
+    configuration.setAgentBatchHedgingEnabled(true);
+    RecordingResponseDatastore responses = new RecordingResponseDatastore();
+    AgentConnectionPool pool = pool(configuration);
+    try {
+      for (int i = 0; i < 20; i++) {
+        pool.getRequestLimits().onSuccess(baseUrl, 50);
+      }
+      // The first attempt is slow but succeeds, the hedge fails straight away
+      replies.add(new AgentReply(200, 400));
+      replies.add(new AgentReply(503, 0));
+
+      agentManager(configuration, pool, responses)
+        .sendFilteredBatchRequests(baseUrl, batch("request-1"));
+      List<AgentResponse> recorded = responses.await(1);
+
+      Assertions.assertEquals(2, received.get());
+      Assertions.assertEquals(Optional.of(200), recorded.get(0).getStatusCode());
+    } finally {
+      pool.stop();
+    }
+  }
+
+  @Test
+  public void itPrefersAnAgentResponseWhenNoHedgedAttemptSucceeds() throws Exception {
+    BaragonConfiguration configuration = new BaragonConfiguration();
+    configuration.setAgentBatchHedgingEnabled(true);
+    configuration.setAgentRequestMinTimeoutMs(400);
+    RecordingResponseDatastore responses = new RecordingResponseDatastore();
+    AgentConnectionPool pool = pool(configuration);
+    try {
+      for (int i = 0; i < 20; i++) {
+        pool.getRequestLimits().onSuccess(baseUrl, 100);
+      }
+      // The first attempt fails with a 503, the hedge times out after it
+      replies.add(new AgentReply(503, 200));
+      replies.add(new AgentReply(200, 2000));
+
+      agentManager(configuration, pool, responses)
+        .sendFilteredBatchRequests(baseUrl, batch("request-1"));
+      List<AgentResponse> recorded = responses.await(1);
+
+      Assertions.assertEquals(2, received.get());
+      Assertions.assertTrue(
+        recorded.get(0).getException().get().contains("processing agent response")
+      );
+    } finally {
+      pool.stop();
+    }
+  }
+
+  private static AgentConnectionPool pool(BaragonConfiguration configuration) {
+    HttpClientConfiguration httpClientConfiguration = new HttpClientConfiguration();
+    httpClientConfiguration.setMaxRequestRetry(0);
+    return new AgentConnectionPool(
+      httpClientConfiguration,
+      configuration,
+      new AgentRequestLimits(configuration, httpClientConfiguration),
+      new MetricRegistry()
+    );
+  }
+
+  private AgentManager agentManager(
+    BaragonConfiguration configuration,
+    AgentConnectionPool pool,
+    BaragonAgentResponseDatastore responses
+  ) {
+    return new AgentManager(
+      null,
+      null,
+      responses,
+      configuration,
+      objectMapper,
+      pool,
+      BaragonConfiguration.DEFAULT_AGENT_REQUEST_URI_FORMAT,
+      BaragonConfiguration.DEFAULT_AGENT_BATCH_REQUEST_URI_FORMAT,
+      5,
+      Optional.absent(),
+      60000L
+    );
+  }
+
+  private static List<BaragonRequestBatchItem> batch(String requestId) {
+    return Collections.singletonList(
+      new BaragonRequestBatchItem(
+        requestId,
+        Optional.of(RequestAction.UPDATE),
+        AgentRequestType.APPLY
+      )
+    );
+  }
+
+  private static class AgentReply {
+    private final int statusCode;
+    private final long delayMillis;
+
+    private AgentReply(int statusCode, long delayMillis) {
+      this.statusCode = statusCode;
+      this.delayMillis = delayMillis;
+    }
+  }
+
+  /**
+   * Keeps agent responses in memory instead of ZooKeeper
+   */
+  private static class RecordingResponseDatastore extends BaragonAgentResponseDatastore {
+    private final List<AgentResponse> recorded = new CopyOnWriteArrayList<>();
+
+    private RecordingResponseDatastore() {
+      super(null, null, null);
+    }
+
+    @Override
+    public AgentResponse addAgentResponse(
+      String requestId,
+      AgentRequestType requestType,
+      String baseUrl,
+      String url,
+      Optional<Integer> statusCode,
+      Optional<String> content,
+      Optional<String> exception
+    ) {
+      AgentResponse response = new AgentResponse(url, 0, statusCode, content, exception);
+      recorded.add(response);
+      return response;
+    }
+
+    @Override
+    public void addAgentResponses(AgentResponseBatch batch) {
+      for (BatchedAgentResponse response : batch.getResponses()) {
+        addAgentResponse(
+          response.getRequestId(),
+          response.getRequestType(),
+          batch.getBaseUrl(),
+          batch.getUrl(),
+          response.getStatusCode(),
+          response.getContent(),
+          response.getException()
+        );
+      }
+    }
+
+    @Override
+    public void setPendingRequestStatus(
+      String requestId,
+      String baseUrl,
+      boolean value
+    ) {}
+
+    private List<AgentResponse> await(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (recorded.size() < count && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assertions.assertEquals(count, recorded.size());
+      return recorded;
+    }
+  }
+}
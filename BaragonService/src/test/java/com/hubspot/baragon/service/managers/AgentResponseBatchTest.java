@@ -0,0 +1,291 @@
+package com.hubspot.baragon.service.managers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.guava.GuavaModule;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.data.BaragonAgentResponseDatastore;
+import com.hubspot.baragon.data.BaragonAgentResponseDatastore.AgentResponseBatch;
+import com.hubspot.baragon.models.AgentRequestType;
+import com.hubspot.baragon.models.AgentResponse;
+import com.hubspot.baragon.models.AgentResponseId;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class AgentResponseBatchTest {
+  private static final int REQUESTS = 5;
+  private static final int AGENTS = 4;
+  private static final String MARKER_PATH = "/agent-response-batch-test-marker-";
+
+  private TestingServer zookeeper;
+  private CuratorFramework curator;
+  private BaragonAgentResponseDatastore datastore;
+  private List<String> agents;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    zookeeper = new TestingServer();
+    curator =
+      CuratorFrameworkFactory.newClient(
+        zookeeper.getConnectString(),
+        new RetryOneTime(100)
+      );
+    curator.start();
+    datastore =
+      new BaragonAgentResponseDatastore(
+        curator,
+        new ObjectMapper()
+          .registerModule(new GuavaModule())
+          .registerModule(new Jdk8Module()),
+        new ZooKeeperConfiguration()
+      );
+    agents = new ArrayList<>();
+    for (int i = 0; i < AGENTS; i++) {
+      agents.add(String.format("http://agent-%d.example.com:8882/baragon-agent/v2", i));
+    }
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    curator.close();
+    zookeeper.close();
+  }
+
+  @Test
+  public void itRecordsTheSameResponsesInOneWritePerAgent() throws Exception {
+    setPending("individual");
+    for (String agent : agents) {
+      for (int r = 0; r < REQUESTS; r++) {
+        datastore.addAgentResponse(
+          requestId("individual", r),
+          AgentRequestType.APPLY,
+          agent,
+          agent + "/batch",
+          statusCode(r),
+          content(r),
+          Optional.<String>absent()
+        );
+        datastore.setPendingRequestStatus(requestId("individual", r), agent, false);
+      }
+    }
+
+    setPending("batched");
+    long firstZxid = markZxid();
+    for (String agent : agents) {
+      AgentResponseBatch batch = datastore.newAgentResponseBatch(agent, agent + "/batch");
+      for (int r = 0; r < REQUESTS; r++) {
+        batch.add(
+          requestId("batched", r),
+          AgentRequestType.APPLY,
+          statusCode(r),
+          content(r),
+          Optional.<String>absent()
+        );
+      }
+      batch.commit();
+      Assertions.assertEquals(REQUESTS, batch.getCommittedRequestIds().size());
+    }
+    Assertions.assertEquals(AGENTS, markZxid() - firstZxid - 1);
+
+    for (String agent : agents) {
+      Assertions.assertEquals(0, datastore.getPendingRequestsCount(agent));
+    }
+    for (int r = 0; r < REQUESTS; r++) {
+      Assertions.assertEquals(
+        datastore.getLastResponses(requestId("individual", r)),
+        datastore.getLastResponses(requestId("batched", r))
+      );
+      for (String agent : agents) {
+        Optional<AgentResponseId> individualId = datastore.getLastAgentResponseId(
+          requestId("individual", r),
+          AgentRequestType.APPLY,
+          agent
+        );
+        Optional<AgentResponseId> batchedId = datastore.getLastAgentResponseId(
+          requestId("batched", r),
+          AgentRequestType.APPLY,
+          agent
+        );
+        Assertions.assertEquals(individualId, batchedId);
+        Assertions.assertEquals(0, batchedId.get().getAttempt());
+        Assertions.assertFalse(
+          datastore.getPendingRequest(requestId("batched", r), agent).isPresent()
+        );
+      }
+    }
+  }
+
+  @Test
+  public void itRecordsRetriesAsLaterAttempts() {
+    String agent = agents.get(0);
+    datastore.setPendingRequestStatus("retried", agent, true);
+    datastore.addAgentResponse(
+      "retried",
+      AgentRequestType.APPLY,
+      agent,
+      agent + "/batch",
+      Optional.of(500),
+      Optional.of("failed"),
+      Optional.<String>absent()
+    );
+    datastore.setPendingRequestStatus("first", agent, true);
+
+    datastore
+      .newAgentResponseBatch(agent, agent + "/batch")
+      .add(
+        "retried",
+        AgentRequestType.APPLY,
+        Optional.of(200),
+        Optional.of("ok"),
+        Optional.<String>absent()
+      )
+      .add(
+        "first",
+        AgentRequestType.APPLY,
+        Optional.of(200),
+        Optional.of("ok"),
+        Optional.<String>absent()
+      )
+      .commit();
+
+    AgentResponseId retried = datastore
+      .getLastAgentResponseId("retried", AgentRequestType.APPLY, agent)
+      .get();
+    Assertions.assertEquals(1, retried.getAttempt());
+    Assertions.assertTrue(retried.isSuccess());
+    AgentResponse retriedResponse = datastore
+      .getAgentResponse("retried", AgentRequestType.APPLY, retried, agent)
+      .get();
+    Assertions.assertEquals(Optional.of("ok"), retriedResponse.getContent());
+    Assertions.assertEquals(
+      0,
+      datastore
+        .getLastAgentResponseId("first", AgentRequestType.APPLY, agent)
+        .get()
+        .getAttempt()
+    );
+    Assertions.assertFalse(datastore.getPendingRequest("retried", agent).isPresent());
+    Assertions.assertFalse(datastore.getPendingRequest("first", agent).isPresent());
+    Assertions.assertEquals(0, datastore.getPendingRequestsCount(agent));
+  }
+
+  @Test
+  public void itReportsWhatWasRecordedBeforeAFailure() {
+    String agent = agents.get(0);
+    BaragonAgentResponseDatastore failingDatastore = new BaragonAgentResponseDatastore(
+      curator,
+      new ObjectMapper()
+        .registerModule(new GuavaModule())
+        .registerModule(new Jdk8Module()),
+      new ZooKeeperConfiguration()
+    ) {
+
+      @Override
+      public AgentResponse addAgentResponse(
+        String requestId,
+        AgentRequestType requestType,
+        String baseUrl,
+        String url,
+        Optional<Integer> statusCode,
+        Optional<String> content,
+        Optional<String> exception
+      ) {
+        if (requestId.equals("broken")) {
+          throw new IllegalStateException("Lost the connection");
+        }
+        return super.addAgentResponse(
+          requestId,
+          requestType,
+          baseUrl,
+          url,
+          statusCode,
+          content,
+          exception
+        );
+      }
+    };
+    failingDatastore.setPendingRequestStatus("first", agent, true);
+    failingDatastore.setPendingRequestStatus("retried", agent, true);
+    failingDatastore.addAgentResponse(
+      "retried",
+      AgentRequestType.APPLY,
+      agent,
+      agent + "/batch",
+      Optional.of(500),
+      Optional.of("failed"),
+      Optional.<String>absent()
+    );
+
+    // "broken" was never pending, so it leaves the transaction and fails to be written on its own
+    AgentResponseBatch batch = failingDatastore
+      .newAgentResponseBatch(agent, agent + "/batch")
+      .add(
+        "first",
+        AgentRequestType.APPLY,
+        Optional.of(200),
+        Optional.of("ok"),
+        Optional.<String>absent()
+      )
+      .add(
+        "retried",
+        AgentRequestType.APPLY,
+        Optional.of(200),
+        Optional.of("ok"),
+        Optional.<String>absent()
+      )
+      .add(
+        "broken",
+        AgentRequestType.APPLY,
+        Optional.of(200),
+        Optional.of("ok"),
+        Optional.<String>absent()
+      );
+    Assertions.assertThrows(IllegalStateException.class, batch::commit);
+    Assertions.assertEquals(
+      ImmutableSet.of("first", "retried"),
+      batch.getCommittedRequestIds()
+    );
+  }
+
+  private void setPending(String prefix) {
+    for (String agent : agents) {
+      for (int r = 0; r < REQUESTS; r++) {
+        datastore.setPendingRequestStatus(requestId(prefix, r), agent, true);
+      }
+    }
+  }
+
+  /**
+   * Every write is its own zxid, so the distance between two markers counts the writes in between
+   */
+  private long markZxid() throws Exception {
+    String path = curator
+      .create()
+      .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+      .forPath(MARKER_PATH);
+    return curator.checkExists().forPath(path).getCzxid();
+  }
+
+  private static String requestId(String prefix, int request) {
+    return String.format("%s-request-%d", prefix, request);
+  }
+
+  private static Optional<Integer> statusCode(int request) {
+    return Optional.of(request % 10 == 0 ? 500 : 200);
+  }
+
+  private static Optional<String> content(int request) {
+    return Optional.of(String.format("response to request %d", request));
+  }
+}
@@ -0,0 +1,480 @@
+package com.hubspot.baragon.service.managers;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import com.amazonaws.services.elasticloadbalancingv2.AbstractAmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancingv2.model.DeregisterTargetsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DeregisterTargetsResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetGroupAttributesRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetGroupAttributesResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetGroupsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetGroupsResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetHealthRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetHealthResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.RegisterTargetsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.RegisterTargetsResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetDescription;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetGroup;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetGroupNotFoundException;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealth;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthDescription;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.models.AgentCheckInResponse;
+import com.hubspot.baragon.models.BaragonAgentEc2Metadata;
+import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.BaragonGroup;
+import com.hubspot.baragon.models.TrafficSource;
+import com.hubspot.baragon.models.TrafficSourceState;
+import com.hubspot.baragon.models.TrafficSourceType;
+import com.hubspot.baragon.service.config.ElbConfiguration;
+import com.hubspot.baragon.service.elb.ApplicationLoadBalancer;
+import com.hubspot.baragon.service.elb.ClassicLoadBalancer;
+import com.hubspot.baragon.service.exceptions.NoMatchingElbForVpcException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+public class ElbManagerCheckInTest {
+  private static final int AGENTS = 100;
+  // Stands in for the service's http request threads
+  private static final int REQUEST_THREADS = 32;
+  private static final int API_LATENCY_MILLIS = 20;
+  private static final long HEALTHY_AFTER_MILLIS = 500;
+  private static final long DRAINED_AFTER_MILLIS = 300;
+  private static final long CHECK_IN_WAIT_MILLIS = 100;
+  private static final String GROUP = "checkin-group";
+  private static final String TARGET_GROUP = "checkin-target-group";
+
+  @BeforeAll
+  public static void setupLogging() {
+    // Per-agent logging would otherwise flood the test output
+    LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+    context
+      .getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)
+      .setLevel(Level.toLevel(System.getProperty("baragon.test.log.level", "WARN")));
+    context
+      .getLogger("com.hubspot")
+      .setLevel(
+        Level.toLevel(
+          System.getProperty("baragon.test.log.level.for.com.hubspot", "WARN")
+        )
+      );
+  }
+
+  @Test
+  public void itAnswersCheckInsWithoutHoldingRequestThreads() throws Exception {
+    Rollout blocking = rollout(configuration(false));
+    Rollout async = rollout(configuration(true));
+
+    for (Rollout rollout : new Rollout[] { blocking, async }) {
+      Assertions.assertEquals(0, rollout.errors);
+      Assertions.assertEquals(AGENTS, rollout.registered);
+    }
+    Assertions.assertTrue(async.busyMillis * 10 < blocking.busyMillis);
+    Assertions.assertTrue(async.healthChecks < blocking.healthChecks);
+    Assertions.assertTrue(
+      async.checkInThreads <= new ElbConfiguration().getCheckInThreads() + 1
+    );
+    Assertions.assertTrue(
+      async.registeringThreads.stream().allMatch(t -> t.startsWith("elb-check-in"))
+    );
+  }
+
+  @Test
+  public void itChecksInOnTheRequestThreadOnceTheQueueIsFull() throws Exception {
+    ElbConfiguration configuration = configuration(true);
+    configuration.setCheckInThreads(1);
+    configuration.setCheckInQueueSize(1);
+
+    Rollout rollout = rollout(configuration);
+
+    Assertions.assertEquals(0, rollout.errors);
+    Assertions.assertEquals(AGENTS, rollout.registered);
+    Assertions.assertTrue(
+      rollout.registeringThreads.stream().anyMatch(t -> t.startsWith("elb-check-in"))
+    );
+    Assertions.assertTrue(
+      rollout.registeringThreads.stream().anyMatch(t -> !t.startsWith("elb-check-in"))
+    );
+  }
+
+  @Test
+  public void itTracksShutdownsAndFallsBackToAwsForUnknownCheckIns() throws Exception {
+    FakeElbClient elbClient = new FakeElbClient();
+    BaragonGroup group = group();
+    BaragonAgentMetadata agent = agent(0);
+    elbClient.registeredAt.put(instanceId(0), 0L);
+
+    ElbManager elbManager = newElbManager(elbClient, configuration(true));
+    elbManager.start();
+    try {
+      AgentCheckInResponse response = elbManager.attemptRemoveAgent(
+        agent,
+        Optional.of(group),
+        GROUP,
+        false
+      );
+      Assertions.assertEquals(TrafficSourceState.PENDING, response.getState());
+
+      // A service that did not see the shutdown, e.g. after a restart, asks AWS instead
+      ElbManager restarted = newElbManager(elbClient, configuration(true));
+      List<TrafficSourceState> restartedStates = new ArrayList<>();
+      long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+      while (
+        elbManager
+          .attemptRemoveAgent(agent, Optional.of(group), GROUP, true)
+          .getState() !=
+        TrafficSourceState.DONE
+      ) {
+        Assertions.assertTrue(System.currentTimeMillis() < deadline);
+        restartedStates.add(
+          restarted.attemptRemoveAgent(agent, Optional.of(group), GROUP, true).getState()
+        );
+        Thread.sleep(CHECK_IN_WAIT_MILLIS);
+      }
+      Assertions.assertTrue(restartedStates.contains(TrafficSourceState.PENDING));
+      Assertions.assertFalse(restartedStates.contains(TrafficSourceState.ERROR));
+      Assertions.assertFalse(elbClient.registeredAt.containsKey(instanceId(0)));
+      Assertions.assertEquals(
+        TrafficSourceState.DONE,
+        restarted.attemptRemoveAgent(agent, Optional.of(group), GROUP, true).getState()
+      );
+    } finally {
+      elbManager.stop();
+    }
+  }
+
+  @Test
+  public void itFailsWhenNoTargetGroupMatchesTheAgentsVpcLikeTheBlockingCheckIn()
+    throws Exception {
+    ElbConfiguration configuration = configuration(true);
+    configuration.setCheckForCorrectVpc(true);
+    configuration.setFailWhenNoElbForVpc(true);
+    BaragonGroup group = group();
+    BaragonAgentMetadata agent = agent(0, "vpc-other");
+
+    ElbManager elbManager = newElbManager(new FakeElbClient(), configuration);
+    elbManager.start();
+    try {
+      Assertions.assertEquals(
+        TrafficSourceState.PENDING,
+        elbManager.attemptAddAgent(agent, Optional.of(group), GROUP, false).getState()
+      );
+      long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+      while (true) {
+        try {
+          elbManager.attemptAddAgent(agent, Optional.of(group), GROUP, true);
+        } catch (NoMatchingElbForVpcException e) {
+          Assertions.assertTrue(e.getMessage().contains("VPC not configured"));
+          break;
+        }
+        Assertions.assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(CHECK_IN_WAIT_MILLIS);
+      }
+    } finally {
+      elbManager.stop();
+    }
+  }
+
+  private Rollout rollout(ElbConfiguration configuration) throws Exception {
+    FakeElbClient elbClient = new FakeElbClient();
+    BaragonGroup group = group();
+    ElbManager elbManager = newElbManager(elbClient, configuration);
+    ExecutorService requestThreads = Executors.newFixedThreadPool(REQUEST_THREADS);
+    ScheduledExecutorService agentTimers = Executors.newSingleThreadScheduledExecutor();
+    CountDownLatch finished = new CountDownLatch(AGENTS);
+    AtomicLong busyNanos = new AtomicLong();
+    AtomicInteger errors = new AtomicInteger();
+
+    elbManager.start();
+    try {
+      for (int i = 0; i < AGENTS; i++) {
+        BaragonAgentMetadata agent = agent(i);
+        requestThreads.execute(
+          new Runnable() {
+            private boolean isStatusCheck = false;
+
+            @Override
+            public void run() {
+              long callStart = System.nanoTime();
+              AgentCheckInResponse response;
+              try {
+                response =
+                  elbManager.attemptAddAgent(
+                    agent,
+                    Optional.of(group),
+                    GROUP,
+                    isStatusCheck
+                  );
+              } catch (Exception e) {
+                response =
+                  new AgentCheckInResponse(
+                    TrafficSourceState.ERROR,
+                    Optional.of(e.getMessage()),
+                    0L
+                  );
+              } finally {
+                busyNanos.addAndGet(System.nanoTime() - callStart);
+              }
+              if (response.getState() == TrafficSourceState.PENDING) {
+                // Like the agent, wait as long as we were told to and then ask again
+                isStatusCheck = true;
+                agentTimers.schedule(
+                  () -> requestThreads.execute(this),
+                  response.getWaitTime(),
+                  TimeUnit.MILLISECONDS
+                );
+              } else {
+                if (response.getState() == TrafficSourceState.ERROR) {
+                  errors.incrementAndGet();
+                }
+                finished.countDown();
+              }
+            }
+          }
+        );
+      }
+      Assertions.assertTrue(finished.await(2, TimeUnit.MINUTES));
+      return new Rollout(
+        TimeUnit.NANOSECONDS.toMillis(busyNanos.get()),
+        elbClient.calls("describeTargetHealth"),
+        countCheckInThreads(),
+        errors.get(),
+        elbClient.registeredAt.size(),
+        elbClient.registeringThreads
+      );
+    } finally {
+      elbManager.stop();
+      agentTimers.shutdownNow();
+      requestThreads.shutdownNow();
+    }
+  }
+
+  private static int countCheckInThreads() {
+    return (int) Thread
+      .getAllStackTraces()
+      .keySet()
+      .stream()
+      .filter(t -> t.isAlive() && t.getName().startsWith("elb-check-in"))
+      .count();
+  }
+
+  private static class Rollout {
+    private final long busyMillis;
+    private final int healthChecks;
+    private final int checkInThreads;
+    private final int errors;
+    private final int registered;
+    private final Set<String> registeringThreads;
+
+    private Rollout(
+      long busyMillis,
+      int healthChecks,
+      int checkInThreads,
+      int errors,
+      int registered,
+      Set<String> registeringThreads
+    ) {
+      this.busyMillis = busyMillis;
+      this.healthChecks = healthChecks;
+      this.checkInThreads = checkInThreads;
+      this.errors = errors;
+      this.registered = registered;
+      this.registeringThreads = registeringThreads;
+    }
+  }
+
+  private static ElbConfiguration configuration(boolean async) {
+    ElbConfiguration configuration = new ElbConfiguration();
+    configuration.setEnabled(true);
+    configuration.setAsyncCheckInEnabled(async);
+    configuration.setDefaultCheckInWaitTimeMs(CHECK_IN_WAIT_MILLIS);
+    return configuration;
+  }
+
+  private static ElbManager newElbManager(
+    FakeElbClient elbClient,
+    ElbConfiguration configuration
+  ) {
+    return new ElbManager(
+      new ApplicationLoadBalancer(
+        Optional.of(configuration),
+        null,
+        null,
+        null,
+        elbClient
+      ),
+      new ClassicLoadBalancer(Optional.of(configuration), null, null, null, null),
+      null,
+      Optional.of(configuration)
+    );
+  }
+
+  private static BaragonGroup group() {
+    return new BaragonGroup(
+      GROUP,
+      Optional.absent(),
+      ImmutableSet.of(
+        new TrafficSource(TARGET_GROUP, TrafficSourceType.ALB_TARGET_GROUP)
+      ),
+      null,
+      Optional.absent(),
+      null,
+      null,
+      1
+    );
+  }
+
+  private static String instanceId(int agent) {
+    return "i-" + agent;
+  }
+
+  private static BaragonAgentMetadata agent(int agent) {
+    return agent(agent, "vpc-1");
+  }
+
+  private static BaragonAgentMetadata agent(int agent, String vpcId) {
+    String instanceId = instanceId(agent);
+    return new BaragonAgentMetadata(
+      String.format("http://%s:8882/baragon-agent/v2", instanceId),
+      instanceId,
+      Optional.absent(),
+      new BaragonAgentEc2Metadata(
+        Optional.of(instanceId),
+        Optional.of("us-east-1a"),
+        Optional.of("subnet-1"),
+        Optional.of(vpcId),
+        Optional.absent()
+      ),
+      Optional.absent(),
+      Collections.emptyMap(),
+      true
+    );
+  }
+
+  /**
+   * One target group whose targets turn healthy a while after they are registered and finish
+   * draining a while after they are de-registered. Every call takes a while and is counted.
+   */
+  private static class FakeElbClient extends AbstractAmazonElasticLoadBalancing {
+    private final TargetGroup targetGroup = new TargetGroup()
+      .withTargetGroupName(TARGET_GROUP)
+      .withTargetGroupArn("arn:" + TARGET_GROUP)
+      .withVpcId("vpc-1");
+    private final Map<String, Long> registeredAt = new ConcurrentHashMap<>();
+    private final Map<String, Long> deregisteredAt = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final Set<String> registeringThreads = ConcurrentHashMap.newKeySet();
+
+    private int calls(String method) {
+      AtomicInteger count = calls.get(method);
+      return count == null ? 0 : count.get();
+    }
+
+    private void call(String method) {
+      calls.computeIfAbsent(method, m -> new AtomicInteger()).incrementAndGet();
+      try {
+        Thread.sleep(API_LATENCY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private String state(String id) {
+      long now = System.currentTimeMillis();
+      Long registered = registeredAt.get(id);
+      if (registered != null) {
+        return now - registered < HEALTHY_AFTER_MILLIS ? "initial" : "healthy";
+      }
+      Long deregistered = deregisteredAt.get(id);
+      if (deregistered != null && now - deregistered < DRAINED_AFTER_MILLIS) {
+        return "draining";
+      }
+      return "unused";
+    }
+
+    @Override
+    public DescribeTargetGroupsResult describeTargetGroups(
+      DescribeTargetGroupsRequest request
+    ) {
+      call("describeTargetGroups");
+      if (!request.getNames().contains(TARGET_GROUP)) {
+        throw new TargetGroupNotFoundException("Not found");
+      }
+      return new DescribeTargetGroupsResult().withTargetGroups(targetGroup);
+    }
+
+    @Override
+    public DescribeTargetGroupAttributesResult describeTargetGroupAttributes(
+      DescribeTargetGroupAttributesRequest request
+    ) {
+      call("describeTargetGroupAttributes");
+      return new DescribeTargetGroupAttributesResult()
+      .withAttributes(Collections.emptyList());
+    }
+
+    @Override
+    public DescribeTargetHealthResult describeTargetHealth(
+      DescribeTargetHealthRequest request
+    ) {
+      call("describeTargetHealth");
+      List<String> ids = request.getTargets() == null || request.getTargets().isEmpty()
+        ? new ArrayList<>(registeredAt.keySet())
+        : request
+          .getTargets()
+          .stream()
+          .map(TargetDescription::getId)
+          .collect(Collectors.toList());
+      return new DescribeTargetHealthResult()
+      .withTargetHealthDescriptions(
+          ids
+            .stream()
+            .map(
+              id ->
+                new TargetHealthDescription()
+                  .withTarget(new TargetDescription().withId(id))
+                  .withTargetHealth(new TargetHealth().withState(state(id)))
+            )
+            .collect(Collectors.toList())
+        );
+    }
+
+    @Override
+    public RegisterTargetsResult registerTargets(RegisterTargetsRequest request) {
+      call("registerTargets");
+      registeringThreads.add(Thread.currentThread().getName());
+      for (TargetDescription target : request.getTargets()) {
+        registeredAt.putIfAbsent(target.getId(), System.currentTimeMillis());
+        deregisteredAt.remove(target.getId());
+      }
+      return new RegisterTargetsResult();
+    }
+
+    @Override
+    public DeregisterTargetsResult deregisterTargets(DeregisterTargetsRequest request) {
+      call("deregisterTargets");
+      for (TargetDescription target : request.getTargets()) {
+        if (registeredAt.remove(target.getId()) != null) {
+          deregisteredAt.put(target.getId(), System.currentTimeMillis());
+        }
+      }
+      return new DeregisterTargetsResult();
+    }
+  }
+}
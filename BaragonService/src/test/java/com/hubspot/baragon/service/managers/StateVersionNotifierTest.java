@@ -0,0 +1,181 @@
+package com.hubspot.baragon.service.managers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hubspot.baragon.config.ZooKeeperConfiguration;
+import com.hubspot.baragon.data.BaragonStateDatastore;
+import com.hubspot.baragon.service.resources.StateVersionResource;
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.Response;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.servlet.ServletContainer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class StateVersionNotifierTest {
+  private static final int POLLERS = 100;
+  private static final int JETTY_MAX_THREADS = 16;
+
+  private TestingServer zookeeper;
+  private CuratorFramework curator;
+  private BaragonStateDatastore stateDatastore;
+  private StateVersionNotifier notifier;
+  private QueuedThreadPool jettyThreads;
+  private Server jetty;
+  private AsyncHttpClient client;
+  private String stateVersionUrl;
+
+  @BeforeEach
+  public void setup() throws Exception {
+    zookeeper = new TestingServer();
+    curator =
+      CuratorFrameworkFactory.newClient(
+        zookeeper.getConnectString(),
+        new RetryOneTime(100)
+      );
+    curator.start();
+    stateDatastore =
+      new BaragonStateDatastore(
+        curator,
+        new ObjectMapper(),
+        null,
+        new ZooKeeperConfiguration()
+      );
+    stateDatastore.incrementStateVersion();
+    notifier = new StateVersionNotifier(curator);
+    notifier.start();
+
+    // Far fewer threads than pollers, so a poller holding a thread would never be answered
+    jettyThreads = new QueuedThreadPool(JETTY_MAX_THREADS, 4);
+    jetty = new Server(jettyThreads);
+    ServerConnector connector = new ServerConnector(jetty, 1, 1);
+    connector.setHost("127.0.0.1");
+    connector.setAcceptQueueSize(POLLERS);
+    jetty.addConnector(connector);
+    ServletContextHandler context = new ServletContextHandler();
+    ServletHolder jersey = new ServletHolder(
+      new ServletContainer(
+        new ResourceConfig().register(new StateVersionResource(notifier))
+      )
+    );
+    jersey.setAsyncSupported(true);
+    context.addServlet(jersey, "/*");
+    jetty.setHandler(context);
+    jetty.start();
+    stateVersionUrl =
+      String.format("http://127.0.0.1:%d/state-version", connector.getLocalPort());
+
+    client =
+      new AsyncHttpClient(
+        new AsyncHttpClientConfig.Builder()
+          .setRequestTimeout(120000)
+          .setReadTimeout(120000)
+          .build()
+      );
+  }
+
+  @AfterEach
+  public void cleanup() throws Exception {
+    client.close();
+    jetty.stop();
+    notifier.stop();
+    curator.close();
+    zookeeper.close();
+  }
+
+  @Test
+  public void itAnswersImmediatelyWithoutAVersion() throws Exception {
+    Response response = client.prepareGet(stateVersionUrl).execute().get();
+    Assertions.assertEquals(200, response.getStatusCode());
+    Assertions.assertEquals("0", response.getResponseBody());
+    Assertions.assertEquals("0", response.getHeader("ETag"));
+  }
+
+  @Test
+  public void itAnswersImmediatelyWhenAlreadyBehind() throws Exception {
+    stateDatastore.incrementStateVersion();
+    awaitVersion(1);
+    Response response = client
+      .prepareGet(stateVersionUrl + "?after=0&timeoutMs=60000")
+      .execute()
+      .get(5, TimeUnit.SECONDS);
+    Assertions.assertEquals(200, response.getStatusCode());
+    Assertions.assertEquals("1", response.getResponseBody());
+  }
+
+  @Test
+  public void itTimesOutWithNotModified() throws Exception {
+    Response response = client
+      .prepareGet(stateVersionUrl + "?after=0&timeoutMs=200")
+      .execute()
+      .get(5, TimeUnit.SECONDS);
+    Assertions.assertEquals(304, response.getStatusCode());
+    Assertions.assertEquals("0", response.getHeader("ETag"));
+    Assertions.assertEquals(0, notifier.getWaiterCount());
+  }
+
+  @Test
+  public void itParksMorePollersThanItHasThreads() throws Exception {
+    CountDownLatch done = new CountDownLatch(POLLERS);
+    AtomicInteger changed = new AtomicInteger();
+    for (int i = 0; i < POLLERS; i++) {
+      client
+        .prepareGet(stateVersionUrl + "?after=0&timeoutMs=120000")
+        .execute(
+          new AsyncCompletionHandler<Void>() {
+
+            @Override
+            public Void onCompleted(Response response) throws Exception {
+              if (
+                response.getStatusCode() == 200 && "1".equals(response.getResponseBody())
+              ) {
+                changed.incrementAndGet();
+              }
+              done.countDown();
+              return null;
+            }
+
+            @Override
+            public void onThrowable(Throwable t) {
+              done.countDown();
+            }
+          }
+        );
+    }
+
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (notifier.getWaiterCount() < POLLERS && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assertions.assertEquals(POLLERS, notifier.getWaiterCount());
+    Assertions.assertTrue(jettyThreads.getBusyThreads() < JETTY_MAX_THREADS);
+
+    stateDatastore.incrementStateVersion();
+    Assertions.assertTrue(done.await(10, TimeUnit.SECONDS));
+    Assertions.assertEquals(POLLERS, changed.get());
+    Assertions.assertEquals(0, notifier.getWaiterCount());
+  }
+
+  private void awaitVersion(int version) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (notifier.getVersion() < version && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Assertions.assertEquals(version, notifier.getVersion());
+  }
+}
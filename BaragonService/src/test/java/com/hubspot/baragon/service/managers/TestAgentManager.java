@@ -10,9 +10,7 @@ import com.hubspot.baragon.data.BaragonLoadBalancerDatastore;
 import com.hubspot.baragon.data.BaragonStateDatastore;
 import com.hubspot.baragon.models.AgentRequestType;
 import com.hubspot.baragon.models.BaragonRequestBatchItem;
-import com.hubspot.baragon.service.BaragonServiceModule;
 import com.hubspot.baragon.service.config.BaragonConfiguration;
-import com.ning.http.client.AsyncHttpClient;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,9 +26,7 @@ public class TestAgentManager extends AgentManager {
     BaragonAgentResponseDatastore agentResponseDatastore,
     BaragonConfiguration configuration,
     ObjectMapper objectMapper,
-    @Named(
-      BaragonServiceModule.BARAGON_SERVICE_HTTP_CLIENT
-    ) AsyncHttpClient asyncHttpClient,
+    AgentConnectionPool agentConnectionPool,
     @Named(
       BaragonDataModule.BARAGON_AGENT_REQUEST_URI_FORMAT
     ) String baragonAgentRequestUriFormat,
@@ -49,7 +45,7 @@ public class TestAgentManager extends AgentManager {
       agentResponseDatastore,
       configuration,
       objectMapper,
-      asyncHttpClient,
+      agentConnectionPool,
       baragonAgentRequestUriFormat,
       baragonAgentBatchRequestUriFormat,
       baragonAgentMaxAttempts,
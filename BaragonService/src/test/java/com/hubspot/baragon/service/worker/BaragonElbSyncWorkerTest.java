@@ -0,0 +1,422 @@
+package com.hubspot.baragon.service.worker;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+import com.amazonaws.services.elasticloadbalancingv2.AbstractAmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancingv2.model.DeregisterTargetsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DeregisterTargetsResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeLoadBalancersRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeLoadBalancersResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetGroupsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetGroupsResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetHealthRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.DescribeTargetHealthResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.RegisterTargetsRequest;
+import com.amazonaws.services.elasticloadbalancingv2.model.RegisterTargetsResult;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetDescription;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetGroup;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealth;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthDescription;
+import com.amazonaws.services.elasticloadbalancingv2.model.TargetHealthStateEnum;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.hubspot.baragon.data.BaragonKnownAgentsDatastore;
+import com.hubspot.baragon.data.BaragonLoadBalancerDatastore;
+import com.hubspot.baragon.models.BaragonAgentEc2Metadata;
+import com.hubspot.baragon.models.BaragonAgentMetadata;
+import com.hubspot.baragon.models.BaragonGroup;
+import com.hubspot.baragon.models.BaragonKnownAgentMetadata;
+import com.hubspot.baragon.models.TrafficSource;
+import com.hubspot.baragon.models.TrafficSourceType;
+import com.hubspot.baragon.service.config.ElbConfiguration;
+import com.hubspot.baragon.service.elb.ApplicationLoadBalancer;
+import com.hubspot.baragon.service.elb.ClassicLoadBalancer;
+import com.hubspot.baragon.service.exceptions.BaragonExceptionNotifier;
+import com.hubspot.baragon.service.managers.ElbManager;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+
+public class BaragonElbSyncWorkerTest {
+  private static final int GROUPS = 50;
+  private static final int AGENTS_PER_GROUP = 20;
+  private static final long WORKER_INTERVAL_SECONDS = 120;
+  private static final long UNCHANGED_GROUP_SYNC_INTERVAL_SECONDS = 900;
+  private static final int REMOVE_KNOWN_AGENT_MINUTES = 60;
+  private static final String ZONE = "us-east-1a";
+
+  private FakeElbClient elbClient;
+  private Map<String, List<BaragonAgentMetadata>> agentsByGroup;
+  private Map<String, List<BaragonKnownAgentMetadata>> knownAgentsByGroup;
+  private List<BaragonGroup> baragonGroups;
+
+  @BeforeAll
+  public static void setupLogging() {
+    LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+    context
+      .getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)
+      .setLevel(Level.toLevel(System.getProperty("baragon.test.log.level", "WARN")));
+    context
+      .getLogger("com.hubspot")
+      .setLevel(
+        Level.toLevel(
+          System.getProperty("baragon.test.log.level.for.com.hubspot", "INFO")
+        )
+      );
+  }
+
+  @BeforeEach
+  public void setup() {
+    elbClient = new FakeElbClient();
+    agentsByGroup = new ConcurrentHashMap<>();
+    knownAgentsByGroup = new ConcurrentHashMap<>();
+    baragonGroups = new ArrayList<>();
+    for (int g = 0; g < GROUPS; g++) {
+      String name = "group-" + g;
+      List<BaragonAgentMetadata> agents = new ArrayList<>();
+      for (int a = 0; a < AGENTS_PER_GROUP; a++) {
+        agents.add(agent(String.format("i-%d-%d", g, a)));
+      }
+      agentsByGroup.put(name, agents);
+      elbClient.addTargetGroup(
+        name,
+        agents
+          .stream()
+          .map(agent -> agent.getEc2().getInstanceId().get())
+          .collect(Collectors.toList())
+      );
+      baragonGroups.add(
+        new BaragonGroup(
+          name,
+          Optional.absent(),
+          ImmutableSet.of(new TrafficSource(name, TrafficSourceType.ALB_TARGET_GROUP)),
+          null,
+          Optional.absent(),
+          null,
+          null,
+          1
+        )
+      );
+    }
+  }
+
+  @Test
+  public void itOnlyChecksUnchangedGroupsOncePerInterval() {
+    int everyRun = awsCallsPerHour(newWorker(0));
+    int unchangedSkipped = awsCallsPerHour(
+      newWorker(UNCHANGED_GROUP_SYNC_INTERVAL_SECONDS)
+    );
+
+    // 30 runs of every group against runs at 0, 960, 1920 and 2880 seconds
+    Assertions.assertEquals(30 * (GROUPS + 3), everyRun);
+    Assertions.assertEquals(4 * (GROUPS + 3), unchangedSkipped);
+  }
+
+  @Test
+  public void itSyncsAChangedGroupOnTheNextRun() {
+    BaragonElbSyncWorker worker = newWorker(UNCHANGED_GROUP_SYNC_INTERVAL_SECONDS);
+    long now = 0;
+    worker.syncChangedGroups(now);
+    elbClient.drainCalls();
+
+    agentsByGroup.get("group-7").add(agent("i-7-new"));
+    now += TimeUnit.SECONDS.toMillis(WORKER_INTERVAL_SECONDS);
+    worker.syncChangedGroups(now);
+    Map<String, Integer> calls = elbClient.drainCalls();
+
+    Assertions.assertTrue(elbClient.targetIds("group-7").contains("i-7-new"));
+    Assertions.assertEquals(1, (int) calls.get("describeTargetHealth"));
+    Assertions.assertEquals(1, (int) calls.get("registerTargets"));
+
+    now += TimeUnit.SECONDS.toMillis(WORKER_INTERVAL_SECONDS);
+    worker.syncChangedGroups(now);
+    Assertions.assertTrue(elbClient.drainCalls().isEmpty());
+  }
+
+  @Test
+  public void itSyncsAGroupAgainWhileADeregistrationIsWithheld() {
+    BaragonElbSyncWorker worker = newWorker(UNCHANGED_GROUP_SYNC_INTERVAL_SECONDS);
+    agentsByGroup.get("group-5").clear();
+    worker.syncChangedGroups(0);
+    elbClient.drainCalls();
+    // The last healthy target is kept for the group's minimum of one healthy agent
+    Assertions.assertEquals(1, elbClient.targetIds("group-5").size());
+
+    worker.syncChangedGroups(TimeUnit.SECONDS.toMillis(WORKER_INTERVAL_SECONDS));
+    Assertions.assertEquals(1, (int) elbClient.drainCalls().get("describeTargetHealth"));
+    Assertions.assertEquals(1, elbClient.targetIds("group-5").size());
+  }
+
+  @Test
+  public void itSyncsAGroupOnceAKnownAgentHasNotBeenSeenForLongEnough() {
+    BaragonElbSyncWorker worker = newWorker(UNCHANGED_GROUP_SYNC_INTERVAL_SECONDS);
+    long now = System.currentTimeMillis();
+    BaragonAgentMetadata stopped = agentsByGroup.get("group-4").remove(0);
+    BaragonKnownAgentMetadata known = BaragonKnownAgentMetadata.fromAgentMetadata(
+      stopped,
+      now
+    );
+    knownAgentsByGroup.put("group-4", Collections.singletonList(known));
+    worker.syncChangedGroups(now);
+    elbClient.drainCalls();
+    // Its instance stays registered while the agent is still known
+    Assertions.assertTrue(elbClient.targetIds("group-4").contains("i-4-0"));
+
+    known.setLastSeenAt(now - TimeUnit.MINUTES.toMillis(REMOVE_KNOWN_AGENT_MINUTES + 1));
+    worker.syncChangedGroups(now + TimeUnit.SECONDS.toMillis(WORKER_INTERVAL_SECONDS));
+    Map<String, Integer> calls = elbClient.drainCalls();
+
+    Assertions.assertFalse(elbClient.targetIds("group-4").contains("i-4-0"));
+    Assertions.assertEquals(1, (int) calls.get("describeTargetHealth"));
+    Assertions.assertEquals(1, (int) calls.get("deregisterTargets"));
+  }
+
+  @Test
+  public void itRetriesFailedGroupsAndResyncsAfterForgetting() {
+    BaragonElbSyncWorker worker = newWorker(UNCHANGED_GROUP_SYNC_INTERVAL_SECONDS);
+    elbClient.failingTargetGroup = "arn:tg/group-3";
+    worker.syncChangedGroups(0);
+    elbClient.drainCalls();
+
+    elbClient.failingTargetGroup = null;
+    worker.syncChangedGroups(TimeUnit.SECONDS.toMillis(WORKER_INTERVAL_SECONDS));
+    Assertions.assertEquals(1, (int) elbClient.drainCalls().get("describeTargetHealth"));
+
+    worker.forgetSyncedGroups();
+    worker.syncChangedGroups(TimeUnit.SECONDS.toMillis(2 * WORKER_INTERVAL_SECONDS));
+    Assertions.assertEquals(
+      GROUPS,
+      (int) elbClient.drainCalls().get("describeTargetHealth")
+    );
+  }
+
+  private int awsCallsPerHour(BaragonElbSyncWorker worker) {
+    elbClient.drainCalls();
+    for (
+      long seconds = 0;
+      seconds < TimeUnit.HOURS.toSeconds(1);
+      seconds += WORKER_INTERVAL_SECONDS
+    ) {
+      worker.syncChangedGroups(TimeUnit.SECONDS.toMillis(seconds));
+    }
+    return elbClient.drainCalls().values().stream().mapToInt(Integer::intValue).sum();
+  }
+
+  private BaragonElbSyncWorker newWorker(long unchangedGroupSyncIntervalSeconds) {
+    ElbConfiguration configuration = new ElbConfiguration();
+    configuration.setEnabled(true);
+    configuration.setDeregisterEnabled(true);
+    configuration.setRemoveKnownAgentEnabled(true);
+    configuration.setRemoveKnownAgentMinutes(REMOVE_KNOWN_AGENT_MINUTES);
+    configuration.setUnchangedGroupSyncIntervalSeconds(
+      (int) unchangedGroupSyncIntervalSeconds
+    );
+    BaragonExceptionNotifier exceptionNotifier = new BaragonExceptionNotifier(
+      Optional.absent()
+    );
+    BaragonLoadBalancerDatastore loadBalancerDatastore = new BaragonLoadBalancerDatastore(
+      null,
+      null,
+      null
+    ) {
+
+      @Override
+      public Collection<BaragonGroup> getLoadBalancerGroups() {
+        return baragonGroups;
+      }
+
+      @Override
+      public Collection<BaragonAgentMetadata> getAgentMetadata(String clusterName) {
+        return new ArrayList<>(agentsByGroup.get(clusterName));
+      }
+    };
+    BaragonKnownAgentsDatastore knownAgentsDatastore = new BaragonKnownAgentsDatastore(
+      null,
+      null,
+      null,
+      null
+    ) {
+
+      @Override
+      public Collection<BaragonKnownAgentMetadata> getKnownAgentsMetadata(
+        String clusterName
+      ) {
+        return new ArrayList<>(
+          knownAgentsByGroup.getOrDefault(clusterName, Collections.emptyList())
+        );
+      }
+    };
+    ElbManager elbManager = new ElbManager(
+      new ApplicationLoadBalancer(
+        Optional.of(configuration),
+        exceptionNotifier,
+        loadBalancerDatastore,
+        knownAgentsDatastore,
+        elbClient
+      ),
+      new ClassicLoadBalancer(
+        Optional.of(configuration),
+        exceptionNotifier,
+        loadBalancerDatastore,
+        knownAgentsDatastore,
+        new FakeClassicElbClient(elbClient)
+      ),
+      loadBalancerDatastore,
+      Optional.of(configuration)
+    );
+    return new BaragonElbSyncWorker(
+      elbManager,
+      loadBalancerDatastore,
+      knownAgentsDatastore,
+      Optional.of(configuration),
+      exceptionNotifier,
+      new AtomicLong()
+    );
+  }
+
+  private static BaragonAgentMetadata agent(String instanceId) {
+    return new BaragonAgentMetadata(
+      String.format("http://%s:8882/baragon-agent/v2", instanceId),
+      instanceId,
+      Optional.absent(),
+      new BaragonAgentEc2Metadata(
+        Optional.of(instanceId),
+        Optional.of(ZONE),
+        Optional.of("subnet-" + ZONE),
+        Optional.of("vpc-1"),
+        Optional.absent()
+      ),
+      Optional.absent(),
+      Collections.emptyMap(),
+      true
+    );
+  }
+
+  /**
+   * Classic load balancers, of which there are none. Its calls count towards the ALB client's.
+   */
+  private static class FakeClassicElbClient
+    extends com.amazonaws.services.elasticloadbalancing.AbstractAmazonElasticLoadBalancing {
+    private final FakeElbClient calls;
+
+    private FakeClassicElbClient(FakeElbClient calls) {
+      this.calls = calls;
+    }
+
+    @Override
+    public com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersResult describeLoadBalancers() {
+      calls.call("describeClassicLoadBalancers");
+      return new com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersResult()
+      .withLoadBalancerDescriptions(new ArrayList<LoadBalancerDescription>());
+    }
+  }
+
+  private static class FakeElbClient extends AbstractAmazonElasticLoadBalancing {
+    private final List<TargetGroup> targetGroups = new ArrayList<>();
+    private final Map<String, Set<String>> targetsByArn = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private volatile String failingTargetGroup = null;
+
+    private void addTargetGroup(String name, List<String> targets) {
+      String arn = "arn:tg/" + name;
+      targetGroups.add(
+        new TargetGroup()
+          .withTargetGroupName(name)
+          .withTargetGroupArn(arn)
+          .withVpcId("vpc-1")
+      );
+      Set<String> targetIds = ConcurrentHashMap.newKeySet();
+      targetIds.addAll(targets);
+      targetsByArn.put(arn, targetIds);
+    }
+
+    private Set<String> targetIds(String targetGroupName) {
+      return targetsByArn.get("arn:tg/" + targetGroupName);
+    }
+
+    private Map<String, Integer> drainCalls() {
+      Map<String, Integer> drained = new TreeMap<>();
+      calls.forEach((method, count) -> drained.put(method, count.getAndSet(0)));
+      drained.values().removeIf(count -> count == 0);
+      return drained;
+    }
+
+    private void call(String method) {
+      calls.computeIfAbsent(method, m -> new AtomicInteger()).incrementAndGet();
+    }
+
+    @Override
+    public DescribeLoadBalancersResult describeLoadBalancers(
+      DescribeLoadBalancersRequest request
+    ) {
+      call("describeLoadBalancers");
+      return new DescribeLoadBalancersResult().withLoadBalancers(new ArrayList<>());
+    }
+
+    @Override
+    public DescribeTargetGroupsResult describeTargetGroups(
+      DescribeTargetGroupsRequest request
+    ) {
+      call("describeTargetGroups");
+      return new DescribeTargetGroupsResult().withTargetGroups(targetGroups);
+    }
+
+    @Override
+    public DescribeTargetHealthResult describeTargetHealth(
+      DescribeTargetHealthRequest request
+    ) {
+      call("describeTargetHealth");
+      if (request.getTargetGroupArn().equals(failingTargetGroup)) {
+        throw new IllegalStateException("Could not describe " + failingTargetGroup);
+      }
+      return new DescribeTargetHealthResult()
+      .withTargetHealthDescriptions(
+          targetsByArn
+            .get(request.getTargetGroupArn())
+            .stream()
+            .map(
+              id ->
+                new TargetHealthDescription()
+                  .withTarget(new TargetDescription().withId(id))
+                  .withTargetHealth(
+                    new TargetHealth().withState(TargetHealthStateEnum.Healthy)
+                  )
+            )
+            .collect(Collectors.toList())
+        );
+    }
+
+    @Override
+    public RegisterTargetsResult registerTargets(RegisterTargetsRequest request) {
+      call("registerTargets");
+      for (TargetDescription target : request.getTargets()) {
+        targetsByArn.get(request.getTargetGroupArn()).add(target.getId());
+      }
+      return new RegisterTargetsResult();
+    }
+
+    @Override
+    public DeregisterTargetsResult deregisterTargets(DeregisterTargetsRequest request) {
+      call("deregisterTargets");
+      for (TargetDescription target : request.getTargets()) {
+        targetsByArn.get(request.getTargetGroupArn()).remove(target.getId());
+      }
+      return new DeregisterTargetsResult();
+    }
+  }
+}